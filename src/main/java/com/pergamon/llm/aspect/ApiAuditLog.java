@@ -0,0 +1,226 @@
+package com.pergamon.llm.aspect;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.JsonGeneratorDelegate;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer for the API audit log.
+ *
+ * Request threads hand events to a bounded queue and return immediately; a single daemon thread
+ * serializes each event to one line of compact JSON (JSONL) and writes it to the
+ * "com.pergamon.llm.api" logger. When the queue is full, events are dropped and counted rather
+ * than blocking the caller.
+ *
+ * Large strings are not written verbatim: values of "data" fields (base64 image and PDF
+ * payloads) are replaced with their length and SHA-256, and any other string longer than the
+ * configured limit is truncated.
+ */
+public final class ApiAuditLog {
+
+    private static final Logger API_LOGGER = LoggerFactory.getLogger("com.pergamon.llm.api");
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int DEFAULT_MAX_STRING_CHARS = 2048;
+
+    private static final ApiAuditLog SHARED = new ApiAuditLog(DEFAULT_CAPACITY, DEFAULT_MAX_STRING_CHARS);
+
+    /**
+     * A single audit record: one request or response for one vendor call.
+     */
+    record Event(Instant timestamp, String vendor, String conversation, String type, Object payload) {
+    }
+
+    private final BlockingQueue<Event> queue;
+    private final int maxStringChars;
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0L;
+    private final Object idle = new Object();
+
+    /**
+     * Creates an audit log with its own writer thread.
+     *
+     * @param capacity maximum number of events waiting to be written
+     * @param maxStringChars strings longer than this are truncated or hashed
+     */
+    public ApiAuditLog(int capacity, int maxStringChars) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (maxStringChars <= 0) {
+            throw new IllegalArgumentException("maxStringChars must be positive: " + maxStringChars);
+        }
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxStringChars = maxStringChars;
+
+        Thread writer = new Thread(this::drain, "api-audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the audit log used by ApiLoggingAspect.
+     */
+    public static ApiAuditLog shared() {
+        return SHARED;
+    }
+
+    /**
+     * Queues an event for writing without blocking.
+     *
+     * @param vendor the vendor name (e.g., "ANTHROPIC")
+     * @param conversation the conversation name
+     * @param type the event type ("request" or "response")
+     * @param payload the vendor request or response object; must not be mutated afterwards
+     * @return true if the event was queued, false if it was dropped because the queue is full
+     */
+    public boolean submit(String vendor, String conversation, String type, Object payload) {
+        pending.incrementAndGet();
+        boolean queued = queue.offer(new Event(Instant.now(), vendor, conversation, type, payload));
+        if (!queued) {
+            dropped.incrementAndGet();
+            markWritten();
+        }
+        return queued;
+    }
+
+    /**
+     * Waits until every queued event has been written.
+     *
+     * @param timeout maximum time to wait
+     * @return true if the queue drained within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean flush(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (idle) {
+            while (pending.get() > 0) {
+                long remainingMillis = Duration.ofNanos(deadline - System.nanoTime()).toMillis();
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                idle.wait(remainingMillis);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of events dropped because the queue was full.
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        while (true) {
+            Event event;
+            try {
+                event = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                API_LOGGER.info(render(event));
+            } catch (Exception e) {
+                API_LOGGER.error("[{}] Failed to write {} audit event: {}", event.vendor(), event.type(), e.getMessage());
+            } finally {
+                reportDropped();
+                markWritten();
+            }
+        }
+    }
+
+    private void markWritten() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    private void reportDropped() {
+        long total = dropped.get();
+        if (total > droppedReported) {
+            API_LOGGER.warn("Dropped {} API audit events because the queue was full", total - droppedReported);
+            droppedReported = total;
+        }
+    }
+
+    /**
+     * Renders an event as a single line of compact JSON.
+     *
+     * @param event the event
+     * @return the JSON line
+     * @throws IOException if the payload cannot be serialized
+     */
+    String render(Event event) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator gen = new TruncatingJsonGenerator(
+                OBJECT_MAPPER.getFactory().createGenerator(out), maxStringChars)) {
+            gen.writeStartObject();
+            gen.writeStringField("timestamp", event.timestamp().toString());
+            gen.writeStringField("vendor", event.vendor());
+            gen.writeStringField("conversation", event.conversation());
+            gen.writeStringField("type", event.type());
+            gen.writeFieldName("payload");
+            OBJECT_MAPPER.writeValue(gen, event.payload());
+            gen.writeEndObject();
+        }
+        return out.toString();
+    }
+
+    /**
+     * Generator that hashes base64 "data" fields and truncates other long strings as they are written.
+     */
+    private static final class TruncatingJsonGenerator extends JsonGeneratorDelegate {
+        private final int maxStringChars;
+
+        private TruncatingJsonGenerator(JsonGenerator delegate, int maxStringChars) {
+            super(delegate, false);
+            this.maxStringChars = maxStringChars;
+        }
+
+        @Override
+        public void writeString(String text) throws IOException {
+            if (text == null || text.length() <= maxStringChars) {
+                super.writeString(text);
+            } else if ("data".equals(getOutputContext().getCurrentName())) {
+                super.writeString("<" + text.length() + " chars sha256=" + sha256(text) + ">");
+            } else {
+                super.writeString(text.substring(0, maxStringChars)
+                        + "...<truncated " + (text.length() - maxStringChars) + " chars>");
+            }
+        }
+
+        @Override
+        public void writeString(char[] text, int offset, int len) throws IOException {
+            writeString(new String(text, offset, len));
+        }
+
+        private static String sha256(String text) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    }
+}
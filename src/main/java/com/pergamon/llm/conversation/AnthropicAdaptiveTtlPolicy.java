@@ -0,0 +1,51 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.CacheControlEphemeral;
+
+import java.time.Duration;
+
+/**
+ * The cost model behind {@link AnthropicCacheTtlPolicy#adaptive()}.
+ */
+final class AnthropicAdaptiveTtlPolicy implements AnthropicCacheTtlPolicy {
+
+    static final AnthropicAdaptiveTtlPolicy INSTANCE = new AnthropicAdaptiveTtlPolicy();
+
+    static final int MIN_GAPS = 3;
+
+    static final double READ_COST = 0.1;
+    static final double WRITE_5M_COST = 1.25;
+    static final double WRITE_1H_COST = 2.0;
+
+    // A gap this close to the TTL counts as a miss: the entry's clock started before the gap was measured
+    private static final Duration EXPIRY_MARGIN = Duration.ofSeconds(30);
+
+    private AnthropicAdaptiveTtlPolicy() {
+    }
+
+    @Override
+    public CacheControlEphemeral.Ttl selectTtl(AnthropicCacheStats stats) {
+        if (stats.recentGaps().size() < MIN_GAPS) {
+            return CacheControlEphemeral.Ttl.TTL_5M;
+        }
+        double fiveMinutes = expectedCost(stats, Duration.ofMinutes(5), WRITE_5M_COST);
+        double oneHour = expectedCost(stats, Duration.ofHours(1), WRITE_1H_COST);
+        return oneHour < fiveMinutes ? CacheControlEphemeral.Ttl.TTL_1H : CacheControlEphemeral.Ttl.TTL_5M;
+    }
+
+    /**
+     * Expected cost of the next turn's cached tokens, in multiples of the base input price.
+     */
+    static double expectedCost(AnthropicCacheStats stats, Duration ttl, double writeCost) {
+        double hit = stats.fractionOfGapsWithin(ttl.minus(EXPIRY_MARGIN));
+        double prefix = stats.lastCachedTokens();
+        double growth = Math.max(1L, stats.averageGrowthTokens());
+        return hit * (READ_COST * prefix + writeCost * growth)
+                + (1.0 - hit) * writeCost * (prefix + growth);
+    }
+
+    @Override
+    public String toString() {
+        return "adaptive";
+    }
+}
@@ -0,0 +1,107 @@
+package com.pergamon.llm.conversation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates prompt-cache effectiveness per model and reports cache breaks.
+ *
+ * Each AnthropicConversation fingerprints the prefix of its requests (see
+ * {@link AnthropicPrefixFingerprints}) and records every response here with the cache token
+ * counts from its usage. Breaks are logged to the "com.pergamon.llm.cache" logger at INFO and
+ * are available from {@link AnthropicConversation#lastCacheBreak()}.
+ */
+public final class AnthropicCacheAnalyzer {
+
+    private static final Logger CACHE_LOGGER = LoggerFactory.getLogger("com.pergamon.llm.cache");
+
+    private static final AnthropicCacheAnalyzer SHARED = new AnthropicCacheAnalyzer();
+
+    private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+    public AnthropicCacheAnalyzer() {
+    }
+
+    /**
+     * Returns the process-wide analyzer used by AnthropicConversation.
+     */
+    public static AnthropicCacheAnalyzer shared() {
+        return SHARED;
+    }
+
+    /**
+     * Records one response.
+     *
+     * @param model the API model name
+     * @param inputTokens uncached input tokens
+     * @param cacheCreationTokens tokens written to the cache
+     * @param cacheReadTokens tokens read from the cache
+     * @param cacheBreak the break detected for the response, if any
+     */
+    void record(String model, long inputTokens, long cacheCreationTokens, long cacheReadTokens,
+                Optional<AnthropicCacheBreak> cacheBreak) {
+        Counters modelCounters = counters.computeIfAbsent(model, m -> new Counters());
+        modelCounters.requests.increment();
+        if (cacheReadTokens > 0) {
+            modelCounters.hits.increment();
+        }
+        modelCounters.inputTokens.add(inputTokens);
+        modelCounters.cacheCreationTokens.add(cacheCreationTokens);
+        modelCounters.cacheReadTokens.add(cacheReadTokens);
+        cacheBreak.ifPresent(found -> {
+            modelCounters.breaks.increment();
+            modelCounters.tokensLost.add(found.tokensLost());
+            CACHE_LOGGER.info("{}", found);
+        });
+    }
+
+    /**
+     * Returns the totals for one model, all zero if nothing was recorded for it.
+     *
+     * @param model the API model name
+     * @return the model's cache statistics
+     */
+    public AnthropicModelCacheStats modelStats(String model) {
+        Counters modelCounters = counters.get(model);
+        return modelCounters == null
+                ? new AnthropicModelCacheStats(model, 0L, 0L, 0L, 0L, 0L, 0L, 0L)
+                : modelCounters.snapshot(model);
+    }
+
+    /**
+     * Returns the totals of every model recorded so far, by model name.
+     */
+    public Map<String, AnthropicModelCacheStats> modelStats() {
+        Map<String, AnthropicModelCacheStats> stats = new TreeMap<>();
+        counters.forEach((model, modelCounters) -> stats.put(model, modelCounters.snapshot(model)));
+        return stats;
+    }
+
+    /**
+     * Discards all recorded totals.
+     */
+    public void reset() {
+        counters.clear();
+    }
+
+    private static final class Counters {
+        final LongAdder requests = new LongAdder();
+        final LongAdder hits = new LongAdder();
+        final LongAdder breaks = new LongAdder();
+        final LongAdder inputTokens = new LongAdder();
+        final LongAdder cacheCreationTokens = new LongAdder();
+        final LongAdder cacheReadTokens = new LongAdder();
+        final LongAdder tokensLost = new LongAdder();
+
+        AnthropicModelCacheStats snapshot(String model) {
+            return new AnthropicModelCacheStats(model, requests.sum(), hits.sum(), breaks.sum(), inputTokens.sum(),
+                    cacheCreationTokens.sum(), cacheReadTokens.sum(), tokensLost.sum());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * Explains why a request read less from the prompt cache than its predecessor had cached.
+ *
+ * Positions refer to the vendor history of the request that missed; they are -1 when the
+ * client-side tools or system prompt changed, and when the prefix was unchanged and the cache
+ * entry was simply not read.
+ *
+ * @param model the API model name
+ * @param cause why the cached prefix was not read
+ * @param messageIndex index of the message holding the first differing block, or -1
+ * @param blockIndex index of the first differing block within that message, or -1
+ * @param tokensLost estimated tokens cached by the previous request that could not be read
+ * @param cacheReadTokens tokens the request actually read from the cache
+ * @param cacheCreationTokens tokens the request wrote to the cache
+ */
+public record AnthropicCacheBreak(String model, Cause cause, int messageIndex, int blockIndex, long tokensLost,
+                                  long cacheReadTokens, long cacheCreationTokens) {
+
+    public enum Cause {
+        /** The tools, the system prompt or a block at or before the previous request's last breakpoint changed, was removed or moved. */
+        PREFIX_CHANGED,
+        /** The prefix was unchanged but nothing was read: the entry expired, was evicted or was out of lookback range. */
+        NOT_READ
+    }
+
+    @Override
+    public String toString() {
+        if (cause == Cause.NOT_READ) {
+            return "Prompt cache not read for " + model + ": prefix unchanged, ~" + tokensLost
+                    + " cached tokens lost (expired, evicted or beyond the lookback window)";
+        }
+        String location = messageIndex < 0
+                ? "the tools and system prompt"
+                : "message " + messageIndex + ", block " + blockIndex;
+        return "Prompt cache prefix broke for " + model + " at " + location + ": ~" + tokensLost + " cached tokens lost";
+    }
+}
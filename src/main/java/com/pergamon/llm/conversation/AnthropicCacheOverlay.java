@@ -0,0 +1,125 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.CacheControlEphemeral;
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Applies cache_control breakpoints to an outgoing request without touching the stored history.
+ *
+ * {@link #apply} returns a read-only view of the history in which only the (at most four)
+ * messages holding a breakpoint are replaced by marked copies. The history itself is never
+ * modified, so markers cannot accumulate across turns, and the work per request is bounded
+ * by the number of breakpoints rather than the length of the conversation.
+ *
+ * Marked copies are reused on the next request when the same message is marked the same way,
+ * as anchored breakpoints usually are. The copy keeps its identity, so its encoded bytes are
+ * reused by {@link AnthropicMessageEncodingCache}.
+ */
+final class AnthropicCacheOverlay {
+
+    /**
+     * A marked copy of a history message.
+     */
+    private record Marked(MessageParam original, List<Integer> blockIndices, CacheControlEphemeral cacheControl,
+                          MessageParam copy) {
+    }
+
+    // Copies made for the previous request; at most one per breakpoint
+    private List<Marked> previous = List.of();
+
+    /**
+     * Returns the history with cache_control set on the planned blocks.
+     *
+     * @param history the stored vendor history; not modified
+     * @param plan the breakpoints to apply, in history order
+     * @param cacheControl the cache control to set on each breakpoint
+     * @return a read-only view of the history with the breakpoints applied
+     */
+    List<MessageParam> apply(List<MessageParam> history, List<AnthropicCachePlanner.Breakpoint> plan,
+                             CacheControlEphemeral cacheControl) {
+        if (plan.isEmpty()) {
+            previous = List.of();
+            return history;
+        }
+
+        // Group the breakpoints by message; the plan is sorted, so each message's entries are adjacent
+        List<Marked> current = new ArrayList<>(plan.size());
+        int[] indices = new int[plan.size()];
+        int i = 0;
+        while (i < plan.size()) {
+            int messageIndex = plan.get(i).messageIndex();
+            List<Integer> blockIndices = new ArrayList<>(plan.size());
+            while (i < plan.size() && plan.get(i).messageIndex() == messageIndex) {
+                blockIndices.add(plan.get(i).blockIndex());
+                i++;
+            }
+            indices[current.size()] = messageIndex;
+            current.add(marked(history.get(messageIndex), blockIndices, cacheControl));
+        }
+        previous = current;
+
+        MessageParam[] copies = new MessageParam[current.size()];
+        for (int m = 0; m < copies.length; m++) {
+            copies[m] = current.get(m).copy();
+        }
+        return new OverlayView(history, Arrays.copyOf(indices, copies.length), copies);
+    }
+
+    private Marked marked(MessageParam original, List<Integer> blockIndices, CacheControlEphemeral cacheControl) {
+        for (Marked earlier : previous) {
+            if (earlier.original() == original && earlier.blockIndices().equals(blockIndices)
+                    && earlier.cacheControl().equals(cacheControl)) {
+                return earlier;
+            }
+        }
+
+        List<ContentBlockParam> blocks = new ArrayList<>(original.content().blockParams().orElseThrow());
+        for (int blockIndex : blockIndices) {
+            blocks.set(blockIndex,
+                    AnthropicConversation.rebuildBlockWithCacheControl(blocks.get(blockIndex), cacheControl));
+        }
+        MessageParam copy = MessageParam.builder()
+                .role(original.role())
+                .content(MessageParam.Content.ofBlockParams(blocks))
+                .build();
+        return new Marked(original, List.copyOf(blockIndices), cacheControl, copy);
+    }
+
+    /**
+     * The history with a few messages swapped for their marked copies.
+     */
+    private static final class OverlayView extends AbstractList<MessageParam> implements RandomAccess {
+
+        private final List<MessageParam> history;
+        private final int[] indices;
+        private final MessageParam[] copies;
+
+        OverlayView(List<MessageParam> history, int[] indices, MessageParam[] copies) {
+            this.history = history;
+            this.indices = indices;
+            this.copies = copies;
+        }
+
+        @Override
+        public MessageParam get(int index) {
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] == index) {
+                    return copies[i];
+                }
+            }
+            return history.get(index);
+        }
+
+        @Override
+        public int size() {
+            return history.size();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Chooses where to place Anthropic prompt-cache breakpoints in a conversation's history.
+ *
+ * Anthropic allows four cache_control breakpoints per request. A cache entry is written at each
+ * breakpoint, and a breakpoint reads an existing entry only if that entry ends at most 20 blocks
+ * before it. The planner therefore places:
+ * 1. a tail breakpoint on the last cacheable block, writing the prefix the next turn will read
+ * 2. a bridge breakpoint on the previous tail when the new tail is more than 20 blocks past it,
+ *    so the previous turn's entry is still read
+ * 3. anchor breakpoints after the heaviest blocks (large documents and images), which stay in
+ *    place on later turns so their entries keep being read if the history after them changes
+ *
+ * When the system prompt carries its own breakpoint, the history is planned with one fewer.
+ *
+ * Planning is stateful, since earlier plans decide what can be read; use one planner per conversation.
+ */
+final class AnthropicCachePlanner {
+
+    static final int MAX_BREAKPOINTS = 4;
+    static final int LOOKBACK_BLOCKS = 20;
+
+    /**
+     * Prefixes shorter than this are not cached by Anthropic, and lighter blocks are not anchored.
+     */
+    static final long MIN_CACHEABLE_TOKENS = 1024L;
+
+    enum Kind { TAIL, BRIDGE, ANCHOR }
+
+    /**
+     * A planned breakpoint: the block at blockIndex of the message at messageIndex.
+     */
+    record Breakpoint(int messageIndex, int blockIndex, Kind kind) {
+
+        boolean samePosition(Breakpoint other) {
+            return messageIndex == other.messageIndex && blockIndex == other.blockIndex;
+        }
+    }
+
+    /**
+     * A block of the flattened history.
+     */
+    private record Slot(int messageIndex, int blockIndex, int flatIndex, long ownTokens, long prefixTokens,
+                        boolean cacheable) {
+    }
+
+    private List<Breakpoint> previous = List.of();
+
+    // The message each previous breakpoint was placed in, by position in previous
+    private List<MessageParam> previousMessages = List.of();
+
+    // Requested anchor for the next plan only, or null
+    private Breakpoint pinned;
+
+    /**
+     * Asks for an anchor on the given block in the next plan, ahead of any other anchor.
+     * Once placed, it is kept on later turns like any other anchor.
+     *
+     * @param messageIndex the index of the message holding the block
+     * @param blockIndex the index of the block within the message
+     */
+    void pin(int messageIndex, int blockIndex) {
+        pinned = new Breakpoint(messageIndex, blockIndex, Kind.ANCHOR);
+    }
+
+    /**
+     * Plans the breakpoints for the next request and remembers them for the following one.
+     *
+     * @param history the vendor history to be sent
+     * @param blockTokens estimates the tokens of a single block
+     * @param cacheable true for blocks that can carry cache_control
+     * @return at most {@link #MAX_BREAKPOINTS} breakpoints, in history order
+     */
+    List<Breakpoint> plan(List<MessageParam> history, ToLongFunction<ContentBlockParam> blockTokens,
+                          Predicate<ContentBlockParam> cacheable) {
+        return plan(history, blockTokens, cacheable, MAX_BREAKPOINTS);
+    }
+
+    /**
+     * Plans the breakpoints for the next request when some of the request's breakpoints are
+     * placed outside the history, such as on the system prompt.
+     *
+     * @param history the vendor history to be sent
+     * @param blockTokens estimates the tokens of a single block
+     * @param cacheable true for blocks that can carry cache_control
+     * @param maxBreakpoints the number of breakpoints available to the history
+     * @return at most maxBreakpoints breakpoints, in history order
+     */
+    List<Breakpoint> plan(List<MessageParam> history, ToLongFunction<ContentBlockParam> blockTokens,
+                          Predicate<ContentBlockParam> cacheable, int maxBreakpoints) {
+        if (maxBreakpoints < 1 || maxBreakpoints > MAX_BREAKPOINTS) {
+            throw new IllegalArgumentException("maxBreakpoints must be between 1 and " + MAX_BREAKPOINTS
+                    + ": " + maxBreakpoints);
+        }
+        Breakpoint requested = pinned;
+        pinned = null;
+        List<Slot> slots = flatten(history, blockTokens, cacheable);
+        Slot tail = null;
+        for (int i = slots.size() - 1; i >= 0 && tail == null; i--) {
+            if (slots.get(i).cacheable()) {
+                tail = slots.get(i);
+            }
+        }
+        if (tail == null) {
+            remember(List.of(), history);
+            return List.of();
+        }
+
+        List<Breakpoint> chosen = new ArrayList<>(maxBreakpoints);
+        chosen.add(new Breakpoint(tail.messageIndex(), tail.blockIndex(), Kind.TAIL));
+
+        // Earlier breakpoints only carry over while the same message is still at their position;
+        // the history holds no markers, so an unchanged message keeps its identity across turns,
+        // while compaction replaces or shifts messages
+        List<Slot> retainedAnchors = new ArrayList<>();
+        for (int i = 0; i < previous.size(); i++) {
+            Breakpoint earlier = previous.get(i);
+            int messageIndex = earlier.messageIndex();
+            if (messageIndex >= history.size() || history.get(messageIndex) != previousMessages.get(i)) {
+                continue;
+            }
+            Slot slot = find(slots, earlier);
+            if (slot == null || !slot.cacheable() || slot.flatIndex() >= tail.flatIndex()) {
+                continue;
+            }
+            if (earlier.kind() == Kind.TAIL && tail.flatIndex() - slot.flatIndex() > LOOKBACK_BLOCKS
+                    && chosen.size() < maxBreakpoints) {
+                chosen.add(new Breakpoint(slot.messageIndex(), slot.blockIndex(), Kind.BRIDGE));
+            } else if (earlier.kind() == Kind.ANCHOR) {
+                retainedAnchors.add(slot);
+            }
+        }
+
+        // Place a pinned anchor first, then keep existing anchors, those covering the longest
+        // prefix winning, then anchor the heaviest remaining blocks
+        retainedAnchors.sort(Comparator.comparingLong(Slot::prefixTokens).reversed());
+        if (requested != null) {
+            Slot slot = find(slots, requested);
+            if (slot != null && slot.cacheable() && slot.flatIndex() < tail.flatIndex()) {
+                retainedAnchors.addFirst(slot);
+            }
+        }
+        List<Slot> newAnchors = new ArrayList<>();
+        for (Slot slot : slots) {
+            if (slot.cacheable() && slot.flatIndex() < tail.flatIndex()
+                    && slot.ownTokens() >= MIN_CACHEABLE_TOKENS) {
+                newAnchors.add(slot);
+            }
+        }
+        newAnchors.sort(Comparator.comparingLong(Slot::ownTokens).reversed()
+                .thenComparingInt(Slot::flatIndex));
+
+        List<Slot> anchors = new ArrayList<>(retainedAnchors);
+        anchors.addAll(newAnchors);
+        for (Slot slot : anchors) {
+            if (chosen.size() >= maxBreakpoints) {
+                break;
+            }
+            Breakpoint anchor = new Breakpoint(slot.messageIndex(), slot.blockIndex(), Kind.ANCHOR);
+            if (chosen.stream().noneMatch(anchor::samePosition)) {
+                chosen.add(anchor);
+            }
+        }
+
+        chosen.sort(Comparator.comparingInt(Breakpoint::messageIndex).thenComparingInt(Breakpoint::blockIndex));
+        remember(chosen, history);
+        return List.copyOf(chosen);
+    }
+
+    private void remember(List<Breakpoint> plan, List<MessageParam> history) {
+        previous = List.copyOf(plan);
+        previousMessages = plan.stream().map(breakpoint -> history.get(breakpoint.messageIndex())).toList();
+    }
+
+    private static List<Slot> flatten(List<MessageParam> history, ToLongFunction<ContentBlockParam> blockTokens,
+                                      Predicate<ContentBlockParam> cacheable) {
+        List<Slot> slots = new ArrayList<>();
+        long prefixTokens = 0L;
+        for (int m = 0; m < history.size(); m++) {
+            List<ContentBlockParam> blocks = history.get(m).content().blockParams().orElse(List.of());
+            for (int b = 0; b < blocks.size(); b++) {
+                ContentBlockParam block = blocks.get(b);
+                long ownTokens = blockTokens.applyAsLong(block);
+                prefixTokens += ownTokens;
+                slots.add(new Slot(m, b, slots.size(), ownTokens, prefixTokens, cacheable.test(block)));
+            }
+        }
+        return slots;
+    }
+
+    private static Slot find(List<Slot> slots, Breakpoint breakpoint) {
+        for (Slot slot : slots) {
+            if (slot.messageIndex() == breakpoint.messageIndex() && slot.blockIndex() == breakpoint.blockIndex()) {
+                return slot;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,48 @@
+package com.pergamon.llm.conversation;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Snapshot of an Anthropic conversation's prompt-cache activity, as seen by its
+ * {@link AnthropicCacheTtlPolicy} and reported by {@link AnthropicConversation#getCacheStats()}.
+ *
+ * @param cachedRequests requests sent with cache breakpoints
+ * @param oneHourRequests how many of those used the 1-hour TTL
+ * @param cacheHits responses that read from the cache
+ * @param cacheReadTokens total tokens read from the cache
+ * @param cacheWrite5mTokens total tokens written to 5-minute cache entries
+ * @param cacheWrite1hTokens total tokens written to 1-hour cache entries
+ * @param lastCachedTokens tokens read or written by the most recent response; the prefix the next turn can read
+ * @param averageGrowthTokens average tokens added to the cached prefix per turn
+ * @param recentGaps the most recent intervals between a response and the next request, oldest first
+ */
+public record AnthropicCacheStats(int cachedRequests, int oneHourRequests, int cacheHits, long cacheReadTokens,
+                                  long cacheWrite5mTokens, long cacheWrite1hTokens, long lastCachedTokens,
+                                  long averageGrowthTokens, List<Duration> recentGaps) {
+
+    public AnthropicCacheStats {
+        recentGaps = List.copyOf(recentGaps);
+    }
+
+    /**
+     * Returns the fraction of responses that read from the cache, or 0 before any cached request.
+     */
+    public double hitRatio() {
+        return cachedRequests == 0 ? 0.0 : (double) cacheHits / cachedRequests;
+    }
+
+    /**
+     * Returns the fraction of recent gaps shorter than the given duration, or 0 when none were observed.
+     *
+     * @param limit the duration to compare against
+     * @return a fraction between 0 and 1
+     */
+    public double fractionOfGapsWithin(Duration limit) {
+        if (recentGaps.isEmpty()) {
+            return 0.0;
+        }
+        long within = recentGaps.stream().filter(gap -> gap.compareTo(limit) < 0).count();
+        return (double) within / recentGaps.size();
+    }
+}
@@ -0,0 +1,121 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.CacheControlEphemeral;
+import com.anthropic.models.messages.Usage;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.function.LongSupplier;
+
+/**
+ * Records an Anthropic conversation's turn timing and cache usage for {@link AnthropicCacheStats}.
+ *
+ * A gap is the time from one response to the next request, which is how long the prefix cached
+ * by that response had to stay alive.
+ */
+final class AnthropicCacheTracker {
+
+    static final int MAX_GAPS = 16;
+
+    // Weight of each turn in the average prefix growth
+    private static final double GROWTH_WEIGHT = 0.3;
+
+    private final LongSupplier nanoClock;
+    private final ArrayDeque<Duration> recentGaps = new ArrayDeque<>(MAX_GAPS);
+
+    private long lastResponseNanos;
+    private boolean responded;
+    private Duration pendingGap;
+    private CacheControlEphemeral.Ttl pendingTtl;
+
+    private int cachedRequests;
+    private int oneHourRequests;
+    private int cacheHits;
+    private long cacheReadTokens;
+    private long cacheWrite5mTokens;
+    private long cacheWrite1hTokens;
+    private long lastCachedTokens;
+    private double averageGrowthTokens;
+
+    AnthropicCacheTracker() {
+        this(System::nanoTime);
+    }
+
+    AnthropicCacheTracker(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Records a request about to be sent. Its gap and TTL are counted once its response arrives,
+     * so a request answered without reaching the API can be discarded.
+     *
+     * @param ttl the TTL of its breakpoints, or null when it has none
+     */
+    synchronized void onRequest(CacheControlEphemeral.Ttl ttl) {
+        pendingGap = responded ? Duration.ofNanos(nanoClock.getAsLong() - lastResponseNanos) : null;
+        pendingTtl = ttl;
+    }
+
+    /**
+     * Forgets the last request, which was answered without reaching the API, for example from a
+     * response cache. Neither it nor its response is counted.
+     */
+    synchronized void discardRequest() {
+        pendingGap = null;
+        pendingTtl = null;
+    }
+
+    /**
+     * Records the usage reported for the last request.
+     *
+     * @param usage the response's usage
+     */
+    synchronized void onResponse(Usage usage) {
+        if (pendingGap != null) {
+            if (recentGaps.size() == MAX_GAPS) {
+                recentGaps.removeFirst();
+            }
+            recentGaps.addLast(pendingGap);
+        }
+        boolean cachedRequest = pendingTtl != null;
+        if (cachedRequest) {
+            cachedRequests++;
+            if (CacheControlEphemeral.Ttl.TTL_1H.equals(pendingTtl)) {
+                oneHourRequests++;
+            }
+        }
+        pendingGap = null;
+        pendingTtl = null;
+        lastResponseNanos = nanoClock.getAsLong();
+        responded = true;
+
+        long read = usage.cacheReadInputTokens().orElse(0L);
+        long created = usage.cacheCreationInputTokens().orElse(0L);
+        cacheReadTokens += read;
+        if (usage.cacheCreation().isPresent()) {
+            cacheWrite5mTokens += usage.cacheCreation().get().ephemeral5mInputTokens();
+            cacheWrite1hTokens += usage.cacheCreation().get().ephemeral1hInputTokens();
+        } else {
+            cacheWrite5mTokens += created;
+        }
+        if (!cachedRequest) {
+            return;
+        }
+
+        if (read > 0) {
+            cacheHits++;
+        }
+        long cached = read + created;
+        long growth = Math.max(0L, cached - lastCachedTokens);
+        averageGrowthTokens = cachedRequests == 1
+                ? growth
+                : averageGrowthTokens + GROWTH_WEIGHT * (growth - averageGrowthTokens);
+        lastCachedTokens = cached;
+    }
+
+    synchronized AnthropicCacheStats snapshot() {
+        return new AnthropicCacheStats(cachedRequests, oneHourRequests, cacheHits, cacheReadTokens,
+                cacheWrite5mTokens, cacheWrite1hTokens, lastCachedTokens, Math.round(averageGrowthTokens),
+                recentGaps.stream().toList());
+    }
+}
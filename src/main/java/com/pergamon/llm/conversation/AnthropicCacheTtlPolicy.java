@@ -0,0 +1,45 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.CacheControlEphemeral;
+
+/**
+ * Chooses the TTL of the cache breakpoints in an Anthropic request.
+ *
+ * A 5-minute entry costs 1.25x the base input price to write and a 1-hour entry 2x; reading
+ * either costs 0.1x. Reads also refresh the entry, so the 1-hour TTL pays off when turns are
+ * often more than five minutes but less than an hour apart.
+ */
+@FunctionalInterface
+public interface AnthropicCacheTtlPolicy {
+
+    /**
+     * Always uses the 5-minute TTL.
+     */
+    AnthropicCacheTtlPolicy FIVE_MINUTES = stats -> CacheControlEphemeral.Ttl.TTL_5M;
+
+    /**
+     * Always uses the 1-hour TTL.
+     */
+    AnthropicCacheTtlPolicy ONE_HOUR = stats -> CacheControlEphemeral.Ttl.TTL_1H;
+
+    /**
+     * Chooses the TTL for the next request.
+     *
+     * @param stats the conversation's cache activity so far
+     * @return the TTL to set on every breakpoint of the request
+     */
+    CacheControlEphemeral.Ttl selectTtl(AnthropicCacheStats stats);
+
+    /**
+     * Returns the default policy, which compares the expected cost of the next turn under each TTL.
+     *
+     * The recent turn gaps give the chance that a cached prefix is still alive when the next
+     * request arrives: on a hit the prefix is read and only the new tokens are written, on a miss
+     * everything is written again. The cost of each outcome is weighed with the size of the
+     * cached prefix and its average growth per turn. Until a few gaps have been observed,
+     * the 5-minute TTL is used.
+     */
+    static AnthropicCacheTtlPolicy adaptive() {
+        return AnthropicAdaptiveTtlPolicy.INSTANCE;
+    }
+}
@@ -0,0 +1,202 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.TextBlockParam;
+import com.anthropic.models.messages.TextCitationParam;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Anthropic-specific compaction strategies and helpers.
+ * The vendor-neutral strategies live on {@link CompactionStrategy}.
+ */
+public final class AnthropicCompaction {
+
+    private static final String SUMMARY_INSTRUCTIONS = """
+            Summarize the conversation transcript below so that it can replace the transcript \
+            in a continuing conversation. Keep facts, decisions, open questions, names and numbers; \
+            drop pleasantries. Reply with the summary only.
+
+            """;
+
+    private AnthropicCompaction() {
+    }
+
+    /**
+     * Replaces image and document blocks in the oldest turns with short text placeholders,
+     * keeping the most recent turns that fit in the target untouched. Text is kept everywhere.
+     *
+     * Document citations refer to documents by their position in the request, so once a
+     * document is dropped, char, page and content block citations are removed from the
+     * history's text blocks. Web search and search result citations are kept.
+     */
+    public static CompactionStrategy<MessageParam> dropAttachments() {
+        return (history, context) -> {
+            int cut = context.cutIndex(history, context.targetTokens());
+
+            List<MessageParam> compacted = new ArrayList<>(history.size());
+            for (int i = 0; i < history.size(); i++) {
+                MessageParam message = history.get(i);
+                if (i < cut && hasAttachment(message)) {
+                    message = withBlocks(message, AnthropicCompaction::placeholderFor);
+                }
+                compacted.add(message);
+            }
+            return withoutStaleCitations(history, compacted);
+        };
+    }
+
+    /**
+     * Removes char, page and content block citations from a compacted history's text blocks
+     * when compaction dropped any document, whichever strategy dropped it. The message being
+     * sent is kept as the same instance.
+     *
+     * @param before the history before compaction
+     * @param after  the compacted history
+     * @return the compacted history, without document citations if a document was dropped
+     */
+    static List<MessageParam> withoutStaleCitations(List<MessageParam> before, List<MessageParam> after) {
+        if (documentCount(after) == documentCount(before)) {
+            return after;
+        }
+        List<MessageParam> compacted = new ArrayList<>(after.size());
+        for (MessageParam message : after.subList(0, after.size() - 1)) {
+            compacted.add(hasDocumentCitation(message)
+                    ? withBlocks(message, AnthropicCompaction::withoutDocumentCitations)
+                    : message);
+        }
+        compacted.add(after.getLast());
+        return compacted;
+    }
+
+    /**
+     * Returns a summarizer for {@link CompactionStrategy#summarizing(Function)} that asks an LLM
+     * for the summary. Each call sends the rendered transcript as the only message of a fresh
+     * conversation from the supplier, then closes it.
+     *
+     * @param conversations supplies the conversation used to generate each summary
+     * @return a summarizer of Anthropic vendor messages
+     */
+    public static Function<List<MessageParam>, String> llmSummarizer(Supplier<? extends Conversation<?, ?>> conversations) {
+        if (conversations == null) {
+            throw new IllegalArgumentException("conversations cannot be null");
+        }
+        return history -> {
+            try (Conversation<?, ?> conversation = conversations.get()) {
+                Message response = conversation.sendMessage(new Message(MessageRole.USER, List.of(
+                        new TextBlock(TextBlockFormat.PLAIN, SUMMARY_INSTRUCTIONS + renderTranscript(history), List.of()))),
+                        false);
+                StringBuilder summary = new StringBuilder();
+                for (MessageBlock block : response.blocks()) {
+                    if (block instanceof TextBlock textBlock) {
+                        summary.append(textBlock.text());
+                    }
+                }
+                return summary.toString();
+            }
+        };
+    }
+
+    /**
+     * Renders vendor messages as a plain-text transcript, one paragraph per message,
+     * with attachments and tool activity reduced to placeholders.
+     *
+     * @param history the vendor messages
+     * @return the transcript
+     */
+    static String renderTranscript(List<MessageParam> history) {
+        StringBuilder sb = new StringBuilder();
+        for (MessageParam message : history) {
+            sb.append(message.role().asString().toUpperCase()).append(":");
+            if (message.content().string().isPresent()) {
+                sb.append(' ').append(message.content().string().get());
+            }
+            for (ContentBlockParam block : message.content().blockParams().orElse(List.of())) {
+                sb.append(' ').append(block.text().map(TextBlockParam::text).orElseGet(() -> placeholderText(block)));
+            }
+            sb.append("\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static boolean hasAttachment(MessageParam message) {
+        return message.content().blockParams().orElse(List.of()).stream()
+                .anyMatch(block -> block.image().isPresent() || block.document().isPresent());
+    }
+
+    private static long documentCount(List<MessageParam> history) {
+        return history.stream()
+                .flatMap(message -> message.content().blockParams().orElse(List.of()).stream())
+                .filter(block -> block.document().isPresent())
+                .count();
+    }
+
+    private static boolean hasDocumentCitation(MessageParam message) {
+        return message.content().blockParams().orElse(List.of()).stream()
+                .flatMap(block -> block.text().flatMap(TextBlockParam::citations).orElse(List.of()).stream())
+                .anyMatch(AnthropicCompaction::isDocumentCitation);
+    }
+
+    private static boolean isDocumentCitation(TextCitationParam citation) {
+        return citation.charLocation().isPresent()
+                || citation.pageLocation().isPresent()
+                || citation.contentBlockLocation().isPresent();
+    }
+
+    private static ContentBlockParam placeholderFor(ContentBlockParam block) {
+        if (block.image().isPresent() || block.document().isPresent()) {
+            return ContentBlockParam.ofText(TextBlockParam.builder().text(placeholderText(block)).build());
+        }
+        return block;
+    }
+
+    private static String placeholderText(ContentBlockParam block) {
+        if (block.image().isPresent()) {
+            return "[image omitted]";
+        }
+        if (block.document().isPresent()) {
+            return block.document().get().title()
+                    .map(title -> "[document omitted: " + title + "]")
+                    .orElse("[document omitted]");
+        }
+        if (block.toolUse().isPresent() || block.serverToolUse().isPresent()) {
+            return "[tool call]";
+        }
+        if (block.toolResult().isPresent() || block.webSearchToolResult().isPresent()) {
+            return "[tool result]";
+        }
+        return "";
+    }
+
+    private static ContentBlockParam withoutDocumentCitations(ContentBlockParam block) {
+        if (block.text().isEmpty() || block.text().get().citations().isEmpty()) {
+            return block;
+        }
+        TextBlockParam text = block.text().get();
+        List<TextCitationParam> kept = text.citations().get().stream()
+                .filter(citation -> !isDocumentCitation(citation))
+                .toList();
+        TextBlockParam.Builder builder = text.toBuilder();
+        if (kept.isEmpty()) {
+            builder.citations(Optional.empty());
+        } else {
+            builder.citations(kept);
+        }
+        return ContentBlockParam.ofText(builder.build());
+    }
+
+    private static MessageParam withBlocks(MessageParam message, Function<ContentBlockParam, ContentBlockParam> rewrite) {
+        List<ContentBlockParam> blocks = message.content().blockParams().orElse(List.of()).stream()
+                .map(rewrite)
+                .toList();
+        return MessageParam.builder()
+                .role(message.role())
+                .content(MessageParam.Content.ofBlockParams(blocks))
+                .build();
+    }
+}
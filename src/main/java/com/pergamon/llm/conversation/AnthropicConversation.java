@@ -2,6 +2,9 @@ package com.pergamon.llm.conversation;
 
 import com.anthropic.client.AnthropicClient;
 import com.anthropic.client.okhttp.AnthropicOkHttpClient;
+import com.anthropic.core.ObjectMappers;
+import com.anthropic.core.http.StreamResponse;
+import com.anthropic.helpers.MessageAccumulator;
 import com.anthropic.models.messages.Base64ImageSource;
 import com.anthropic.models.messages.CitationCharLocation;
 import com.anthropic.models.messages.CitationCharLocationParam;
@@ -12,6 +15,7 @@ import com.anthropic.models.messages.CitationPageLocationParam;
 import com.anthropic.models.messages.CitationSearchResultLocationParam;
 import com.anthropic.models.messages.CitationWebSearchResultLocationParam;
 import com.anthropic.models.messages.CitationsConfigParam;
+import com.anthropic.models.messages.CitationsDelta;
 import com.anthropic.models.messages.CitationsSearchResultLocation;
 import com.anthropic.models.messages.CitationsWebSearchResultLocation;
 import com.anthropic.models.messages.TextCitationParam;
@@ -21,20 +25,45 @@ import com.anthropic.models.messages.DocumentBlockParam;
 import com.anthropic.models.messages.ImageBlockParam;
 import com.anthropic.models.messages.MessageCreateParams;
 import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.RawContentBlockDelta;
+import com.anthropic.models.messages.RawMessageStreamEvent;
+import com.anthropic.models.messages.SearchResultBlockParam;
 import com.anthropic.models.messages.TextBlockParam;
+import com.anthropic.models.messages.ToolResultBlockParam;
 import com.anthropic.models.messages.ToolUnion;
+import com.anthropic.models.messages.ToolUseBlockParam;
 import com.anthropic.models.messages.UrlImageSource;
 import com.anthropic.models.messages.WebSearchTool20250305;
-// Note: TextBlock from Anthropic SDK accessed via fully qualified name to avoid conflict with our TextBlock
+import com.anthropic.models.messages.batches.BatchCreateParams;
+import com.fasterxml.jackson.core.JsonProcessingException;
+// Note: TextBlock, Tool and ToolUseBlock from Anthropic SDK accessed via fully qualified names
+// to avoid conflicts with ours
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32C;
 
 /**
  * Conversation implementation for Anthropic's Claude models.
@@ -54,6 +83,38 @@ public class AnthropicConversation
 
     private static final int MAX_TOKENS = 4096;
     private static final boolean CACHING_AVAILABLE = true;
+    private static final boolean STREAMING_AVAILABLE = true;
+
+    /**
+     * Default size from which attachments are uploaded when the Files API is enabled.
+     */
+    public static final long DEFAULT_FILE_UPLOAD_MIN_BYTES = 64L * 1024;
+
+    /**
+     * Default number of local attachments in one message from which its blocks are converted in parallel.
+     */
+    public static final int DEFAULT_PARALLEL_CONVERSION_MIN_ATTACHMENTS = 4;
+
+    /**
+     * Default total size of a message's local attachments from which its blocks are converted in parallel.
+     */
+    public static final long DEFAULT_PARALLEL_CONVERSION_MIN_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * Default number of blocks of one message converted at the same time.
+     */
+    public static final int DEFAULT_MAX_CONVERSION_CONCURRENCY = 4;
+
+    /**
+     * Default number of passages sent with each question when retrieval is enabled.
+     */
+    public static final int DEFAULT_RETRIEVAL_TOP_K = 5;
+
+    /**
+     * Default size from which plain text documents are indexed for retrieval instead of being
+     * sent: about 25,000 tokens of English text.
+     */
+    public static final int DEFAULT_RETRIEVAL_MIN_CHARS = 100_000;
 
     private static final Set<String> SUPPORTED_IMAGE_EXTENSIONS = Set.of(
             ".png", ".jpg", ".jpeg", ".gif", ".webp"
@@ -69,9 +130,176 @@ public class AnthropicConversation
             "application/pdf", "text/plain"
     );
 
+    /**
+     * Server-side web search, enabled for all requests.
+     */
+    private static final ToolUnion WEB_SEARCH_TOOL = ToolUnion.ofWebSearchTool20250305(
+            WebSearchTool20250305.builder()
+                    .maxUses(5L)
+                    .build());
+
     private final String apiKey;
+    private final VendorClientRegistry.Lease<AnthropicClient> clientLease;
     private final AnthropicClient client;
 
+    /**
+     * Estimates request sizes before sending; calibrated by the usage reported in each response.
+     */
+    private final AnthropicTokenEstimator tokenEstimator = new AnthropicTokenEstimator();
+
+    /**
+     * Chooses prompt-cache breakpoints; remembers earlier plans so breakpoints stay stable across turns.
+     */
+    private final AnthropicCachePlanner cachePlanner = new AnthropicCachePlanner();
+
+    /**
+     * Applies the planned breakpoints to each outgoing request without modifying vendorMessages.
+     */
+    private final AnthropicCacheOverlay cacheOverlay = new AnthropicCacheOverlay();
+
+    /**
+     * Breakpoints planned by configureCaching for the next request; consumed when it is built.
+     */
+    private List<AnthropicCachePlanner.Breakpoint> pendingCachePlan = List.of();
+
+    /**
+     * Whether configureCaching placed a breakpoint at the end of the tools and system prompt
+     * for the next request.
+     */
+    private boolean pendingPreambleBreakpoint = false;
+
+    /**
+     * The tools sent with every request: web search followed by the client-side tools.
+     */
+    private List<ToolUnion> vendorTools = List.of(WEB_SEARCH_TOOL);
+
+    /**
+     * The tools with a breakpoint on the last client-side tool, and the cache control it carries;
+     * used when there is no system prompt to carry the breakpoint.
+     */
+    private List<ToolUnion> markedTools = List.of();
+    private com.anthropic.models.messages.CacheControlEphemeral markedToolsCacheControl;
+
+    /**
+     * The system prompt in vendor form, sent through MessageCreateParams.system; empty if none.
+     */
+    private List<TextBlockParam> vendorSystemPrompt = List.of();
+
+    /**
+     * The system prompt with a breakpoint on its last block, and the cache control it carries;
+     * reused while the prompt and cache control are unchanged, so it is not rebuilt every turn.
+     */
+    private List<TextBlockParam> markedSystemPrompt = List.of();
+    private com.anthropic.models.messages.CacheControlEphemeral markedSystemCacheControl;
+
+    /**
+     * Chooses the TTL of each request's cache breakpoints.
+     */
+    private volatile AnthropicCacheTtlPolicy cacheTtlPolicy = AnthropicCacheTtlPolicy.adaptive();
+
+    /**
+     * Records turn gaps and cache usage for the TTL policy and {@link #getCacheStats()}.
+     */
+    private final AnthropicCacheTracker cacheTracker = new AnthropicCacheTracker();
+
+    /**
+     * Fingerprints each request's cached prefix to explain turns that read less from the cache.
+     */
+    private final AnthropicPrefixFingerprints prefixFingerprints = new AnthropicPrefixFingerprints();
+
+    /**
+     * The most recent cache break detected by prefixFingerprints, or null if none.
+     */
+    private volatile AnthropicCacheBreak lastCacheBreak;
+
+    /**
+     * The response last replayed from the response cache; it is not recorded as cache usage.
+     */
+    private com.anthropic.models.messages.Message replayedResponse;
+
+    /**
+     * Releases the leases on the shared encoded payloads and mapped files of this conversation's
+     * file attachments.
+     */
+    private final List<Runnable> attachmentReleases = new ArrayList<>();
+
+    /**
+     * Page maps of documents sent as extracted page ranges, keyed by the DocumentBlockParam
+     * instance stored in the history, used to report citations in original page numbers.
+     */
+    private final Map<DocumentBlockParam, PdfPageExtractor.PageMap> documentPageMaps =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * Extracted text of PDFs sent as text documents, keyed like documentPageMaps, used to report
+     * the pages that citations of the text come from.
+     */
+    private final Map<DocumentBlockParam, PdfTextExtractor.ExtractedText> documentTexts =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * Whether large attachments are uploaded to the Files API and referenced by file id.
+     */
+    private volatile boolean filesApiEnabled = false;
+
+    /**
+     * Attachments smaller than this are sent inline even when the Files API is enabled.
+     */
+    private volatile long fileUploadMinBytes = DEFAULT_FILE_UPLOAD_MIN_BYTES;
+
+    /**
+     * Whether images beyond the model's useful resolution or the target size are downscaled and
+     * re-encoded before they are sent. Off by default: re-encoding is lossy and drops metadata
+     * such as EXIF orientation, so images are sent as they are unless the caller opts in.
+     */
+    private volatile boolean imagePreprocessingEnabled = false;
+
+    /**
+     * Whether PDF document blocks are sent as PDFs or as their extracted text.
+     */
+    private volatile PdfConversionMode pdfConversionMode = PdfConversionMode.DOCUMENT;
+
+    /**
+     * Messages with at least this many local attachments have their blocks converted in parallel.
+     */
+    private volatile int parallelConversionMinAttachments = DEFAULT_PARALLEL_CONVERSION_MIN_ATTACHMENTS;
+
+    /**
+     * Messages whose local attachments total at least this many bytes have their blocks converted in parallel.
+     */
+    private volatile long parallelConversionMinBytes = DEFAULT_PARALLEL_CONVERSION_MIN_BYTES;
+
+    /**
+     * Upper bound on the blocks of one message converted at the same time.
+     */
+    private volatile int maxConversionConcurrency = DEFAULT_MAX_CONVERSION_CONCURRENCY;
+
+    /**
+     * Whether large plain text documents are indexed locally and only the passages relevant to
+     * each question are sent.
+     */
+    private volatile boolean retrievalEnabled = false;
+
+    private volatile int retrievalTopK = DEFAULT_RETRIEVAL_TOP_K;
+
+    private volatile int retrievalMinChars = DEFAULT_RETRIEVAL_MIN_CHARS;
+
+    /**
+     * Passages of the documents indexed for retrieval; outlives clearMessages().
+     */
+    private volatile Bm25Index retrievalIndex = new Bm25Index();
+
+    /**
+     * Numbers of the documents this conversation added to the retrieval index, by the SHA-256
+     * hash of their text, so a document sent again, or in a retried turn, is not indexed twice.
+     */
+    private final Map<String, Integer> indexedDocuments = new ConcurrentHashMap<>();
+
+    /**
+     * Set once the history references an uploaded file; requests then need the Files API beta flag.
+     */
+    private volatile boolean referencesUploadedFiles = false;
+
     /**
      * Cumulative cache creation input tokens across all messages in the conversation.
      * These represent tokens used when creating new cache entries.
@@ -86,7 +314,8 @@ public class AnthropicConversation
 
     /**
      * Creates an Anthropic conversation with the specified model ID and API key.
-     * Instantiates one AnthropicOkHttpClient per conversation instance.
+     * The AnthropicOkHttpClient is shared with every other conversation using the same
+     * API key through {@link VendorClientRegistry#shared()}.
      *
      * @param modelId the model ID
      * @param apiKey the Anthropic API key
@@ -97,9 +326,8 @@ public class AnthropicConversation
             throw new IllegalArgumentException("API key cannot be null or blank");
         }
         this.apiKey = apiKey;
-        this.client = AnthropicOkHttpClient.builder()
-                .apiKey(apiKey)
-                .build();
+        this.clientLease = acquireSharedClient(apiKey);
+        this.client = clientLease.client();
     }
 
     /**
@@ -115,25 +343,149 @@ public class AnthropicConversation
             throw new IllegalArgumentException("API key cannot be null or blank");
         }
         this.apiKey = apiKey;
-        this.client = AnthropicOkHttpClient.builder()
-                .apiKey(apiKey)
-                .build();
+        this.clientLease = acquireSharedClient(apiKey);
+        this.client = clientLease.client();
+    }
+
+    /**
+     * Acquires a lease on the process-wide Anthropic client for the given API key.
+     * The client serializes requests with the shared AnthropicMessageEncodingCache mapper.
+     *
+     * @param apiKey the Anthropic API key
+     * @return a lease on the shared client
+     */
+    private static VendorClientRegistry.Lease<AnthropicClient> acquireSharedClient(String apiKey) {
+        return VendorClientRegistry.shared().acquire(
+                Vendor.ANTHROPIC,
+                apiKey,
+                key -> AnthropicOkHttpClient.builder()
+                        .apiKey(key)
+                        .jsonMapper(AnthropicMessageEncodingCache.shared().jsonMapper())
+                        .build(),
+                AnthropicClient::close);
+    }
+
+    /**
+     * Returns an unmodifiable view of the Anthropic message history.
+     *
+     * Image and PDF attachments read from files of 256 KB or more are memory-mapped rather than
+     * encoded onto the heap, and their base64 sources hold a placeholder token of the form
+     * {@code llm-java-mapped-attachment:<sha256>} instead of base64 data. The token is replaced
+     * by the file's content only while a request is written by this conversation's client or an
+     * {@link AnthropicMessageBatch}; messages serialized any other way carry the token.
+     */
+    @Override
+    public List<MessageParam> vendorMessages() {
+        return super.vendorMessages();
+    }
+
+    /**
+     * Releases this conversation's lease on the shared Anthropic client and its attachment leases.
+     * The client is shut down once no other conversation uses it.
+     */
+    @Override
+    public void close() {
+        releaseAttachments();
+        clientLease.close();
+    }
+
+    /**
+     * Clears the history and releases this conversation's leases on shared attachments.
+     */
+    @Override
+    public void clearMessages() {
+        super.clearMessages();
+        releaseAttachments();
+        documentPageMaps.clear();
+        documentTexts.clear();
+    }
+
+    /**
+     * Returns the base64 data to send for a file attachment. Files smaller than
+     * {@link MappedAttachments#MIN_BYTES} come from the shared AttachmentStore, so a file attached
+     * to many conversations is read and encoded once. Larger files are memory-mapped instead and
+     * represented by a placeholder token that the client's JsonMapper encodes from the mapping
+     * while writing each request, so their base64 form is never held between turns. The lease
+     * is held until the conversation is cleared or closed.
+     *
+     * @param path the file to attach
+     * @return the shared base64 payload, or the mapped file's placeholder token
+     * @throws IOException if the file cannot be read
+     */
+    private String acquireAttachment(Path path) throws IOException {
+        if (Files.size(path) >= MappedAttachments.MIN_BYTES) {
+            MappedAttachments.Lease lease = MappedAttachments.shared().acquire(path);
+            synchronized (attachmentReleases) {
+                attachmentReleases.add(lease::close);
+            }
+            return lease.token();
+        }
+        AttachmentStore.Lease lease = AttachmentStore.shared().acquire(path);
+        synchronized (attachmentReleases) {
+            attachmentReleases.add(lease::close);
+        }
+        return lease.base64();
+    }
+
+    private void releaseAttachments() {
+        synchronized (attachmentReleases) {
+            attachmentReleases.forEach(Runnable::run);
+            attachmentReleases.clear();
+        }
     }
 
     @Override
     protected MessageParam toVendorMessage(Message message) {
+        return toVendorMessage(message, retrievalEnabled);
+    }
+
+    /**
+     * Converts a compaction summary without retrieval, so no passages are searched for or
+     * attached to it.
+     */
+    @Override
+    protected MessageParam toCompactionVendorMessage(Message message) {
+        return toVendorMessage(message, false);
+    }
+
+    /**
+     * Removes document citations from the kept messages once compaction drops a document, as
+     * they refer to documents by their position in the request.
+     */
+    @Override
+    protected List<MessageParam> compactionApplied(List<MessageParam> before, List<MessageParam> after) {
+        return AnthropicCompaction.withoutStaleCitations(before, after);
+    }
+
+    private MessageParam toVendorMessage(Message message, boolean retrieve) {
         // Convert role using Anthropic's Role constants
         MessageParam.Role role = switch (message.role()) {
             case USER -> MessageParam.Role.USER;
             case ASSISTANT -> MessageParam.Role.ASSISTANT;
+            // Tool results are sent back in a user message
+            case TOOL -> MessageParam.Role.USER;
+            case SYSTEM -> throw new UnsupportedOperationException(
+                    "System messages are not part of the Anthropic history; use setSystemPrompt");
             default -> throw new UnsupportedOperationException(
                     "Unsupported role: " + message.role());
         };
 
-        // Convert our MessageBlocks to Anthropic ContentBlockParams
+        // Large text documents are indexed, and the passages relevant to the question sent instead
+        List<MessageBlock> blocks = message.blocks();
         List<ContentBlockParam> contentBlocks = new ArrayList<>();
-        for (MessageBlock block : message.blocks()) {
-            contentBlocks.add(toVendorMessageBlock(block));
+        if (retrieve && message.role() == MessageRole.USER) {
+            String question = questionText(blocks);
+            blocks = indexLargeDocuments(blocks);
+            contentBlocks.addAll(retrievePassages(question));
+        }
+
+        // Convert our MessageBlocks to Anthropic ContentBlockParams
+        if (shouldConvertInParallel(blocks)) {
+            contentBlocks.addAll(toVendorMessageBlocksInParallel(blocks));
+        } else {
+            for (MessageBlock block : blocks) {
+                contentBlocks.add(toVendorMessageBlock(block));
+            }
         }
 
         return MessageParam.builder()
@@ -142,6 +494,153 @@ public class AnthropicConversation
                 .build();
     }
 
+    /**
+     * Returns the text blocks of a message joined, the query for retrieval.
+     */
+    private static String questionText(List<MessageBlock> blocks) {
+        StringBuilder question = new StringBuilder();
+        for (MessageBlock block : blocks) {
+            if (block instanceof TextBlock textBlock) {
+                question.append(textBlock.text()).append('\n');
+            }
+        }
+        return question.toString().strip();
+    }
+
+    /**
+     * Adds plain text documents of at least {@link #retrievalMinChars()} characters to the
+     * retrieval index and replaces each with a short note telling the model that its passages
+     * arrive as search results. A document already indexed keeps its number.
+     */
+    private List<MessageBlock> indexLargeDocuments(List<MessageBlock> blocks) {
+        List<MessageBlock> replaced = new ArrayList<>(blocks.size());
+        for (MessageBlock block : blocks) {
+            if (block instanceof PlainTextDocumentBlock document && document.text().length() >= retrievalMinChars) {
+                int number = indexedDocuments.computeIfAbsent(textHash(document.text()),
+                        hash -> retrievalIndex.addDocument(null, document.text()));
+                replaced.add(new TextBlock(TextBlockFormat.PLAIN, "[Document " + number + " (" + document.text().length()
+                        + " characters) has been indexed. The passages of it most relevant to each question are"
+                        + " provided as search results.]", List.of()));
+            } else {
+                replaced.add(block);
+            }
+        }
+        return replaced;
+    }
+
+    private static String textHash(String text) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Searches the retrieval index for a question and returns the best passages as search
+     * result blocks with citations enabled.
+     */
+    private List<ContentBlockParam> retrievePassages(String question) {
+        if (question.isEmpty()) {
+            return List.of();
+        }
+        List<ContentBlockParam> results = new ArrayList<>();
+        for (Bm25Index.Hit hit : retrievalIndex.search(question, retrievalTopK)) {
+            Bm25Index.Passage passage = hit.passage();
+            results.add(ContentBlockParam.ofSearchResult(SearchResultBlockParam.builder()
+                    .source(passage.source())
+                    .title(passage.title() + ", passage " + passage.index())
+                    .addContent(TextBlockParam.builder().text(passage.text()).build())
+                    .citations(CitationsConfigParam.builder().enabled(true).build())
+                    .build()));
+        }
+        return results;
+    }
+
+    /**
+     * Returns true if a message carries enough local attachments, by count or total size, that
+     * reading and encoding them one after another would noticeably delay the request.
+     */
+    private boolean shouldConvertInParallel(List<MessageBlock> blocks) {
+        int attachments = 0;
+        long bytes = 0L;
+        for (MessageBlock block : blocks) {
+            long size = localAttachmentBytes(block);
+            if (size >= 0) {
+                attachments++;
+                bytes += size;
+            }
+        }
+        return attachments > 1
+                && (attachments >= parallelConversionMinAttachments || bytes >= parallelConversionMinBytes);
+    }
+
+    /**
+     * Returns the raw size of an attachment that is read or decoded locally, or -1 for any other block.
+     * A file whose size cannot be read counts as empty; its conversion reports the error.
+     */
+    private static long localAttachmentBytes(MessageBlock block) {
+        return switch (block) {
+            case FilePathImageBlock filePathImageBlock -> fileSize(filePathImageBlock.filePath());
+            case FilePathPDFDocumentBlock filePathPdfDocumentBlock -> fileSize(filePathPdfDocumentBlock.filePath());
+            case Base64ImageBlock base64ImageBlock -> base64ImageBlock.base64Data().length() * 3L / 4L;
+            case Base64PDFDocumentBlock base64PdfDocumentBlock -> base64PdfDocumentBlock.base64Data().length() * 3L / 4L;
+            default -> -1L;
+        };
+    }
+
+    private static long fileSize(String filePath) {
+        try {
+            return Files.size(Path.of(filePath));
+        } catch (IOException | InvalidPathException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Converts the blocks of one message on virtual threads, at most
+     * {@link #maxConversionConcurrency()} at a time, and returns them in their original order.
+     * Every conversion runs to completion before the result is assembled, so when several blocks
+     * fail, the failure of the earliest block is the one thrown, whatever order they failed in.
+     * Subclasses overriding the block converters must keep them safe to call concurrently.
+     *
+     * @param blocks the blocks of one message
+     * @return the converted blocks, in order
+     */
+    private List<ContentBlockParam> toVendorMessageBlocksInParallel(List<MessageBlock> blocks) {
+        Semaphore permits = new Semaphore(maxConversionConcurrency);
+        List<CompletableFuture<ContentBlockParam>> pending = new ArrayList<>(blocks.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (MessageBlock block : blocks) {
+                pending.add(CompletableFuture.supplyAsync(() -> {
+                    permits.acquireUninterruptibly();
+                    try {
+                        return toVendorMessageBlock(block);
+                    } finally {
+                        permits.release();
+                    }
+                }, executor));
+            }
+        }
+
+        // Closing the executor waited for every conversion; report the earliest failure in block order
+        List<ContentBlockParam> contentBlocks = new ArrayList<>(blocks.size());
+        for (CompletableFuture<ContentBlockParam> conversion : pending) {
+            try {
+                contentBlocks.add(conversion.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof Error cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+        return contentBlocks;
+    }
+
     /**
      * Converts our MessageBlock to Anthropic's ContentBlockParam.
      * Uses pattern matching to safely handle different block types.
@@ -155,6 +654,8 @@ public class AnthropicConversation
             case TextBlock textBlock -> toVendorTextBlock(textBlock);
             case ImageBlock imageBlock -> toVendorImageBlock(imageBlock);
             case DocumentBlock documentBlock -> toVendorDocumentBlock(documentBlock);
+            case ToolUseBlock toolUseBlock -> toVendorToolUseBlock(toolUseBlock);
+            case ToolResultBlock toolResultBlock -> toVendorToolResultBlock(toolResultBlock);
             case UnknownBlock unknownBlock -> throw new UnsupportedOperationException(
                     "UnknownBlock cannot be converted");
             default -> throw new UnsupportedOperationException(
@@ -175,6 +676,42 @@ public class AnthropicConversation
         return ContentBlockParam.ofText(textBlockParam);
     }
 
+    /**
+     * Converts our ToolUseBlock to Anthropic's ContentBlockParam.
+     *
+     * @param toolUseBlock our tool use block
+     * @return Anthropic ContentBlockParam wrapping a ToolUseBlockParam
+     */
+    protected ContentBlockParam toVendorToolUseBlock(ToolUseBlock toolUseBlock) {
+        ToolUseBlockParam.Input input;
+        try {
+            input = ObjectMappers.jsonMapper().readValue(toolUseBlock.inputJson(), ToolUseBlockParam.Input.class);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid tool input for tool use: " + toolUseBlock.id(), e);
+        }
+        ToolUseBlockParam toolUseBlockParam = ToolUseBlockParam.builder()
+                .id(toolUseBlock.id())
+                .name(toolUseBlock.name())
+                .input(input)
+                .build();
+        return ContentBlockParam.ofToolUse(toolUseBlockParam);
+    }
+
+    /**
+     * Converts our ToolResultBlock to Anthropic's ContentBlockParam.
+     *
+     * @param toolResultBlock our tool result block
+     * @return Anthropic ContentBlockParam wrapping a ToolResultBlockParam
+     */
+    protected ContentBlockParam toVendorToolResultBlock(ToolResultBlock toolResultBlock) {
+        ToolResultBlockParam toolResultBlockParam = ToolResultBlockParam.builder()
+                .toolUseId(toolResultBlock.toolUseId())
+                .content(toolResultBlock.content())
+                .isError(toolResultBlock.isError())
+                .build();
+        return ContentBlockParam.ofToolResult(toolResultBlockParam);
+    }
+
     /**
      * Converts our ImageBlock to Anthropic's ContentBlockParam.
      * Handles URL, Base64, and file path image sources.
@@ -215,19 +752,79 @@ public class AnthropicConversation
 
     /**
      * Converts Base64ImageBlock to Anthropic's ImageBlockParam with Base64ImageSource.
+     * Oversized images are downscaled and re-encoded first when image preprocessing is enabled.
      *
      * @param base64ImageBlock our base64 image block
      * @return Anthropic ContentBlockParam wrapping an ImageBlockParam
      */
     protected ContentBlockParam toVendorBase64ImageBlock(Base64ImageBlock base64ImageBlock) {
         ConversationUtils.validateBase64Data(base64ImageBlock.base64Data());
+        rejectMappedToken(base64ImageBlock.base64Data());
         ConversationUtils.validateMimeType(base64ImageBlock.mimeType(), SUPPORTED_MIME_TYPES);
 
-        Base64ImageSource.MediaType mediaType = mapToAnthropicMediaType(base64ImageBlock.mimeType());
+        // Oversized images are downscaled and re-encoded before anything else
+        if (imagePreprocessingEnabled) {
+            Optional<AnthropicImagePreprocessor.ProcessedImage> processed = preprocessImage(base64ImageBlock);
+            if (processed.isPresent()) {
+                return toVendorProcessedImage(processed.get());
+            }
+        }
+
+        // Large payloads are uploaded once and referenced by file id when the Files API is enabled
+        if (shouldUpload(base64ImageBlock.base64Data().length() * 3L / 4L)) {
+            String fileId = AnthropicFileUploads.shared().upload(client, apiKey,
+                    Base64.getDecoder().decode(base64ImageBlock.base64Data()),
+                    uploadFilename(base64ImageBlock.mimeType()), base64ImageBlock.mimeType());
+            return uploadedImage(fileId);
+        }
+
+        return base64Image(base64ImageBlock.base64Data(), base64ImageBlock.mimeType());
+    }
+
+    /**
+     * Runs a base64 image through the shared AnthropicImagePreprocessor. Data that is not valid
+     * standard base64 is left for the API to judge.
+     */
+    private static Optional<AnthropicImagePreprocessor.ProcessedImage> preprocessImage(Base64ImageBlock base64ImageBlock) {
+        byte[] content;
+        try {
+            content = Base64.getDecoder().decode(base64ImageBlock.base64Data());
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        return AnthropicImagePreprocessor.shared().process(content, base64ImageBlock.mimeType());
+    }
+
+    /**
+     * Converts a re-encoded image, uploading it when the Files API applies to its new size and
+     * otherwise sending it inline through the shared AttachmentStore.
+     */
+    private ContentBlockParam toVendorProcessedImage(AnthropicImagePreprocessor.ProcessedImage processed) {
+        if (shouldUpload(processed.data().length)) {
+            return uploadedImage(AnthropicFileUploads.shared().upload(client, apiKey,
+                    processed.data(), uploadFilename(processed.mimeType()), processed.mimeType()));
+        }
+        AttachmentStore.Lease lease = AttachmentStore.shared().acquire(processed.data());
+        synchronized (attachmentReleases) {
+            attachmentReleases.add(lease::close);
+        }
+        return base64Image(lease.base64(), processed.mimeType());
+    }
+
+    /**
+     * Rejects caller-supplied base64 data that has the shape of a mapped attachment token, so
+     * that only files this conversation mapped itself are substituted into its requests.
+     */
+    private static void rejectMappedToken(String base64Data) {
+        if (MappedAttachments.isToken(base64Data)) {
+            throw new IllegalArgumentException("Base64 data cannot be a mapped attachment token");
+        }
+    }
 
+    private static ContentBlockParam base64Image(String base64Data, String mimeType) {
         Base64ImageSource base64Source = Base64ImageSource.builder()
-                .data(base64ImageBlock.base64Data())
-                .mediaType(mediaType)
+                .data(base64Data)
+                .mediaType(mapToAnthropicMediaType(mimeType))
                 .build();
 
         ImageBlockParam imageBlockParam = ImageBlockParam.builder()
@@ -239,7 +836,8 @@ public class AnthropicConversation
 
     /**
      * Converts FilePathImageBlock to Anthropic's ImageBlockParam with Base64ImageSource.
-     * Reads the file, encodes it to base64, and creates a Base64ImageSource.
+     * Reads the file, encodes it to base64, and creates a Base64ImageSource. Oversized images are
+     * downscaled and re-encoded first when image preprocessing is enabled.
      *
      * @param filePathImageBlock our file path image block
      * @return Anthropic ContentBlockParam wrapping an ImageBlockParam
@@ -250,21 +848,20 @@ public class AnthropicConversation
 
         try {
             Path path = Path.of(filePathImageBlock.filePath());
-            byte[] fileBytes = Files.readAllBytes(path);
-            String base64Data = Base64.getEncoder().encodeToString(fileBytes);
-
-            Base64ImageSource.MediaType mediaType = mapToAnthropicMediaType(filePathImageBlock.mimeType());
-
-            Base64ImageSource base64Source = Base64ImageSource.builder()
-                    .data(base64Data)
-                    .mediaType(mediaType)
-                    .build();
+            if (imagePreprocessingEnabled) {
+                Optional<AnthropicImagePreprocessor.ProcessedImage> processed =
+                        AnthropicImagePreprocessor.shared().process(path, filePathImageBlock.mimeType());
+                if (processed.isPresent()) {
+                    return toVendorProcessedImage(processed.get());
+                }
+            }
 
-            ImageBlockParam imageBlockParam = ImageBlockParam.builder()
-                    .source(base64Source)
-                    .build();
+            if (shouldUpload(Files.size(path))) {
+                return uploadedImage(AnthropicFileUploads.shared().upload(
+                        client, apiKey, path, filePathImageBlock.mimeType()));
+            }
 
-            return ContentBlockParam.ofImage(imageBlockParam);
+            return base64Image(acquireAttachment(path), filePathImageBlock.mimeType());
         } catch (IOException e) {
             throw new RuntimeException("Failed to read image file: " + filePathImageBlock.filePath(), e);
         }
@@ -313,12 +910,15 @@ public class AnthropicConversation
 
     /**
      * Converts Base64PDFDocumentBlock to Anthropic's DocumentBlockParam with base64 source.
+     * When the block selects page ranges, only those pages are sent, and the
+     * {@link PdfConversionMode} decides whether they are sent as a PDF or as extracted text.
      *
      * @param base64PdfDocumentBlock our base64 PDF document block
      * @return Anthropic ContentBlockParam wrapping a DocumentBlockParam
      */
     protected ContentBlockParam toVendorBase64PdfDocumentBlock(Base64PDFDocumentBlock base64PdfDocumentBlock) {
         ConversationUtils.validateBase64Data(base64PdfDocumentBlock.base64Data());
+        rejectMappedToken(base64PdfDocumentBlock.base64Data());
         ConversationUtils.validateMimeType(base64PdfDocumentBlock.mimeType(), SUPPORTED_DOCUMENT_MIME_TYPES);
 
         // Enable citations for document blocks
@@ -326,6 +926,30 @@ public class AnthropicConversation
                 .enabled(true)
                 .build();
 
+        // Text-heavy documents are sent as their extracted text when the conversion mode allows it
+        if (pdfConversionMode != PdfConversionMode.DOCUMENT) {
+            Optional<ContentBlockParam> text = toVendorPdfText(Base64.getDecoder().decode(base64PdfDocumentBlock.base64Data()),
+                    base64PdfDocumentBlock.pageRanges(), citationsConfig);
+            if (text.isPresent()) {
+                return text.get();
+            }
+        }
+
+        // Only the selected pages are sent when page ranges are set
+        if (!base64PdfDocumentBlock.pageRanges().isEmpty()) {
+            return toVendorExtractedPdf(PdfPageExtractor.extract(
+                    Base64.getDecoder().decode(base64PdfDocumentBlock.base64Data()), base64PdfDocumentBlock.pageRanges()),
+                    base64PdfDocumentBlock.mimeType(), citationsConfig);
+        }
+
+        // Large payloads are uploaded once and referenced by file id when the Files API is enabled
+        if (shouldUpload(base64PdfDocumentBlock.base64Data().length() * 3L / 4L)) {
+            String fileId = AnthropicFileUploads.shared().upload(client, apiKey,
+                    Base64.getDecoder().decode(base64PdfDocumentBlock.base64Data()),
+                    uploadFilename(base64PdfDocumentBlock.mimeType()), base64PdfDocumentBlock.mimeType());
+            return uploadedDocument(fileId, citationsConfig);
+        }
+
         DocumentBlockParam documentBlockParam = DocumentBlockParam.builder()
                 .base64Source(base64PdfDocumentBlock.base64Data())
                 .citations(citationsConfig)
@@ -337,6 +961,8 @@ public class AnthropicConversation
     /**
      * Converts FilePathPDFDocumentBlock to Anthropic's DocumentBlockParam with base64 source.
      * Reads the PDF file, encodes it to base64, and creates a base64 source.
+     * When the block selects page ranges, only those pages are sent, and the
+     * {@link PdfConversionMode} decides whether they are sent as a PDF or as extracted text.
      *
      * @param filePathPdfDocumentBlock our file path PDF document block
      * @return Anthropic ContentBlockParam wrapping a DocumentBlockParam
@@ -347,92 +973,423 @@ public class AnthropicConversation
 
         try {
             Path path = Path.of(filePathPdfDocumentBlock.filePath());
-            byte[] fileBytes = Files.readAllBytes(path);
-            String base64Data = Base64.getEncoder().encodeToString(fileBytes);
 
             // Enable citations for document blocks
             CitationsConfigParam citationsConfig = CitationsConfigParam.builder()
                     .enabled(true)
                     .build();
 
+            // Text-heavy documents are sent as their extracted text when the conversion mode allows it
+            if (pdfConversionMode != PdfConversionMode.DOCUMENT) {
+                Optional<ContentBlockParam> text = toVendorPdfText(Files.readAllBytes(path),
+                        filePathPdfDocumentBlock.pageRanges(), citationsConfig);
+                if (text.isPresent()) {
+                    return text.get();
+                }
+            }
+
+            // Only the selected pages are sent when page ranges are set
+            if (!filePathPdfDocumentBlock.pageRanges().isEmpty()) {
+                return toVendorExtractedPdf(PdfPageExtractor.extract(
+                        Files.readAllBytes(path), filePathPdfDocumentBlock.pageRanges()),
+                        filePathPdfDocumentBlock.mimeType(), citationsConfig);
+            }
+
+            if (shouldUpload(Files.size(path))) {
+                return uploadedDocument(AnthropicFileUploads.shared().upload(
+                        client, apiKey, path, filePathPdfDocumentBlock.mimeType()), citationsConfig);
+            }
+
+            String base64Data = acquireAttachment(path);
+
             DocumentBlockParam documentBlockParam = DocumentBlockParam.builder()
                     .base64Source(base64Data)
                     .citations(citationsConfig)
                     .build();
 
-            return ContentBlockParam.ofDocument(documentBlockParam);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to read PDF file: " + filePathPdfDocumentBlock.filePath(), e);
+            return ContentBlockParam.ofDocument(documentBlockParam);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read PDF file: " + filePathPdfDocumentBlock.filePath(), e);
+        }
+    }
+
+    /**
+     * Returns true if an attachment of the given raw size should be uploaded to the Files API
+     * rather than sent inline.
+     */
+    private boolean shouldUpload(long sizeBytes) {
+        return filesApiEnabled && sizeBytes >= fileUploadMinBytes;
+    }
+
+    private ContentBlockParam uploadedImage(String fileId) {
+        referencesUploadedFiles = true;
+        return ContentBlockParam.ofImage(ImageBlockParam.builder()
+                .source(AnthropicFileUploads.imageSource(fileId))
+                .build());
+    }
+
+    private ContentBlockParam uploadedDocument(String fileId, CitationsConfigParam citationsConfig) {
+        referencesUploadedFiles = true;
+        return ContentBlockParam.ofDocument(DocumentBlockParam.builder()
+                .source(AnthropicFileUploads.documentSource(fileId))
+                .citations(citationsConfig)
+                .build());
+    }
+
+    /**
+     * Converts a PDF reduced to selected pages, uploading it when the Files API applies to its
+     * new size and otherwise sending it inline through the shared AttachmentStore. The page map
+     * is recorded so that citations of the document refer to original page numbers.
+     */
+    private ContentBlockParam toVendorExtractedPdf(PdfPageExtractor.Extraction extraction, String mimeType,
+                                                   CitationsConfigParam citationsConfig) {
+        ContentBlockParam block;
+        if (shouldUpload(extraction.pdf().length)) {
+            block = uploadedDocument(AnthropicFileUploads.shared().upload(client, apiKey,
+                    extraction.pdf(), uploadFilename(mimeType), mimeType), citationsConfig);
+        } else {
+            AttachmentStore.Lease lease = AttachmentStore.shared().acquire(extraction.pdf());
+            synchronized (attachmentReleases) {
+                attachmentReleases.add(lease::close);
+            }
+            block = ContentBlockParam.ofDocument(DocumentBlockParam.builder()
+                    .base64Source(lease.base64())
+                    .citations(citationsConfig)
+                    .build());
+        }
+        documentPageMaps.put(block.document().orElseThrow(), extraction.pageMap());
+        return block;
+    }
+
+    /**
+     * Converts a PDF to a text document when the conversion mode selects text for it: always in
+     * TEXT mode and for text-heavy documents in AUTO mode. Documents without extractable text, and
+     * documents the extractor cannot read, are left to be sent as PDFs.
+     *
+     * @return the text document, or empty to send the PDF
+     */
+    private Optional<ContentBlockParam> toVendorPdfText(byte[] pdf, List<PdfPageRange> pageRanges,
+                                                        CitationsConfigParam citationsConfig) {
+        PdfTextExtractor.ExtractedText extracted;
+        try {
+            extracted = PdfTextExtractor.extract(pdf, pageRanges);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            return Optional.empty();
+        }
+        boolean sendText = pdfConversionMode == PdfConversionMode.TEXT
+                ? !extracted.text().isBlank()
+                : extracted.isTextHeavy();
+        if (!sendText) {
+            return Optional.empty();
+        }
+        DocumentBlockParam document = DocumentBlockParam.builder()
+                .textSource(extracted.text())
+                .citations(citationsConfig)
+                .build();
+        documentTexts.put(document, extracted);
+        return Optional.of(ContentBlockParam.ofDocument(document));
+    }
+
+    /**
+     * Returns the document at the given index among all documents in the history, the numbering
+     * Anthropic uses for citation document indexes. Only documents sent as page ranges or as
+     * extracted text are looked for.
+     */
+    private Optional<DocumentBlockParam> documentAt(long documentIndex) {
+        if (documentPageMaps.isEmpty() && documentTexts.isEmpty()) {
+            return Optional.empty();
+        }
+        long index = 0;
+        for (MessageParam message : vendorMessages) {
+            for (ContentBlockParam block : message.content().blockParams().orElse(List.of())) {
+                if (block.document().isPresent() && index++ == documentIndex) {
+                    return block.document();
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static String uploadFilename(String mimeType) {
+        return "attachment." + mimeType.substring(mimeType.indexOf('/') + 1);
+    }
+
+    /**
+     * Converts PlainTextDocumentBlock to Anthropic's DocumentBlockParam with text source.
+     *
+     * @param plainTextDocumentBlock our plain text document block
+     * @return Anthropic ContentBlockParam wrapping a DocumentBlockParam
+     */
+    protected ContentBlockParam toVendorPlainTextDocumentBlock(PlainTextDocumentBlock plainTextDocumentBlock) {
+        ConversationUtils.validatePlainText(plainTextDocumentBlock.text());
+        ConversationUtils.validateMimeType(plainTextDocumentBlock.mimeType(), SUPPORTED_DOCUMENT_MIME_TYPES);
+
+        // Enable citations for document blocks
+        CitationsConfigParam citationsConfig = CitationsConfigParam.builder()
+                .enabled(true)
+                .build();
+
+        DocumentBlockParam documentBlockParam = DocumentBlockParam.builder()
+                .textSource(plainTextDocumentBlock.text())
+                .citations(citationsConfig)
+                .build();
+
+        return ContentBlockParam.ofDocument(documentBlockParam);
+    }
+
+    @Override
+    protected com.anthropic.models.messages.Message sendConversationToVendor() {
+        try {
+            MessageCreateParams params = buildRequestParams();
+
+            // Answer a byte-identical request from the response cache, if one is set
+            ResponseCache cache = responseCache().orElse(null);
+            String cacheKey = null;
+            if (cache != null) {
+                cacheKey = responseCacheKey(params);
+                Optional<byte[]> cached = cache.get(cacheKey);
+                if (cached.isPresent()) {
+                    // The request never reached the API, so its prompt cache statistics are not kept
+                    cacheTracker.discardRequest();
+                    prefixFingerprints.discardRequest();
+                    replayedResponse = ObjectMappers.jsonMapper().readValue(cached.get(), com.anthropic.models.messages.Message.class);
+                    return replayedResponse;
+                }
+            }
+
+            // Make the synchronous (non-streaming) API call with full conversation context
+            com.anthropic.models.messages.Message response = client.messages().create(params);
+
+            if (cache != null) {
+                cache.put(cacheKey, ObjectMappers.jsonMapper().writeValueAsBytes(response));
+            }
+            return response;
+
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to send conversation to Anthropic", e);
+        }
+    }
+
+    @Override
+    protected com.anthropic.models.messages.Message streamConversationToVendor(MessageStreamListener listener) {
+        MessageCreateParams params = buildRequestParams();
+
+        // Accumulate the server-sent events into a complete Message while forwarding deltas
+        MessageAccumulator accumulator = MessageAccumulator.create();
+        try (StreamResponse<RawMessageStreamEvent> stream = client.messages().createStreaming(params)) {
+            stream.stream().forEach(event -> {
+                accumulator.accumulate(event);
+                event.contentBlockDelta().ifPresent(deltaEvent -> dispatchDelta(deltaEvent.delta(), listener));
+            });
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to stream conversation from Anthropic", e);
+        }
+        return accumulator.message();
+    }
+
+    @Override
+    protected boolean isStreamable() {
+        return STREAMING_AVAILABLE;
+    }
+
+    /**
+     * Forwards a single content block delta to the stream listener.
+     * Thinking, signature and tool input deltas are not surfaced; they are still
+     * accumulated into the final response.
+     *
+     * @param delta the content block delta
+     * @param listener the stream listener
+     */
+    private void dispatchDelta(RawContentBlockDelta delta, MessageStreamListener listener) {
+        if (delta.text().isPresent()) {
+            listener.onText(delta.text().get().text());
+        } else if (delta.citations().isPresent()) {
+            listener.onCitation(fromVendorCitationDelta(delta.citations().get().citation()));
+        }
+    }
+
+    /**
+     * Builds the request parameters for the entire conversation history.
+     *
+     * @return the MessageCreateParams to send
+     */
+    MessageCreateParams buildRequestParams() {
+        // Get model ID
+        String model = modelId().apiModelName();
+
+        // Build MessageCreateParams with model, maxTokens, and all messages in history
+        MessageCreateParams.Builder paramsBuilder = MessageCreateParams.builder()
+                .model(model)
+                .maxTokens(MAX_TOKENS);
+
+        // Requests referencing uploaded files must opt in to the Files API beta
+        if (referencesUploadedFiles) {
+            paramsBuilder.putAdditionalHeader("anthropic-beta", AnthropicFileUploads.FILES_API_BETA);
+        }
+
+        // Add all vendor messages (the entire conversation history), with this turn's cache
+        // breakpoints overlaid. Messages already sent on earlier turns are not re-serialized:
+        // the client's JsonMapper reuses their encoded bytes from AnthropicMessageEncodingCache.
+        List<AnthropicCachePlanner.Breakpoint> plan = pendingCachePlan;
+        boolean preambleBreakpoint = pendingPreambleBreakpoint;
+        pendingCachePlan = List.of();
+        pendingPreambleBreakpoint = false;
+        com.anthropic.models.messages.CacheControlEphemeral.Ttl ttl = plan.isEmpty() && !preambleBreakpoint
+                ? null
+                : cacheTtlPolicy.selectTtl(cacheTracker.snapshot());
+        cacheTracker.onRequest(ttl);
+        prefixFingerprints.onRequest(vendorTools, vendorSystemPrompt, tokenEstimator.estimatePreambleTokens(),
+                preambleBreakpoint, vendorMessages, plan, tokenEstimator::estimateBlockTokens);
+        var cacheControl = com.anthropic.models.messages.CacheControlEphemeral.builder()
+                .ttl(ttl != null ? ttl : com.anthropic.models.messages.CacheControlEphemeral.Ttl.TTL_5M)
+                .build();
+        paramsBuilder.messages(cacheOverlay.apply(vendorMessages, plan, cacheControl));
+
+        // Send the tools and system prompt ahead of the history. The API caches tools, then the
+        // system prompt, then messages, so a breakpoint on the last system block covers both;
+        // without a system prompt it goes on the last client-side tool
+        boolean systemBreakpoint = preambleBreakpoint && !vendorSystemPrompt.isEmpty();
+        paramsBuilder.tools(preambleBreakpoint && !systemBreakpoint ? markedTools(cacheControl) : vendorTools);
+        if (!vendorSystemPrompt.isEmpty()) {
+            paramsBuilder.systemOfTextBlockParams(
+                    systemBreakpoint ? markedSystemPrompt(cacheControl) : vendorSystemPrompt);
+        }
+
+        // Build the final params
+        MessageCreateParams params = paramsBuilder.build();
+
+        // Trace the payload when this conversation or the sampler asks for it; rendering is lazy
+        RequestTracer.trace(this, () -> renderRequestSummary(params), () -> renderRequestFull(params));
+
+        return params;
+    }
+
+    /**
+     * Builds the parameters for this conversation's pending turn as one request of a
+     * Message Batch. Carries the same model, limits, tools and history as a direct request.
+     *
+     * @return the batch request parameters
+     */
+    BatchCreateParams.Request.Params buildBatchRequestParams() {
+        MessageCreateParams params = buildRequestParams();
+        BatchCreateParams.Request.Params.Builder builder = BatchCreateParams.Request.Params.builder()
+                .model(params.model())
+                .maxTokens(params.maxTokens())
+                .tools(params.tools().orElse(List.of()))
+                .messages(params.messages());
+        params.system().flatMap(MessageCreateParams.System::textBlockParams)
+                .ifPresent(builder::systemOfTextBlockParams);
+        return builder.build();
+    }
+
+    /**
+     * Returns the tools with a cache breakpoint on the last client-side tool.
+     *
+     * @param cacheControl the cache control of this request's breakpoints
+     * @return the marked tools
+     */
+    private List<ToolUnion> markedTools(com.anthropic.models.messages.CacheControlEphemeral cacheControl) {
+        if (!cacheControl.equals(markedToolsCacheControl)) {
+            List<ToolUnion> marked = new ArrayList<>(vendorTools);
+            com.anthropic.models.messages.Tool last = marked.getLast().asTool();
+            marked.set(marked.size() - 1, ToolUnion.ofTool(last.toBuilder().cacheControl(cacheControl).build()));
+            markedTools = List.copyOf(marked);
+            markedToolsCacheControl = cacheControl;
         }
+        return markedTools;
     }
 
     /**
-     * Converts PlainTextDocumentBlock to Anthropic's DocumentBlockParam with text source.
+     * Returns the system prompt with a cache breakpoint on its last block.
      *
-     * @param plainTextDocumentBlock our plain text document block
-     * @return Anthropic ContentBlockParam wrapping a DocumentBlockParam
+     * @param cacheControl the cache control of this request's breakpoints
+     * @return the marked system prompt
      */
-    protected ContentBlockParam toVendorPlainTextDocumentBlock(PlainTextDocumentBlock plainTextDocumentBlock) {
-        ConversationUtils.validatePlainText(plainTextDocumentBlock.text());
-        ConversationUtils.validateMimeType(plainTextDocumentBlock.mimeType(), SUPPORTED_DOCUMENT_MIME_TYPES);
-
-        // Enable citations for document blocks
-        CitationsConfigParam citationsConfig = CitationsConfigParam.builder()
-                .enabled(true)
-                .build();
-
-        DocumentBlockParam documentBlockParam = DocumentBlockParam.builder()
-                .textSource(plainTextDocumentBlock.text())
-                .citations(citationsConfig)
-                .build();
-
-        return ContentBlockParam.ofDocument(documentBlockParam);
+    private List<TextBlockParam> markedSystemPrompt(com.anthropic.models.messages.CacheControlEphemeral cacheControl) {
+        if (!cacheControl.equals(markedSystemCacheControl)) {
+            List<TextBlockParam> marked = new ArrayList<>(vendorSystemPrompt);
+            marked.set(marked.size() - 1, marked.getLast().toBuilder().cacheControl(cacheControl).build());
+            markedSystemPrompt = List.copyOf(marked);
+            markedSystemCacheControl = cacheControl;
+        }
+        return markedSystemPrompt;
     }
 
-    @Override
-    protected com.anthropic.models.messages.Message sendConversationToVendor() {
+    /**
+     * Returns the response cache key of a request: a SHA-256 hash of the model, max tokens,
+     * tools, system prompt and the serialized vendor history. The tools, system prompt and
+     * history are hashed as stored, without the cache_control markers applied to the request,
+     * since they do not change the response.
+     *
+     * @param params the request
+     * @return the hex-encoded hash
+     */
+    String responseCacheKey(MessageCreateParams params) {
         try {
-            // Get model ID
-            String model = modelId().apiModelName();
-
-            // Build MessageCreateParams with model, maxTokens, and all messages in history
-            MessageCreateParams.Builder paramsBuilder = MessageCreateParams.builder()
-                    .model(model)
-                    .maxTokens(MAX_TOKENS);
-
-            // Enable web search for all requests
-            WebSearchTool20250305 webSearchTool = WebSearchTool20250305.builder()
-                    .maxUses(5L)
-                    .build();
-            paramsBuilder.addTool(ToolUnion.ofWebSearchTool20250305(webSearchTool));
-
-            // Add all vendor messages (the entire conversation history)
-            for (MessageParam msg : vendorMessages) {
-                paramsBuilder.addMessage(msg);
-            }
-
-            // Build the final params
-            MessageCreateParams params = paramsBuilder.build();
-
-            // Log the full payload being sent (including all conversation history)
-            System.out.println("\n=== FULL API REQUEST PAYLOAD ===");
-            System.out.println("Model: " + params.model());
-            System.out.println("Max Tokens: " + params.maxTokens());
-            System.out.println("Tools: " + params.tools());
-            System.out.println("Message Count: " + params.messages().size());
-            for (int i = 0; i < params.messages().size(); i++) {
-                MessageParam msg = params.messages().get(i);
-                System.out.println("\n--- Message " + i + " (Role: " + msg.role() + ") ---");
-                System.out.println(msg.toString());
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((params.model().asString() + "\n" + params.maxTokens() + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            digest.update(ObjectMappers.jsonMapper().writeValueAsBytes(vendorTools));
+            digest.update(ObjectMappers.jsonMapper().writeValueAsBytes(vendorSystemPrompt));
+            for (MessageParam message : vendorMessages) {
+                // Length-prefix each message so that different splits of the same bytes hash differently
+                byte[] encoded = AnthropicMessageEncodingCache.shared().encode(message);
+                digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(encoded.length).array());
+                digest.update(encoded);
             }
-            System.out.println("=== END PAYLOAD ===\n");
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException | JsonProcessingException e) {
+            throw new IllegalStateException("Failed to hash request for the response cache", e);
+        }
+    }
 
-            // Make the synchronous (non-streaming) API call with full conversation context
-            return client.messages().create(params);
+    /**
+     * Renders the request with each message reduced to its role, encoded size and hash.
+     *
+     * @param params the request
+     * @return the rendered summary
+     */
+    private static String renderRequestSummary(MessageCreateParams params) {
+        StringBuilder sb = new StringBuilder();
+        appendRequestHeader(sb, params);
+        List<MessageParam> messages = params.messages();
+        for (int i = 0; i < messages.size(); i++) {
+            MessageParam msg = messages.get(i);
+            byte[] encoded = AnthropicMessageEncodingCache.shared().encode(msg);
+            CRC32C crc = new CRC32C();
+            crc.update(encoded);
+            sb.append("\n  [").append(i).append("] role=").append(msg.role())
+                    .append(" bytes=").append(encoded.length)
+                    .append(" crc32c=").append(String.format("%08x", crc.getValue()));
+        }
+        return sb.toString();
+    }
 
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to send conversation to Anthropic", e);
+    /**
+     * Renders the request with the full body of every message.
+     *
+     * @param params the request
+     * @return the rendered request
+     */
+    private static String renderRequestFull(MessageCreateParams params) {
+        StringBuilder sb = new StringBuilder();
+        appendRequestHeader(sb, params);
+        List<MessageParam> messages = params.messages();
+        for (int i = 0; i < messages.size(); i++) {
+            MessageParam msg = messages.get(i);
+            sb.append("\n--- Message ").append(i).append(" (Role: ").append(msg.role()).append(") ---\n")
+                    .append(msg);
         }
+        return sb.toString();
+    }
+
+    private static void appendRequestHeader(StringBuilder sb, MessageCreateParams params) {
+        sb.append("Request model=").append(params.model())
+                .append(" maxTokens=").append(params.maxTokens())
+                .append(" tools=").append(params.tools().map(List::size).orElse(0))
+                .append(" system=").append(params.system()
+                        .flatMap(MessageCreateParams.System::textBlockParams).map(List::size).orElse(0))
+                .append(" messages=").append(params.messages().size());
     }
 
     @Override
@@ -485,9 +1442,25 @@ public class AnthropicConversation
         long cacheCreationTokens = vendorResponse.usage().cacheCreationInputTokens().orElse(0L);
         long cacheReadTokens = vendorResponse.usage().cacheReadInputTokens().orElse(0L);
 
-        // Accumulate cache tokens
+        // Accumulate cache tokens, including those reported by a response replayed from the response cache
         totalCacheCreationInputTokens += cacheCreationTokens;
         totalCacheReadInputTokens += cacheReadTokens;
+        boolean replayed = vendorResponse == replayedResponse;
+        replayedResponse = null;
+        if (replayed) {
+            // It never reached the API, so its usage says nothing about this conversation's prompt cache
+            return new Message(role, blocks, inputTokens, outputTokens);
+        }
+
+        // Record the cache usage with the turn timing for TTL selection
+        cacheTracker.onResponse(vendorResponse.usage());
+
+        // Compare the cached prefix with the previous request's and aggregate per model
+        String model = modelId().apiModelName();
+        Optional<AnthropicCacheBreak> cacheBreak =
+                prefixFingerprints.onResponse(model, cacheReadTokens, cacheCreationTokens);
+        cacheBreak.ifPresent(found -> lastCacheBreak = found);
+        AnthropicCacheAnalyzer.shared().record(model, inputTokens, cacheCreationTokens, cacheReadTokens, cacheBreak);
 
         return new Message(role, blocks, inputTokens, outputTokens);
     }
@@ -520,10 +1493,30 @@ public class AnthropicConversation
             return fromVendorTextBlock(contentBlock.text().get());
         }
 
+        // Check if it's a request to run a client-side tool
+        if (contentBlock.toolUse().isPresent()) {
+            return fromVendorToolUseBlock(contentBlock.toolUse().get());
+        }
+
         // If we don't recognize the block type, wrap it as UnknownBlock
         return new UnknownBlock(contentBlock.toString());
     }
 
+    /**
+     * Converts Anthropic's ToolUseBlock to our ToolUseBlock, keeping the input as JSON.
+     *
+     * @param anthropicToolUseBlock Anthropic's ToolUseBlock
+     * @return our ToolUseBlock
+     */
+    protected MessageBlock fromVendorToolUseBlock(com.anthropic.models.messages.ToolUseBlock anthropicToolUseBlock) {
+        try {
+            String inputJson = ObjectMappers.jsonMapper().writeValueAsString(anthropicToolUseBlock._input());
+            return new ToolUseBlock(anthropicToolUseBlock.id(), anthropicToolUseBlock.name(), inputJson);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to serialize tool input: " + anthropicToolUseBlock.id(), e);
+        }
+    }
+
     /**
      * Converts Anthropic's TextBlock to our TextBlock.
      * Uses ConversationUtils to programmatically detect the text format.
@@ -558,6 +1551,8 @@ public class AnthropicConversation
         // Check for char location citation
         if (anthropicCitation.charLocation().isPresent()) {
             CitationCharLocation charLoc = anthropicCitation.charLocation().get();
+            // Text extracted from a PDF also reports the pages the cited range comes from
+            Optional<PdfTextExtractor.ExtractedText> extracted = documentAt(charLoc.documentIndex()).map(documentTexts::get);
             return new CharLocationCitation(
                 charLoc.citedText(),
                 charLoc.documentTitle().orElse("Untitled"),
@@ -566,13 +1561,17 @@ public class AnthropicConversation
                 charLoc.documentTitle(),
                 charLoc.fileId(),
                 Optional.of(charLoc.startCharIndex()),
-                Optional.of(charLoc.endCharIndex())
+                Optional.of(charLoc.endCharIndex()),
+                extracted.map(text -> text.pageAt(charLoc.startCharIndex())),
+                extracted.map(text -> text.pageEndExclusive(charLoc.endCharIndex()))
             );
         }
 
         // Check for page location citation
+        // Page numbers of documents sent as page ranges are mapped back to the original document
         if (anthropicCitation.pageLocation().isPresent()) {
             CitationPageLocation pageLoc = anthropicCitation.pageLocation().get();
+            Optional<PdfPageExtractor.PageMap> pageMap = documentAt(pageLoc.documentIndex()).map(documentPageMaps::get);
             return new PageLocationCitation(
                 pageLoc.citedText(),
                 pageLoc.documentTitle().orElse("Untitled"),
@@ -580,8 +1579,10 @@ public class AnthropicConversation
                 Optional.of(pageLoc.documentIndex()),
                 pageLoc.documentTitle(),
                 pageLoc.fileId(),
-                Optional.of(pageLoc.startPageNumber()),
-                Optional.of(pageLoc.endPageNumber())
+                Optional.of(pageMap.map(map -> map.originalPage(pageLoc.startPageNumber()))
+                        .orElse(pageLoc.startPageNumber())),
+                Optional.of(pageMap.map(map -> map.originalEndExclusive(pageLoc.endPageNumber()))
+                        .orElse(pageLoc.endPageNumber()))
             );
         }
 
@@ -635,6 +1636,34 @@ public class AnthropicConversation
         );
     }
 
+    /**
+     * Converts a streamed citation delta to our TextCitation.
+     * Wraps the delta's variant in Anthropic's TextCitation and reuses fromVendorCitation().
+     *
+     * @param deltaCitation the citation carried by a citations_delta event
+     * @return our TextCitation
+     */
+    protected TextCitation fromVendorCitationDelta(CitationsDelta.Citation deltaCitation) {
+        com.anthropic.models.messages.TextCitation citation;
+        if (deltaCitation.charLocation().isPresent()) {
+            citation = com.anthropic.models.messages.TextCitation.ofCharLocation(deltaCitation.charLocation().get());
+        } else if (deltaCitation.pageLocation().isPresent()) {
+            citation = com.anthropic.models.messages.TextCitation.ofPageLocation(deltaCitation.pageLocation().get());
+        } else if (deltaCitation.contentBlockLocation().isPresent()) {
+            citation = com.anthropic.models.messages.TextCitation.ofContentBlockLocation(
+                    deltaCitation.contentBlockLocation().get());
+        } else if (deltaCitation.webSearchResultLocation().isPresent()) {
+            citation = com.anthropic.models.messages.TextCitation.ofWebSearchResultLocation(
+                    deltaCitation.webSearchResultLocation().get());
+        } else if (deltaCitation.searchResultLocation().isPresent()) {
+            citation = com.anthropic.models.messages.TextCitation.ofSearchResultLocation(
+                    deltaCitation.searchResultLocation().get());
+        } else {
+            return new UnknownCitation("Unknown citation", "Unknown", "unknown", deltaCitation.toString());
+        }
+        return fromVendorCitation(citation);
+    }
+
     /**
      * Converts our TextCitation to Anthropic's TextCitationParam for storing in conversation history.
      * This is the reverse operation of fromVendorCitation().
@@ -724,81 +1753,151 @@ public class AnthropicConversation
     }
 
     @Override
-    protected boolean isCacheable() {
-        return CACHING_AVAILABLE;
+    protected Optional<TokenEstimator<MessageParam>> tokenEstimator() {
+        return Optional.of(tokenEstimator);
     }
 
+    /**
+     * A request may start at a user message, unless it carries tool results that answer
+     * the preceding assistant message.
+     */
     @Override
-    protected void configureCaching() {
-        // Find the last cacheable block in the conversation and add cache control to it
-        // Walk backwards through vendorMessages to find the most recent cacheable block
-
-        // TODO: Add support for caching on tool use blocks when tools are implemented
-        // TODO: Add support for caching on system prompts when system prompts are supported
-        // TODO: Anthropic only caches up to 20 blocks - need to handle this limitation
-        //       (currently we only cache one block, but when we expand to multiple cache points,
-        //       we'll need to ensure we don't exceed the 20-block limit)
-
-        for (int i = vendorMessages.size() - 1; i >= 0; i--) {
-            MessageParam message = vendorMessages.get(i);
-
-            // Get the content from the message
-            if (message.content() == null) {
-                continue;
-            }
+    protected boolean startsTurn(MessageParam vendorMessage) {
+        if (!MessageParam.Role.USER.equals(vendorMessage.role())) {
+            return false;
+        }
+        return vendorMessage.content().blockParams().orElse(List.of()).stream()
+                .noneMatch(block -> block.toolResult().isPresent());
+    }
 
-            // Try to get block params from the content
-            Optional<List<ContentBlockParam>> blockParamsOpt = message.content().blockParams();
-            if (blockParamsOpt.isEmpty()) {
-                continue;
-            }
+    @Override
+    protected long maxOutputTokens() {
+        return MAX_TOKENS;
+    }
 
-            List<ContentBlockParam> blockParams = blockParamsOpt.get();
+    /**
+     * Anthropic reports cache reads and writes separately from input_tokens; all three
+     * count toward the context window.
+     */
+    @Override
+    protected OptionalLong reportedInputTokens(com.anthropic.models.messages.Message vendorResponse) {
+        var usage = vendorResponse.usage();
+        return OptionalLong.of(usage.inputTokens()
+                + usage.cacheCreationInputTokens().orElse(0L)
+                + usage.cacheReadInputTokens().orElse(0L));
+    }
 
-            // Walk backwards through the blocks to find the last cacheable one
-            for (int j = blockParams.size() - 1; j >= 0; j--) {
-                ContentBlockParam block = blockParams.get(j);
+    @Override
+    protected boolean isCacheable() {
+        return CACHING_AVAILABLE;
+    }
 
-                // Try to rebuild the block with cache control
-                ContentBlockParam rebuiltBlock = rebuildBlockWithCacheControl(block);
-                if (rebuiltBlock != null) {
-                    // Replace the block in the list
-                    List<ContentBlockParam> newBlockParams = new ArrayList<>(blockParams);
-                    newBlockParams.set(j, rebuiltBlock);
+    /**
+     * Plans up to four cache breakpoints for the next request: one at the end of the client-side
+     * tools and system prompt when they are large enough to be cached on their own, and the rest
+     * in the history with {@link AnthropicCachePlanner}. The markers are applied while the request
+     * is built; vendorMessages never holds cache_control, so markers from earlier turns cannot accumulate.
+     */
+    @Override
+    protected void configureCaching() {
+        // 1. Give the tools and system prompt their own breakpoint, so they are read even when the history changes
+        boolean hasPreamble = !vendorSystemPrompt.isEmpty() || vendorTools.size() > 1;
+        pendingPreambleBreakpoint = hasPreamble
+                && tokenEstimator.estimatePreambleTokens() >= AnthropicCachePlanner.MIN_CACHEABLE_TOKENS;
+
+        // 2. Plan the remaining breakpoints by token weight and the 20-block lookback window
+        int historyBreakpoints = AnthropicCachePlanner.MAX_BREAKPOINTS - (pendingPreambleBreakpoint ? 1 : 0);
+        pendingCachePlan = cachePlanner.plan(vendorMessages, tokenEstimator::estimateBlockTokens,
+                AnthropicConversation::isCacheableBlock, historyBreakpoints);
+    }
 
-                    // Rebuild the message with the updated blocks
-                    MessageParam newMessage = MessageParam.builder()
-                            .role(message.role())
-                            .content(MessageParam.Content.ofBlockParams(newBlockParams))
-                            .build();
+    /**
+     * Discards the breakpoints planned for a turn that was rolled back before its request was
+     * built, so a later request sent without caching does not pick them up.
+     */
+    @Override
+    protected void turnRolledBack() {
+        pendingCachePlan = List.of();
+        pendingPreambleBreakpoint = false;
+    }
 
-                    // Replace the message in vendorMessages
-                    vendorMessages.set(i, newMessage);
+    /**
+     * Converts the system prompt to text block params. Formats and citations are not sent,
+     * as for text blocks in the history.
+     */
+    @Override
+    protected void systemPromptChanged(List<TextBlock> systemPrompt) {
+        List<TextBlockParam> converted = new ArrayList<>(systemPrompt.size());
+        for (TextBlock block : systemPrompt) {
+            ConversationUtils.validatePlainText(block.text());
+            converted.add(TextBlockParam.builder().text(block.text()).build());
+        }
+        vendorSystemPrompt = List.copyOf(converted);
+        markedSystemPrompt = List.of();
+        markedSystemCacheControl = null;
+        tokenEstimator.setSystemPrompt(vendorSystemPrompt);
+    }
 
-                    // We found and updated the last cacheable block, so we're done
-                    return;
-                }
+    /**
+     * Converts the client-side tools to tool definitions, sent after web search on every request.
+     *
+     * @throws IllegalArgumentException if a tool's input schema is not a JSON object
+     */
+    @Override
+    protected void toolRegistryChanged(ToolRegistry toolRegistry) {
+        List<ToolUnion> converted = new ArrayList<>();
+        converted.add(WEB_SEARCH_TOOL);
+        List<com.anthropic.models.messages.Tool> definitions = new ArrayList<>();
+        for (Tool tool : toolRegistry.tools()) {
+            com.anthropic.models.messages.Tool.InputSchema schema;
+            try {
+                schema = ObjectMappers.jsonMapper().readValue(
+                        tool.inputSchema(), com.anthropic.models.messages.Tool.InputSchema.class);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Invalid input schema for tool: " + tool.name(), e);
             }
+            com.anthropic.models.messages.Tool definition = com.anthropic.models.messages.Tool.builder()
+                    .name(tool.name())
+                    .description(tool.description())
+                    .inputSchema(schema)
+                    .build();
+            definitions.add(definition);
+            converted.add(ToolUnion.ofTool(definition));
+        }
+        vendorTools = List.copyOf(converted);
+        markedTools = List.of();
+        markedToolsCacheControl = null;
+        tokenEstimator.setTools(definitions);
+    }
+
+    @Override
+    protected void pinCachePrefix(int prefixBlocks) {
+        if (prefixBlocks <= 0) {
+            throw new IllegalArgumentException("prefixBlocks must be positive: " + prefixBlocks);
         }
+        cachePlanner.pin(vendorMessages.size(), prefixBlocks - 1);
     }
 
     /**
-     * Attempts to rebuild a ContentBlockParam with cache control.
-     * Returns the rebuilt block if successful, or null if the block type doesn't support caching.
-     *
-     * @param block the original block
-     * @return the rebuilt block with cache control, or null if not cacheable
+     * Returns true for block types that can carry a cache_control marker.
      */
-    private ContentBlockParam rebuildBlockWithCacheControl(ContentBlockParam block) {
-        // Create the cache control object once and reuse it
-        var cacheControl = com.anthropic.models.messages.CacheControlEphemeral.builder()
-                .ttl(com.anthropic.models.messages.CacheControlEphemeral.Ttl.TTL_5M)
-                .build();
+    static boolean isCacheableBlock(ContentBlockParam block) {
+        return block.text().isPresent() || block.image().isPresent() || block.document().isPresent()
+                || block.toolUse().isPresent() || block.toolResult().isPresent();
+    }
 
+    /**
+     * Rebuilds a cacheable ContentBlockParam with the given cache control.
+     *
+     * @param block the original block; must be cacheable
+     * @param cacheControl the cache control to set
+     * @return the rebuilt block
+     */
+    static ContentBlockParam rebuildBlockWithCacheControl(
+            ContentBlockParam block, com.anthropic.models.messages.CacheControlEphemeral cacheControl) {
         // Check if this is a TextBlockParam
         if (block.text().isPresent()) {
-            TextBlockParam textBlock = block.text().get();
-            TextBlockParam rebuiltTextBlock = textBlock.toBuilder()
+            TextBlockParam rebuiltTextBlock = block.text().get().toBuilder()
                     .cacheControl(cacheControl)
                     .build();
             return ContentBlockParam.ofText(rebuiltTextBlock);
@@ -806,8 +1905,7 @@ public class AnthropicConversation
 
         // Check if this is an ImageBlockParam
         if (block.image().isPresent()) {
-            ImageBlockParam imageBlock = block.image().get();
-            ImageBlockParam rebuiltImageBlock = imageBlock.toBuilder()
+            ImageBlockParam rebuiltImageBlock = block.image().get().toBuilder()
                     .cacheControl(cacheControl)
                     .build();
             return ContentBlockParam.ofImage(rebuiltImageBlock);
@@ -815,15 +1913,25 @@ public class AnthropicConversation
 
         // Check if this is a DocumentBlockParam
         if (block.document().isPresent()) {
-            DocumentBlockParam docBlock = block.document().get();
-            DocumentBlockParam rebuiltDocBlock = docBlock.toBuilder()
+            DocumentBlockParam rebuiltDocBlock = block.document().get().toBuilder()
                     .cacheControl(cacheControl)
                     .build();
             return ContentBlockParam.ofDocument(rebuiltDocBlock);
         }
 
-        // This block type doesn't support caching (or we don't support it yet)
-        return null;
+        // Check if this is a tool use or tool result, so a turn of tool results can be the tail
+        if (block.toolUse().isPresent()) {
+            return ContentBlockParam.ofToolUse(block.toolUse().get().toBuilder()
+                    .cacheControl(cacheControl)
+                    .build());
+        }
+        if (block.toolResult().isPresent()) {
+            return ContentBlockParam.ofToolResult(block.toolResult().get().toBuilder()
+                    .cacheControl(cacheControl)
+                    .build());
+        }
+
+        throw new IllegalArgumentException("Block type does not support cache control: " + block);
     }
 
     /**
@@ -845,4 +1953,267 @@ public class AnthropicConversation
     public long getTotalCacheReadInputTokens() {
         return totalCacheReadInputTokens;
     }
+
+    /**
+     * Returns the policy choosing the TTL of cache breakpoints; {@link AnthropicCacheTtlPolicy#adaptive()} by default.
+     */
+    public AnthropicCacheTtlPolicy cacheTtlPolicy() {
+        return cacheTtlPolicy;
+    }
+
+    /**
+     * Sets the policy choosing the TTL of cache breakpoints.
+     *
+     * @param cacheTtlPolicy the policy to use
+     */
+    public void setCacheTtlPolicy(AnthropicCacheTtlPolicy cacheTtlPolicy) {
+        if (cacheTtlPolicy == null) {
+            throw new IllegalArgumentException("cacheTtlPolicy cannot be null");
+        }
+        this.cacheTtlPolicy = cacheTtlPolicy;
+    }
+
+    /**
+     * Returns this conversation's cache activity: TTLs chosen, hits, tokens read and written
+     * per TTL, and the recent gaps between turns.
+     *
+     * @return a snapshot of the cache statistics
+     */
+    public AnthropicCacheStats getCacheStats() {
+        return cacheTracker.snapshot();
+    }
+
+    /**
+     * Returns the most recent turn that read less from the prompt cache than the previous turn
+     * had cached, with the first block where the prefix differed and the tokens lost.
+     *
+     * @return the last cache break, or empty if none has been detected
+     */
+    public Optional<AnthropicCacheBreak> lastCacheBreak() {
+        return Optional.ofNullable(lastCacheBreak);
+    }
+
+    /**
+     * Returns whether large attachments are uploaded to the Anthropic Files API.
+     */
+    public boolean isFilesApiEnabled() {
+        return filesApiEnabled;
+    }
+
+    /**
+     * Enables or disables uploading attachments to the Anthropic Files API. When enabled, file
+     * path and base64 images and PDFs of at least {@link #fileUploadMinBytes()} are uploaded
+     * once, keyed by content hash, and referenced by file id on every turn instead of being
+     * resent inline. Smaller attachments are still sent inline. Applies to attachments
+     * converted after the call.
+     *
+     * @param enabled true to upload large attachments
+     */
+    public void setFilesApiEnabled(boolean enabled) {
+        this.filesApiEnabled = enabled;
+    }
+
+    /**
+     * Returns the size from which attachments are uploaded when the Files API is enabled.
+     */
+    public long fileUploadMinBytes() {
+        return fileUploadMinBytes;
+    }
+
+    /**
+     * Sets the size from which attachments are uploaded when the Files API is enabled.
+     *
+     * @param minBytes the raw attachment size, in bytes
+     */
+    public void setFileUploadMinBytes(long minBytes) {
+        if (minBytes < 0) {
+            throw new IllegalArgumentException("minBytes must not be negative: " + minBytes);
+        }
+        this.fileUploadMinBytes = minBytes;
+    }
+
+    /**
+     * Returns whether oversized images are downscaled and re-encoded before they are sent.
+     */
+    public boolean isImagePreprocessingEnabled() {
+        return imagePreprocessingEnabled;
+    }
+
+    /**
+     * Enables or disables image preprocessing, which is disabled by default. When enabled, base64
+     * and file path PNG and JPEG images larger than Claude's useful resolution or
+     * {@link AnthropicImagePreprocessor#DEFAULT_TARGET_BYTES} are downscaled and re-encoded by the
+     * shared {@link AnthropicImagePreprocessor} before they are sent or uploaded. Applies to images
+     * converted after the call. Re-encoding is lossy, and metadata such as EXIF orientation is
+     * not carried over.
+     *
+     * @param enabled true to preprocess images
+     */
+    public void setImagePreprocessingEnabled(boolean enabled) {
+        this.imagePreprocessingEnabled = enabled;
+    }
+
+    /**
+     * Returns whether large plain text documents are indexed and searched locally.
+     */
+    public boolean isRetrievalEnabled() {
+        return retrievalEnabled;
+    }
+
+    /**
+     * Enables or disables local retrieval. When enabled, plain text documents of at least
+     * {@link #retrievalMinChars()} characters in user messages are split into passages and added
+     * to the {@link #retrievalIndex()} instead of being sent, and every user message is sent with
+     * the {@link #retrievalTopK()} passages that best match its text, as search result blocks
+     * with citations enabled. Input tokens per turn then stay about the same however large the
+     * documents are; citations of the passages arrive as {@link SearchResultCitation}s whose
+     * source names the document and passage. Applies to messages converted after the call.
+     *
+     * @param enabled true to retrieve passages locally
+     */
+    public void setRetrievalEnabled(boolean enabled) {
+        this.retrievalEnabled = enabled;
+    }
+
+    /**
+     * Returns the number of passages sent with each question when retrieval is enabled.
+     */
+    public int retrievalTopK() {
+        return retrievalTopK;
+    }
+
+    /**
+     * Sets the number of passages sent with each question when retrieval is enabled.
+     *
+     * @param topK the number of passages; must be positive
+     */
+    public void setRetrievalTopK(int topK) {
+        if (topK <= 0) {
+            throw new IllegalArgumentException("topK must be positive: " + topK);
+        }
+        this.retrievalTopK = topK;
+    }
+
+    /**
+     * Returns the size from which plain text documents are indexed when retrieval is enabled.
+     */
+    public int retrievalMinChars() {
+        return retrievalMinChars;
+    }
+
+    /**
+     * Sets the size from which plain text documents are indexed when retrieval is enabled.
+     * Smaller documents are sent whole.
+     *
+     * @param minChars the document length, in characters
+     */
+    public void setRetrievalMinChars(int minChars) {
+        if (minChars < 0) {
+            throw new IllegalArgumentException("minChars must not be negative: " + minChars);
+        }
+        this.retrievalMinChars = minChars;
+    }
+
+    /**
+     * Returns the index searched for each question when retrieval is enabled. Documents may be
+     * added to it directly, and it may be saved with {@link Bm25Index#save}.
+     */
+    public Bm25Index retrievalIndex() {
+        return retrievalIndex;
+    }
+
+    /**
+     * Replaces the retrieval index, for example with one loaded by {@link Bm25Index#load}.
+     * The index is kept when messages are cleared.
+     *
+     * @param index the index to search
+     */
+    public void setRetrievalIndex(Bm25Index index) {
+        if (index == null) {
+            throw new IllegalArgumentException("index must not be null");
+        }
+        this.retrievalIndex = index;
+        indexedDocuments.clear();
+    }
+
+    /**
+     * Returns how PDF document blocks are sent.
+     */
+    public PdfConversionMode pdfConversionMode() {
+        return pdfConversionMode;
+    }
+
+    /**
+     * Sets how PDF document blocks are sent. In TEXT and AUTO mode the text of the document, or of
+     * its selected pages, is extracted locally and sent as a plain text document with citations
+     * enabled; character citations of it report the original page numbers. Applies to documents
+     * converted after the call.
+     *
+     * @param mode the conversion mode; {@link PdfConversionMode#DOCUMENT} by default
+     */
+    public void setPdfConversionMode(PdfConversionMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        this.pdfConversionMode = mode;
+    }
+
+    /**
+     * Returns the number of local attachments from which a message's blocks are converted in parallel.
+     */
+    public int parallelConversionMinAttachments() {
+        return parallelConversionMinAttachments;
+    }
+
+    /**
+     * Returns the total local attachment size from which a message's blocks are converted in parallel.
+     */
+    public long parallelConversionMinBytes() {
+        return parallelConversionMinBytes;
+    }
+
+    /**
+     * Sets when a message's blocks are converted in parallel rather than one after another.
+     * File path and base64 images and PDFs count as local attachments; a message with at least
+     * two of them is converted in parallel once either threshold is reached.
+     *
+     * @param minAttachments the number of local attachments
+     * @param minBytes the total raw size of the local attachments, in bytes
+     */
+    public void setParallelConversionThresholds(int minAttachments, long minBytes) {
+        if (minAttachments < 2) {
+            throw new IllegalArgumentException("minAttachments must be at least 2: " + minAttachments);
+        }
+        if (minBytes < 0) {
+            throw new IllegalArgumentException("minBytes must not be negative: " + minBytes);
+        }
+        this.parallelConversionMinAttachments = minAttachments;
+        this.parallelConversionMinBytes = minBytes;
+    }
+
+    /**
+     * Returns the maximum number of blocks of one message converted at the same time.
+     */
+    public int maxConversionConcurrency() {
+        return maxConversionConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of blocks of one message converted at the same time.
+     *
+     * @param maxConcurrency the number of concurrent conversions
+     */
+    public void setMaxConversionConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.maxConversionConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Returns true once the history references a file uploaded to the Files API.
+     */
+    boolean referencesUploadedFiles() {
+        return referencesUploadedFiles;
+    }
 }
@@ -0,0 +1,187 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.client.AnthropicClient;
+import com.anthropic.core.MultipartField;
+import com.anthropic.core.ObjectMappers;
+import com.anthropic.models.beta.AnthropicBeta;
+import com.anthropic.models.beta.files.FileUploadParams;
+import com.anthropic.models.messages.DocumentBlockParam;
+import com.anthropic.models.messages.ImageBlockParam;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uploads attachments to the Anthropic Files API once per API key and remembers their file ids.
+ *
+ * Uploads are keyed by the SHA-256 hash of their content, so an attachment sent from any number
+ * of conversations, paths or base64 copies is uploaded once. Files are hashed and uploaded by
+ * streaming them through a FileChannel, never holding the whole file on the heap.
+ *
+ * Two conversations attaching the same new content at the same moment may both upload it;
+ * the first file id recorded wins and the other upload is left unused.
+ */
+final class AnthropicFileUploads {
+
+    /**
+     * Beta flag required on requests that upload or reference files.
+     */
+    static final String FILES_API_BETA = AnthropicBeta.FILES_API_2025_04_14.asString();
+
+    private static final int HASH_BUFFER_BYTES = 64 * 1024;
+
+    private static final AnthropicFileUploads SHARED = new AnthropicFileUploads();
+
+    private final ConcurrentHashMap<UploadKey, String> fileIds = new ConcurrentHashMap<>();
+
+    AnthropicFileUploads() {
+    }
+
+    static AnthropicFileUploads shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the file id of a file's content, uploading it if this API key has not uploaded it before.
+     *
+     * @param client the client to upload with
+     * @param apiKey the API key the client authenticates with; file ids are scoped to it
+     * @param path the file to upload
+     * @param mimeType the MIME type of the file
+     * @return the file id
+     * @throws IOException if the file cannot be read
+     */
+    String upload(AnthropicClient client, String apiKey, Path path, String mimeType) throws IOException {
+        UploadKey key = new UploadKey(apiKey, hash(path));
+        String fileId = fileIds.get(key);
+        if (fileId != null) {
+            return fileId;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             InputStream content = Channels.newInputStream(channel)) {
+            return record(key, send(client, content, path.getFileName().toString(), mimeType));
+        }
+    }
+
+    /**
+     * Returns the file id of in-memory content, uploading it if this API key has not uploaded it before.
+     *
+     * @param client the client to upload with
+     * @param apiKey the API key the client authenticates with; file ids are scoped to it
+     * @param content the raw attachment bytes
+     * @param filename the filename to upload under
+     * @param mimeType the MIME type of the content
+     * @return the file id
+     */
+    String upload(AnthropicClient client, String apiKey, byte[] content, String filename, String mimeType) {
+        UploadKey key = new UploadKey(apiKey, hash(content));
+        String fileId = fileIds.get(key);
+        if (fileId != null) {
+            return fileId;
+        }
+        return record(key, send(client, new ByteArrayInputStream(content), filename, mimeType));
+    }
+
+    /**
+     * Returns the number of uploads remembered.
+     */
+    int size() {
+        return fileIds.size();
+    }
+
+    /**
+     * Returns an image source referring to an uploaded file.
+     */
+    static ImageBlockParam.Source imageSource(String fileId) {
+        return ObjectMappers.jsonMapper().convertValue(fileSource(fileId), ImageBlockParam.Source.class);
+    }
+
+    /**
+     * Returns a document source referring to an uploaded file.
+     */
+    static DocumentBlockParam.Source documentSource(String fileId) {
+        return ObjectMappers.jsonMapper().convertValue(fileSource(fileId), DocumentBlockParam.Source.class);
+    }
+
+    private static Map<String, String> fileSource(String fileId) {
+        // Fixed key order, so the block serializes identically on every run and keeps cached prefixes stable
+        Map<String, String> source = new LinkedHashMap<>();
+        source.put("type", "file");
+        source.put("file_id", fileId);
+        return source;
+    }
+
+    private String record(UploadKey key, String fileId) {
+        String existing = fileIds.putIfAbsent(key, fileId);
+        return existing != null ? existing : fileId;
+    }
+
+    private static String send(AnthropicClient client, InputStream content, String filename, String mimeType) {
+        FileUploadParams params = FileUploadParams.builder()
+                .file(MultipartField.<InputStream>builder()
+                        .value(content)
+                        .filename(filename)
+                        .contentType(mimeType)
+                        .build())
+                .addBeta(AnthropicBeta.FILES_API_2025_04_14)
+                .build();
+        try {
+            return client.beta().files().upload(params).id();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to upload file to Anthropic: " + filename, e);
+        }
+    }
+
+    private static String hash(Path path) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_BYTES);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String hash(byte[] content) {
+        return HexFormat.of().formatHex(sha256().digest(content));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Upload cache key. The API key is deliberately left out of toString().
+     */
+    private record UploadKey(String apiKey, String contentHash) {
+        private UploadKey {
+            Objects.requireNonNull(apiKey);
+            Objects.requireNonNull(contentHash);
+        }
+
+        @Override
+        public String toString() {
+            return "UploadKey(" + contentHash + ")";
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.pergamon.llm.conversation;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Downscales and re-encodes images before they are sent to Anthropic.
+ *
+ * Claude resizes every image whose long edge exceeds 1568 pixels or whose area exceeds about
+ * 1.15 megapixels before looking at it, so the extra pixels of a 4000 pixel screenshot only cost
+ * upload bandwidth and count against the request size limit. This preprocessor shrinks such
+ * images to the model's useful resolution and re-encodes any image that is still above a target
+ * size: PNG is kept where it fits, since it preserves text and transparency, and opaque images
+ * fall back to JPEG at decreasing quality. Images that need neither are sent untouched, and GIF
+ * and WebP images are never re-encoded.
+ *
+ * Results are cached by the SHA-256 hash of the original content, so an image attached to many
+ * conversations is processed once. The least recently used results are evicted once their total
+ * size exceeds the cache limit.
+ */
+public final class AnthropicImagePreprocessor {
+
+    /**
+     * Longest edge, in pixels, that Claude uses without resizing.
+     */
+    public static final int DEFAULT_MAX_LONG_EDGE = 1568;
+
+    /**
+     * Largest area, in pixels, that Claude uses without resizing.
+     */
+    public static final long DEFAULT_MAX_PIXELS = 1_150_000L;
+
+    /**
+     * Size above which an image is re-encoded even if it needs no resizing: 1 MB.
+     */
+    public static final long DEFAULT_TARGET_BYTES = 1024L * 1024;
+
+    /**
+     * Size limit of the result cache: 64 MB of processed images.
+     */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Claude's image cost is about one token per 750 pixels after resizing.
+     */
+    private static final double PIXELS_PER_TOKEN = 750.0;
+
+    /**
+     * Bytes read from the start of an image to find its dimensions; enough to skip typical JPEG metadata.
+     */
+    static final int HEADER_BYTES = 64 * 1024;
+
+    private static final float[] JPEG_QUALITIES = {0.85f, 0.7f, 0.55f};
+
+    /**
+     * Factor by which an image that does not fit the target size is shrunk before trying again.
+     */
+    private static final double SHRINK_FACTOR = 0.75;
+
+    private static final int MIN_EDGE = 64;
+
+    private static final AnthropicImagePreprocessor SHARED = new AnthropicImagePreprocessor(
+            DEFAULT_MAX_LONG_EDGE, DEFAULT_MAX_PIXELS, DEFAULT_TARGET_BYTES, DEFAULT_MAX_CACHE_BYTES);
+
+    private final int maxLongEdge;
+    private final long maxPixels;
+    private final long targetBytes;
+    private final long maxCacheBytes;
+
+    // Access-ordered, so iteration starts at the least recently used result
+    private final LinkedHashMap<String, ProcessedImage> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes = 0L;
+
+    /**
+     * The pixel size of an image.
+     *
+     * @param width the width in pixels
+     * @param height the height in pixels
+     */
+    public record Dimensions(int width, int height) {
+        public Dimensions {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Image dimensions must be positive: " + width + "x" + height);
+            }
+        }
+
+        /**
+         * Estimates the input tokens Claude charges for an image of this size, after its own resizing.
+         */
+        public long estimatedTokens() {
+            Dimensions sent = fit(this, DEFAULT_MAX_LONG_EDGE, DEFAULT_MAX_PIXELS);
+            return (long) Math.ceil((double) sent.width * sent.height / PIXELS_PER_TOKEN);
+        }
+    }
+
+    /**
+     * A re-encoded image.
+     *
+     * @param data the encoded image
+     * @param mimeType the MIME type of the encoding, image/png or image/jpeg
+     * @param dimensions the pixel size of the encoded image
+     */
+    public record ProcessedImage(byte[] data, String mimeType, Dimensions dimensions) {
+        public ProcessedImage {
+            if (data == null || mimeType == null || dimensions == null) {
+                throw new IllegalArgumentException("ProcessedImage fields cannot be null");
+            }
+        }
+
+        /**
+         * Estimates the input tokens Claude charges for this image.
+         */
+        public long estimatedTokens() {
+            return dimensions.estimatedTokens();
+        }
+    }
+
+    /**
+     * Creates a preprocessor. Most callers should use {@link #shared()} instead.
+     *
+     * @param maxLongEdge the longest edge, in pixels, images are shrunk to
+     * @param maxPixels the largest area, in pixels, images are shrunk to
+     * @param targetBytes the encoded size above which images are re-encoded
+     * @param maxCacheBytes the total size of cached results above which the least recently used are evicted
+     */
+    public AnthropicImagePreprocessor(int maxLongEdge, long maxPixels, long targetBytes, long maxCacheBytes) {
+        if (maxLongEdge < MIN_EDGE) {
+            throw new IllegalArgumentException("maxLongEdge must be at least " + MIN_EDGE + ": " + maxLongEdge);
+        }
+        if (maxPixels < (long) MIN_EDGE * MIN_EDGE) {
+            throw new IllegalArgumentException("maxPixels must be at least " + MIN_EDGE * MIN_EDGE + ": " + maxPixels);
+        }
+        if (targetBytes <= 0 || maxCacheBytes <= 0) {
+            throw new IllegalArgumentException("targetBytes and maxCacheBytes must be positive");
+        }
+        this.maxLongEdge = maxLongEdge;
+        this.maxPixels = maxPixels;
+        this.targetBytes = targetBytes;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * Returns the process-wide preprocessor used by AnthropicConversation.
+     */
+    public static AnthropicImagePreprocessor shared() {
+        return SHARED;
+    }
+
+    /**
+     * Processes an image file. Only the header is read unless the image needs processing.
+     *
+     * @param path the image file
+     * @param mimeType the MIME type of the file
+     * @return the re-encoded image, or empty if the file should be sent as it is
+     * @throws IOException if the file cannot be read
+     */
+    public Optional<ProcessedImage> process(Path path, String mimeType) throws IOException {
+        Dimensions dimensions;
+        try (InputStream in = Files.newInputStream(path)) {
+            dimensions = readDimensions(in.readNBytes(HEADER_BYTES));
+        }
+        if (!needsProcessing(dimensions, Files.size(path), mimeType)) {
+            return Optional.empty();
+        }
+        return process(Files.readAllBytes(path), mimeType);
+    }
+
+    /**
+     * Processes an encoded image.
+     *
+     * @param content the encoded image
+     * @param mimeType the MIME type of the content
+     * @return the re-encoded image, or empty if the content should be sent as it is
+     */
+    public Optional<ProcessedImage> process(byte[] content, String mimeType) {
+        if (content == null || mimeType == null) {
+            throw new IllegalArgumentException("content and mimeType cannot be null");
+        }
+        if (!needsProcessing(readDimensions(content), content.length, mimeType)) {
+            return Optional.empty();
+        }
+
+        String hash = sha256(content);
+        synchronized (this) {
+            ProcessedImage cached = cache.get(hash);
+            if (cached != null) {
+                return Optional.of(cached);
+            }
+        }
+
+        // Encode outside the lock; a concurrent first encoding of the same image is wasted but harmless
+        Optional<ProcessedImage> processed = reencode(content, mimeType);
+        processed.ifPresent(result -> cache(hash, result));
+        return processed;
+    }
+
+    /**
+     * Reads the dimensions of an encoded image from its header.
+     *
+     * @param header the start of the encoded image; {@link #HEADER_BYTES} is enough for most images
+     * @return the dimensions, or null if the format is not recognized or the header is too short
+     */
+    static Dimensions readDimensions(byte[] header) {
+        try (ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(header))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimensions(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of cached results.
+     */
+    public synchronized int cacheSize() {
+        return cache.size();
+    }
+
+    private boolean needsProcessing(Dimensions dimensions, long sizeBytes, String mimeType) {
+        if (dimensions == null || !isReencodable(mimeType)) {
+            return false;
+        }
+        return !fit(dimensions, maxLongEdge, maxPixels).equals(dimensions) || sizeBytes > targetBytes;
+    }
+
+    private static boolean isReencodable(String mimeType) {
+        return switch (mimeType.toLowerCase()) {
+            case "image/png", "image/jpeg", "image/jpg" -> true;
+            default -> false;
+        };
+    }
+
+    private Optional<ProcessedImage> reencode(byte[] content, String mimeType) {
+        BufferedImage original;
+        try {
+            original = ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(content)));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        if (original == null) {
+            return Optional.empty();
+        }
+
+        boolean keepPng = mimeType.equalsIgnoreCase("image/png");
+        boolean hasAlpha = original.getColorModel().hasAlpha();
+        Dimensions size = fit(new Dimensions(original.getWidth(), original.getHeight()), maxLongEdge, maxPixels);
+        ProcessedImage smallest = null;
+        while (true) {
+            BufferedImage scaled = scale(original, size, hasAlpha);
+
+            // 1. PNG first for PNG sources and anything with transparency
+            if (keepPng || hasAlpha) {
+                ProcessedImage png = encode(scaled, "png", "image/png", size, 0f);
+                smallest = smaller(smallest, png);
+                if (png.data().length <= targetBytes) {
+                    break;
+                }
+            }
+
+            // 2. Opaque images fall back to JPEG at decreasing quality
+            if (!hasAlpha) {
+                ProcessedImage jpeg = null;
+                for (float quality : JPEG_QUALITIES) {
+                    jpeg = encode(scaled, "jpeg", "image/jpeg", size, quality);
+                    if (jpeg.data().length <= targetBytes) {
+                        break;
+                    }
+                }
+                smallest = smaller(smallest, jpeg);
+                if (jpeg.data().length <= targetBytes) {
+                    break;
+                }
+            }
+
+            // 3. Still too large: shrink further, down to a floor
+            Dimensions shrunk = new Dimensions(
+                    Math.max(1, (int) (size.width() * SHRINK_FACTOR)),
+                    Math.max(1, (int) (size.height() * SHRINK_FACTOR)));
+            if (Math.max(shrunk.width(), shrunk.height()) < MIN_EDGE) {
+                break;
+            }
+            size = shrunk;
+        }
+
+        // A re-encoding that ends up larger than an original of the right size is not worth sending
+        boolean resized = !smallest.dimensions().equals(new Dimensions(original.getWidth(), original.getHeight()));
+        if (!resized && smallest.data().length >= content.length) {
+            return Optional.empty();
+        }
+        return Optional.of(smallest);
+    }
+
+    private static ProcessedImage smaller(ProcessedImage current, ProcessedImage candidate) {
+        return current == null || candidate.data().length < current.data().length ? candidate : current;
+    }
+
+    /**
+     * Returns the largest size with the same aspect ratio that fits both limits.
+     */
+    private static Dimensions fit(Dimensions dimensions, int maxLongEdge, long maxPixels) {
+        double scale = Math.min(1.0, (double) maxLongEdge / Math.max(dimensions.width(), dimensions.height()));
+        scale = Math.min(scale, Math.sqrt((double) maxPixels / ((long) dimensions.width() * dimensions.height())));
+        if (scale >= 1.0) {
+            return dimensions;
+        }
+        return new Dimensions(
+                Math.max(1, (int) Math.floor(dimensions.width() * scale)),
+                Math.max(1, (int) Math.floor(dimensions.height() * scale)));
+    }
+
+    /**
+     * Scales an image, halving repeatedly before the final step so that large reductions stay smooth.
+     */
+    private static BufferedImage scale(BufferedImage source, Dimensions target, boolean hasAlpha) {
+        int type = hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = Math.max(target.width(), width / 2);
+            height = Math.max(target.height(), height / 2);
+            BufferedImage next = new BufferedImage(width, height, type);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (width != target.width() || height != target.height());
+        return current;
+    }
+
+    private static ProcessedImage encode(BufferedImage image, String format, String mimeType,
+                                         Dimensions dimensions, float quality) {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (quality > 0f) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode image as " + format, e);
+        } finally {
+            writer.dispose();
+        }
+        return new ProcessedImage(out.toByteArray(), mimeType, dimensions);
+    }
+
+    private synchronized void cache(String hash, ProcessedImage result) {
+        ProcessedImage previous = cache.put(hash, result);
+        cacheBytes += result.data().length - (previous == null ? 0 : previous.data().length);
+        Iterator<Map.Entry<String, ProcessedImage>> eldest = cache.entrySet().iterator();
+        while (cacheBytes > maxCacheBytes && eldest.hasNext()) {
+            cacheBytes -= eldest.next().getValue().data().length;
+            eldest.remove();
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.client.AnthropicClient;
+import com.anthropic.core.http.StreamResponse;
+import com.anthropic.models.messages.batches.BatchCreateParams;
+import com.anthropic.models.messages.batches.MessageBatch;
+import com.anthropic.models.messages.batches.MessageBatchIndividualResponse;
+import com.anthropic.models.messages.batches.MessageBatchResult;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Sends the next turn of many Anthropic conversations as a single Message Batch.
+ *
+ * Batches are processed asynchronously by Anthropic at reduced cost, which suits offline work
+ * such as evaluations or bulk summarization where no caller is waiting on each reply.
+ *
+ * Usage:
+ * 1. {@link #add(AnthropicConversation, Message)} one turn per conversation
+ * 2. {@link #submit()} to append each message to its conversation and create the batch
+ * 3. {@link #awaitResults(Duration, Duration)} to poll until the batch ends and apply each
+ *    response to its conversation, exactly as sendMessage would have
+ *
+ * Turns that fail, are canceled or expire are removed from their conversation again, so the
+ * conversation can be retried. Between submit and awaitResults, the conversations in the batch
+ * must not be used for other turns.
+ */
+public final class AnthropicMessageBatch {
+
+    private static final String CUSTOM_ID_PREFIX = "turn-";
+
+    private final AnthropicClient client;
+
+    /**
+     * Pending turns keyed by custom_id, in the order they were added.
+     */
+    private final Map<String, Turn> turns = new LinkedHashMap<>();
+
+    // Null until submit() has created the batch
+    private String batchId;
+
+    private boolean completed = false;
+
+    /**
+     * Creates an empty batch that is submitted and polled through the given client.
+     * Requests are written with the {@link AnthropicMessageEncodingCache#jsonMapper()} whatever
+     * mapper the client was built with: it reuses previously sent history, and it is what
+     * replaces the placeholder tokens of memory-mapped attachments with their base64 data.
+     *
+     * @param client the Anthropic client; its HTTP connection and other options are used as they are
+     */
+    public AnthropicMessageBatch(AnthropicClient client) {
+        if (client == null) {
+            throw new IllegalArgumentException("client cannot be null");
+        }
+        this.client = client.withOptions(options -> options.jsonMapper(AnthropicMessageEncodingCache.shared().jsonMapper()));
+    }
+
+    /**
+     * Adds a turn with caching enabled.
+     *
+     * @param conversation the conversation to continue
+     * @param message the message to send
+     * @return this batch
+     */
+    public AnthropicMessageBatch add(AnthropicConversation conversation, Message message) {
+        return add(conversation, message, true);
+    }
+
+    /**
+     * Adds a turn for a conversation. Each conversation may appear at most once per batch,
+     * since its next request depends on the response to the previous one.
+     *
+     * @param conversation the conversation to continue
+     * @param message the message to send
+     * @param useCaching whether to enable prompt caching for this request
+     * @return this batch
+     * @throws IllegalStateException if the batch has already been submitted
+     */
+    public synchronized AnthropicMessageBatch add(AnthropicConversation conversation, Message message,
+                                                  boolean useCaching) {
+        if (conversation == null) {
+            throw new IllegalArgumentException("conversation cannot be null");
+        }
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+        if (batchId != null) {
+            throw new IllegalStateException("Batch already submitted: " + batchId);
+        }
+        for (Turn turn : turns.values()) {
+            if (turn.conversation() == conversation) {
+                throw new IllegalArgumentException(
+                        "Conversation already has a turn in this batch: " + conversation.name());
+            }
+        }
+        String customId = CUSTOM_ID_PREFIX + turns.size();
+        turns.put(customId, new Turn(customId, conversation, message, useCaching));
+        return this;
+    }
+
+    /**
+     * Returns the number of turns in this batch.
+     */
+    public synchronized int size() {
+        return turns.size();
+    }
+
+    /**
+     * Returns the Anthropic batch ID once submitted.
+     */
+    public synchronized Optional<String> batchId() {
+        return Optional.ofNullable(batchId);
+    }
+
+    /**
+     * Appends each turn's message to its conversation and creates the Message Batch.
+     * If the batch cannot be created, every conversation is rolled back.
+     *
+     * @return the Anthropic batch ID
+     * @throws IllegalStateException if the batch is empty or already submitted
+     */
+    public synchronized String submit() {
+        if (turns.isEmpty()) {
+            throw new IllegalStateException("Cannot submit an empty batch");
+        }
+        if (batchId != null) {
+            throw new IllegalStateException("Batch already submitted: " + batchId);
+        }
+
+        List<Turn> started = new ArrayList<>();
+        try {
+            BatchCreateParams.Builder paramsBuilder = BatchCreateParams.builder();
+            for (Turn turn : turns.values()) {
+                turn.conversation().beginDeferredTurn(turn.message(), turn.useCaching());
+                started.add(turn);
+                paramsBuilder.addRequest(BatchCreateParams.Request.builder()
+                        .customId(turn.customId())
+                        .params(turn.conversation().buildBatchRequestParams())
+                        .build());
+            }
+
+            // Requests referencing uploaded files must opt in to the Files API beta
+            if (started.stream().anyMatch(turn -> turn.conversation().referencesUploadedFiles())) {
+                paramsBuilder.putAdditionalHeader("anthropic-beta", AnthropicFileUploads.FILES_API_BETA);
+            }
+
+            MessageBatch batch = client.messages().batches().create(paramsBuilder.build());
+            batchId = batch.id();
+            return batchId;
+        } catch (Exception e) {
+            for (Turn turn : started) {
+                turn.conversation().abandonDeferredTurn(turn.message());
+            }
+            throw new RuntimeException("Failed to submit message batch to Anthropic", e);
+        }
+    }
+
+    /**
+     * Polls the batch until processing has ended, then applies every result to its conversation.
+     *
+     * Succeeded turns are converted through the conversation's usual response handling and
+     * appended to both histories. Other turns are rolled back. If the timeout elapses first,
+     * the turns stay pending and awaitResults may be called again.
+     *
+     * @param pollInterval the delay between status checks
+     * @param timeout the maximum time to wait for the batch to end
+     * @return one result per turn, in the order the turns were added
+     * @throws IllegalStateException if the batch has not been submitted or results were already applied
+     */
+    public synchronized List<Result> awaitResults(Duration pollInterval, Duration timeout) {
+        if (pollInterval == null || pollInterval.isNegative()) {
+            throw new IllegalArgumentException("pollInterval must be non-negative");
+        }
+        if (timeout == null || timeout.isNegative()) {
+            throw new IllegalArgumentException("timeout must be non-negative");
+        }
+        if (batchId == null) {
+            throw new IllegalStateException("Batch has not been submitted");
+        }
+        if (completed) {
+            throw new IllegalStateException("Results already applied for batch: " + batchId);
+        }
+
+        waitForEnd(pollInterval, timeout);
+
+        // 1. Apply each result to the conversation its custom_id refers to
+        Map<String, Result> resultsById = new HashMap<>();
+        try (StreamResponse<MessageBatchIndividualResponse> results =
+                     client.messages().batches().resultsStreaming(batchId)) {
+            results.stream().forEach(response -> {
+                Turn turn = turns.get(response.customId());
+                if (turn != null && !resultsById.containsKey(turn.customId())) {
+                    resultsById.put(turn.customId(), applyResult(turn, response.result()));
+                }
+            });
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to read results of message batch " + batchId, e);
+        } finally {
+            // 2. Roll back any turn the results did not cover (including on a failed read)
+            for (Turn turn : turns.values()) {
+                if (!resultsById.containsKey(turn.customId())) {
+                    turn.conversation().abandonDeferredTurn(turn.message());
+                    resultsById.put(turn.customId(),
+                            Result.failed(turn.conversation(), "missing from batch results"));
+                }
+            }
+            completed = true;
+        }
+
+        List<Result> ordered = new ArrayList<>(turns.size());
+        for (String customId : turns.keySet()) {
+            ordered.add(resultsById.get(customId));
+        }
+        return ordered;
+    }
+
+    private void waitForEnd(Duration pollInterval, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            MessageBatch batch;
+            try {
+                batch = client.messages().batches().retrieve(batchId);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to retrieve message batch " + batchId, e);
+            }
+            if (MessageBatch.ProcessingStatus.ENDED.equals(batch.processingStatus())) {
+                return;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                throw new RuntimeException("Timed out waiting for message batch " + batchId
+                        + " (status: " + batch.processingStatus() + ")");
+            }
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for message batch " + batchId, e);
+            }
+        }
+    }
+
+    private Result applyResult(Turn turn, MessageBatchResult result) {
+        if (result.succeeded().isPresent()) {
+            Message response = turn.conversation().completeDeferredTurn(result.succeeded().get().message());
+            return new Result(turn.conversation(), Optional.of(response), Optional.empty());
+        }
+
+        turn.conversation().abandonDeferredTurn(turn.message());
+        String reason;
+        if (result.errored().isPresent()) {
+            reason = "errored: " + result.errored().get().error().error();
+        } else if (result.canceled().isPresent()) {
+            reason = "canceled";
+        } else if (result.expired().isPresent()) {
+            reason = "expired";
+        } else {
+            reason = "unknown result: " + result;
+        }
+        return Result.failed(turn.conversation(), reason);
+    }
+
+    /**
+     * A turn added to the batch.
+     */
+    private record Turn(String customId, AnthropicConversation conversation, Message message, boolean useCaching) {
+    }
+
+    /**
+     * The outcome of one turn in a batch.
+     *
+     * @param conversation the conversation the turn belongs to
+     * @param response the response appended to the conversation, if the turn succeeded
+     * @param error why the turn produced no response, if it did not succeed
+     */
+    public record Result(AnthropicConversation conversation, Optional<Message> response, Optional<String> error) {
+
+        public Result {
+            if (conversation == null) {
+                throw new IllegalArgumentException("conversation cannot be null");
+            }
+            if (response.isPresent() == error.isPresent()) {
+                throw new IllegalArgumentException("Exactly one of response and error must be present");
+            }
+        }
+
+        static Result failed(AnthropicConversation conversation, String error) {
+            return new Result(conversation, Optional.empty(), Optional.of(error));
+        }
+
+        /** Returns true if the turn produced a response. */
+        public boolean succeeded() {
+            return response.isPresent();
+        }
+    }
+}
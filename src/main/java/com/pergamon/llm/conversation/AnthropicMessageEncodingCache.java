@@ -0,0 +1,447 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.core.ObjectMappers;
+import com.anthropic.models.messages.Base64ImageSource;
+import com.anthropic.models.messages.Base64PdfSource;
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.DocumentBlockParam;
+import com.anthropic.models.messages.ImageBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the serialized JSON of each Anthropic MessageParam so that conversation history is
+ * encoded once rather than on every turn.
+ *
+ * Every request resends the full history, and the SDK re-serializes every message in it,
+ * including multi-megabyte base64 images and PDFs. MessageParam instances are immutable, so the
+ * bytes produced for one can be reused for as long as it stays in a conversation's history.
+ * {@link #jsonMapper()} returns a mapper for the Anthropic client whose MessageParam serializer
+ * writes cached bytes verbatim and only encodes messages it has not seen before, such as the
+ * newly appended turn or a message rebuilt with moved cache-control markers.
+ *
+ * Entries are keyed by identity and held weakly, so they disappear once the message is no
+ * longer referenced by any conversation.
+ *
+ * Messages carrying {@link MappedAttachments} placeholder tokens as the data of their base64
+ * image or document sources are cached with the token in place of the data. When such a
+ * message is written, the bytes around each token are copied as usual and the token itself is
+ * replaced by the base64 encoding of the mapped file, produced chunk by chunk directly into the
+ * request body.
+ */
+final class AnthropicMessageEncodingCache {
+
+    private static final AnthropicMessageEncodingCache SHARED = new AnthropicMessageEncodingCache();
+
+    /**
+     * Raw bytes encoded per chunk when writing a mapped attachment; a multiple of 3 so that
+     * chunks concatenate into one valid base64 string.
+     */
+    private static final int BASE64_CHUNK_BYTES = 48 * 1024;
+
+    private static final int[] NO_TOKENS = new int[0];
+
+    private static final SecureRandom MARKER_RANDOM = new SecureRandom();
+
+    /**
+     * Plain SDK mapper used to encode cache misses.
+     */
+    private final JsonMapper encodingMapper = ObjectMappers.jsonMapper();
+
+    /**
+     * SDK mapper with the caching MessageParam serializer installed.
+     */
+    private final JsonMapper jsonMapper;
+
+    private final ConcurrentHashMap<IdentityKey, EncodedJson> encoded = new ConcurrentHashMap<>();
+    private final ReferenceQueue<MessageParam> collected = new ReferenceQueue<>();
+
+    private final LongAdder encodedCount = new LongAdder();
+    private final LongAdder reusedCount = new LongAdder();
+
+    AnthropicMessageEncodingCache() {
+        SimpleModule module = new SimpleModule("AnthropicMessageEncodingCache");
+        module.addSerializer(MessageParam.class, new CachingMessageParamSerializer());
+        this.jsonMapper = encodingMapper.rebuild()
+                .addModule(module)
+                .build();
+    }
+
+    /**
+     * Returns the process-wide cache used by AnthropicConversation.
+     */
+    static AnthropicMessageEncodingCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the JsonMapper to install on the Anthropic client.
+     */
+    JsonMapper jsonMapper() {
+        return jsonMapper;
+    }
+
+    /**
+     * Returns the number of messages that have been serialized (cache misses).
+     */
+    long encodedCount() {
+        return encodedCount.sum();
+    }
+
+    /**
+     * Returns the number of times previously serialized bytes were reused (cache hits).
+     */
+    long reusedCount() {
+        return reusedCount.sum();
+    }
+
+    /**
+     * Returns the cached JSON for a message, encoding and caching it on first use.
+     *
+     * @param message the message to encode
+     * @return the UTF-8 JSON encoding of the message
+     */
+    byte[] encode(MessageParam message) {
+        return lookup(message).bytes;
+    }
+
+    private EncodedJson lookup(MessageParam message) {
+        expungeCollected();
+
+        EncodedJson cached = encoded.get(new IdentityKey(message, null));
+        if (cached != null) {
+            reusedCount.increment();
+            return cached;
+        }
+
+        EncodedJson fresh;
+        try {
+            fresh = encodeFresh(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to encode Anthropic message", e);
+        }
+        encodedCount.increment();
+        encoded.put(new IdentityKey(message, collected), fresh);
+        return fresh;
+    }
+
+    /**
+     * Encodes a message, locating the placeholder tokens that stand in for the data of its
+     * base64 image and document sources. Only those sources are substituted when the message is
+     * written; a token anywhere else, such as in text the user typed, is sent as it is.
+     *
+     * Each such source is encoded with a random marker of the token's length in place of the
+     * token, so its offset can be found unambiguously, and the token is then copied over the
+     * marker so the cached bytes stay stable across messages with the same content.
+     */
+    private EncodedJson encodeFresh(MessageParam message) throws IOException {
+        // 1. Swap each mapped source's token for a unique marker
+        List<ContentBlockParam> blocks = message.content().blockParams().orElse(List.of());
+        List<ContentBlockParam> marked = null;
+        List<String> tokens = new ArrayList<>();
+        List<String> markers = new ArrayList<>();
+        for (int b = 0; b < blocks.size(); b++) {
+            ContentBlockParam block = blocks.get(b);
+            Optional<String> token = mappedSourceToken(block);
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (marked == null) {
+                marked = new ArrayList<>(blocks);
+            }
+            String marker = newMarker();
+            marked.set(b, withSourceData(block, marker));
+            tokens.add(token.get());
+            markers.add(marker);
+        }
+        if (marked == null) {
+            return new EncodedJson(encodingMapper.writeValueAsBytes(message), NO_TOKENS);
+        }
+
+        // 2. Encode with the markers, then locate each one and put its token back
+        byte[] bytes = encodingMapper.writeValueAsBytes(message.toBuilder()
+                .content(MessageParam.Content.ofBlockParams(marked))
+                .build());
+        int[] offsets = new int[tokens.size()];
+        int from = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            byte[] marker = markers.get(i).getBytes(StandardCharsets.US_ASCII);
+            offsets[i] = indexOf(bytes, marker, from);
+            if (offsets[i] < 0) {
+                throw new IllegalStateException("Mapped attachment source not found in encoded message");
+            }
+            System.arraycopy(tokens.get(i).getBytes(StandardCharsets.US_ASCII), 0, bytes, offsets[i], marker.length);
+            from = offsets[i] + marker.length;
+        }
+        return new EncodedJson(bytes, offsets);
+    }
+
+    /**
+     * Returns the placeholder token held as the data of a block's base64 image or PDF source.
+     * Conversations only put tokens there for files they have mapped themselves.
+     */
+    private static Optional<String> mappedSourceToken(ContentBlockParam block) {
+        Optional<String> data = block.image().flatMap(image -> image.source().base64()).map(Base64ImageSource::data)
+                .or(() -> block.document().flatMap(document -> document.source().base64()).map(Base64PdfSource::data));
+        return data.filter(MappedAttachments::isToken);
+    }
+
+    private static ContentBlockParam withSourceData(ContentBlockParam block, String data) {
+        if (block.isImage()) {
+            ImageBlockParam image = block.asImage();
+            return ContentBlockParam.ofImage(image.toBuilder()
+                    .source(image.source().asBase64().toBuilder().data(data).build())
+                    .build());
+        }
+        DocumentBlockParam document = block.asDocument();
+        return ContentBlockParam.ofDocument(document.toBuilder()
+                .source(document.source().asBase64().toBuilder().data(data).build())
+                .build());
+    }
+
+    /**
+     * Returns a random marker the length of a placeholder token, which cannot already occur in
+     * the message it is put into.
+     */
+    private static String newMarker() {
+        byte[] random = new byte[32];
+        MARKER_RANDOM.nextBytes(random);
+        return MappedAttachments.TOKEN_PREFIX + HexFormat.of().formatHex(random);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target, int from) {
+        int last = bytes.length - target.length;
+        for (int i = from; i <= last; i++) {
+            if (Arrays.equals(bytes, i, i + target.length, target, 0, target.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes encoded JSON, replacing each located placeholder token with the base64 encoding of
+     * its mapped file. Every token is resolved before anything is written, and a token whose
+     * mapping has been released, or whose file has changed since it was mapped, fails the request
+     * rather than being sent as it is.
+     */
+    private static void writeWithMappedAttachments(EncodedJson json, JsonGenerator gen) throws IOException {
+        // 1. Resolve every mapping up front, so a released or modified attachment fails before partial output
+        ByteBuffer[] contents = new ByteBuffer[json.mappedTokens.length];
+        for (int i = 0; i < contents.length; i++) {
+            int offset = json.mappedTokens[i];
+            String token = new String(json.bytes, offset, MappedAttachments.TOKEN_LENGTH, StandardCharsets.US_ASCII);
+            contents[i] = MappedAttachments.shared().content(token);
+        }
+
+        // 2. Copy the JSON between tokens and encode each mapping in place of its token
+        int start = 0;
+        for (int i = 0; i < contents.length; i++) {
+            int offset = json.mappedTokens[i];
+            EncodedJson segment = new EncodedJson(Arrays.copyOfRange(json.bytes, start, offset), NO_TOKENS);
+            if (i == 0) {
+                gen.writeRawValue(segment);
+            } else {
+                gen.writeRaw(segment);
+            }
+            writeBase64(contents[i], gen);
+            start = offset + MappedAttachments.TOKEN_LENGTH;
+        }
+        gen.writeRaw(new EncodedJson(Arrays.copyOfRange(json.bytes, start, json.bytes.length), NO_TOKENS));
+    }
+
+    private static void writeBase64(ByteBuffer content, JsonGenerator gen) throws IOException {
+        Base64.Encoder encoder = Base64.getEncoder();
+        byte[] chunk = new byte[BASE64_CHUNK_BYTES];
+        EncodedJson encoded = new EncodedJson(new byte[BASE64_CHUNK_BYTES / 3 * 4], NO_TOKENS);
+        while (content.remaining() >= chunk.length) {
+            content.get(chunk);
+            encoder.encode(chunk, encoded.bytes);
+            gen.writeRaw(encoded);
+        }
+        if (content.hasRemaining()) {
+            byte[] tail = new byte[content.remaining()];
+            content.get(tail);
+            gen.writeRaw(new EncodedJson(encoder.encode(tail), NO_TOKENS));
+        }
+    }
+
+    private void expungeCollected() {
+        Reference<? extends MessageParam> ref;
+        while ((ref = collected.poll()) != null) {
+            encoded.remove(ref);
+        }
+    }
+
+    /**
+     * Writes each MessageParam as its cached raw JSON.
+     */
+    private final class CachingMessageParamSerializer extends StdSerializer<MessageParam> {
+
+        private static final long serialVersionUID = 1L;
+
+        private CachingMessageParamSerializer() {
+            super(MessageParam.class);
+        }
+
+        @Override
+        public void serialize(MessageParam value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            EncodedJson json = lookup(value);
+            if (json.mappedTokens.length == 0) {
+                gen.writeRawValue(json);
+            } else {
+                writeWithMappedAttachments(json, gen);
+            }
+        }
+    }
+
+    /**
+     * Weak, identity-based map key. The hash is captured up front so that a key whose referent
+     * has been collected can still be removed.
+     */
+    private static final class IdentityKey extends WeakReference<MessageParam> {
+        private final int hash;
+
+        private IdentityKey(MessageParam referent, ReferenceQueue<MessageParam> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof IdentityKey key)) {
+                return false;
+            }
+            MessageParam referent = get();
+            return referent != null && referent == key.get();
+        }
+    }
+
+    /**
+     * Pre-encoded UTF-8 JSON that Jackson generators can copy straight into their output buffer.
+     * Only the unquoted forms are supported; raw values are never quoted.
+     */
+    private static final class EncodedJson implements SerializableString {
+        private final byte[] bytes;
+
+        /**
+         * Offsets of mapped-attachment placeholder tokens within the bytes, in order.
+         */
+        private final int[] mappedTokens;
+
+        private EncodedJson(byte[] bytes, int[] mappedTokens) {
+            this.bytes = bytes;
+            this.mappedTokens = mappedTokens;
+        }
+
+        @Override
+        public String getValue() {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int charLength() {
+            return getValue().length();
+        }
+
+        @Override
+        public byte[] asUnquotedUTF8() {
+            return bytes;
+        }
+
+        @Override
+        public int appendUnquotedUTF8(byte[] buffer, int offset) {
+            if (offset + bytes.length > buffer.length) {
+                return -1;
+            }
+            System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+            return bytes.length;
+        }
+
+        @Override
+        public int appendUnquoted(char[] buffer, int offset) {
+            String value = getValue();
+            if (offset + value.length() > buffer.length) {
+                return -1;
+            }
+            value.getChars(0, value.length(), buffer, offset);
+            return value.length();
+        }
+
+        @Override
+        public int writeUnquotedUTF8(OutputStream out) throws IOException {
+            out.write(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public int putUnquotedUTF8(ByteBuffer buffer) {
+            if (bytes.length > buffer.remaining()) {
+                return -1;
+            }
+            buffer.put(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public char[] asQuotedChars() {
+            throw new UnsupportedOperationException("Raw JSON cannot be quoted");
+        }
+
+        @Override
+        public byte[] asQuotedUTF8() {
+            throw new UnsupportedOperationException("Raw JSON cannot be quoted");
+        }
+
+        @Override
+        public int appendQuotedUTF8(byte[] buffer, int offset) {
+            throw new UnsupportedOperationException("Raw JSON cannot be quoted");
+        }
+
+        @Override
+        public int appendQuoted(char[] buffer, int offset) {
+            throw new UnsupportedOperationException("Raw JSON cannot be quoted");
+        }
+
+        @Override
+        public int writeQuotedUTF8(OutputStream out) {
+            throw new UnsupportedOperationException("Raw JSON cannot be quoted");
+        }
+
+        @Override
+        public int putQuotedUTF8(ByteBuffer buffer) {
+            throw new UnsupportedOperationException("Raw JSON cannot be quoted");
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * Prompt-cache totals for one model across all conversations, as aggregated by {@link AnthropicCacheAnalyzer}.
+ *
+ * @param model the API model name
+ * @param requests responses recorded for the model
+ * @param hits responses that read from the cache
+ * @param breaks responses reported as an {@link AnthropicCacheBreak}
+ * @param inputTokens uncached input tokens
+ * @param cacheCreationTokens tokens written to the cache
+ * @param cacheReadTokens tokens read from the cache
+ * @param tokensLost estimated cached tokens that could not be read, summed over all breaks
+ */
+public record AnthropicModelCacheStats(String model, long requests, long hits, long breaks, long inputTokens,
+                                       long cacheCreationTokens, long cacheReadTokens, long tokensLost) {
+
+    /**
+     * Returns the fraction of responses that read from the cache.
+     */
+    public double requestHitRatio() {
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    /**
+     * Returns the fraction of all input tokens that were read from the cache.
+     */
+    public double tokenHitRatio() {
+        long total = inputTokens + cacheCreationTokens + cacheReadTokens;
+        return total == 0 ? 0.0 : (double) cacheReadTokens / total;
+    }
+}
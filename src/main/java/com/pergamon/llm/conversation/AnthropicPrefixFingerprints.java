@@ -0,0 +1,248 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.core.ObjectMappers;
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.TextBlockParam;
+import com.anthropic.models.messages.ToolUnion;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.ToLongFunction;
+
+/**
+ * Fingerprints the cacheable prefix of an Anthropic conversation's requests and finds where
+ * it broke when a request reads less from the cache than the previous one wrote.
+ *
+ * The client-side tools and system prompt come first in the prefix and share one digest of
+ * their serialized JSON, slot 0 of the fingerprint. Every block of the history then gets a
+ * digest of its serialized JSON, salted with the message's role and whether the block starts a
+ * message, so two requests agree up to a block exactly when their prefixes through that block
+ * serialize identically. The stored history carries no cache_control markers, so the
+ * serialization is canonical. Digests are kept per message by identity, so each message is
+ * serialized once however many turns it is sent in.
+ *
+ * One instance per conversation; callers serialize access through the conversation's turn lock.
+ */
+final class AnthropicPrefixFingerprints {
+
+    private static final JsonMapper JSON = ObjectMappers.jsonMapper();
+
+    /**
+     * Per-block digests and token estimates of one message.
+     */
+    private record MessagePrint(long[] digests, long[] tokens) {
+    }
+
+    /**
+     * The flattened prefix of one request: per-block digests, positions and running token totals,
+     * plus the flat indices of its breakpoints. Slot 0 stands for the tools and system prompt,
+     * at message and block -1.
+     */
+    private record Snapshot(long[] digests, int[] messageIndices, int[] blockIndices, long[] prefixTokens,
+                            int[] breakpoints) {
+
+        int lastBreakpoint() {
+            return breakpoints[breakpoints.length - 1];
+        }
+    }
+
+    private Map<MessageParam, MessagePrint> prints = new IdentityHashMap<>();
+    private List<ToolUnion> printedTools;
+    private List<TextBlockParam> printedSystemPrompt;
+    private long preambleDigest;
+    private Snapshot previous;
+    private Snapshot pending;
+
+    /**
+     * Fingerprints a request about to be sent.
+     *
+     * @param tools the client-side tools sent with the request
+     * @param systemPrompt the system prompt sent with the request
+     * @param preambleTokens the estimated tokens of the tools and system prompt
+     * @param preambleBreakpoint whether the request has a breakpoint after the tools and system prompt
+     * @param history the stored vendor history being sent
+     * @param plan the request's cache breakpoints in the history
+     * @param blockTokens estimates the tokens of a single block
+     */
+    void onRequest(List<ToolUnion> tools, List<TextBlockParam> systemPrompt, long preambleTokens,
+                   boolean preambleBreakpoint, List<MessageParam> history,
+                   List<AnthropicCachePlanner.Breakpoint> plan, ToLongFunction<ContentBlockParam> blockTokens) {
+        if (plan.isEmpty() && !preambleBreakpoint) {
+            pending = null;
+            return;
+        }
+
+        // 1. Digest the tools and system prompt when they have been replaced
+        if (tools != printedTools || systemPrompt != printedSystemPrompt) {
+            preambleDigest = preambleDigest(tools, systemPrompt);
+            printedTools = tools;
+            printedSystemPrompt = systemPrompt;
+        }
+
+        // 2. Digest the messages not seen on earlier requests
+        Map<MessageParam, MessagePrint> current = new IdentityHashMap<>(history.size() * 2);
+        int blockCount = 1;
+        for (MessageParam message : history) {
+            MessagePrint print = prints.get(message);
+            if (print == null) {
+                print = print(message, blockTokens);
+            }
+            current.put(message, print);
+            blockCount += print.digests().length;
+        }
+        prints = current;
+
+        // 3. Flatten into per-block positions with running token totals
+        long[] digests = new long[blockCount];
+        int[] messageIndices = new int[blockCount];
+        int[] blockIndices = new int[blockCount];
+        long[] prefixTokens = new long[blockCount];
+        digests[0] = preambleDigest;
+        messageIndices[0] = -1;
+        blockIndices[0] = -1;
+        prefixTokens[0] = preambleTokens;
+        int flat = 1;
+        long tokens = preambleTokens;
+        for (int m = 0; m < history.size(); m++) {
+            MessagePrint print = current.get(history.get(m));
+            for (int b = 0; b < print.digests().length; b++) {
+                tokens += print.tokens()[b];
+                digests[flat] = print.digests()[b];
+                messageIndices[flat] = m;
+                blockIndices[flat] = b;
+                prefixTokens[flat] = tokens;
+                flat++;
+            }
+        }
+
+        // 4. Locate the breakpoints in the flattened prefix, skipping any that name no block of
+        //    the history; this is only diagnostics, so it must never fail the request
+        int[] breakpoints = new int[plan.size() + 1];
+        int located = 0;
+        if (preambleBreakpoint) {
+            breakpoints[located++] = 0;
+        }
+        for (AnthropicCachePlanner.Breakpoint breakpoint : plan) {
+            int position = 1;
+            while (position < blockCount && (messageIndices[position] != breakpoint.messageIndex()
+                    || blockIndices[position] != breakpoint.blockIndex())) {
+                position++;
+            }
+            if (position < blockCount) {
+                breakpoints[located++] = position;
+            }
+        }
+        if (located == 0) {
+            pending = null;
+            return;
+        }
+        breakpoints = Arrays.copyOf(breakpoints, located);
+        Arrays.sort(breakpoints);
+        pending = new Snapshot(digests, messageIndices, blockIndices, prefixTokens, breakpoints);
+    }
+
+    /**
+     * Forgets the fingerprints of the last request, which was answered without reaching the API.
+     * The next response is compared with the request before it.
+     */
+    void discardRequest() {
+        pending = null;
+    }
+
+    /**
+     * Compares the request just answered with the previous one and reports a break when the
+     * prefix the previous request cached was not read.
+     *
+     * @param model the API model name
+     * @param cacheReadTokens tokens the response reports as read from the cache
+     * @param cacheCreationTokens tokens the response reports as written to the cache
+     * @return the break, if the request lost cached tokens
+     */
+    Optional<AnthropicCacheBreak> onResponse(String model, long cacheReadTokens, long cacheCreationTokens) {
+        Snapshot earlier = previous;
+        Snapshot current = pending;
+        pending = null;
+        if (current == null) {
+            return Optional.empty();
+        }
+        previous = current;
+        if (earlier == null) {
+            return Optional.empty();
+        }
+
+        long cachedTokens = earlier.prefixTokens()[earlier.lastBreakpoint()];
+        int common = Math.min(earlier.digests().length, current.digests().length);
+        int firstDifference = 0;
+        while (firstDifference < common && earlier.digests()[firstDifference] == current.digests()[firstDifference]) {
+            firstDifference++;
+        }
+
+        if (firstDifference <= earlier.lastBreakpoint()) {
+            // Entries written at earlier breakpoints before the difference can still be read
+            long readable = 0L;
+            for (int breakpoint : earlier.breakpoints()) {
+                if (breakpoint < firstDifference) {
+                    readable = Math.max(readable, earlier.prefixTokens()[breakpoint]);
+                }
+            }
+            Snapshot located = firstDifference < current.digests().length ? current : earlier;
+            return Optional.of(new AnthropicCacheBreak(model, AnthropicCacheBreak.Cause.PREFIX_CHANGED,
+                    located.messageIndices()[firstDifference], located.blockIndices()[firstDifference],
+                    cachedTokens - readable, cacheReadTokens, cacheCreationTokens));
+        }
+        if (cacheReadTokens == 0 && cachedTokens >= AnthropicCachePlanner.MIN_CACHEABLE_TOKENS) {
+            return Optional.of(new AnthropicCacheBreak(model, AnthropicCacheBreak.Cause.NOT_READ, -1, -1,
+                    cachedTokens, cacheReadTokens, cacheCreationTokens));
+        }
+        return Optional.empty();
+    }
+
+    private static long preambleDigest(List<ToolUnion> tools, List<TextBlockParam> systemPrompt) {
+        MessageDigest digest = sha256();
+        try {
+            digest.update(JSON.writeValueAsBytes(tools));
+            digest.update(JSON.writeValueAsBytes(systemPrompt));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to serialize tools and system prompt for fingerprinting", e);
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    private static MessagePrint print(MessageParam message, ToLongFunction<ContentBlockParam> blockTokens) {
+        List<ContentBlockParam> blocks = message.content().blockParams().orElse(List.of());
+        byte[] role = message.role().asString().getBytes(StandardCharsets.UTF_8);
+        long[] digests = new long[blocks.size()];
+        long[] tokens = new long[blocks.size()];
+        for (int b = 0; b < blocks.size(); b++) {
+            MessageDigest digest = sha256();
+            digest.update(role);
+            digest.update((byte) (b == 0 ? 1 : 0));
+            try {
+                digest.update(JSON.writeValueAsBytes(blocks.get(b)));
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException("Failed to serialize block for fingerprinting", e);
+            }
+            digests[b] = ByteBuffer.wrap(digest.digest()).getLong();
+            tokens[b] = blockTokens.applyAsLong(blocks.get(b));
+        }
+        return new MessagePrint(digests, tokens);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
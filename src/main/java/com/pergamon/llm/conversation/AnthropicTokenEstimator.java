@@ -0,0 +1,236 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.core.ObjectMappers;
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.DocumentBlockParam;
+import com.anthropic.models.messages.ImageBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.TextBlockParam;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+
+/**
+ * Fast local approximation of Anthropic's input token count for a request.
+ *
+ * Text is counted at about four characters per token, images at the cost of a full-size image,
+ * and PDFs at a per-page cost with the page count read from the document. The raw estimate
+ * is scaled by a correction factor learned from the input tokens Anthropic reports for earlier
+ * requests, so estimates for a conversation converge on the vendor's real counts.
+ *
+ * The tool definitions and system prompt are sent with every request, so their tokens are
+ * added to every estimate.
+ */
+final class AnthropicTokenEstimator implements TokenEstimator<MessageParam> {
+
+    private static final JsonMapper JSON = ObjectMappers.jsonMapper();
+
+    private static final double CHARS_PER_TOKEN = 4.0;
+    private static final long MESSAGE_OVERHEAD_TOKENS = 4L;
+
+    // An image resized to Anthropic's maximum of about 1.15 megapixels costs ~1,600 tokens
+    private static final long IMAGE_TOKENS = 1_600L;
+
+    private static final long PDF_TOKENS_PER_PAGE = 2_000L;
+
+    // Page counts of the PDFs estimated so far, by base64 payload or mapped attachment token
+    private static final Map<String, Integer> PDF_PAGE_COUNTS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // Weight of each new observation in the correction factor, and the range it is kept in
+    private static final double CALIBRATION_WEIGHT = 0.3;
+    private static final double MIN_CORRECTION = 0.5;
+    private static final double MAX_CORRECTION = 3.0;
+
+    private volatile double correction = 1.0;
+
+    // Raw tokens of the system prompt and of the client-side tool definitions
+    private volatile long systemPromptTokens = 0L;
+    private volatile long toolTokens = 0L;
+
+    @Override
+    public long estimateInputTokens(List<MessageParam> vendorMessages) {
+        long raw = systemPromptTokens + toolTokens;
+        for (MessageParam message : vendorMessages) {
+            raw += estimateMessage(message);
+        }
+        return Math.round(raw * correction);
+    }
+
+    @Override
+    public synchronized void calibrate(long estimatedTokens, long actualTokens) {
+        if (estimatedTokens <= 0 || actualTokens <= 0) {
+            return;
+        }
+        // The estimate was already scaled by the correction in effect, so compare against the raw value
+        double observed = actualTokens / (estimatedTokens / correction);
+        double updated = correction + CALIBRATION_WEIGHT * (observed - correction);
+        correction = Math.clamp(updated, MIN_CORRECTION, MAX_CORRECTION);
+    }
+
+    /**
+     * Estimates the input tokens of a single content block, with calibration applied.
+     *
+     * @param block the content block
+     * @return the estimated token count
+     */
+    long estimateBlockTokens(ContentBlockParam block) {
+        return Math.round(estimateBlock(block) * correction);
+    }
+
+    /**
+     * Sets the system prompt counted in every estimate.
+     *
+     * @param systemPrompt the system prompt blocks; empty if none
+     */
+    void setSystemPrompt(List<TextBlockParam> systemPrompt) {
+        long tokens = 0L;
+        for (TextBlockParam block : systemPrompt) {
+            tokens += textTokens(block.text());
+        }
+        systemPromptTokens = tokens;
+    }
+
+    /**
+     * Sets the client-side tool definitions counted in every estimate.
+     *
+     * @param tools the tool definitions; empty if none
+     */
+    void setTools(List<com.anthropic.models.messages.Tool> tools) {
+        long tokens = 0L;
+        for (com.anthropic.models.messages.Tool tool : tools) {
+            // Definitions are sent as JSON; count them as serialized
+            tokens += jsonTokens(tool);
+        }
+        toolTokens = tokens;
+    }
+
+    /**
+     * Estimates the input tokens of the tool definitions and system prompt, with calibration applied.
+     */
+    long estimatePreambleTokens() {
+        return Math.round((systemPromptTokens + toolTokens) * correction);
+    }
+
+    /**
+     * Returns the factor applied to raw estimates, learned from calibration.
+     */
+    double correction() {
+        return correction;
+    }
+
+    private static long estimateMessage(MessageParam message) {
+        long tokens = MESSAGE_OVERHEAD_TOKENS;
+        MessageParam.Content content = message.content();
+        if (content.string().isPresent()) {
+            return tokens + textTokens(content.string().get());
+        }
+        for (ContentBlockParam block : content.blockParams().orElse(List.of())) {
+            tokens += estimateBlock(block);
+        }
+        return tokens;
+    }
+
+    private static long estimateBlock(ContentBlockParam block) {
+        if (block.text().isPresent()) {
+            return textTokens(block.text().get().text());
+        }
+        if (block.image().isPresent()) {
+            return estimateImage(block.image().get());
+        }
+        if (block.document().isPresent()) {
+            return estimateDocument(block.document().get());
+        }
+        if (block.thinking().isPresent()) {
+            return textTokens(block.thinking().get().thinking());
+        }
+        // Tool use, tool results and search results: approximate from their JSON as sent
+        return jsonTokens(block);
+    }
+
+    private static long jsonTokens(Object value) {
+        try {
+            return textTokens(JSON.writeValueAsString(value));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to serialize for token estimation", e);
+        }
+    }
+
+    /**
+     * Estimates a base64 image from the dimensions in its header. URL and file sources, and
+     * images whose header cannot be read, count as a full-size image.
+     */
+    private static long estimateImage(ImageBlockParam image) {
+        Optional<String> base64 = image.source().base64().map(source -> source.data());
+        if (base64.isEmpty()) {
+            return IMAGE_TOKENS;
+        }
+        AnthropicImagePreprocessor.Dimensions dimensions = AnthropicImagePreprocessor.readDimensions(header(base64.get()));
+        return dimensions == null ? IMAGE_TOKENS : dimensions.estimatedTokens();
+    }
+
+    /**
+     * Returns the first {@link AnthropicImagePreprocessor#HEADER_BYTES} of a base64 payload, read
+     * from the mapping for mapped attachments.
+     */
+    private static byte[] header(String base64) {
+        try {
+            if (MappedAttachments.isToken(base64)) {
+                ByteBuffer content = MappedAttachments.shared().content(base64);
+                byte[] header = new byte[Math.min(content.remaining(), AnthropicImagePreprocessor.HEADER_BYTES)];
+                content.get(header);
+                return header;
+            }
+            int chars = Math.min(base64.length(), AnthropicImagePreprocessor.HEADER_BYTES / 3 * 4);
+            return Base64.getDecoder().decode(base64.substring(0, chars - chars % 4));
+        } catch (IllegalArgumentException | IllegalStateException | IOException e) {
+            return new byte[0];
+        }
+    }
+
+    private static long estimateDocument(DocumentBlockParam document) {
+        DocumentBlockParam.Source source = document.source();
+        if (source.text().isPresent()) {
+            return textTokens(source.text().get().data());
+        }
+        Optional<String> base64 = source.base64().map(pdf -> pdf.data());
+        if (base64.isPresent()) {
+            return PDF_PAGE_COUNTS.computeIfAbsent(base64.get(), AnthropicTokenEstimator::pageCount) * PDF_TOKENS_PER_PAGE;
+        }
+        // URL and content sources: size unknown locally, count as a single page
+        return PDF_TOKENS_PER_PAGE;
+    }
+
+    /**
+     * Counts the pages of a base64 PDF, read from the mapping for mapped attachments. The file
+     * size says little about the page count, a scanned page can be megabytes, so a document that
+     * cannot be read counts as a single page: estimates must err low, or requests the API would
+     * accept are rejected locally.
+     */
+    private static int pageCount(String base64) {
+        try {
+            byte[] pdf;
+            if (MappedAttachments.isToken(base64)) {
+                ByteBuffer content = MappedAttachments.shared().content(base64);
+                pdf = new byte[content.remaining()];
+                content.get(pdf);
+            } else {
+                pdf = Base64.getDecoder().decode(base64);
+            }
+            return Math.max(1, PdfDocument.parse(pdf).pages().size());
+        } catch (IllegalArgumentException | IllegalStateException | UnsupportedOperationException | IOException e) {
+            return 1;
+        }
+    }
+
+    private static long textTokens(String text) {
+        return (long) Math.ceil(text.length() / CHARS_PER_TOKEN);
+    }
+}
@@ -0,0 +1,258 @@
+package com.pergamon.llm.conversation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide store of base64-encoded attachments, shared across conversations.
+ *
+ * Attaching a file reads and encodes it, and the encoded copy stays on the heap for as long
+ * as the conversation holds it. This store keys encoded payloads by the SHA-256 hash of their
+ * content, so every conversation attaching the same image or PDF shares one copy. Files are
+ * also indexed by real path, size and modification time, so a file that has not changed is
+ * not read again.
+ *
+ * Payloads are handed out as reference-counted {@link Lease}s. Once no lease on a payload is
+ * open it stays cached for reuse, and the least recently used such payloads are evicted when
+ * the total encoded size exceeds the store's limit. Payloads with open leases are never
+ * evicted, so the limit can be exceeded while they are in use.
+ */
+public final class AttachmentStore {
+
+    /**
+     * Size limit of the shared store: 256 MB of encoded payloads.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final AttachmentStore SHARED = new AttachmentStore(DEFAULT_MAX_BYTES);
+
+    private final long maxBytes;
+
+    // Access-ordered, so iteration starts at the least recently used payload
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<FileKey, String> fileIndex = new HashMap<>();
+    private long totalBytes = 0L;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates an empty store. Most callers should use {@link #shared()} instead.
+     *
+     * @param maxBytes the total encoded size above which unreferenced payloads are evicted
+     */
+    public AttachmentStore(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the process-wide store used by AnthropicConversation.
+     */
+    public static AttachmentStore shared() {
+        return SHARED;
+    }
+
+    /**
+     * Acquires the encoded payload of a file, reading it only if it is not already stored
+     * under its current path, size and modification time.
+     *
+     * @param path the file to attach
+     * @return a lease that must be closed when the caller no longer needs the payload
+     * @throws IOException if the file cannot be read
+     */
+    public Lease acquire(Path path) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("path cannot be null");
+        }
+        Path realPath = path.toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
+        FileKey fileKey = new FileKey(realPath, attributes.size(), attributes.lastModifiedTime());
+
+        synchronized (this) {
+            String hash = fileIndex.get(fileKey);
+            if (hash != null && entries.containsKey(hash)) {
+                hits.increment();
+                return lease(hash);
+            }
+        }
+
+        // Read and encode outside the lock; a concurrent first read of the same file is wasted but harmless
+        byte[] content = Files.readAllBytes(realPath);
+        String hash = sha256(content);
+        synchronized (this) {
+            fileIndex.put(fileKey, hash);
+            return acquireEncoded(hash, content);
+        }
+    }
+
+    /**
+     * Acquires the shared encoded payload for in-memory content.
+     *
+     * @param content the raw attachment bytes
+     * @return a lease that must be closed when the caller no longer needs the payload
+     */
+    public Lease acquire(byte[] content) {
+        if (content == null) {
+            throw new IllegalArgumentException("content cannot be null");
+        }
+        String hash = sha256(content);
+        synchronized (this) {
+            return acquireEncoded(hash, content);
+        }
+    }
+
+    /**
+     * Returns the number of open leases on the payload with the given content hash.
+     */
+    public synchronized int referenceCount(String contentHash) {
+        Entry entry = entries.get(contentHash);
+        return entry == null ? 0 : entry.references;
+    }
+
+    /**
+     * Returns the number of payloads currently stored.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total length of the stored payloads, in base64 characters.
+     */
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns how many acquisitions reused a stored payload.
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns how many acquisitions had to encode their content.
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    private Lease acquireEncoded(String hash, byte[] content) {
+        Entry entry = entries.get(hash);
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            entry = new Entry(Base64.getEncoder().encodeToString(content));
+            entries.put(hash, entry);
+            totalBytes += entry.base64.length();
+        }
+        Lease lease = lease(hash);
+        evictUnreferenced();
+        return lease;
+    }
+
+    private Lease lease(String hash) {
+        Entry entry = entries.get(hash);
+        entry.references++;
+        return new Lease(this, hash, entry.base64);
+    }
+
+    private synchronized void release(String hash) {
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            return;
+        }
+        entry.references--;
+        evictUnreferenced();
+    }
+
+    private void evictUnreferenced() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> candidate = eldest.next();
+            if (candidate.getValue().references == 0) {
+                totalBytes -= candidate.getValue().base64.length();
+                fileIndex.values().removeIf(candidate.getKey()::equals);
+                eldest.remove();
+            }
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * A reference-counted handle on a shared encoded payload.
+     * Closing the lease is idempotent; the payload becomes evictable once every lease on it is closed.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final AttachmentStore store;
+        private final String contentHash;
+        private final String base64;
+        private boolean released = false;
+
+        private Lease(AttachmentStore store, String contentHash, String base64) {
+            this.store = store;
+            this.contentHash = contentHash;
+            this.base64 = base64;
+        }
+
+        /**
+         * Returns the hex SHA-256 hash of the raw content.
+         */
+        public String contentHash() {
+            return contentHash;
+        }
+
+        /**
+         * Returns the base64-encoded content; the same String instance for every lease on it.
+         */
+        public String base64() {
+            return base64;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            store.release(contentHash);
+        }
+    }
+
+    private static final class Entry {
+        private final String base64;
+        private int references = 0;
+
+        private Entry(String base64) {
+            this.base64 = base64;
+        }
+    }
+
+    private record FileKey(Path realPath, long size, FileTime lastModified) {
+    }
+}
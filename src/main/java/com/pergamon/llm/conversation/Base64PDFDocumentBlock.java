@@ -8,11 +8,22 @@ import java.util.List;
  * @param base64Data the base64-encoded PDF data
  * @param mimeType the MIME type of the document (must be "application/pdf")
  * @param citations list of citations for this document (empty list if none)
+ * @param pageRanges the pages to send, or an empty list to send the whole document; only these
+ *                   pages are extracted into the PDF sent to the model
  */
-public record Base64PDFDocumentBlock(String base64Data, String mimeType, List<TextCitation> citations) implements DocumentBlock {
+public record Base64PDFDocumentBlock(String base64Data, String mimeType, List<TextCitation> citations,
+                                     List<PdfPageRange> pageRanges) implements DocumentBlock {
 
     public Base64PDFDocumentBlock {
         // Ensure citations list is immutable (convert null to empty list)
         citations = citations == null ? List.of() : List.copyOf(citations);
+        pageRanges = pageRanges == null ? List.of() : List.copyOf(pageRanges);
+    }
+
+    /**
+     * Creates a block that sends the whole document.
+     */
+    public Base64PDFDocumentBlock(String base64Data, String mimeType, List<TextCitation> citations) {
+        this(base64Data, mimeType, citations, List.of());
     }
 }
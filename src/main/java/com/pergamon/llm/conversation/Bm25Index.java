@@ -0,0 +1,388 @@
+package com.pergamon.llm.conversation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory BM25 index over passages of plain text documents.
+ *
+ * Documents are split into passages of about {@link #passageWords()} words along paragraph
+ * boundaries, and each passage is indexed as its own unit, so a search returns the few passages
+ * that answer a question rather than whole documents. Terms are lowercase runs of letters and
+ * digits; common English function words are not indexed. An index can be saved to a file and
+ * loaded again without re-reading its documents.
+ *
+ * The methods of this class are thread-safe.
+ */
+public final class Bm25Index {
+
+    /**
+     * Default passage size, in words: about a page of prose, and about 270 tokens.
+     */
+    public static final int DEFAULT_PASSAGE_WORDS = 200;
+
+    /**
+     * BM25 term-frequency saturation.
+     */
+    static final double K1 = 1.2;
+
+    /**
+     * BM25 passage-length normalization.
+     */
+    static final double B = 0.75;
+
+    private static final int FILE_MAGIC = 0x424D3235;
+    private static final int FILE_VERSION = 1;
+
+    private static final Set<String> STOPWORDS = Set.of(
+            "a", "about", "after", "all", "also", "an", "and", "any", "are", "as", "at", "be", "been",
+            "but", "by", "can", "could", "did", "do", "does", "for", "from", "had", "has", "have", "he",
+            "her", "his", "how", "i", "if", "in", "into", "is", "it", "its", "me", "my", "of", "on", "or",
+            "our", "she", "so", "than", "that", "the", "their", "them", "then", "there", "these", "they",
+            "this", "to", "was", "we", "were", "what", "when", "where", "which", "who", "whom", "why",
+            "will", "with", "would", "you", "your");
+
+    /**
+     * One indexed passage.
+     *
+     * @param document the number of the document it comes from, from 1 in the order added
+     * @param index its position within the document, from 1
+     * @param title the document's title
+     * @param text the passage text
+     */
+    public record Passage(int document, int index, String title, String text) {
+        public Passage {
+            if (text == null || text.isBlank()) {
+                throw new IllegalArgumentException("text cannot be null or blank");
+            }
+            title = title == null || title.isBlank() ? "Document " + document : title;
+        }
+
+        /**
+         * Returns an identifier of the passage, {@code document-<n>#passage-<m>}.
+         */
+        public String source() {
+            return "document-" + document + "#passage-" + index;
+        }
+    }
+
+    /**
+     * A passage returned by a search, with its BM25 score.
+     */
+    public record Hit(Passage passage, double score) {
+    }
+
+    private final int passageWords;
+    private final List<Passage> passages = new ArrayList<>();
+    private final List<Integer> passageLengths = new ArrayList<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private long totalLength;
+    private int documentCount;
+
+    /**
+     * Creates an empty index with passages of about {@link #DEFAULT_PASSAGE_WORDS} words.
+     */
+    public Bm25Index() {
+        this(DEFAULT_PASSAGE_WORDS);
+    }
+
+    /**
+     * Creates an empty index.
+     *
+     * @param passageWords the number of words a passage holds at most, unless one paragraph
+     *                     is longer; must be positive
+     */
+    public Bm25Index(int passageWords) {
+        if (passageWords <= 0) {
+            throw new IllegalArgumentException("passageWords must be positive: " + passageWords);
+        }
+        this.passageWords = passageWords;
+    }
+
+    /**
+     * Returns the number of words a passage holds at most.
+     */
+    public int passageWords() {
+        return passageWords;
+    }
+
+    /**
+     * Splits a document into passages and indexes them.
+     *
+     * @param title the document's title, or null to call it {@code Document <n>}
+     * @param text the document's text
+     * @return the document's number, from 1 in the order added
+     */
+    public synchronized int addDocument(String title, String text) {
+        if (text == null || text.isBlank()) {
+            throw new IllegalArgumentException("text cannot be null or blank");
+        }
+        int document = ++documentCount;
+        List<String> chunks = split(text);
+        for (int i = 0; i < chunks.size(); i++) {
+            add(new Passage(document, i + 1, title, chunks.get(i)));
+        }
+        return document;
+    }
+
+    /**
+     * Returns the passages that best match a query, best first.
+     *
+     * @param query the query, typically the user's question
+     * @param limit the number of passages to return at most
+     * @return the matching passages; passages that share no term with the query are left out
+     */
+    public synchronized List<Hit> search(String query, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        if (passages.isEmpty()) {
+            return List.of();
+        }
+
+        // 1. Accumulate each distinct query term's contribution per passage
+        double[] scores = new double[passages.size()];
+        double averageLength = (double) totalLength / passages.size();
+        for (String term : new LinkedHashSet<>(terms(query))) {
+            Postings termPostings = postings.get(term);
+            if (termPostings == null) {
+                continue;
+            }
+            double idf = Math.log(1 + (passages.size() - termPostings.size + 0.5) / (termPostings.size + 0.5));
+            for (int i = 0; i < termPostings.size; i++) {
+                int passage = termPostings.passages[i];
+                int frequency = termPostings.frequencies[i];
+                double norm = K1 * (1 - B + B * passageLengths.get(passage) / averageLength);
+                scores[passage] += idf * frequency * (K1 + 1) / (frequency + norm);
+            }
+        }
+
+        // 2. Keep the best passages; ties go to the earlier passage
+        PriorityQueue<Integer> best = new PriorityQueue<>(limit + 1, (a, b) -> scores[a] != scores[b]
+                ? Double.compare(scores[a], scores[b])
+                : Integer.compare(b, a));
+        for (int passage = 0; passage < scores.length; passage++) {
+            if (scores[passage] > 0) {
+                best.add(passage);
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            int passage = best.poll();
+            hits.addFirst(new Hit(passages.get(passage), scores[passage]));
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the number of documents added.
+     */
+    public synchronized int documentCount() {
+        return documentCount;
+    }
+
+    /**
+     * Returns the number of passages indexed.
+     */
+    public synchronized int passageCount() {
+        return passages.size();
+    }
+
+    /**
+     * Writes the index, passages and postings alike, to a compressed file.
+     *
+     * @param path the file to write; replaced if it exists
+     */
+    public synchronized void save(Path path) {
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path))))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(passageWords);
+            out.writeInt(documentCount);
+            out.writeInt(passages.size());
+            for (Passage passage : passages) {
+                out.writeInt(passage.document());
+                out.writeInt(passage.index());
+                writeString(out, passage.title());
+                writeString(out, passage.text());
+            }
+            for (int length : passageLengths) {
+                out.writeInt(length);
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                writeString(out, entry.getKey());
+                Postings termPostings = entry.getValue();
+                out.writeInt(termPostings.size);
+                for (int i = 0; i < termPostings.size; i++) {
+                    out.writeInt(termPostings.passages[i]);
+                    out.writeInt(termPostings.frequencies[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write index: " + path, e);
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #save(Path)}.
+     *
+     * @param path the file to read
+     * @return the index
+     * @throws IllegalArgumentException if the file is not an index
+     */
+    public static Bm25Index load(Path path) {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new BufferedInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IllegalArgumentException("Not a BM25 index file: " + path);
+            }
+            Bm25Index index = new Bm25Index(in.readInt());
+            index.documentCount = in.readInt();
+            int passageCount = in.readInt();
+            for (int i = 0; i < passageCount; i++) {
+                index.passages.add(new Passage(in.readInt(), in.readInt(), readString(in), readString(in)));
+            }
+            for (int i = 0; i < passageCount; i++) {
+                int length = in.readInt();
+                index.passageLengths.add(length);
+                index.totalLength += length;
+            }
+            int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++) {
+                String term = readString(in);
+                int size = in.readInt();
+                Postings termPostings = new Postings();
+                for (int j = 0; j < size; j++) {
+                    termPostings.add(in.readInt(), in.readInt());
+                }
+                index.postings.put(term, termPostings);
+            }
+            return index;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read index: " + path, e);
+        }
+    }
+
+    private void add(Passage passage) {
+        int number = passages.size();
+        Map<String, Integer> frequencies = new LinkedHashMap<>();
+        List<String> passageTerms = terms(passage.text());
+        for (String term : passageTerms) {
+            frequencies.merge(term, 1, Integer::sum);
+        }
+        frequencies.forEach((term, frequency) -> postings.computeIfAbsent(term, key -> new Postings()).add(number, frequency));
+        passages.add(passage);
+        passageLengths.add(passageTerms.size());
+        totalLength += passageTerms.size();
+    }
+
+    /**
+     * Splits text into passages: paragraphs are packed together up to the passage size, and a
+     * paragraph longer than that is cut into passages of that many words.
+     */
+    private List<String> split(String text) {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int currentWords = 0;
+        for (String paragraph : text.split("\\n\\s*\\n")) {
+            String trimmed = paragraph.strip();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            String[] words = trimmed.split("\\s+");
+            if (currentWords > 0 && currentWords + words.length > passageWords) {
+                chunks.add(current.toString());
+                current.setLength(0);
+                currentWords = 0;
+            }
+            if (words.length > passageWords) {
+                for (int from = 0; from < words.length; from += passageWords) {
+                    chunks.add(String.join(" ", Arrays.copyOfRange(words, from, Math.min(words.length, from + passageWords))));
+                }
+                continue;
+            }
+            if (currentWords > 0) {
+                current.append("\n\n");
+            }
+            current.append(trimmed);
+            currentWords += words.length;
+        }
+        if (currentWords > 0) {
+            chunks.add(current.toString());
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the indexed terms of a text, in order and with repetitions.
+     */
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String term = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!STOPWORDS.contains(term)) {
+                    terms.add(term);
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The passages containing one term and how often it occurs in each, in passage order.
+     */
+    private static final class Postings {
+        private int[] passages = new int[4];
+        private int[] frequencies = new int[4];
+        private int size;
+
+        private void add(int passage, int frequency) {
+            if (size == passages.length) {
+                passages = Arrays.copyOf(passages, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            passages[size] = passage;
+            frequencies[size] = frequency;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.pergamon.llm.conversation;
+
+import com.pergamon.llm.config.ApiConfig;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Starts many conversations at once so that those sharing a large opening prefix read it from
+ * the prompt cache instead of each paying to write it.
+ *
+ * Opening messages that begin with the same block are grouped, and their longest common run of
+ * leading blocks is the group's shared prefix. When the prefix is not known to be warm, one
+ * conversation of the group is sent first with a cache breakpoint pinned at the end of the
+ * prefix; the rest are released concurrently once its response has arrived and the cache entry
+ * exists. Groups whose prefix is still warm, and messages sharing nothing worth caching, are sent
+ * straight away.
+ *
+ * A prefix counts as warm for the TTL after the last request that wrote or read it, since reads
+ * refresh the entry. The TTL should match the cache TTL the conversations use: 5 minutes by default.
+ */
+public final class CacheWarmingScheduler {
+
+    public static final Duration DEFAULT_WARM_TTL = Duration.ofMinutes(5);
+
+    /**
+     * Shared prefixes shorter than this many characters are not worth holding requests back for;
+     * about 1,024 tokens, the smallest prefix Anthropic caches.
+     */
+    static final long MIN_PREFIX_CHARS = 4_096L;
+
+    /**
+     * A conversation started by the scheduler and its pending first reply.
+     */
+    public record Start(Conversation<?, ?> conversation, CompletableFuture<Message> reply) {
+    }
+
+    /**
+     * A shared prefix of opening blocks for one model.
+     */
+    private record PrefixKey(ModelId modelId, List<MessageBlock> blocks) {
+    }
+
+    private final Function<ModelId, Conversation<?, ?>> conversations;
+    private final Duration warmTtl;
+    private final Clock clock;
+
+    // When each prefix was last written or read
+    private final ConcurrentHashMap<PrefixKey, Instant> lastUsed = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a scheduler that creates conversations with {@link Conversation#forModel}.
+     *
+     * @param config the API configuration containing vendor API keys
+     */
+    public CacheWarmingScheduler(ApiConfig config) {
+        this(config, DEFAULT_WARM_TTL);
+    }
+
+    /**
+     * Creates a scheduler that creates conversations with {@link Conversation#forModel}.
+     *
+     * @param config the API configuration containing vendor API keys
+     * @param warmTtl how long a prefix stays warm after it was last used
+     */
+    public CacheWarmingScheduler(ApiConfig config, Duration warmTtl) {
+        this(modelId -> Conversation.forModel(modelId, config), warmTtl, Clock.systemUTC());
+    }
+
+    CacheWarmingScheduler(Function<ModelId, Conversation<?, ?>> conversations, Duration warmTtl, Clock clock) {
+        if (conversations == null) {
+            throw new IllegalArgumentException("conversations cannot be null");
+        }
+        if (warmTtl == null || warmTtl.isNegative() || warmTtl.isZero()) {
+            throw new IllegalArgumentException("warmTtl must be positive: " + warmTtl);
+        }
+        this.conversations = conversations;
+        this.warmTtl = warmTtl;
+        this.clock = clock;
+    }
+
+    /**
+     * Starts one conversation per opening message.
+     *
+     * @param modelId the model of every conversation
+     * @param openingMessages the first message of each conversation
+     * @return the started conversations, in the order of their opening messages
+     */
+    public List<Start> startAll(ModelId modelId, List<Message> openingMessages) {
+        if (modelId == null) {
+            throw new IllegalArgumentException("modelId cannot be null");
+        }
+        if (openingMessages == null) {
+            throw new IllegalArgumentException("openingMessages cannot be null");
+        }
+        evictCold();
+
+        // 1. Group messages by their first block, keeping the order of first appearance
+        Map<MessageBlock, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < openingMessages.size(); i++) {
+            Message message = openingMessages.get(i);
+            if (message.blocks().isEmpty()) {
+                throw new IllegalArgumentException("Opening message " + i + " has no blocks");
+            }
+            groups.computeIfAbsent(message.blocks().getFirst(), block -> new ArrayList<>()).add(i);
+        }
+
+        // 2. Send each group: warm first when its shared prefix is cold and worth caching
+        Start[] starts = new Start[openingMessages.size()];
+        for (List<Integer> group : groups.values()) {
+            List<MessageBlock> prefix = sharedPrefix(openingMessages, group);
+            if (group.size() < 2 || approximateChars(prefix) < MIN_PREFIX_CHARS) {
+                group.forEach(i -> starts[i] = send(modelId, openingMessages.get(i), null, 0));
+                continue;
+            }
+
+            PrefixKey key = new PrefixKey(modelId, List.copyOf(prefix));
+            if (isWarm(key)) {
+                group.forEach(i -> starts[i] = send(modelId, openingMessages.get(i), key, prefix.size()));
+                continue;
+            }
+
+            // 3. Release the rest once the warming reply is in, whether or not it succeeded
+            int first = group.getFirst();
+            Start warming = send(modelId, openingMessages.get(first), key, prefix.size());
+            starts[first] = warming;
+            CompletableFuture<Void> warmed = warming.reply().handle((reply, failure) -> null);
+            for (int i : group.subList(1, group.size())) {
+                Conversation<?, ?> conversation = conversations.apply(modelId);
+                Message message = openingMessages.get(i);
+                starts[i] = new Start(conversation, warmed.thenCompose(ignored -> {
+                    conversation.pinCachePrefix(prefix.size());
+                    return conversation.sendMessageAsync(message).whenComplete((reply, failure) -> touch(key));
+                }));
+            }
+        }
+        return List.of(starts);
+    }
+
+    /**
+     * Returns true if the prefix was written or read within the warm TTL.
+     *
+     * @param modelId the model
+     * @param prefix the leading blocks of an opening message
+     * @return whether the prefix is likely still cached
+     */
+    public boolean isWarm(ModelId modelId, List<MessageBlock> prefix) {
+        return isWarm(new PrefixKey(modelId, List.copyOf(prefix)));
+    }
+
+    private boolean isWarm(PrefixKey key) {
+        Instant used = lastUsed.get(key);
+        return used != null && used.plus(warmTtl).isAfter(clock.instant());
+    }
+
+    private Start send(ModelId modelId, Message message, PrefixKey key, int prefixBlocks) {
+        Conversation<?, ?> conversation = conversations.apply(modelId);
+        if (key == null) {
+            return new Start(conversation, conversation.sendMessageAsync(message));
+        }
+        conversation.pinCachePrefix(prefixBlocks);
+        return new Start(conversation, conversation.sendMessageAsync(message).whenComplete((reply, failure) -> {
+            if (failure == null) {
+                touch(key);
+            }
+        }));
+    }
+
+    private void touch(PrefixKey key) {
+        lastUsed.put(key, clock.instant());
+    }
+
+    private void evictCold() {
+        Instant now = clock.instant();
+        lastUsed.values().removeIf(used -> !used.plus(warmTtl).isAfter(now));
+    }
+
+    /**
+     * Returns the longest run of leading blocks shared by every message in the group.
+     */
+    private static List<MessageBlock> sharedPrefix(List<Message> messages, List<Integer> group) {
+        List<MessageBlock> prefix = messages.get(group.getFirst()).blocks();
+        int length = prefix.size();
+        for (int i : group) {
+            List<MessageBlock> blocks = messages.get(i).blocks();
+            int common = 0;
+            while (common < Math.min(length, blocks.size()) && blocks.get(common).equals(prefix.get(common))) {
+                common++;
+            }
+            length = common;
+        }
+        return prefix.subList(0, length);
+    }
+
+    /**
+     * Approximates the size of blocks in characters; attachments are assumed to be large.
+     */
+    private static long approximateChars(List<MessageBlock> blocks) {
+        long chars = 0L;
+        for (MessageBlock block : blocks) {
+            chars += switch (block) {
+                case TextBlock textBlock -> textBlock.text().length();
+                case PlainTextDocumentBlock document -> document.text().length();
+                case ImageBlock image -> MIN_PREFIX_CHARS;
+                case DocumentBlock document -> MIN_PREFIX_CHARS;
+                default -> 0L;
+            };
+        }
+        return chars;
+    }
+}
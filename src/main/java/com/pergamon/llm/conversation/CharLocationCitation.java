@@ -4,6 +4,9 @@ import java.util.Optional;
 
 /**
  * Citation that references a character range in a plain text document.
+ *
+ * When the document is the text extracted from a PDF, the citation also carries the pages the
+ * range comes from; the end page is exclusive, as in {@link PageLocationCitation}.
  */
 public record CharLocationCitation(
     String citedText,
@@ -13,7 +16,9 @@ public record CharLocationCitation(
     Optional<String> documentTitle,
     Optional<String> fileId,
     Optional<Long> startCharIndex,
-    Optional<Long> endCharIndex
+    Optional<Long> endCharIndex,
+    Optional<Long> startPageNumber,
+    Optional<Long> endPageNumber
 ) implements TextCitation {
 
     public CharLocationCitation {
@@ -33,5 +38,17 @@ public record CharLocationCitation(
         fileId = fileId == null ? Optional.empty() : fileId;
         startCharIndex = startCharIndex == null ? Optional.empty() : startCharIndex;
         endCharIndex = endCharIndex == null ? Optional.empty() : endCharIndex;
+        startPageNumber = startPageNumber == null ? Optional.empty() : startPageNumber;
+        endPageNumber = endPageNumber == null ? Optional.empty() : endPageNumber;
+    }
+
+    /**
+     * Creates a citation of a document that has no page numbers.
+     */
+    public CharLocationCitation(String citedText, String title, String type, Optional<Long> documentIndex,
+                                Optional<String> documentTitle, Optional<String> fileId,
+                                Optional<Long> startCharIndex, Optional<Long> endCharIndex) {
+        this(citedText, title, type, documentIndex, documentTitle, fileId, startCharIndex, endCharIndex,
+                Optional.empty(), Optional.empty());
     }
 }
@@ -0,0 +1,60 @@
+package com.pergamon.llm.conversation;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * What a {@link CompactionStrategy} needs to know about the conversation it is compacting.
+ *
+ * @param targetTokens the estimated input tokens the compacted history should fit in
+ * @param estimator estimates the input tokens of vendor messages
+ * @param startsTurn true for vendor messages a request may begin with (a user turn)
+ * @param toVendorMessage converts a generic message into the vendor's format
+ * @param <V> The vendor-specific message type
+ */
+public record CompactionContext<V>(
+        long targetTokens,
+        TokenEstimator<V> estimator,
+        Predicate<V> startsTurn,
+        Function<Message, V> toVendorMessage
+) {
+
+    public CompactionContext {
+        if (estimator == null || startsTurn == null || toVendorMessage == null) {
+            throw new IllegalArgumentException("estimator, startsTurn and toVendorMessage cannot be null");
+        }
+    }
+
+    /**
+     * Estimates the input tokens of the given vendor messages.
+     */
+    public long estimate(List<V> vendorMessages) {
+        return estimator.estimateInputTokens(vendorMessages);
+    }
+
+    /**
+     * Finds where to cut the history so that the messages from the cut onwards fit in the
+     * given budget. The cut always falls on a turn start and keeps at least the latest turn.
+     *
+     * @param history the vendor history
+     * @param budgetTokens the estimated input tokens the kept messages may use
+     * @return the index of the first message to keep, or 0 if the history has no turn start
+     */
+    public int cutIndex(List<V> history, long budgetTokens) {
+        long kept = 0L;
+        int cut = -1;
+        for (int i = history.size() - 1; i >= 0; i--) {
+            V message = history.get(i);
+            kept += estimator.estimateInputTokens(List.of(message));
+            if (!startsTurn.test(message)) {
+                continue;
+            }
+            if (cut >= 0 && kept > budgetTokens) {
+                break;
+            }
+            cut = i;
+        }
+        return Math.max(cut, 0);
+    }
+}
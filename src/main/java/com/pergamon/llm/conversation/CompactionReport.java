@@ -0,0 +1,17 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * Describes one compaction of a conversation's vendor history.
+ *
+ * @param messagesBefore the number of vendor messages before compaction
+ * @param messagesAfter the number of vendor messages after compaction
+ * @param tokensBefore the estimated input tokens before compaction
+ * @param tokensAfter the estimated input tokens after compaction
+ */
+public record CompactionReport(int messagesBefore, int messagesAfter, long tokensBefore, long tokensAfter) {
+
+    /** Returns the estimated input tokens removed from every subsequent request. */
+    public long tokensSaved() {
+        return Math.max(0L, tokensBefore - tokensAfter);
+    }
+}
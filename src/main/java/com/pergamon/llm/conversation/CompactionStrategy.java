@@ -0,0 +1,68 @@
+package com.pergamon.llm.conversation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Rewrites a conversation's vendor history into a smaller one when it approaches the model's
+ * context window. Only vendorMessages is rewritten; the generic messages history stays complete.
+ *
+ * Implementations must keep the latest turn (the message being sent) and return a history that
+ * the vendor accepts, for example one that begins with a user turn.
+ *
+ * @param <V> The vendor-specific message type
+ */
+@FunctionalInterface
+public interface CompactionStrategy<V> {
+
+    String SUMMARY_PREFIX = "Summary of the earlier conversation:\n\n";
+    String SUMMARY_ACKNOWLEDGEMENT = "Understood. I will continue from that summary.";
+
+    /**
+     * Returns the compacted history. The input list must not be modified.
+     *
+     * @param history the current vendor history, ending with the message being sent
+     * @param context the target size and conversation helpers
+     * @return the compacted history
+     */
+    List<V> compact(List<V> history, CompactionContext<V> context);
+
+    /**
+     * Drops the oldest turns, keeping the most recent ones that fit in the target.
+     */
+    static <V> CompactionStrategy<V> slidingWindow() {
+        return (history, context) -> {
+            int cut = context.cutIndex(history, context.targetTokens());
+            return List.copyOf(history.subList(cut, history.size()));
+        };
+    }
+
+    /**
+     * Replaces the oldest turns with a summary produced by the given summarizer, typically a
+     * call to an LLM, and keeps the most recent turns that fit in the target verbatim.
+     * The summary is sent as a user message followed by a short assistant acknowledgement.
+     *
+     * @param summarizer turns the vendor messages being replaced into a summary
+     */
+    static <V> CompactionStrategy<V> summarizing(Function<List<V>, String> summarizer) {
+        if (summarizer == null) {
+            throw new IllegalArgumentException("summarizer cannot be null");
+        }
+        return (history, context) -> {
+            int cut = context.cutIndex(history, context.targetTokens());
+            if (cut == 0) {
+                return history;
+            }
+            String summary = summarizer.apply(List.copyOf(history.subList(0, cut)));
+
+            List<V> compacted = new ArrayList<>(history.size() - cut + 2);
+            compacted.add(context.toVendorMessage().apply(new Message(MessageRole.USER,
+                    List.of(new TextBlock(TextBlockFormat.PLAIN, SUMMARY_PREFIX + summary, List.of())))));
+            compacted.add(context.toVendorMessage().apply(new Message(MessageRole.ASSISTANT,
+                    List.of(new TextBlock(TextBlockFormat.PLAIN, SUMMARY_ACKNOWLEDGEMENT, List.of())))));
+            compacted.addAll(history.subList(cut, history.size()));
+            return compacted;
+        };
+    }
+}
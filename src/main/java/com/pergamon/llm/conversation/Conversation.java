@@ -7,7 +7,12 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Abstract base class for conversations with different LLM vendors.
@@ -26,16 +31,44 @@ import java.util.Optional;
  * Each API call sends the full conversation context, enabling multi-turn conversational
  * interactions where the model can reference previous messages in the conversation.
  *
+ * Conversations that hold vendor resources (such as a lease on a shared SDK client)
+ * release them in {@link #close()}.
+ *
  * @param <V> The vendor-specific message type (e.g., MessageParam for Anthropic)
  * @param <R> The vendor-specific response type (e.g., com.anthropic.models.messages.Message)
  */
-public abstract class Conversation<V, R> {
+public abstract class Conversation<V, R> implements AutoCloseable {
+
+    /**
+     * Tool rounds {@link #sendMessageWithTools(Message)} allows before giving up.
+     */
+    public static final int DEFAULT_MAX_TOOL_STEPS = 10;
+
+    /**
+     * Default executor for sendMessageAsync: one virtual thread per turn.
+     */
+    private static final Executor VIRTUAL_THREAD_EXECUTOR = task -> Thread.ofVirtual().start(task);
 
     // Nullable: assigned by the database (UUID string) when persisted
     private String id;
 
     private final ModelId modelId;
 
+    // Nullable: resolved from the default ModelRegistry when not set explicitly
+    private ModelCapabilities capabilities;
+
+    // Nullable: falls back to RequestTracer sampling when not set explicitly
+    private volatile RequestTracer.Detail traceDetail;
+
+    // Nullable: every request goes to the vendor unless a response cache is set
+    private volatile ResponseCache responseCache;
+
+    // Empty when the conversation has no system prompt
+    private List<TextBlock> systemPrompt = List.of();
+
+    // Client-side tools offered to the model; empty when none are set
+    private ToolRegistry toolRegistry = ToolRegistry.empty();
+
     private String name;
     private boolean starred = false;
 
@@ -51,6 +84,7 @@ public abstract class Conversation<V, R> {
     /**
      * Vendor-specific conversation history.
      * Maintained in parallel with messages to avoid repeated serialization/deserialization.
+     * After compaction it holds fewer entries than messages: older turns are dropped or summarized.
      */
     protected final List<V> vendorMessages = new ArrayList<>();
 
@@ -64,10 +98,51 @@ public abstract class Conversation<V, R> {
      */
     private long totalOutputTokens = 0L;
 
+    /**
+     * Serializes turns so that messages and vendorMessages stay ordered when sendMessage,
+     * sendMessageStreaming and sendMessageAsync are used from several threads.
+     * A ReentrantLock rather than synchronized so virtual threads blocked on I/O are not pinned.
+     */
+    private final ReentrantLock turnLock = new ReentrantLock();
+
+    /**
+     * Executor that runs asynchronous turns.
+     */
+    private Executor asyncExecutor = VIRTUAL_THREAD_EXECUTOR;
+
+    /**
+     * Tail of the chain of pending asynchronous turns; each new turn starts after it completes.
+     */
+    private CompletableFuture<?> lastAsyncTurn = CompletableFuture.completedFuture(null);
+
+    /**
+     * Applied when the next request is estimated not to fit in the model's context window.
+     */
+    private TokenBudgetPolicy tokenBudgetPolicy = TokenBudgetPolicy.FAIL_FAST;
+
+    /**
+     * Input token estimate for the request in flight, kept to calibrate the estimator; -1 if none.
+     */
+    private long pendingInputTokenEstimate = -1L;
+
+    // Nullable: automatic compaction is off until a strategy is set
+    private CompactionStrategy<V> compactionStrategy;
+    private double compactionTriggerFraction;
+
+    // Nullable: no compaction has run yet
+    private CompactionReport lastCompaction;
+
+    /**
+     * Cumulative estimated input tokens removed by compactions, as measured when each ran.
+     */
+    private long totalCompactionTokensSaved = 0L;
+
     // --------- Static Factory Methods ---------
 
     /**
      * Factory method to create a Conversation for a specific model.
+     * Vendor SDK clients are shared across conversations via {@link VendorClientRegistry#shared()},
+     * so connections stay warm and are reused between conversations with the same API key.
      *
      * @param modelId the model to create a conversation for
      * @param config the API configuration containing vendor API keys
@@ -82,6 +157,10 @@ public abstract class Conversation<V, R> {
         };
     }
 
+    /**
+     * Creates an Anthropic conversation backed by the process-wide client for the configured key.
+     * Close the conversation when done so the shared client can be released.
+     */
     private static Conversation<?, ?> createAnthropicConversation(ModelId modelId, ApiConfig config) {
         String apiKey = config.getApiKeyOrThrow(Vendor.ANTHROPIC);
         return new AnthropicConversation(modelId, apiKey);
@@ -137,6 +216,24 @@ public abstract class Conversation<V, R> {
         return modelId;
     }
 
+    /**
+     * Returns the capabilities of this conversation's model.
+     * Falls back to the bundled models.json registry when none were set explicitly.
+     *
+     * @return the model capabilities, or empty if the model is unknown
+     */
+    public Optional<ModelCapabilities> capabilities() {
+        if (capabilities != null) {
+            return Optional.of(capabilities);
+        }
+        return ModelRegistry.defaultRegistry().find(modelId).map(ModelDescriptor::capabilitie);
+    }
+
+    /** Overrides the capabilities looked up from the default model registry. */
+    public void setCapabilities(ModelCapabilities capabilities) {
+        this.capabilities = capabilities;
+    }
+
     // --------- Name & starred ---------
 
     public String name() {
@@ -174,6 +271,192 @@ public abstract class Conversation<V, R> {
         this.starred = !this.starred;
     }
 
+    // --------- System prompt ---------
+
+    /** Returns the blocks of the system prompt sent ahead of the history, or an empty list if none is set. */
+    public List<TextBlock> systemPrompt() {
+        return systemPrompt;
+    }
+
+    /**
+     * Sets the system prompt sent ahead of the history on every request. Stable instructions
+     * can be kept in blocks of their own, apart from blocks that change; vendors with prompt
+     * caching cache the system prompt separately from the history. Applies to turns started
+     * afterwards. Pass an empty list to remove the system prompt.
+     *
+     * @param blocks the system prompt blocks, in order
+     * @throws UnsupportedOperationException if the vendor has no system prompt
+     */
+    public void setSystemPrompt(List<TextBlock> blocks) {
+        if (blocks == null || blocks.stream().anyMatch(Objects::isNull)) {
+            throw new IllegalArgumentException("System prompt blocks cannot be null");
+        }
+        List<TextBlock> copy = List.copyOf(blocks);
+        turnLock.lock();
+        try {
+            systemPromptChanged(copy);
+            this.systemPrompt = copy;
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    /**
+     * Sets a system prompt made of a single plain text block.
+     *
+     * @param text the system prompt
+     */
+    public void setSystemPrompt(String text) {
+        setSystemPrompt(List.of(new TextBlock(TextBlockFormat.PLAIN, text, List.of())));
+    }
+
+    // --------- Client-side tools ---------
+
+    /** Returns the client-side tools offered to the model. */
+    public ToolRegistry toolRegistry() {
+        return toolRegistry;
+    }
+
+    /**
+     * Sets the client-side tools offered to the model on every request, and run by
+     * {@link #sendMessageWithTools(Message)}. Applies to turns started afterwards.
+     *
+     * @param toolRegistry the tools; {@link ToolRegistry#empty()} to offer none
+     * @throws UnsupportedOperationException if the vendor has no client-side tools
+     */
+    public void setToolRegistry(ToolRegistry toolRegistry) {
+        if (toolRegistry == null) {
+            throw new IllegalArgumentException("toolRegistry cannot be null");
+        }
+        turnLock.lock();
+        try {
+            toolRegistryChanged(toolRegistry);
+            this.toolRegistry = toolRegistry;
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    // --------- Request tracing ---------
+
+    /** Returns the explicit request trace detail for this conversation, if any. */
+    public Optional<RequestTracer.Detail> traceDetail() {
+        return Optional.ofNullable(traceDetail);
+    }
+
+    /**
+     * Sets how this conversation's requests are traced, overriding RequestTracer sampling.
+     * Pass null to return to sampling.
+     */
+    public void setTraceDetail(RequestTracer.Detail traceDetail) {
+        this.traceDetail = traceDetail;
+    }
+
+    // --------- Response caching ---------
+
+    /** Returns the cache consulted before non-streaming requests are sent, if any. */
+    public Optional<ResponseCache> responseCache() {
+        return Optional.ofNullable(responseCache);
+    }
+
+    /**
+     * Sets a cache of vendor responses keyed by request. A byte-identical request is answered
+     * from the cache and replayed through {@link #fromVendorResponse} as if the vendor had sent it.
+     * Implementations without response caching support ignore it. Pass null to disable.
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    // --------- Token budgeting ---------
+
+    public TokenBudgetPolicy tokenBudgetPolicy() {
+        return tokenBudgetPolicy;
+    }
+
+    /**
+     * Sets what happens when a request is estimated to exceed the model's context window.
+     * Defaults to {@link TokenBudgetPolicy#FAIL_FAST}.
+     */
+    public void setTokenBudgetPolicy(TokenBudgetPolicy tokenBudgetPolicy) {
+        if (tokenBudgetPolicy == null) {
+            throw new IllegalArgumentException("tokenBudgetPolicy cannot be null");
+        }
+        this.tokenBudgetPolicy = tokenBudgetPolicy;
+    }
+
+    /**
+     * Estimates the input tokens of a request carrying the current history, without calling the vendor.
+     *
+     * @return the estimate, or empty if this vendor has no token estimator
+     */
+    public OptionalLong estimateInputTokens() {
+        return tokenEstimator()
+                .map(estimator -> OptionalLong.of(estimator.estimateInputTokens(vendorMessages)))
+                .orElse(OptionalLong.empty());
+    }
+
+    // --------- History compaction ---------
+
+    /**
+     * Enables automatic compaction of the vendor history. Before a request is sent, if its
+     * estimated input plus max_tokens reaches triggerFraction of the model's context window,
+     * the strategy rewrites vendorMessages to fit in half of that threshold.
+     * The generic messages history is never compacted.
+     *
+     * @param strategy the compaction strategy, or null to disable automatic compaction
+     * @param triggerFraction the fraction of the context window at which to compact, in (0, 1]
+     */
+    public void setCompactionStrategy(CompactionStrategy<V> strategy, double triggerFraction) {
+        if (strategy != null && !(triggerFraction > 0.0 && triggerFraction <= 1.0)) {
+            throw new IllegalArgumentException("triggerFraction must be in (0, 1], got: " + triggerFraction);
+        }
+        turnLock.lock();
+        try {
+            this.compactionStrategy = strategy;
+            this.compactionTriggerFraction = triggerFraction;
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    /**
+     * Compacts the vendor history now with the configured strategy, whatever its current size.
+     *
+     * @return the report of the compaction
+     * @throws IllegalStateException if no strategy is set, or the vendor has no token estimator
+     *         or the model's context window is unknown
+     */
+    public CompactionReport compact() {
+        turnLock.lock();
+        try {
+            if (compactionStrategy == null) {
+                throw new IllegalStateException("No compaction strategy set for conversation: " + name);
+            }
+            TokenEstimator<V> estimator = tokenEstimator().orElseThrow(() -> new IllegalStateException(
+                    "No token estimator for vendor: " + modelId.vendor()));
+            ModelCapabilities modelCapabilities = capabilities().orElseThrow(() -> new IllegalStateException(
+                    "Unknown context window for model: " + modelId));
+            return runCompaction(estimator, modelCapabilities);
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    /** Returns the report of the most recent compaction, if any ran. */
+    public Optional<CompactionReport> lastCompaction() {
+        return Optional.ofNullable(lastCompaction);
+    }
+
+    /**
+     * Returns the estimated input tokens removed by all compactions so far, as measured when each ran.
+     *
+     * @return the total tokens saved by compaction
+     */
+    public long getTotalCompactionTokensSaved() {
+        return totalCompactionTokensSaved;
+    }
+
     // --------- Vendor metadata ---------
 
     public Optional<String> vendorConversationId() {
@@ -211,18 +494,254 @@ public abstract class Conversation<V, R> {
      * 1. Appends the user message to messages
      * 2. Converts to vendor-specific format
      * 3. Appends the vendor message to vendorMessages
-     * 4. Configures caching if requested and supported
-     * 5. Calls the vendor API with the entire conversation history
-     * 6. Appends the vendor response to vendorMessages
-     * 7. Converts response back to our Message format
-     * 8. Appends the response message to messages
-     * 9. Accumulates token counts from the response
+     * 4. Compacts vendorMessages if a compaction strategy is set and the history is large enough
+     * 5. Configures caching if requested and supported
+     * 6. Checks the estimated token budget against the model's context window
+     * 7. Calls the vendor API with the entire conversation history
+     * 8. Appends the vendor response to vendorMessages
+     * 9. Converts response back to our Message format
+     * 10. Appends the response message to messages
+     * 11. Accumulates token counts from the response and calibrates the token estimator
+     *
+     * If the token budget policy rejects the turn, the message is removed from both
+     * histories again and nothing is sent.
      *
      * @param message the message to send
      * @param useCaching whether to enable prompt caching for this request
      * @return the response message from the LLM
      */
     public Message sendMessage(Message message, boolean useCaching) {
+        turnLock.lock();
+        try {
+            beginTurn(message, useCaching);
+
+            // 7. Send the entire conversation to the vendor API
+            R vendorResponse = sendConversationToVendor();
+
+            return completeTurn(vendorResponse);
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a message asynchronously with caching enabled.
+     *
+     * @param message the message to send
+     * @return a future completed with the response message from the LLM
+     */
+    public CompletableFuture<Message> sendMessageAsync(Message message) {
+        return sendMessageAsync(message, true);
+    }
+
+    /**
+     * Sends a message asynchronously on this conversation's executor (virtual threads by default).
+     *
+     * Turns on the same conversation run one at a time, in the order sendMessageAsync was called,
+     * so both histories stay ordered. A failed turn completes its own future exceptionally and
+     * does not prevent later turns from running. Different conversations proceed independently.
+     *
+     * @param message the message to send
+     * @param useCaching whether to enable prompt caching for this request
+     * @return a future completed with the response message from the LLM
+     */
+    public CompletableFuture<Message> sendMessageAsync(Message message, boolean useCaching) {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+        synchronized (this) {
+            CompletableFuture<Message> turn = lastAsyncTurn
+                    .handle((ignored, error) -> null)
+                    .thenApplyAsync(ignored -> sendMessage(message, useCaching), asyncExecutor);
+            lastAsyncTurn = turn;
+            return turn;
+        }
+    }
+
+    /**
+     * Sets the executor used by sendMessageAsync. Applies to turns submitted afterwards.
+     *
+     * @param executor the executor to run asynchronous turns on
+     */
+    public synchronized void setAsyncExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+        this.asyncExecutor = executor;
+    }
+
+    /**
+     * Sends a message with caching enabled and streams the response as it is generated.
+     *
+     * @param message the message to send
+     * @param listener receives text and citation deltas, then the assembled response
+     * @return the complete response message from the LLM
+     * @throws UnsupportedOperationException if the model or vendor does not support streaming
+     */
+    public Message sendMessageStreaming(Message message, MessageStreamListener listener) {
+        return sendMessageStreaming(message, true, listener);
+    }
+
+    /**
+     * Sends a message and streams the response as it is generated.
+     *
+     * Follows the same steps as {@link #sendMessage(Message, boolean)}, except that the
+     * vendor call delivers deltas to the listener while the response is being produced.
+     * Both histories are updated with the assembled response once the stream completes.
+     *
+     * @param message the message to send
+     * @param useCaching whether to enable prompt caching for this request
+     * @param listener receives text and citation deltas, then the assembled response
+     * @return the complete response message from the LLM
+     * @throws UnsupportedOperationException if the model or vendor does not support streaming
+     */
+    public Message sendMessageStreaming(Message message, boolean useCaching, MessageStreamListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+        if (!supportsStreaming()) {
+            throw new UnsupportedOperationException("Streaming not supported for model: " + modelId);
+        }
+
+        Message responseMessage;
+        turnLock.lock();
+        try {
+            beginTurn(message, useCaching);
+
+            // 7. Stream the entire conversation to the vendor API
+            R vendorResponse = streamConversationToVendor(listener);
+
+            responseMessage = completeTurn(vendorResponse);
+        } finally {
+            turnLock.unlock();
+        }
+        listener.onComplete(responseMessage);
+        return responseMessage;
+    }
+
+    /**
+     * Sends a message with caching enabled and runs the tools the model asks for until it
+     * answers without tool uses, allowing {@link #DEFAULT_MAX_TOOL_STEPS} tool rounds.
+     *
+     * @param message the message to send
+     * @return the model's final response
+     */
+    public Message sendMessageWithTools(Message message) {
+        return sendMessageWithTools(message, DEFAULT_MAX_TOOL_STEPS);
+    }
+
+    /**
+     * Sends a message and runs the agent loop: while the model's response asks for tools,
+     * the tools run concurrently with {@link ToolRegistry#execute(List)} and all their results
+     * are sent back together in one {@link MessageRole#TOOL} message. Every step is an ordinary
+     * cached turn, and the conversation stays locked for the whole loop so no other turn can
+     * interleave with it.
+     *
+     * @param message the message to send
+     * @param maxSteps the most tool rounds to run
+     * @return the model's final response
+     * @throws IllegalStateException if the model still asks for tools after maxSteps rounds;
+     *         its last response stays in the history with its tool uses unanswered
+     * @throws UnsupportedOperationException if the model does not support tools
+     */
+    public Message sendMessageWithTools(Message message, int maxSteps) {
+        if (maxSteps < 0) {
+            throw new IllegalArgumentException("maxSteps cannot be negative: " + maxSteps);
+        }
+        if (!capabilities().map(ModelCapabilities::supportsTools).orElse(true)) {
+            throw new UnsupportedOperationException("Tools not supported for model: " + modelId);
+        }
+        turnLock.lock();
+        try {
+            Message response = sendMessage(message, true);
+            for (int step = 0; step < maxSteps; step++) {
+                List<ToolUseBlock> toolUses = response.blocks().stream()
+                        .filter(ToolUseBlock.class::isInstance)
+                        .map(ToolUseBlock.class::cast)
+                        .toList();
+                if (toolUses.isEmpty()) {
+                    return response;
+                }
+                List<MessageBlock> results = List.copyOf(toolRegistry.execute(toolUses));
+                response = sendMessage(new Message(MessageRole.TOOL, results), true);
+            }
+            if (response.blocks().stream().anyMatch(ToolUseBlock.class::isInstance)) {
+                throw new IllegalStateException(
+                        "Model still requested tools after " + maxSteps + " steps in conversation: " + name);
+            }
+            return response;
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if both the vendor implementation and the model's capabilities allow
+     * streamed responses. Models missing from the registry are assumed to support streaming.
+     */
+    public boolean supportsStreaming() {
+        return isStreamable() && capabilities().map(ModelCapabilities::supportsStreaming).orElse(true);
+    }
+
+    /**
+     * Starts a turn whose vendor response is obtained elsewhere, such as from a message batch.
+     * Runs steps 1-6 of {@link #sendMessage(Message, boolean)}; the turn is finished later by
+     * {@link #completeDeferredTurn(Object)} or rolled back by {@link #abandonDeferredTurn(Message)}.
+     *
+     * @param message the message to send
+     * @param useCaching whether to enable prompt caching for this request
+     */
+    void beginDeferredTurn(Message message, boolean useCaching) {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+        turnLock.lock();
+        try {
+            beginTurn(message, useCaching);
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    /**
+     * Finishes a deferred turn with its vendor response, running steps 8-11.
+     *
+     * @param vendorResponse the vendor-specific response for the pending turn
+     * @return the response message from the LLM
+     */
+    Message completeDeferredTurn(R vendorResponse) {
+        turnLock.lock();
+        try {
+            return completeTurn(vendorResponse);
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    /**
+     * Rolls back a deferred turn that produced no response, removing its message from both
+     * histories so the conversation can be retried.
+     *
+     * @param message the message passed to beginDeferredTurn
+     * @throws IllegalStateException if the message is not the last one in the conversation
+     */
+    void abandonDeferredTurn(Message message) {
+        turnLock.lock();
+        try {
+            if (messages.isEmpty() || messages.getLast() != message) {
+                throw new IllegalStateException("No pending turn for message in conversation: " + name);
+            }
+            rollbackTurn();
+        } finally {
+            turnLock.unlock();
+        }
+    }
+
+    /**
+     * Steps 1-6 of a turn: records the outgoing message in both histories, compacts the vendor
+     * history if needed, configures caching and checks the token budget.
+     */
+    private void beginTurn(Message message, boolean useCaching) {
         // 1. Append the user message to generic history
         messages.add(message);
 
@@ -232,7 +751,10 @@ public abstract class Conversation<V, R> {
         // 3. Append the vendor message to vendor-specific history
         vendorMessages.add(vendorMessage);
 
-        // 4. Configure caching if requested and supported
+        // 4. Compact the vendor history if it has reached the trigger threshold
+        compactIfNeeded();
+
+        // 5. Configure caching if requested and supported
         if (useCaching) {
             if (isCacheable()) {
                 configureCaching();
@@ -241,22 +763,114 @@ public abstract class Conversation<V, R> {
             }
         }
 
-        // 5. Send the entire conversation to the vendor API
-        R vendorResponse = sendConversationToVendor();
+        // 6. Check the estimated token budget, undoing steps 1-3 if the policy rejects the turn
+        try {
+            checkTokenBudget();
+        } catch (RuntimeException e) {
+            rollbackTurn();
+            throw e;
+        }
+    }
 
-        // 6. Convert vendor response to vendor message format and append
+    /**
+     * Estimates the pending request and hands it to the token budget policy if it would not fit
+     * in the context window. Skipped when the vendor has no estimator or the model is unknown.
+     */
+    private void checkTokenBudget() {
+        pendingInputTokenEstimate = -1L;
+        Optional<TokenEstimator<V>> estimator = tokenEstimator();
+        Optional<ModelCapabilities> modelCapabilities = capabilities();
+        if (estimator.isEmpty() || modelCapabilities.isEmpty()) {
+            return;
+        }
+
+        long estimate = estimator.get().estimateInputTokens(vendorMessages);
+        pendingInputTokenEstimate = estimate;
+        TokenBudget budget = new TokenBudget(
+                estimate, maxOutputTokens(), modelCapabilities.get().contextWindowTokens());
+        if (budget.exceeded()) {
+            tokenBudgetPolicy.onBudgetExceeded(this, budget);
+        }
+    }
+
+    /**
+     * Runs the compaction strategy if the pending request reaches the trigger threshold.
+     * Skipped when no strategy is set, the vendor has no estimator or the model is unknown.
+     */
+    private void compactIfNeeded() {
+        Optional<TokenEstimator<V>> estimator = tokenEstimator();
+        Optional<ModelCapabilities> modelCapabilities = capabilities();
+        if (compactionStrategy == null || estimator.isEmpty() || modelCapabilities.isEmpty()) {
+            return;
+        }
+
+        long triggerTokens = (long) (modelCapabilities.get().contextWindowTokens() * compactionTriggerFraction);
+        long required = estimator.get().estimateInputTokens(vendorMessages) + maxOutputTokens();
+        if (required >= triggerTokens) {
+            runCompaction(estimator.get(), modelCapabilities.get());
+        }
+    }
+
+    /**
+     * Rewrites vendorMessages with the compaction strategy, targeting half the trigger threshold
+     * so that the following turns do not immediately compact again.
+     */
+    private CompactionReport runCompaction(TokenEstimator<V> estimator, ModelCapabilities modelCapabilities) {
+        long triggerTokens = (long) (modelCapabilities.contextWindowTokens() * compactionTriggerFraction);
+        long targetTokens = Math.max(0L, triggerTokens / 2 - maxOutputTokens());
+        CompactionContext<V> context = new CompactionContext<>(
+                targetTokens, estimator, this::startsTurn, this::toCompactionVendorMessage);
+
+        List<V> before = List.copyOf(vendorMessages);
+        long tokensBefore = estimator.estimateInputTokens(before);
+        List<V> after = compactionStrategy.compact(before, context);
+        if (after.isEmpty() || after.getLast() != before.getLast()) {
+            throw new IllegalStateException("Compaction strategy must keep the message being sent");
+        }
+        after = compactionApplied(before, after);
+        long tokensAfter = estimator.estimateInputTokens(after);
+
+        vendorMessages.clear();
+        vendorMessages.addAll(after);
+
+        CompactionReport report = new CompactionReport(before.size(), after.size(), tokensBefore, tokensAfter);
+        lastCompaction = report;
+        totalCompactionTokensSaved += report.tokensSaved();
+        return report;
+    }
+
+    /**
+     * Removes the last message from both histories, undoing a turn that was never answered.
+     */
+    private void rollbackTurn() {
+        messages.removeLast();
+        vendorMessages.removeLast();
+        turnRolledBack();
+    }
+
+    /**
+     * Steps 8-11 of a turn: records the vendor response in both histories and accumulates tokens.
+     */
+    private Message completeTurn(R vendorResponse) {
+        // 8. Convert vendor response to vendor message format and append
         V vendorResponseMessage = vendorResponseToVendorMessage(vendorResponse);
         vendorMessages.add(vendorResponseMessage);
 
-        // 7. Convert vendor response back to our Message format
+        // 9. Convert vendor response back to our Message format
         Message responseMessage = fromVendorResponse(vendorResponse);
 
-        // 8. Append the response to generic history
+        // 10. Append the response to generic history
         messages.add(responseMessage);
 
-        // 9. Accumulate token counts from the response message
+        // 11. Accumulate token counts from the response message and calibrate the estimator
         totalInputTokens += responseMessage.inputTokens();
         totalOutputTokens += responseMessage.outputTokens();
+        OptionalLong reported = reportedInputTokens(vendorResponse);
+        if (pendingInputTokenEstimate > 0 && reported.isPresent()) {
+            long estimate = pendingInputTokenEstimate;
+            tokenEstimator().ifPresent(estimator -> estimator.calibrate(estimate, reported.getAsLong()));
+        }
+        pendingInputTokenEstimate = -1L;
 
         return responseMessage;
     }
@@ -272,6 +886,33 @@ public abstract class Conversation<V, R> {
      */
     protected abstract V toVendorMessage(Message message);
 
+    /**
+     * Converts a message a compaction strategy adds to the history, such as a summary of the
+     * messages it replaces. The default converts it like any other message; implementations
+     * that enrich user messages as they convert them override this to leave compaction's
+     * messages as they are.
+     *
+     * @param message the message produced by the compaction strategy
+     * @return the vendor-specific message object
+     */
+    protected V toCompactionVendorMessage(Message message) {
+        return toVendorMessage(message);
+    }
+
+    /**
+     * Called under the turn lock with the history a compaction strategy returned, before it
+     * replaces vendorMessages, whichever strategy produced it. Implementations repair what the
+     * vendor would reject in the kept messages, such as references to dropped messages. The
+     * default returns the compacted history unchanged.
+     *
+     * @param before the history before compaction
+     * @param after  the history the strategy returned; it must not be modified
+     * @return the history to keep, ending with the same message as after
+     */
+    protected List<V> compactionApplied(List<V> before, List<V> after) {
+        return after;
+    }
+
     /**
      * Sends the entire conversation history to the vendor API and returns the response.
      * This is where the actual API call happens.
@@ -283,6 +924,29 @@ public abstract class Conversation<V, R> {
      */
     protected abstract R sendConversationToVendor();
 
+    /**
+     * Sends the entire conversation history to the vendor API as a streaming request,
+     * forwarding deltas to the listener and returning the assembled response.
+     *
+     * Implementations that support streaming must also override {@link #isStreamable()}.
+     *
+     * @param listener receives text and citation deltas as they arrive
+     * @return the vendor-specific response assembled from the stream
+     */
+    protected R streamConversationToVendor(MessageStreamListener listener) {
+        throw new UnsupportedOperationException(
+                "Streaming not implemented for vendor: " + modelId.vendor());
+    }
+
+    /**
+     * Indicates whether this conversation implementation supports streamed responses.
+     *
+     * @return true if streamConversationToVendor is implemented, false otherwise
+     */
+    protected boolean isStreamable() {
+        return false;
+    }
+
     /**
      * Converts a vendor-specific response to a vendor-specific message format
      * for storage in the vendorMessages history.
@@ -300,6 +964,48 @@ public abstract class Conversation<V, R> {
      */
     protected abstract Message fromVendorResponse(R vendorResponse);
 
+    /**
+     * Returns the estimator used for pre-flight token budgeting.
+     * The default implementation has none, which disables the budget check.
+     *
+     * @return the vendor's token estimator, if any
+     */
+    protected Optional<TokenEstimator<V>> tokenEstimator() {
+        return Optional.empty();
+    }
+
+    /**
+     * Indicates whether a request may begin with this vendor message, i.e. it opens a user turn.
+     * Compaction only cuts the history at such messages. The default accepts every message.
+     *
+     * @param vendorMessage a message from vendorMessages
+     * @return true if the history may start at this message
+     */
+    protected boolean startsTurn(V vendorMessage) {
+        return true;
+    }
+
+    /**
+     * Returns the max_tokens each request asks the vendor for, reserved in the token budget.
+     * The default of 0 reserves nothing; vendors that send an explicit limit override this.
+     *
+     * @return the requested output token limit
+     */
+    protected long maxOutputTokens() {
+        return 0L;
+    }
+
+    /**
+     * Returns the total input tokens the vendor counted for a request, including any tokens
+     * served from or written to a prompt cache. Used to calibrate the token estimator.
+     *
+     * @param vendorResponse the vendor-specific response
+     * @return the reported input tokens, or empty if the vendor does not report them
+     */
+    protected OptionalLong reportedInputTokens(R vendorResponse) {
+        return OptionalLong.empty();
+    }
+
     /**
      * Indicates whether this conversation implementation supports prompt caching.
      * Implementations should return true if they can configure cache control on message blocks.
@@ -308,17 +1014,62 @@ public abstract class Conversation<V, R> {
      */
     protected abstract boolean isCacheable();
 
+    /**
+     * Converts a new system prompt to the vendor's form, rejecting blocks the vendor cannot send.
+     * Called under the turn lock, before the prompt is stored. The default implementation rejects
+     * every system prompt but an empty one.
+     *
+     * @param systemPrompt the new system prompt; empty to remove it
+     */
+    protected void systemPromptChanged(List<TextBlock> systemPrompt) {
+        if (!systemPrompt.isEmpty()) {
+            throw new UnsupportedOperationException("System prompts are not supported for vendor: " + modelId.vendor());
+        }
+    }
+
+    /**
+     * Converts a new tool registry to the vendor's tool definitions. Called under the turn lock,
+     * before the registry is stored. The default implementation rejects every registry but an
+     * empty one.
+     *
+     * @param toolRegistry the new tools
+     */
+    protected void toolRegistryChanged(ToolRegistry toolRegistry) {
+        if (!toolRegistry.isEmpty()) {
+            throw new UnsupportedOperationException("Client-side tools are not supported for vendor: " + modelId.vendor());
+        }
+    }
+
+    /**
+     * Asks for a cache breakpoint after the first prefixBlocks blocks of the next message sent,
+     * so that a prefix shared with other conversations is cached on its own and can be read by
+     * their requests. Used by {@link CacheWarmingScheduler}. Implementations without prompt
+     * caching ignore it.
+     *
+     * @param prefixBlocks the number of leading blocks of the next message forming the prefix
+     */
+    protected void pinCachePrefix(int prefixBlocks) {
+    }
+
     /**
      * Configures prompt caching on the conversation's vendor messages.
      * This method is called just before sending the conversation to the vendor API.
-     * Implementations should modify vendorMessages to add cache control markers
-     * to appropriate blocks, typically the last cacheable block.
+     * Implementations should choose the blocks to mark, typically the last cacheable block,
+     * and apply the markers while building the next request.
      *
      * Cache control settings should not be persisted in the conversation history;
-     * they are applied transiently just before each API call.
+     * vendorMessages must not be modified, so markers never outlive the request they were made for.
      */
     protected abstract void configureCaching();
 
+    /**
+     * Called under the turn lock after a turn that was never sent has been removed from both
+     * histories. Implementations discard any state prepared for its request, such as planned
+     * cache markers, so that it cannot leak into the next request. The default does nothing.
+     */
+    protected void turnRolledBack() {
+    }
+
     // --------- Messages ---------
 
     public List<Message> messages() {
@@ -352,11 +1103,21 @@ public abstract class Conversation<V, R> {
         messages.add(message);
     }
 
+    /**
+     * Releases any vendor resources held by this conversation.
+     * The default implementation holds none.
+     */
+    @Override
+    public void close() {
+    }
+
     public void clearMessages() {
         messages.clear();
         vendorMessages.clear();
         totalInputTokens = 0L;
         totalOutputTokens = 0L;
+        lastCompaction = null;
+        totalCompactionTokensSaved = 0L;
     }
 
     // --------- Vendor Messages ---------
@@ -9,8 +9,11 @@ import java.util.List;
  * @param filePath the path to the PDF file
  * @param mimeType the MIME type of the document (must be "application/pdf")
  * @param citations list of citations for this document (empty list if none)
+ * @param pageRanges the pages to send, or an empty list to send the whole document; only these
+ *                   pages are extracted into the PDF sent to the model
  */
-public record FilePathPDFDocumentBlock(String filePath, String mimeType, List<TextCitation> citations) implements DocumentBlock {
+public record FilePathPDFDocumentBlock(String filePath, String mimeType, List<TextCitation> citations,
+                                       List<PdfPageRange> pageRanges) implements DocumentBlock {
     public FilePathPDFDocumentBlock {
         if (filePath == null || filePath.isBlank()) {
             throw new IllegalArgumentException("File path cannot be null or blank");
@@ -20,5 +23,13 @@ public record FilePathPDFDocumentBlock(String filePath, String mimeType, List<Te
         }
         // Ensure citations list is immutable (convert null to empty list)
         citations = citations == null ? List.of() : List.copyOf(citations);
+        pageRanges = pageRanges == null ? List.of() : List.copyOf(pageRanges);
+    }
+
+    /**
+     * Creates a block that sends the whole document.
+     */
+    public FilePathPDFDocumentBlock(String filePath, String mimeType, List<TextCitation> citations) {
+        this(filePath, mimeType, citations, List.of());
     }
 }
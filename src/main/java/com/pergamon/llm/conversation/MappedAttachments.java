@@ -0,0 +1,239 @@
+package com.pergamon.llm.conversation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * Process-wide registry of memory-mapped file attachments whose base64 encoding is produced
+ * only while a request body is being written.
+ *
+ * {@link AttachmentStore} keeps the base64 String of every attached file on the heap, a third
+ * larger than the file itself, for as long as a conversation holds it. For large files this
+ * registry maps the file read-only instead and hands out a placeholder token in place of the
+ * base64 data. The token is derived from the SHA-256 hash of the content, so it is as stable
+ * as the data it stands for: encoded-message caching, prefix fingerprints and response cache
+ * keys see the same value on every turn. {@link AnthropicMessageEncodingCache} recognizes the
+ * token when it writes a message and encodes the mapped bytes straight into the request body.
+ *
+ * Mapped files must not be modified while attached; the content is read again on every request.
+ * Each read first checks the file's size and modification time against those it was mapped
+ * with, so a file rewritten or truncated in place fails the request with an IOException instead
+ * of sending bytes that no longer match the token, or faulting on pages that no longer exist.
+ * Mappings are reference-counted through {@link Lease}s and dropped once the last lease is
+ * closed, leaving the operating system to page the file in and out.
+ */
+final class MappedAttachments {
+
+    /**
+     * Files at least this large are mapped rather than encoded onto the heap: 256 KB.
+     */
+    static final long MIN_BYTES = 256L * 1024;
+
+    /**
+     * Prefix of every placeholder token; the hex SHA-256 of the content follows it.
+     */
+    static final String TOKEN_PREFIX = "llm-java-mapped-attachment:";
+
+    /**
+     * Length of a complete placeholder token.
+     */
+    static final int TOKEN_LENGTH = TOKEN_PREFIX.length() + 64;
+
+    private static final MappedAttachments SHARED = new MappedAttachments();
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<FileKey, String> fileIndex = new HashMap<>();
+
+    /**
+     * Returns the process-wide registry used by AnthropicConversation.
+     */
+    static MappedAttachments shared() {
+        return SHARED;
+    }
+
+    /**
+     * Maps a file and returns a lease on its placeholder token. A file that is already mapped
+     * under its current path, size and modification time is not hashed again.
+     *
+     * @param path the file to attach
+     * @return a lease that must be closed when the caller no longer needs the mapping
+     * @throws IOException if the file cannot be read or mapped
+     */
+    Lease acquire(Path path) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("path cannot be null");
+        }
+        Path realPath = path.toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
+        if (attributes.size() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File is too large to attach: " + realPath);
+        }
+        FileKey fileKey = new FileKey(realPath, attributes.size(), attributes.lastModifiedTime());
+
+        synchronized (this) {
+            String token = fileIndex.get(fileKey);
+            if (token != null && entries.containsKey(token)) {
+                return lease(token);
+            }
+        }
+
+        // Map and hash outside the lock; a concurrent first mapping of the same file is wasted but harmless
+        MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(realPath, StandardOpenOption.READ)) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size());
+        }
+        String token = TOKEN_PREFIX + sha256(mapping);
+        synchronized (this) {
+            fileIndex.put(fileKey, token);
+            entries.putIfAbsent(token, new Entry(mapping, fileKey));
+            return lease(token);
+        }
+    }
+
+    /**
+     * Returns true if the value has the shape of a placeholder token.
+     */
+    static boolean isToken(String value) {
+        return value.length() == TOKEN_LENGTH && value.startsWith(TOKEN_PREFIX);
+    }
+
+    /**
+     * Returns true if the token refers to a file that is currently mapped.
+     */
+    synchronized boolean isMapped(String token) {
+        return entries.containsKey(token);
+    }
+
+    /**
+     * Returns true if no file is currently mapped.
+     */
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Returns the raw size of a mapped file, or -1 if the token is not mapped.
+     */
+    synchronized long size(String token) {
+        Entry entry = entries.get(token);
+        return entry == null ? -1L : entry.mapping.capacity();
+    }
+
+    /**
+     * Returns a read-only view of a mapped file, positioned at its start.
+     *
+     * @param token the placeholder token
+     * @return an independent buffer over the mapped content
+     * @throws IllegalStateException if the token's mapping has already been released
+     * @throws IOException if the file has been removed, or its size or modification time has
+     *                     changed since it was mapped
+     */
+    ByteBuffer content(String token) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(token);
+        }
+        if (entry == null) {
+            throw new IllegalStateException("Attachment is no longer mapped: " + token);
+        }
+        FileKey mapped = entry.fileKey;
+        BasicFileAttributes attributes = Files.readAttributes(mapped.realPath(), BasicFileAttributes.class);
+        if (attributes.size() != mapped.size() || !attributes.lastModifiedTime().equals(mapped.lastModified())) {
+            throw new IOException("Attachment was modified after it was attached: " + mapped.realPath());
+        }
+        return entry.mapping.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the number of open leases on a token's mapping.
+     */
+    synchronized int referenceCount(String token) {
+        Entry entry = entries.get(token);
+        return entry == null ? 0 : entry.references;
+    }
+
+    private Lease lease(String token) {
+        entries.get(token).references++;
+        return new Lease(this, token);
+    }
+
+    private synchronized void release(String token) {
+        Entry entry = entries.get(token);
+        if (entry == null) {
+            return;
+        }
+        if (--entry.references == 0) {
+            entries.remove(token);
+            fileIndex.values().removeIf(token::equals);
+        }
+    }
+
+    private static String sha256(ByteBuffer content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content.duplicate());
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * A reference-counted handle on a mapped file.
+     * Closing the lease is idempotent; the mapping is dropped once every lease on it is closed.
+     */
+    static final class Lease implements AutoCloseable {
+        private final MappedAttachments registry;
+        private final String token;
+        private boolean released = false;
+
+        private Lease(MappedAttachments registry, String token) {
+            this.registry = registry;
+            this.token = token;
+        }
+
+        /**
+         * Returns the placeholder token that stands in for the base64 data.
+         */
+        String token() {
+            return token;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            registry.release(token);
+        }
+    }
+
+    private static final class Entry {
+        private final MappedByteBuffer mapping;
+        private final FileKey fileKey;
+        private int references = 0;
+
+        private Entry(MappedByteBuffer mapping, FileKey fileKey) {
+            this.mapping = mapping;
+            this.fileKey = fileKey;
+        }
+    }
+
+    private record FileKey(Path realPath, long size, FileTime lastModified) {
+    }
+}
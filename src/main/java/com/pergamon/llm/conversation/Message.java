@@ -3,7 +3,7 @@ package com.pergamon.llm.conversation;
 import java.util.ArrayList;
 import java.util.List;
 
-public record Message(MessageRole role, List<MessageBlock> blocks) {
+public record Message(MessageRole role, List<MessageBlock> blocks, long inputTokens, long outputTokens) {
 
     /**
      * Creates a Message with an immutable copy of the provided blocks list.
@@ -12,6 +12,14 @@ public record Message(MessageRole role, List<MessageBlock> blocks) {
         blocks = List.copyOf(blocks);
     }
 
+    /**
+     * Creates a Message with no token usage, as for messages authored locally
+     * rather than returned by a vendor.
+     */
+    public Message(MessageRole role, List<MessageBlock> blocks) {
+        this(role, blocks, 0L, 0L);
+    }
+
     /**
      * Returns a new Message with the specified block added to the end of the blocks list.
      * The original Message is unchanged.
@@ -22,7 +30,7 @@ public record Message(MessageRole role, List<MessageBlock> blocks) {
     public Message withBlock(MessageBlock block) {
         List<MessageBlock> newBlocks = new ArrayList<>(blocks);
         newBlocks.add(block);
-        return new Message(role, newBlocks);
+        return new Message(role, newBlocks, inputTokens, outputTokens);
     }
 
     /**
@@ -35,6 +43,6 @@ public record Message(MessageRole role, List<MessageBlock> blocks) {
     public Message withBlocks(List<MessageBlock> additionalBlocks) {
         List<MessageBlock> newBlocks = new ArrayList<>(blocks);
         newBlocks.addAll(additionalBlocks);
-        return new Message(role, newBlocks);
+        return new Message(role, newBlocks, inputTokens, outputTokens);
     }
-}
\ No newline at end of file
+}
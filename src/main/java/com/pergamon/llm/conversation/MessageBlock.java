@@ -1,6 +1,6 @@
 package com.pergamon.llm.conversation;
 
 public sealed interface MessageBlock
-    permits TextBlock, ImageBlock, DocumentBlock, UnknownBlock {
+    permits TextBlock, ImageBlock, DocumentBlock, ToolUseBlock, ToolResultBlock, UnknownBlock {
 
 }
@@ -0,0 +1,35 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * Receives incremental output while a streamed response is being generated.
+ *
+ * Callbacks are invoked on the thread that called
+ * {@link Conversation#sendMessageStreaming(Message, MessageStreamListener)}, in the order
+ * the vendor emits them. Once the stream finishes, the assembled response has already been
+ * appended to the conversation history when {@link #onComplete(Message)} is called.
+ */
+public interface MessageStreamListener {
+
+    /**
+     * Called for each fragment of generated text.
+     *
+     * @param text the text delta
+     */
+    void onText(String text);
+
+    /**
+     * Called when the vendor attaches a citation to the text currently being generated.
+     *
+     * @param citation the citation
+     */
+    default void onCitation(TextCitation citation) {
+    }
+
+    /**
+     * Called once with the fully assembled response message.
+     *
+     * @param message the complete response
+     */
+    default void onComplete(Message message) {
+    }
+}
@@ -1,16 +1,31 @@
 package com.pergamon.llm.conversation;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Map;
 import java.util.Optional;
 
 public final class ModelRegistry {
 
+    private static final String DEFAULT_MODELS_RESOURCE = "/models.json";
+
     private final Map<ModelId, ModelDescriptor> byId;
 
     public ModelRegistry(Map<ModelId, ModelDescriptor> byId) {
         this.byId = Map.copyOf(byId);
     }
 
+    /**
+     * Returns the process-wide registry loaded from the bundled models.json resource.
+     * The resource is read once, on first use.
+     *
+     * @return the default model registry
+     * @throws UncheckedIOException if the bundled resource cannot be read
+     */
+    public static ModelRegistry defaultRegistry() {
+        return DefaultRegistryHolder.INSTANCE;
+    }
+
     public Optional<ModelDescriptor> find(ModelId id) {
         return Optional.ofNullable(byId.get(id));
     }
@@ -18,4 +33,16 @@ public final class ModelRegistry {
     public Optional<ModelDescriptor> find(Vendor vendor, String slug) {
         return find(new ModelId(vendor, slug));
     }
+
+    private static final class DefaultRegistryHolder {
+        private static final ModelRegistry INSTANCE = load();
+
+        private static ModelRegistry load() {
+            try {
+                return ModelLoader.loadFromResource(DEFAULT_MODELS_RESOURCE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load " + DEFAULT_MODELS_RESOURCE, e);
+            }
+        }
+    }
 }
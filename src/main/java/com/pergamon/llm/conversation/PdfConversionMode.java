@@ -0,0 +1,27 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * Decides how PDF document blocks are sent.
+ *
+ * A PDF page is billed for its page image as well as its text, so sending the extracted text of
+ * a text-heavy document as a plain text document costs several times fewer tokens. Citations of
+ * the text still report the pages they come from.
+ */
+public enum PdfConversionMode {
+
+    /**
+     * Sends the PDF itself. This is the default.
+     */
+    DOCUMENT,
+
+    /**
+     * Sends the extracted text, or the PDF itself when no text can be extracted.
+     */
+    TEXT,
+
+    /**
+     * Sends the extracted text of text-heavy documents and the PDF itself for documents whose
+     * pages are largely covered by images or that have little extractable text.
+     */
+    AUTO
+}
@@ -0,0 +1,1029 @@
+package com.pergamon.llm.conversation;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal read-only model of a PDF file: its objects, cross-reference data and page tree.
+ *
+ * The library has no PDF dependency, and splitting pages or reading their text only needs the
+ * object structure, not rendering. This reader covers what PDF writers commonly produce:
+ * classic cross-reference tables and cross-reference streams, incremental updates, compressed
+ * object streams, and Flate, ASCIIHex and ASCII85 encoded streams with PNG predictors. A file
+ * whose cross-reference data is damaged is recovered by scanning it for objects. Encrypted
+ * documents are rejected with UnsupportedOperationException.
+ *
+ * Objects are represented as Java values: dictionaries are {@code Map<Name, Object>}, arrays
+ * are {@code List<Object>}, integers are Long, reals are Double, and booleans are Boolean.
+ * The other object types are the nested records of this class.
+ */
+final class PdfDocument {
+
+    /**
+     * An indirect reference, {@code 12 0 R}.
+     */
+    record Ref(int number, int generation) {
+    }
+
+    /**
+     * A name, {@code /Type}, with any {@code #xx} escapes decoded.
+     */
+    record Name(String value) {
+    }
+
+    /**
+     * A literal or hexadecimal string, as raw bytes.
+     */
+    record PdfString(byte[] bytes) {
+    }
+
+    /**
+     * A stream; the data is still encoded with the filters named in the dictionary.
+     */
+    record Stream(Map<Name, Object> dictionary, byte[] data) {
+    }
+
+    /**
+     * A bare keyword, such as {@code obj} or a content stream operator.
+     */
+    record Keyword(String value) {
+    }
+
+    /**
+     * The null object.
+     */
+    enum Null {
+        INSTANCE
+    }
+
+    /**
+     * A page, with the attributes it inherits from the page tree copied into its dictionary.
+     *
+     * @param ref the page object, or null for a page that is not an indirect object
+     * @param dictionary the page dictionary, including inherited attributes
+     */
+    record Page(Ref ref, Map<Name, Object> dictionary) {
+    }
+
+    static final Name TYPE = new Name("Type");
+    static final Name PAGE = new Name("Page");
+    static final Name PAGES = new Name("Pages");
+    static final Name KIDS = new Name("Kids");
+    static final Name COUNT = new Name("Count");
+    static final Name PARENT = new Name("Parent");
+    static final Name ROOT = new Name("Root");
+    static final Name CATALOG = new Name("Catalog");
+    static final Name LENGTH = new Name("Length");
+    static final Name RESOURCES = new Name("Resources");
+    static final Name CONTENTS = new Name("Contents");
+
+    private static final Name SIZE = new Name("Size");
+    private static final Name PREV = new Name("Prev");
+    private static final Name XREF_STM = new Name("XRefStm");
+    private static final Name ENCRYPT = new Name("Encrypt");
+    private static final Name INDEX = new Name("Index");
+    private static final Name W = new Name("W");
+    private static final Name N = new Name("N");
+    private static final Name FIRST = new Name("First");
+    private static final Name OBJ_STM = new Name("ObjStm");
+    private static final Name FILTER = new Name("Filter");
+    private static final Name DECODE_PARMS = new Name("DecodeParms");
+    private static final Name PREDICTOR = new Name("Predictor");
+    private static final Name COLORS = new Name("Colors");
+    private static final Name BITS_PER_COMPONENT = new Name("BitsPerComponent");
+    private static final Name COLUMNS = new Name("Columns");
+
+    /**
+     * Attributes a page inherits from its ancestors in the page tree.
+     */
+    private static final List<Name> INHERITABLE = List.of(
+            RESOURCES, new Name("MediaBox"), new Name("CropBox"), new Name("Rotate"));
+
+    private static final int MAX_REF_DEPTH = 32;
+
+    /**
+     * Largest output a single Flate stream may inflate to: 64 MB. A few hundred kilobytes of
+     * deflated zeros inflate to gigabytes, and no content, object or xref stream comes near this.
+     */
+    static final int MAX_INFLATED_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Location of an object: a byte offset, or an index within a compressed object stream.
+     */
+    private record Location(long offset, int streamNumber, int index) {
+        static final Location FREE = new Location(-1, -1, -1);
+
+        boolean compressed() {
+            return streamNumber >= 0;
+        }
+    }
+
+    private final byte[] data;
+    private final Map<Integer, Location> xref = new HashMap<>();
+    private final Map<Integer, Object> objects = new HashMap<>();
+    private Map<Name, Object> trailer;
+    private List<Page> pages;
+    private final Set<Ref> pageTreeRefs = new HashSet<>();
+
+    private PdfDocument(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Parses a PDF file.
+     *
+     * @param data the file content
+     * @return the parsed document
+     * @throws IllegalArgumentException if the content is not a PDF or has no page tree
+     * @throws UnsupportedOperationException if the document is encrypted
+     */
+    static PdfDocument parse(byte[] data) {
+        if (data == null || indexOf(data, "%PDF-".getBytes(StandardCharsets.US_ASCII), 0, Math.min(data.length, 1024)) < 0) {
+            throw new IllegalArgumentException("Not a PDF document");
+        }
+        PdfDocument document = new PdfDocument(data);
+        try {
+            document.readCrossReferences(document.findStartXref());
+        } catch (RuntimeException e) {
+            document.xref.clear();
+            document.trailer = null;
+        }
+        if (document.trailer != null && document.trailer.containsKey(ENCRYPT)) {
+            throw new UnsupportedOperationException("Encrypted PDF documents are not supported");
+        }
+        if (document.trailer == null || !(document.trailer.get(ROOT) instanceof Ref) || !document.hasReadablePages()) {
+            document.reconstruct();
+        }
+        if (document.trailer.containsKey(ENCRYPT)) {
+            throw new UnsupportedOperationException("Encrypted PDF documents are not supported");
+        }
+        return document;
+    }
+
+    /**
+     * Returns true if the page tree can be read with the current cross-reference data; wrong
+     * offsets surface here rather than on first use.
+     */
+    private boolean hasReadablePages() {
+        try {
+            pages();
+            return true;
+        } catch (RuntimeException e) {
+            objects.clear();
+            pageTreeRefs.clear();
+            pages = null;
+            return false;
+        }
+    }
+
+    /**
+     * Returns the trailer dictionary.
+     */
+    Map<Name, Object> trailer() {
+        return trailer;
+    }
+
+    /**
+     * Returns the pages in document order.
+     *
+     * @throws IllegalArgumentException if the document has no page tree
+     */
+    List<Page> pages() {
+        if (pages == null) {
+            Map<Name, Object> catalog = dictionary(trailer.get(ROOT));
+            if (catalog == null || catalog.get(PAGES) == null) {
+                throw new IllegalArgumentException("PDF document has no page tree");
+            }
+            List<Page> collected = new ArrayList<>();
+            collectPages(catalog.get(PAGES), Map.of(), collected);
+            pages = List.copyOf(collected);
+        }
+        return pages;
+    }
+
+    /**
+     * Returns the references of every node of the page tree, pages included.
+     */
+    Set<Ref> pageTreeRefs() {
+        pages();
+        return pageTreeRefs;
+    }
+
+    /**
+     * Follows indirect references until a direct object is reached.
+     *
+     * @param value any object
+     * @return the direct object, or {@link Null#INSTANCE} for a missing object
+     */
+    Object resolve(Object value) {
+        for (int depth = 0; value instanceof Ref ref; depth++) {
+            if (depth == MAX_REF_DEPTH) {
+                return Null.INSTANCE;
+            }
+            value = object(ref.number());
+        }
+        return value == null ? Null.INSTANCE : value;
+    }
+
+    /**
+     * Resolves a value to a dictionary; a stream resolves to its dictionary.
+     *
+     * @return the dictionary, or null if the value is neither a dictionary nor a stream
+     */
+    @SuppressWarnings("unchecked")
+    Map<Name, Object> dictionary(Object value) {
+        Object resolved = resolve(value);
+        if (resolved instanceof Map<?, ?> map) {
+            return (Map<Name, Object>) map;
+        }
+        if (resolved instanceof Stream stream) {
+            return stream.dictionary();
+        }
+        return null;
+    }
+
+    /**
+     * Resolves a value to an array; any other object resolves to an empty list.
+     */
+    @SuppressWarnings("unchecked")
+    List<Object> array(Object value) {
+        Object resolved = resolve(value);
+        return resolved instanceof List<?> list ? (List<Object>) list : List.of();
+    }
+
+    /**
+     * Resolves a value to an integer.
+     *
+     * @return the value, or the fallback if it is not a number
+     */
+    long number(Object value, long fallback) {
+        Object resolved = resolve(value);
+        return resolved instanceof Number number ? number.longValue() : fallback;
+    }
+
+    /**
+     * Returns the object with the given number, or {@link Null#INSTANCE} if it does not exist.
+     */
+    Object object(int number) {
+        Object cached = objects.get(number);
+        if (cached != null) {
+            return cached;
+        }
+        Location location = xref.get(number);
+        Object value;
+        if (location == null || location == Location.FREE) {
+            value = Null.INSTANCE;
+        } else if (location.compressed()) {
+            value = loadObjectStream(location.streamNumber(), number);
+        } else {
+            value = parseIndirect((int) location.offset());
+        }
+        objects.put(number, value);
+        return value;
+    }
+
+    /**
+     * Decodes a stream's data through the filters named in its dictionary.
+     *
+     * @throws IllegalArgumentException if the data is corrupt or inflates beyond {@link #MAX_INFLATED_BYTES}
+     * @throws UnsupportedOperationException if a filter is not supported
+     */
+    byte[] decode(Stream stream) {
+        Object filters = resolve(stream.dictionary().get(FILTER));
+        Object parameters = resolve(stream.dictionary().get(DECODE_PARMS));
+        List<Object> filterList = filters instanceof List<?> ? array(filters) : filters instanceof Name ? List.of(filters) : List.of();
+        List<Object> parameterList = parameters instanceof List<?> ? array(parameters) : List.of(parameters);
+
+        byte[] decoded = stream.data();
+        for (int i = 0; i < filterList.size(); i++) {
+            Name filter = (Name) resolve(filterList.get(i));
+            Map<Name, Object> parms = i < parameterList.size() ? dictionary(parameterList.get(i)) : null;
+            decoded = switch (filter.value()) {
+                case "FlateDecode", "Fl" -> unpredict(inflate(decoded), parms);
+                case "ASCIIHexDecode", "AHx" -> asciiHexDecode(decoded);
+                case "ASCII85Decode", "A85" -> ascii85Decode(decoded);
+                default -> throw new UnsupportedOperationException("Unsupported PDF filter: " + filter.value());
+            };
+        }
+        return decoded;
+    }
+
+    private void collectPages(Object node, Map<Name, Object> inherited, List<Page> out) {
+        if (node instanceof Ref ref && !pageTreeRefs.add(ref)) {
+            // A node reachable twice would make the tree a cycle
+            return;
+        }
+        Map<Name, Object> dictionary = dictionary(node);
+        if (dictionary == null) {
+            return;
+        }
+        Map<Name, Object> attributes = new HashMap<>(inherited);
+        for (Name name : INHERITABLE) {
+            if (dictionary.containsKey(name)) {
+                attributes.put(name, dictionary.get(name));
+            }
+        }
+
+        Object type = resolve(dictionary.get(TYPE));
+        if (PAGES.equals(type) || (!PAGE.equals(type) && dictionary.containsKey(KIDS))) {
+            for (Object kid : array(dictionary.get(KIDS))) {
+                collectPages(kid, attributes, out);
+            }
+            return;
+        }
+        Map<Name, Object> page = new LinkedHashMap<>(dictionary);
+        attributes.forEach(page::putIfAbsent);
+        out.add(new Page(node instanceof Ref ref ? ref : null, page));
+    }
+
+    private int findStartXref() {
+        byte[] keyword = "startxref".getBytes(StandardCharsets.US_ASCII);
+        int from = Math.max(0, data.length - 2048);
+        int at = -1;
+        for (int i = indexOf(data, keyword, from, data.length); i >= 0; i = indexOf(data, keyword, i + 1, data.length)) {
+            at = i;
+        }
+        if (at < 0) {
+            throw new IllegalArgumentException("startxref not found");
+        }
+        Lexer lexer = new Lexer(data, at + keyword.length);
+        return (int) (long) (Long) lexer.readObject();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readCrossReferences(int offset) {
+        Set<Integer> visited = new HashSet<>();
+        Integer next = offset;
+        while (next != null && visited.add(next)) {
+            Lexer lexer = new Lexer(data, next);
+            Object first = lexer.readObject();
+            Map<Name, Object> sectionTrailer;
+            if (first instanceof Keyword keyword && keyword.value().equals("xref")) {
+                Map<Integer, Location> table = new HashMap<>();
+                Object token = lexer.readObject();
+                while (token instanceof Long start) {
+                    long count = (Long) lexer.readObject();
+                    for (int i = 0; i < count; i++) {
+                        long entryOffset = (Long) lexer.readObject();
+                        lexer.readObject();
+                        boolean inUse = ((Keyword) lexer.readObject()).value().equals("n");
+                        table.put((int) (start + i), inUse ? new Location(entryOffset, -1, 0) : Location.FREE);
+                    }
+                    token = lexer.readObject();
+                }
+                sectionTrailer = (Map<Name, Object>) lexer.readObject();
+                // Hybrid files list compressed objects only in the stream named by XRefStm
+                if (sectionTrailer.get(XREF_STM) instanceof Long streamOffset && visited.add(streamOffset.intValue())) {
+                    readCrossReferenceStream(streamOffset.intValue());
+                }
+                table.forEach(xref::putIfAbsent);
+            } else {
+                sectionTrailer = readCrossReferenceStream(next);
+            }
+            if (trailer == null) {
+                trailer = sectionTrailer;
+            }
+            next = sectionTrailer.get(PREV) instanceof Long prev ? prev.intValue() : null;
+        }
+    }
+
+    private Map<Name, Object> readCrossReferenceStream(int offset) {
+        Stream stream = (Stream) parseIndirect(offset);
+        Map<Name, Object> dictionary = stream.dictionary();
+        byte[] entries = decode(stream);
+        List<Object> widths = array(dictionary.get(W));
+        int[] w = {(int) number(widths.get(0), 0), (int) number(widths.get(1), 0), (int) number(widths.get(2), 0)};
+        List<Object> index = dictionary.containsKey(INDEX)
+                ? array(dictionary.get(INDEX))
+                : List.of(0L, dictionary.get(SIZE));
+
+        int position = 0;
+        int entryLength = w[0] + w[1] + w[2];
+        for (int section = 0; section + 1 < index.size(); section += 2) {
+            long start = number(index.get(section), 0);
+            long count = number(index.get(section + 1), 0);
+            for (int i = 0; i < count && position + entryLength <= entries.length; i++) {
+                long type = w[0] == 0 ? 1 : field(entries, position, w[0]);
+                long second = field(entries, position + w[0], w[1]);
+                long third = field(entries, position + w[0] + w[1], w[2]);
+                position += entryLength;
+                Location location = switch ((int) type) {
+                    case 1 -> new Location(second, -1, 0);
+                    case 2 -> new Location(-1, (int) second, (int) third);
+                    default -> Location.FREE;
+                };
+                xref.putIfAbsent((int) (start + i), location);
+            }
+        }
+        return dictionary;
+    }
+
+    private static long field(byte[] bytes, int position, int width) {
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            value = (value << 8) | (bytes[position + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Rebuilds the cross-reference data by scanning for {@code n g obj} headers; later
+     * definitions of an object win, as they would in an incremental update.
+     */
+    private void reconstruct() {
+        xref.clear();
+        objects.clear();
+        byte[] keyword = "obj".getBytes(StandardCharsets.US_ASCII);
+        for (int i = indexOf(data, keyword, 0, data.length); i >= 0; i = indexOf(data, keyword, i + 1, data.length)) {
+            if (i + 3 < data.length && Lexer.isRegular(data[i + 3])) {
+                continue;
+            }
+            int[] header = objectHeaderBefore(i);
+            if (header != null) {
+                xref.put(header[0], new Location(header[1], -1, 0));
+            }
+        }
+
+        // Objects inside object streams, unless also written uncompressed
+        Map<Integer, Location> compressed = new HashMap<>();
+        for (Map.Entry<Integer, Location> entry : Map.copyOf(xref).entrySet()) {
+            try {
+                if (object(entry.getKey()) instanceof Stream stream && OBJ_STM.equals(stream.dictionary().get(TYPE))) {
+                    Lexer lexer = new Lexer(decode(stream), 0);
+                    long count = number(stream.dictionary().get(N), 0);
+                    for (int index = 0; index < count; index++) {
+                        compressed.putIfAbsent((int) (long) (Long) lexer.readObject(), new Location(-1, entry.getKey(), index));
+                        lexer.readObject();
+                    }
+                }
+            } catch (RuntimeException e) {
+                // An unreadable object stream only loses the objects inside it
+            }
+        }
+        compressed.forEach(xref::putIfAbsent);
+        objects.clear();
+
+        trailer = new HashMap<>();
+        for (int number : xref.keySet()) {
+            try {
+                Map<Name, Object> dictionary = dictionary(object(number));
+                if (dictionary != null && CATALOG.equals(dictionary.get(TYPE))) {
+                    trailer.put(ROOT, new Ref(number, 0));
+                }
+                if (dictionary != null && dictionary.containsKey(ENCRYPT)) {
+                    trailer.put(ENCRYPT, dictionary.get(ENCRYPT));
+                }
+            } catch (RuntimeException e) {
+                // Skip objects that cannot be parsed
+            }
+        }
+        if (!trailer.containsKey(ROOT)) {
+            throw new IllegalArgumentException("PDF document has no catalog");
+        }
+    }
+
+    /**
+     * Parses the {@code number generation} pair ending just before an {@code obj} keyword.
+     *
+     * @return the object number and the offset of the header, or null if there is no header
+     */
+    private int[] objectHeaderBefore(int keyword) {
+        int position = keyword - 1;
+        int generationEnd = skipWhitespaceBackward(position);
+        int generationStart = skipDigitsBackward(generationEnd);
+        if (generationStart == generationEnd || generationStart < 0 || !Lexer.isWhitespace(data[generationStart])) {
+            return null;
+        }
+        int numberEnd = skipWhitespaceBackward(generationStart);
+        int numberStart = skipDigitsBackward(numberEnd);
+        if (numberStart == numberEnd || (numberStart >= 0 && Lexer.isRegular(data[numberStart]))) {
+            return null;
+        }
+        try {
+            int number = Integer.parseInt(new String(data, numberStart + 1, numberEnd - numberStart, StandardCharsets.US_ASCII));
+            return new int[]{number, numberStart + 1};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private int skipWhitespaceBackward(int position) {
+        while (position >= 0 && Lexer.isWhitespace(data[position])) {
+            position--;
+        }
+        return position;
+    }
+
+    private int skipDigitsBackward(int position) {
+        while (position >= 0 && data[position] >= '0' && data[position] <= '9') {
+            position--;
+        }
+        return position;
+    }
+
+    private Object loadObjectStream(int streamNumber, int wanted) {
+        if (!(object(streamNumber) instanceof Stream stream)) {
+            return Null.INSTANCE;
+        }
+        byte[] content = decode(stream);
+        long count = number(stream.dictionary().get(N), 0);
+        long first = number(stream.dictionary().get(FIRST), 0);
+        Lexer header = new Lexer(content, 0);
+        long[][] entries = new long[(int) count][];
+        for (int i = 0; i < count; i++) {
+            entries[i] = new long[]{(Long) header.readObject(), (Long) header.readObject()};
+        }
+
+        // Cache every object the cross-reference data places in this stream
+        Object found = Null.INSTANCE;
+        for (int i = 0; i < count; i++) {
+            int number = (int) entries[i][0];
+            Location location = xref.get(number);
+            if (location == null || location.streamNumber() != streamNumber) {
+                continue;
+            }
+            Object value = new Lexer(content, (int) (first + entries[i][1])).readObject();
+            if (number == wanted) {
+                found = value;
+            } else {
+                objects.putIfAbsent(number, value);
+            }
+        }
+        return found;
+    }
+
+    private Object parseIndirect(int offset) {
+        Lexer lexer = new Lexer(data, offset);
+        lexer.readObject();
+        lexer.readObject();
+        Object keyword = lexer.readObject();
+        if (!(keyword instanceof Keyword obj) || !obj.value().equals("obj")) {
+            throw new IllegalArgumentException("No object at offset " + offset);
+        }
+        Object value = lexer.readObject();
+        int afterValue = lexer.position();
+        if (value instanceof Map<?, ?> && lexer.readObject() instanceof Keyword stream && stream.value().equals("stream")) {
+            @SuppressWarnings("unchecked")
+            Map<Name, Object> dictionary = (Map<Name, Object>) value;
+            return new Stream(dictionary, streamData(dictionary, lexer.position()));
+        }
+        lexer.seek(afterValue);
+        return value;
+    }
+
+    private byte[] streamData(Map<Name, Object> dictionary, int afterKeyword) {
+        int start = afterKeyword;
+        if (start < data.length && data[start] == '\r') {
+            start++;
+        }
+        if (start < data.length && data[start] == '\n') {
+            start++;
+        }
+        byte[] endstream = "endstream".getBytes(StandardCharsets.US_ASCII);
+        long length = -1;
+        try {
+            length = number(dictionary.get(LENGTH), -1);
+        } catch (RuntimeException e) {
+            // Fall back to searching for endstream
+        }
+        if (length >= 0 && start + length <= data.length) {
+            int end = (int) (start + length);
+            int check = end;
+            while (check < data.length && Lexer.isWhitespace(data[check])) {
+                check++;
+            }
+            if (indexOf(data, endstream, check, Math.min(data.length, check + endstream.length)) == check) {
+                return Arrays.copyOfRange(data, start, end);
+            }
+        }
+        int end = indexOf(data, endstream, start, data.length);
+        if (end < 0) {
+            throw new IllegalArgumentException("Unterminated PDF stream");
+        }
+        if (end > start && data[end - 1] == '\n') {
+            end--;
+        }
+        if (end > start && data[end - 1] == '\r') {
+            end--;
+        }
+        return Arrays.copyOfRange(data, start, end);
+    }
+
+    private static byte[] inflate(byte[] input) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, input.length * 3));
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // Truncated streams keep whatever was decoded
+                    break;
+                }
+                if (out.size() > MAX_INFLATED_BYTES - count) {
+                    throw new IllegalArgumentException("PDF stream inflates beyond " + MAX_INFLATED_BYTES + " bytes");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt Flate stream in PDF", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reverses a PNG predictor; TIFF predictors are not supported.
+     */
+    private byte[] unpredict(byte[] input, Map<Name, Object> parms) {
+        long predictor = parms == null ? 1 : number(parms.get(PREDICTOR), 1);
+        if (predictor < 10) {
+            if (predictor > 1) {
+                throw new UnsupportedOperationException("Unsupported PDF predictor: " + predictor);
+            }
+            return input;
+        }
+        int colors = (int) number(parms.get(COLORS), 1);
+        int bits = (int) number(parms.get(BITS_PER_COMPONENT), 8);
+        int columns = (int) number(parms.get(COLUMNS), 1);
+        int bytesPerPixel = Math.max(1, (colors * bits + 7) / 8);
+        int rowLength = (columns * colors * bits + 7) / 8;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length);
+        byte[] previous = new byte[rowLength];
+        byte[] row = new byte[rowLength];
+        for (int position = 0; position < input.length; position += rowLength + 1) {
+            int filter = input[position] & 0xFF;
+            int available = Math.min(rowLength, input.length - position - 1);
+            Arrays.fill(row, (byte) 0);
+            System.arraycopy(input, position + 1, row, 0, available);
+            for (int i = 0; i < rowLength; i++) {
+                int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+                int up = previous[i] & 0xFF;
+                int upLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+                int value = row[i] & 0xFF;
+                row[i] = (byte) switch (filter) {
+                    case 1 -> value + left;
+                    case 2 -> value + up;
+                    case 3 -> value + (left + up) / 2;
+                    case 4 -> value + paeth(left, up, upLeft);
+                    default -> value;
+                };
+            }
+            out.write(row, 0, available);
+            System.arraycopy(row, 0, previous, 0, rowLength);
+        }
+        return out.toByteArray();
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int distanceLeft = Math.abs(estimate - left);
+        int distanceUp = Math.abs(estimate - up);
+        int distanceUpLeft = Math.abs(estimate - upLeft);
+        if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+            return left;
+        }
+        return distanceUp <= distanceUpLeft ? up : upLeft;
+    }
+
+    private static byte[] asciiHexDecode(byte[] input) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+        int high = -1;
+        for (byte b : input) {
+            if (b == '>') {
+                break;
+            }
+            int digit = Character.digit(b, 16);
+            if (digit < 0) {
+                continue;
+            }
+            if (high < 0) {
+                high = digit;
+            } else {
+                out.write(high << 4 | digit);
+                high = -1;
+            }
+        }
+        if (high >= 0) {
+            out.write(high << 4);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii85Decode(byte[] input) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length);
+        long tuple = 0;
+        int count = 0;
+        for (int i = 0; i < input.length; i++) {
+            int b = input[i] & 0xFF;
+            if (b == '~') {
+                break;
+            }
+            if (b == 'z' && count == 0) {
+                out.writeBytes(new byte[4]);
+                continue;
+            }
+            if (b < '!' || b > 'u') {
+                continue;
+            }
+            tuple = tuple * 85 + (b - '!');
+            if (++count == 5) {
+                out.write((int) (tuple >>> 24));
+                out.write((int) (tuple >>> 16));
+                out.write((int) (tuple >>> 8));
+                out.write((int) tuple);
+                tuple = 0;
+                count = 0;
+            }
+        }
+        if (count > 1) {
+            for (int i = count; i < 5; i++) {
+                tuple = tuple * 85 + 84;
+            }
+            for (int i = 0; i < count - 1; i++) {
+                out.write((int) (tuple >>> (24 - 8 * i)));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static int indexOf(byte[] data, byte[] pattern, int from, int to) {
+        for (int i = Math.max(0, from); i <= to - pattern.length; i++) {
+            if (Arrays.equals(data, i, i + pattern.length, pattern, 0, pattern.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads PDF objects from a byte array; used for file structure and content streams alike.
+     * An integer pair followed by {@code R} is read as a {@link Ref}, and any bare word that is
+     * not {@code true}, {@code false} or {@code null} is returned as a {@link Keyword}.
+     */
+    static final class Lexer {
+        private final byte[] data;
+        private int position;
+
+        Lexer(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        int position() {
+            return position;
+        }
+
+        void seek(int position) {
+            this.position = position;
+        }
+
+        byte[] data() {
+            return data;
+        }
+
+        /**
+         * Reads the next object or keyword.
+         *
+         * @return the object, or null at the end of the data
+         */
+        Object readObject() {
+            skipWhitespace();
+            if (position >= data.length) {
+                return null;
+            }
+            byte b = data[position];
+            switch (b) {
+                case '/':
+                    return readName();
+                case '(':
+                    return readLiteralString();
+                case '<':
+                    if (position + 1 < data.length && data[position + 1] == '<') {
+                        return readDictionary();
+                    }
+                    return readHexString();
+                case '[':
+                    return readArray();
+                case '>', ']', ')', '{', '}':
+                    if (b == '>' && position + 1 < data.length && data[position + 1] == '>') {
+                        position += 2;
+                        return new Keyword(">>");
+                    }
+                    position++;
+                    return new Keyword(String.valueOf((char) b));
+                default:
+                    if (isNumberStart(b)) {
+                        return readNumberOrRef();
+                    }
+                    String word = readRegular();
+                    return switch (word) {
+                        case "true" -> Boolean.TRUE;
+                        case "false" -> Boolean.FALSE;
+                        case "null" -> Null.INSTANCE;
+                        default -> new Keyword(word);
+                    };
+            }
+        }
+
+        private Map<Name, Object> readDictionary() {
+            position += 2;
+            Map<Name, Object> dictionary = new LinkedHashMap<>();
+            while (true) {
+                skipWhitespace();
+                if (position >= data.length) {
+                    return dictionary;
+                }
+                if (data[position] == '>' && position + 1 < data.length && data[position + 1] == '>') {
+                    position += 2;
+                    return dictionary;
+                }
+                Object key = readObject();
+                if (!(key instanceof Name name)) {
+                    // Malformed entry; skip the token and keep going
+                    continue;
+                }
+                skipWhitespace();
+                if (position < data.length && data[position] == '>' && position + 1 < data.length && data[position + 1] == '>') {
+                    continue;
+                }
+                dictionary.put(name, readObject());
+            }
+        }
+
+        private List<Object> readArray() {
+            position++;
+            List<Object> array = new ArrayList<>();
+            while (true) {
+                skipWhitespace();
+                if (position >= data.length) {
+                    return array;
+                }
+                if (data[position] == ']') {
+                    position++;
+                    return array;
+                }
+                array.add(readObject());
+            }
+        }
+
+        private Name readName() {
+            position++;
+            ByteArrayOutputStream name = new ByteArrayOutputStream();
+            while (position < data.length && isRegular(data[position])) {
+                byte b = data[position++];
+                if (b == '#' && position + 1 < data.length
+                        && Character.digit(data[position], 16) >= 0 && Character.digit(data[position + 1], 16) >= 0) {
+                    name.write(Character.digit(data[position], 16) << 4 | Character.digit(data[position + 1], 16));
+                    position += 2;
+                } else {
+                    name.write(b);
+                }
+            }
+            return new Name(name.toString(StandardCharsets.ISO_8859_1));
+        }
+
+        private PdfString readLiteralString() {
+            position++;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int depth = 1;
+            while (position < data.length) {
+                byte b = data[position++];
+                if (b == '\\' && position < data.length) {
+                    byte escaped = data[position++];
+                    switch (escaped) {
+                        case 'n' -> out.write('\n');
+                        case 'r' -> out.write('\r');
+                        case 't' -> out.write('\t');
+                        case 'b' -> out.write('\b');
+                        case 'f' -> out.write('\f');
+                        case '\r' -> {
+                            if (position < data.length && data[position] == '\n') {
+                                position++;
+                            }
+                        }
+                        case '\n' -> {
+                        }
+                        default -> {
+                            if (escaped >= '0' && escaped <= '7') {
+                                int value = escaped - '0';
+                                for (int i = 0; i < 2 && position < data.length && data[position] >= '0' && data[position] <= '7'; i++) {
+                                    value = value * 8 + (data[position++] - '0');
+                                }
+                                out.write(value);
+                            } else {
+                                out.write(escaped);
+                            }
+                        }
+                    }
+                } else if (b == '(') {
+                    depth++;
+                    out.write(b);
+                } else if (b == ')') {
+                    if (--depth == 0) {
+                        break;
+                    }
+                    out.write(b);
+                } else {
+                    out.write(b);
+                }
+            }
+            return new PdfString(out.toByteArray());
+        }
+
+        private PdfString readHexString() {
+            position++;
+            int start = position;
+            while (position < data.length && data[position] != '>') {
+                position++;
+            }
+            byte[] hex = Arrays.copyOfRange(data, start, position);
+            position++;
+            return new PdfString(asciiHexDecode(hex));
+        }
+
+        private Object readNumberOrRef() {
+            Object number = readNumber();
+            if (!(number instanceof Long first) || first < 0) {
+                return number;
+            }
+            int afterFirst = position;
+            skipWhitespace();
+            if (position < data.length && data[position] >= '0' && data[position] <= '9') {
+                Object second = readNumber();
+                skipWhitespace();
+                if (second instanceof Long generation && position < data.length && data[position] == 'R'
+                        && (position + 1 == data.length || !isRegular(data[position + 1]))) {
+                    position++;
+                    return new Ref(first.intValue(), generation.intValue());
+                }
+            }
+            position = afterFirst;
+            return first;
+        }
+
+        private Object readNumber() {
+            String token = readRegular();
+            try {
+                if (token.indexOf('.') >= 0) {
+                    return Double.parseDouble(token);
+                }
+                return Long.parseLong(token.startsWith("+") ? token.substring(1) : token);
+            } catch (NumberFormatException e) {
+                // Malformed numbers such as "--1" are read as zero, as most readers do
+                return 0L;
+            }
+        }
+
+        private String readRegular() {
+            int start = position;
+            while (position < data.length && isRegular(data[position])) {
+                position++;
+            }
+            if (position == start) {
+                position++;
+            }
+            return new String(data, start, position - start, StandardCharsets.ISO_8859_1);
+        }
+
+        void skipWhitespace() {
+            while (position < data.length) {
+                byte b = data[position];
+                if (isWhitespace(b)) {
+                    position++;
+                } else if (b == '%') {
+                    while (position < data.length && data[position] != '\n' && data[position] != '\r') {
+                        position++;
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private static boolean isNumberStart(byte b) {
+            return (b >= '0' && b <= '9') || b == '+' || b == '-' || b == '.';
+        }
+
+        static boolean isWhitespace(byte b) {
+            return b == 0 || b == '\t' || b == '\n' || b == '\f' || b == '\r' || b == ' ';
+        }
+
+        static boolean isRegular(byte b) {
+            return !isWhitespace(b) && "()<>[]{}/%".indexOf(b) < 0;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.pergamon.llm.conversation;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copies selected pages of a PDF into a new, smaller PDF.
+ *
+ * Every page sent to the model is billed, so sending the five pages a question is about
+ * instead of a 400-page manual cuts both the request size and the input tokens. The new
+ * document contains the selected pages and the objects they reference (content streams, fonts,
+ * images, annotations), renumbered and written with a classic cross-reference table. Stream data
+ * is copied without being decoded. Document-level structures that refer to pages across the
+ * whole file, such as outlines and the structure tree, are not carried over, and references to
+ * pages that were left out become null.
+ */
+final class PdfPageExtractor {
+
+    private static final int CATALOG_NUMBER = 1;
+    private static final int PAGE_TREE_NUMBER = 2;
+
+    private PdfPageExtractor() {
+    }
+
+    /**
+     * Maps page numbers of an extracted document back to the original document.
+     *
+     * @param originalPages the original number of each extracted page, in order
+     */
+    record PageMap(List<Integer> originalPages) {
+        PageMap {
+            originalPages = List.copyOf(originalPages);
+        }
+
+        /**
+         * Returns the original number of an extracted page.
+         *
+         * @param page an extracted page number, from 1
+         * @return the original page number; a number outside the extracted range is returned
+         *         as it is rather than attributed to a page that was not cited
+         */
+        long originalPage(long page) {
+            if (page < 1 || page > originalPages.size()) {
+                return page;
+            }
+            return originalPages.get((int) page - 1);
+        }
+
+        /**
+         * Returns the original exclusive end of a range whose extracted exclusive end is given.
+         */
+        long originalEndExclusive(long endExclusive) {
+            return originalPage(endExclusive - 1) + 1;
+        }
+    }
+
+    /**
+     * The extracted document and the original numbers of its pages.
+     */
+    record Extraction(byte[] pdf, PageMap pageMap) {
+    }
+
+    /**
+     * Extracts the pages covered by the given ranges, in ascending order and without duplicates.
+     *
+     * @param pdf the original document
+     * @param ranges the pages to keep; must not be empty
+     * @return the extracted document
+     * @throws IllegalArgumentException if a range is beyond the end of the document
+     * @throws UnsupportedOperationException if the document is encrypted
+     */
+    static Extraction extract(byte[] pdf, List<PdfPageRange> ranges) {
+        if (ranges == null || ranges.isEmpty()) {
+            throw new IllegalArgumentException("At least one page range is required");
+        }
+        PdfDocument document = PdfDocument.parse(pdf);
+        List<PdfDocument.Page> pages = document.pages();
+        List<Integer> selected = PdfPageRange.selectedPages(ranges);
+        if (selected.getLast() > pages.size()) {
+            throw new IllegalArgumentException("Page " + selected.getLast()
+                    + " is beyond the end of the document, which has " + pages.size() + " pages");
+        }
+        return new Extraction(new Writer(document, pages, selected).write(), new PageMap(selected));
+    }
+
+    /**
+     * Writes the new document, copying referenced objects breadth-first under new numbers.
+     */
+    private static final class Writer {
+        private final PdfDocument document;
+        private final List<PdfDocument.Page> pages;
+        private final List<Integer> selected;
+
+        private final Map<PdfDocument.Ref, Integer> numbers = new HashMap<>();
+        private final Set<PdfDocument.Ref> excluded = new HashSet<>();
+        private final ArrayDeque<PdfDocument.Ref> pending = new ArrayDeque<>();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Map<Integer, Integer> offsets = new HashMap<>();
+        private int nextNumber = PAGE_TREE_NUMBER + 1;
+
+        private Writer(PdfDocument document, List<PdfDocument.Page> pages, List<Integer> selected) {
+            this.document = document;
+            this.pages = pages;
+            this.selected = selected;
+        }
+
+        private byte[] write() {
+            // 1. Number the selected pages first; every other page tree node is left out
+            int[] pageNumbers = new int[selected.size()];
+            for (int i = 0; i < selected.size(); i++) {
+                pageNumbers[i] = nextNumber++;
+                PdfDocument.Ref ref = pages.get(selected.get(i) - 1).ref();
+                if (ref != null) {
+                    numbers.put(ref, pageNumbers[i]);
+                }
+            }
+            excluded.addAll(document.pageTreeRefs());
+            excluded.removeAll(numbers.keySet());
+            if (document.trailer().get(PdfDocument.ROOT) instanceof PdfDocument.Ref root) {
+                numbers.put(root, CATALOG_NUMBER);
+            }
+
+            // 2. Catalog and a flat page tree
+            write("%PDF-1.7\n%âãÏÓ\n");
+            Map<PdfDocument.Name, Object> catalog = new LinkedHashMap<>();
+            catalog.put(PdfDocument.TYPE, PdfDocument.CATALOG);
+            catalog.put(PdfDocument.PAGES, new PdfDocument.Ref(PAGE_TREE_NUMBER, 0));
+            writeObject(CATALOG_NUMBER, catalog);
+
+            List<Object> kids = new ArrayList<>();
+            for (int number : pageNumbers) {
+                kids.add(new PdfDocument.Ref(number, 0));
+            }
+            Map<PdfDocument.Name, Object> pageTree = new LinkedHashMap<>();
+            pageTree.put(PdfDocument.TYPE, PdfDocument.PAGES);
+            pageTree.put(PdfDocument.KIDS, kids);
+            pageTree.put(PdfDocument.COUNT, (long) kids.size());
+            writeObject(PAGE_TREE_NUMBER, pageTree);
+
+            // 3. The pages, then everything they reach
+            for (int i = 0; i < selected.size(); i++) {
+                Map<PdfDocument.Name, Object> page = new LinkedHashMap<>(pages.get(selected.get(i) - 1).dictionary());
+                page.remove(PdfDocument.PARENT);
+                page.put(PdfDocument.TYPE, PdfDocument.PAGE);
+                Map<PdfDocument.Name, Object> copied = copyDictionary(page);
+                copied.put(PdfDocument.PARENT, new PdfDocument.Ref(PAGE_TREE_NUMBER, 0));
+                writeObject(pageNumbers[i], copied);
+            }
+            while (!pending.isEmpty()) {
+                PdfDocument.Ref ref = pending.poll();
+                writeObject(numbers.get(ref), copy(document.object(ref.number())));
+            }
+
+            // 4. Cross-reference table and trailer
+            int size = nextNumber;
+            int xrefOffset = out.size();
+            StringBuilder xref = new StringBuilder("xref\n0 ").append(size).append("\n0000000000 65535 f \n");
+            for (int number = 1; number < size; number++) {
+                Integer offset = offsets.get(number);
+                xref.append(offset == null
+                        ? "0000000000 00000 f \n"
+                        : String.format("%010d 00000 n \n", offset));
+            }
+            xref.append("trailer\n<< /Size ").append(size).append(" /Root ").append(CATALOG_NUMBER).append(" 0 R >>\n")
+                    .append("startxref\n").append(xrefOffset).append("\n%%EOF\n");
+            write(xref.toString());
+            return out.toByteArray();
+        }
+
+        private Object copy(Object value) {
+            return switch (value) {
+                // Missing objects and truncated entries are written as null
+                case null -> PdfDocument.Null.INSTANCE;
+                case PdfDocument.Ref ref -> copyRef(ref);
+                case Map<?, ?> map -> copyDictionary(map);
+                case List<?> list -> {
+                    List<Object> copied = new ArrayList<>(list.size());
+                    list.forEach(entry -> copied.add(copy(entry)));
+                    yield copied;
+                }
+                case PdfDocument.Stream stream -> {
+                    Map<PdfDocument.Name, Object> dictionary = copyDictionary(stream.dictionary());
+                    dictionary.put(PdfDocument.LENGTH, (long) stream.data().length);
+                    yield new PdfDocument.Stream(dictionary, stream.data());
+                }
+                default -> value;
+            };
+        }
+
+        private Map<PdfDocument.Name, Object> copyDictionary(Map<?, ?> dictionary) {
+            Map<PdfDocument.Name, Object> copied = new LinkedHashMap<>();
+            dictionary.forEach((key, entry) -> copied.put((PdfDocument.Name) key, copy(entry)));
+            return copied;
+        }
+
+        private Object copyRef(PdfDocument.Ref ref) {
+            if (excluded.contains(ref)) {
+                return PdfDocument.Null.INSTANCE;
+            }
+            Integer number = numbers.get(ref);
+            if (number == null) {
+                number = nextNumber++;
+                numbers.put(ref, number);
+                pending.add(ref);
+            }
+            return new PdfDocument.Ref(number, 0);
+        }
+
+        private void writeObject(int number, Object value) {
+            offsets.put(number, out.size());
+            write(number + " 0 obj\n");
+            writeValue(value);
+            write("\nendobj\n");
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeValue(Object value) {
+            switch (value) {
+                case Map<?, ?> map -> {
+                    write("<<");
+                    ((Map<PdfDocument.Name, Object>) map).forEach((key, entry) -> {
+                        writeValue(key);
+                        write(" ");
+                        writeValue(entry);
+                    });
+                    write(">>");
+                }
+                case List<?> list -> {
+                    write("[");
+                    for (int i = 0; i < list.size(); i++) {
+                        if (i > 0) {
+                            write(" ");
+                        }
+                        writeValue(list.get(i));
+                    }
+                    write("]");
+                }
+                case PdfDocument.Stream stream -> {
+                    writeValue(stream.dictionary());
+                    write("\nstream\n");
+                    out.writeBytes(stream.data());
+                    write("\nendstream");
+                }
+                case PdfDocument.Name name -> write(escapeName(name.value()));
+                case PdfDocument.PdfString string -> write("<" + HexFormat.of().formatHex(string.bytes()) + ">");
+                case PdfDocument.Ref ref -> write(ref.number() + " " + ref.generation() + " R");
+                case Double real -> write(real.isNaN() || real.isInfinite()
+                        ? "0"
+                        : BigDecimal.valueOf(real).stripTrailingZeros().toPlainString());
+                case PdfDocument.Keyword keyword -> write(keyword.value());
+                case PdfDocument.Null ignored -> write("null");
+                default -> write(String.valueOf(value));
+            }
+        }
+
+        private static String escapeName(String name) {
+            StringBuilder escaped = new StringBuilder("/");
+            for (byte b : name.getBytes(StandardCharsets.ISO_8859_1)) {
+                int c = b & 0xFF;
+                if (c < 0x21 || c > 0x7E || c == '#' || "()<>[]{}/%".indexOf(c) >= 0) {
+                    escaped.append('#').append(String.format("%02X", c));
+                } else {
+                    escaped.append((char) c);
+                }
+            }
+            return escaped.toString();
+        }
+
+        private void write(String text) {
+            out.writeBytes(text.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.pergamon.llm.conversation;
+
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * An inclusive range of PDF pages, numbered from 1.
+ *
+ * @param firstPage the first page of the range
+ * @param lastPage the last page of the range, at least firstPage
+ */
+public record PdfPageRange(int firstPage, int lastPage) {
+
+    public PdfPageRange {
+        if (firstPage < 1) {
+            throw new IllegalArgumentException("firstPage must be at least 1: " + firstPage);
+        }
+        if (lastPage < firstPage) {
+            throw new IllegalArgumentException("lastPage must not precede firstPage: " + firstPage + "-" + lastPage);
+        }
+    }
+
+    /**
+     * Returns a range covering a single page.
+     *
+     * @param page the page number, from 1
+     * @return the range
+     */
+    public static PdfPageRange of(int page) {
+        return new PdfPageRange(page, page);
+    }
+
+    /**
+     * Returns the distinct pages covered by any of the ranges, in ascending order.
+     *
+     * @param ranges the page ranges
+     * @return the selected page numbers
+     */
+    static List<Integer> selectedPages(List<PdfPageRange> ranges) {
+        TreeSet<Integer> pages = new TreeSet<>();
+        for (PdfPageRange range : ranges) {
+            for (int page = range.firstPage(); page <= range.lastPage(); page++) {
+                pages.add(page);
+            }
+        }
+        return List.copyOf(pages);
+    }
+}
@@ -0,0 +1,763 @@
+package com.pergamon.llm.conversation;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the text of a PDF page by page and measures how much of its pages images cover.
+ *
+ * Text is read from the page content streams, following form XObjects: strings shown by the
+ * text operators are decoded through each font's ToUnicode map, or through its simple encoding
+ * when it has none, and spaces and line breaks are inferred from where the strings are placed
+ * and how wide their glyphs are. The result is meant for a model to read and cite, not to
+ * reproduce the layout. Characters of fonts that cannot be mapped to Unicode are left out.
+ */
+final class PdfTextExtractor {
+
+    /**
+     * Documents whose images cover more than this share of the page area are not text-heavy.
+     */
+    static final double MAX_TEXT_HEAVY_IMAGE_COVERAGE = 0.1;
+
+    /**
+     * Documents with fewer extracted characters per page than this are not text-heavy.
+     */
+    static final int MIN_TEXT_HEAVY_CHARACTERS_PER_PAGE = 200;
+
+    private static final String PAGE_SEPARATOR = "\n\n";
+    private static final int MAX_FORM_DEPTH = 8;
+    private static final int MAX_CMAP_RANGE = 0xFFFF;
+    private static final double[] IDENTITY = {1, 0, 0, 1, 0, 0};
+    private static final Charset WIN_ANSI = Charset.forName("windows-1252");
+
+    private static final PdfDocument.Name FONT = new PdfDocument.Name("Font");
+    private static final PdfDocument.Name XOBJECT = new PdfDocument.Name("XObject");
+    private static final PdfDocument.Name SUBTYPE = new PdfDocument.Name("Subtype");
+    private static final PdfDocument.Name MATRIX = new PdfDocument.Name("Matrix");
+    private static final PdfDocument.Name MEDIA_BOX = new PdfDocument.Name("MediaBox");
+    private static final PdfDocument.Name CROP_BOX = new PdfDocument.Name("CropBox");
+    private static final PdfDocument.Name TO_UNICODE = new PdfDocument.Name("ToUnicode");
+    private static final PdfDocument.Name ENCODING = new PdfDocument.Name("Encoding");
+    private static final PdfDocument.Name DIFFERENCES = new PdfDocument.Name("Differences");
+    private static final PdfDocument.Name DESCENDANT_FONTS = new PdfDocument.Name("DescendantFonts");
+    private static final PdfDocument.Name WIDTHS = new PdfDocument.Name("Widths");
+    private static final PdfDocument.Name FIRST_CHAR = new PdfDocument.Name("FirstChar");
+    private static final PdfDocument.Name FONT_DESCRIPTOR = new PdfDocument.Name("FontDescriptor");
+    private static final PdfDocument.Name MISSING_WIDTH = new PdfDocument.Name("MissingWidth");
+    private static final PdfDocument.Name FONT_MATRIX = new PdfDocument.Name("FontMatrix");
+    private static final PdfDocument.Name DW = new PdfDocument.Name("DW");
+    private static final PdfDocument.Name W = new PdfDocument.Name("W");
+
+    /**
+     * Glyph names whose Unicode value is not spelled out by the name itself.
+     */
+    private static final Map<String, String> GLYPH_NAMES = Map.ofEntries(
+            Map.entry("space", " "), Map.entry("exclam", "!"), Map.entry("quotedbl", "\""),
+            Map.entry("numbersign", "#"), Map.entry("dollar", "$"), Map.entry("percent", "%"),
+            Map.entry("ampersand", "&"), Map.entry("quotesingle", "'"), Map.entry("parenleft", "("),
+            Map.entry("parenright", ")"), Map.entry("asterisk", "*"), Map.entry("plus", "+"),
+            Map.entry("comma", ","), Map.entry("hyphen", "-"), Map.entry("period", "."),
+            Map.entry("slash", "/"), Map.entry("zero", "0"), Map.entry("one", "1"), Map.entry("two", "2"),
+            Map.entry("three", "3"), Map.entry("four", "4"), Map.entry("five", "5"), Map.entry("six", "6"),
+            Map.entry("seven", "7"), Map.entry("eight", "8"), Map.entry("nine", "9"), Map.entry("colon", ":"),
+            Map.entry("semicolon", ";"), Map.entry("less", "<"), Map.entry("equal", "="),
+            Map.entry("greater", ">"), Map.entry("question", "?"), Map.entry("at", "@"),
+            Map.entry("bracketleft", "["), Map.entry("backslash", "\\"), Map.entry("bracketright", "]"),
+            Map.entry("asciicircum", "^"), Map.entry("underscore", "_"), Map.entry("grave", "`"),
+            Map.entry("braceleft", "{"), Map.entry("bar", "|"), Map.entry("braceright", "}"),
+            Map.entry("asciitilde", "~"), Map.entry("quoteleft", "\u2018"), Map.entry("quoteright", "\u2019"),
+            Map.entry("quotedblleft", "\u201C"), Map.entry("quotedblright", "\u201D"),
+            Map.entry("quotesinglbase", "\u201A"), Map.entry("quotedblbase", "\u201E"),
+            Map.entry("endash", "\u2013"), Map.entry("emdash", "\u2014"), Map.entry("bullet", "\u2022"),
+            Map.entry("ellipsis", "\u2026"), Map.entry("minus", "\u2212"), Map.entry("degree", "\u00B0"),
+            Map.entry("copyright", "\u00A9"), Map.entry("registered", "\u00AE"), Map.entry("trademark", "\u2122"),
+            Map.entry("section", "\u00A7"), Map.entry("paragraph", "\u00B6"), Map.entry("dagger", "\u2020"),
+            Map.entry("daggerdbl", "\u2021"), Map.entry("germandbls", "\u00DF"), Map.entry("fi", "fi"),
+            Map.entry("fl", "fl"), Map.entry("ff", "ff"), Map.entry("ffi", "ffi"), Map.entry("ffl", "ffl"));
+
+    /**
+     * Accent suffixes of glyph names such as {@code eacute}, and the combining marks they stand for.
+     */
+    private static final Map<String, String> GLYPH_ACCENTS = Map.of(
+            "acute", "\u0301", "grave", "\u0300", "circumflex", "\u0302", "dieresis", "\u0308",
+            "tilde", "\u0303", "cedilla", "\u0327", "ring", "\u030A", "caron", "\u030C");
+
+    private PdfTextExtractor() {
+    }
+
+    /**
+     * The text of a document and where each page starts in it.
+     *
+     * Offsets count Unicode code points, as the character indexes of citations do.
+     *
+     * @param text the text of the pages, separated by blank lines
+     * @param pageNumbers the original number of each page, in order
+     * @param pageStarts the offset at which each page's text starts
+     * @param imageCoverage the average share of page area covered by images, from 0 to 1
+     */
+    record ExtractedText(String text, List<Integer> pageNumbers, List<Integer> pageStarts, double imageCoverage) {
+        ExtractedText {
+            pageNumbers = List.copyOf(pageNumbers);
+            pageStarts = List.copyOf(pageStarts);
+        }
+
+        /**
+         * Whether the document is mostly text, so that sending its text instead loses little.
+         */
+        boolean isTextHeavy() {
+            return imageCoverage <= MAX_TEXT_HEAVY_IMAGE_COVERAGE
+                    && text.length() >= (long) MIN_TEXT_HEAVY_CHARACTERS_PER_PAGE * pageNumbers.size();
+        }
+
+        /**
+         * Returns the original number of the page containing the character at an offset.
+         */
+        long pageAt(long offset) {
+            // The last page starting at or before the offset; empty pages share the next page's start
+            int low = 0;
+            int high = pageStarts.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (pageStarts.get(middle) <= offset) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return pageNumbers.get(Math.max(0, low - 1));
+        }
+
+        /**
+         * Returns the original exclusive end page of a range whose exclusive end offset is given.
+         */
+        long pageEndExclusive(long endOffset) {
+            return pageAt(Math.max(0, endOffset - 1)) + 1;
+        }
+    }
+
+    /**
+     * Extracts the text of the pages covered by the given ranges, or of every page.
+     *
+     * @param pdf the document
+     * @param ranges the pages to read, in ascending order without duplicates; empty for all pages
+     * @return the extracted text
+     * @throws IllegalArgumentException if the data is not a readable PDF or a range is beyond its end
+     * @throws UnsupportedOperationException if the document is encrypted or uses an unsupported filter
+     */
+    static ExtractedText extract(byte[] pdf, List<PdfPageRange> ranges) {
+        PdfDocument document = PdfDocument.parse(pdf);
+        List<PdfDocument.Page> pages = document.pages();
+        List<Integer> selected = new ArrayList<>();
+        if (ranges.isEmpty()) {
+            for (int page = 1; page <= pages.size(); page++) {
+                selected.add(page);
+            }
+        } else {
+            selected.addAll(PdfPageRange.selectedPages(ranges));
+            if (selected.getLast() > pages.size()) {
+                throw new IllegalArgumentException("Page " + selected.getLast()
+                        + " is beyond the end of the document, which has " + pages.size() + " pages");
+            }
+        }
+
+        Extractor extractor = new Extractor(document);
+        StringBuilder text = new StringBuilder();
+        List<Integer> starts = new ArrayList<>(selected.size());
+        int offset = 0;
+        double coverage = 0;
+        for (int page : selected) {
+            ContentState content = extractor.page(pages.get(page - 1));
+            String pageText = content.text.toString().strip();
+            if (!pageText.isEmpty() && !text.isEmpty()) {
+                text.append(PAGE_SEPARATOR);
+                offset += PAGE_SEPARATOR.length();
+            }
+            starts.add(offset);
+            text.append(pageText);
+            offset += pageText.codePointCount(0, pageText.length());
+            coverage += content.imageCoverage;
+        }
+        return new ExtractedText(text.toString(), selected, starts, selected.isEmpty() ? 0 : coverage / selected.size());
+    }
+
+    /**
+     * Runs content streams, keeping the fonts of one document so each is loaded once.
+     */
+    private static final class Extractor {
+        private final PdfDocument document;
+        private final Map<Map<PdfDocument.Name, Object>, Font> fonts = new IdentityHashMap<>();
+
+        private Extractor(PdfDocument document) {
+            this.document = document;
+        }
+
+        private ContentState page(PdfDocument.Page page) {
+            Map<PdfDocument.Name, Object> dictionary = page.dictionary();
+            ContentState state = new ContentState();
+
+            // 1. Content may be one stream or an array of streams that together form one
+            Object contents = document.resolve(dictionary.get(PdfDocument.CONTENTS));
+            List<Object> streams = contents instanceof List<?> ? document.array(contents) : List.of(contents);
+            StringBuilder combined = new StringBuilder();
+            for (Object stream : streams) {
+                if (document.resolve(stream) instanceof PdfDocument.Stream resolved) {
+                    combined.append(new String(document.decode(resolved), StandardCharsets.ISO_8859_1)).append('\n');
+                }
+            }
+            run(combined.toString().getBytes(StandardCharsets.ISO_8859_1),
+                    document.dictionary(dictionary.get(PdfDocument.RESOURCES)), 0, state);
+
+            // 2. Image coverage relative to the visible page area
+            List<Object> box = document.array(dictionary.getOrDefault(CROP_BOX, dictionary.get(MEDIA_BOX)));
+            double pageArea = box.size() == 4
+                    ? Math.abs((number(box.get(2)) - number(box.get(0))) * (number(box.get(3)) - number(box.get(1))))
+                    : 612.0 * 792.0;
+            state.imageCoverage = pageArea > 0 ? Math.min(1.0, state.imageArea / pageArea) : 0;
+            return state;
+        }
+
+        private void run(byte[] content, Map<PdfDocument.Name, Object> resources, int depth, ContentState state) {
+            PdfDocument.Lexer lexer = new PdfDocument.Lexer(content, 0);
+            List<Object> operands = new ArrayList<>();
+            for (Object token = lexer.readObject(); token != null; token = lexer.readObject()) {
+                if (!(token instanceof PdfDocument.Keyword keyword)) {
+                    operands.add(token);
+                    continue;
+                }
+                GraphicsState gs = state.graphics;
+                switch (keyword.value()) {
+                    case "q" -> state.saved.push(gs.copy());
+                    case "Q" -> {
+                        if (!state.saved.isEmpty()) {
+                            state.graphics = state.saved.pop();
+                        }
+                    }
+                    case "cm" -> {
+                        if (operands.size() >= 6) {
+                            gs.ctm = multiply(matrix(operands, operands.size() - 6), gs.ctm);
+                        }
+                    }
+                    case "BT" -> {
+                        state.textMatrix = IDENTITY;
+                        state.lineMatrix = IDENTITY;
+                    }
+                    case "Tf" -> {
+                        if (operands.size() >= 2) {
+                            gs.font = font(resources, operands.get(operands.size() - 2));
+                            gs.fontSize = number(operands.getLast());
+                        }
+                    }
+                    case "Tc" -> gs.charSpacing = lastNumber(operands, gs.charSpacing);
+                    case "Tw" -> gs.wordSpacing = lastNumber(operands, gs.wordSpacing);
+                    case "Tz" -> gs.horizontalScaling = lastNumber(operands, gs.horizontalScaling * 100) / 100;
+                    case "TL" -> gs.leading = lastNumber(operands, gs.leading);
+                    case "Td", "TD" -> {
+                        if (operands.size() >= 2) {
+                            double ty = number(operands.getLast());
+                            if (keyword.value().equals("TD")) {
+                                gs.leading = -ty;
+                            }
+                            state.moveLine(number(operands.get(operands.size() - 2)), ty);
+                        }
+                    }
+                    case "Tm" -> {
+                        if (operands.size() >= 6) {
+                            state.lineMatrix = matrix(operands, operands.size() - 6);
+                            state.textMatrix = state.lineMatrix;
+                        }
+                    }
+                    case "T*" -> state.moveLine(0, -gs.leading);
+                    case "Tj" -> show(operands, state);
+                    case "'" -> {
+                        state.moveLine(0, -gs.leading);
+                        show(operands, state);
+                    }
+                    case "\"" -> {
+                        if (operands.size() >= 3) {
+                            gs.wordSpacing = number(operands.get(operands.size() - 3));
+                            gs.charSpacing = number(operands.get(operands.size() - 2));
+                        }
+                        state.moveLine(0, -gs.leading);
+                        show(operands, state);
+                    }
+                    case "TJ" -> {
+                        if (!operands.isEmpty() && operands.getLast() instanceof List<?> elements) {
+                            for (Object element : elements) {
+                                if (element instanceof PdfDocument.PdfString string) {
+                                    state.show(string.bytes());
+                                } else if (element instanceof Number adjustment) {
+                                    state.advance(-adjustment.doubleValue() / 1000 * gs.fontSize * gs.horizontalScaling);
+                                }
+                            }
+                        }
+                    }
+                    case "Do" -> {
+                        if (!operands.isEmpty()) {
+                            drawXObject(resources, operands.getLast(), depth, state);
+                        }
+                    }
+                    case "BI" -> {
+                        skipInlineImage(lexer);
+                        state.imageArea += area(gs.ctm);
+                    }
+                    default -> {
+                        // Path, color and marked-content operators do not affect the text
+                    }
+                }
+                operands.clear();
+            }
+        }
+
+        private static void show(List<Object> operands, ContentState state) {
+            if (!operands.isEmpty() && operands.getLast() instanceof PdfDocument.PdfString string) {
+                state.show(string.bytes());
+            }
+        }
+
+        private void drawXObject(Map<PdfDocument.Name, Object> resources, Object name, int depth, ContentState state) {
+            Map<PdfDocument.Name, Object> xobjects = resources == null ? null : document.dictionary(resources.get(XOBJECT));
+            if (xobjects == null || !(document.resolve(xobjects.get(name)) instanceof PdfDocument.Stream xobject)) {
+                return;
+            }
+            Object subtype = document.resolve(xobject.dictionary().get(SUBTYPE));
+            if (subtype instanceof PdfDocument.Name type && type.value().equals("Image")) {
+                // Images are drawn into the unit square, so the CTM's determinant is their area
+                state.imageArea += area(state.graphics.ctm);
+            } else if (subtype instanceof PdfDocument.Name type && type.value().equals("Form") && depth < MAX_FORM_DEPTH) {
+                state.saved.push(state.graphics.copy());
+                List<Object> formMatrix = document.array(xobject.dictionary().get(MATRIX));
+                if (formMatrix.size() == 6) {
+                    state.graphics.ctm = multiply(matrix(formMatrix, 0), state.graphics.ctm);
+                }
+                Map<PdfDocument.Name, Object> formResources = document.dictionary(xobject.dictionary().get(PdfDocument.RESOURCES));
+                run(document.decode(xobject), formResources != null ? formResources : resources, depth + 1, state);
+                state.graphics = state.saved.pop();
+            }
+        }
+
+        private Font font(Map<PdfDocument.Name, Object> resources, Object name) {
+            Map<PdfDocument.Name, Object> fontResources = resources == null ? null : document.dictionary(resources.get(FONT));
+            Map<PdfDocument.Name, Object> dictionary = fontResources == null ? null : document.dictionary(fontResources.get(name));
+            return dictionary == null ? null : fonts.computeIfAbsent(dictionary, key -> new Font(document, key));
+        }
+    }
+
+    /**
+     * Skips an inline image, {@code BI <dictionary> ID <data> EI}, leaving the lexer after its end.
+     */
+    private static void skipInlineImage(PdfDocument.Lexer lexer) {
+        for (Object token = lexer.readObject(); token != null; token = lexer.readObject()) {
+            if (token instanceof PdfDocument.Keyword keyword && keyword.value().equals("ID")) {
+                break;
+            }
+        }
+        byte[] data = lexer.data();
+        int position = lexer.position() + 1;
+        while (position + 1 < data.length && !(data[position] == 'E' && data[position + 1] == 'I'
+                && PdfDocument.Lexer.isWhitespace(data[position - 1])
+                && (position + 2 == data.length || PdfDocument.Lexer.isWhitespace(data[position + 2])))) {
+            position++;
+        }
+        lexer.seek(Math.min(data.length, position + 2));
+    }
+
+    /**
+     * The parts of the graphics state that {@code q} and {@code Q} save and restore.
+     */
+    private static final class GraphicsState {
+        private double[] ctm = IDENTITY;
+        private Font font;
+        private double fontSize = 1;
+        private double charSpacing;
+        private double wordSpacing;
+        private double horizontalScaling = 1;
+        private double leading;
+
+        private GraphicsState copy() {
+            GraphicsState copy = new GraphicsState();
+            copy.ctm = ctm;
+            copy.font = font;
+            copy.fontSize = fontSize;
+            copy.charSpacing = charSpacing;
+            copy.wordSpacing = wordSpacing;
+            copy.horizontalScaling = horizontalScaling;
+            copy.leading = leading;
+            return copy;
+        }
+    }
+
+    /**
+     * The state of one page while its content runs, and the text and image area collected so far.
+     */
+    private static final class ContentState {
+        private final StringBuilder text = new StringBuilder();
+        private final Deque<GraphicsState> saved = new ArrayDeque<>();
+        private GraphicsState graphics = new GraphicsState();
+        private double[] textMatrix = IDENTITY;
+        private double[] lineMatrix = IDENTITY;
+        private double imageArea;
+        private double imageCoverage;
+
+        // Where the last shown string ended, in user space
+        private double lastX = Double.NaN;
+        private double lastY = Double.NaN;
+
+        private void moveLine(double tx, double ty) {
+            lineMatrix = multiply(new double[]{1, 0, 0, 1, tx, ty}, lineMatrix);
+            textMatrix = lineMatrix;
+        }
+
+        private void advance(double tx) {
+            textMatrix = multiply(new double[]{1, 0, 0, 1, tx, 0}, textMatrix);
+        }
+
+        private void show(byte[] bytes) {
+            Font font = graphics.font;
+            if (font == null) {
+                return;
+            }
+
+            // 1. Separate from the previous string by where this one starts
+            double[] rendering = multiply(textMatrix, graphics.ctm);
+            double size = Math.abs(graphics.fontSize) * Math.sqrt(Math.abs(area(rendering)));
+            double x = rendering[4];
+            double y = rendering[5];
+            if (!text.isEmpty() && !Double.isNaN(lastY)) {
+                double gap = x - lastX;
+                if (Math.abs(y - lastY) > size * 0.5) {
+                    separate('\n');
+                } else if (gap > size * 0.15 || gap < -size) {
+                    separate(' ');
+                }
+            }
+
+            // 2. Decode the codes and advance by their widths
+            int position = 0;
+            while (position < bytes.length) {
+                int length = Math.min(font.codeLength(bytes, position), bytes.length - position);
+                int code = 0;
+                for (int i = 0; i < length; i++) {
+                    code = code << 8 | bytes[position + i] & 0xFF;
+                }
+                position += length;
+                font.unicode(code).codePoints()
+                        .filter(c -> !Character.isISOControl(c))
+                        .forEach(text::appendCodePoint);
+                double spacing = graphics.charSpacing + (length == 1 && code == ' ' ? graphics.wordSpacing : 0);
+                advance((font.width(code) * graphics.fontSize + spacing) * graphics.horizontalScaling);
+            }
+            double[] end = multiply(textMatrix, graphics.ctm);
+            lastX = end[4];
+            lastY = end[5];
+        }
+
+        private void separate(char separator) {
+            char last = text.charAt(text.length() - 1);
+            if (separator == '\n' && last == ' ') {
+                text.setLength(text.length() - 1);
+            } else if (Character.isWhitespace(last)) {
+                return;
+            }
+            text.append(separator);
+        }
+    }
+
+    /**
+     * Maps the codes of a font's strings to Unicode and to glyph widths in text space.
+     */
+    private static final class Font {
+        private final boolean composite;
+        private final Map<Integer, String> toUnicode = new HashMap<>();
+        private final List<int[]> codespaces = new ArrayList<>();
+        private final String[] encoding = new String[256];
+        private final Map<Integer, Double> widths = new HashMap<>();
+        private double defaultWidth;
+
+        private Font(PdfDocument document, Map<PdfDocument.Name, Object> dictionary) {
+            Object subtype = document.resolve(dictionary.get(SUBTYPE));
+            composite = subtype instanceof PdfDocument.Name name && name.value().equals("Type0");
+            if (document.resolve(dictionary.get(TO_UNICODE)) instanceof PdfDocument.Stream cmap) {
+                try {
+                    readCMap(document.decode(cmap));
+                } catch (IllegalArgumentException | UnsupportedOperationException e) {
+                    // An unreadable map leaves the font's own encoding to decode with
+                    toUnicode.clear();
+                    codespaces.clear();
+                }
+            }
+            if (composite) {
+                readCompositeWidths(document, document.dictionary(document.array(dictionary.get(DESCENDANT_FONTS)).stream()
+                        .findFirst().orElse(null)));
+            } else {
+                readEncoding(document, dictionary);
+                readSimpleWidths(document, dictionary, subtype);
+            }
+        }
+
+        private int codeLength(byte[] bytes, int position) {
+            for (int[] range : codespaces) {
+                int length = range[2];
+                if (position + length <= bytes.length) {
+                    int code = 0;
+                    for (int i = 0; i < length; i++) {
+                        code = code << 8 | bytes[position + i] & 0xFF;
+                    }
+                    if (code >= range[0] && code <= range[1]) {
+                        return length;
+                    }
+                }
+            }
+            return composite ? 2 : 1;
+        }
+
+        private String unicode(int code) {
+            String mapped = toUnicode.get(code);
+            if (mapped != null) {
+                return mapped;
+            }
+            if (composite || code > 0xFF) {
+                return "";
+            }
+            return encoding[code] == null ? "" : encoding[code];
+        }
+
+        private double width(int code) {
+            return widths.getOrDefault(code, defaultWidth);
+        }
+
+        private void readCMap(byte[] cmap) {
+            PdfDocument.Lexer lexer = new PdfDocument.Lexer(cmap, 0);
+            for (Object token = lexer.readObject(); token != null; token = lexer.readObject()) {
+                if (!(token instanceof PdfDocument.Keyword keyword)) {
+                    continue;
+                }
+                switch (keyword.value()) {
+                    case "begincodespacerange" -> {
+                        for (List<Object> entry = entry(lexer, 2, "endcodespacerange"); entry != null;
+                             entry = entry(lexer, 2, "endcodespacerange")) {
+                            if (entry.get(0) instanceof PdfDocument.PdfString low && entry.get(1) instanceof PdfDocument.PdfString high) {
+                                codespaces.add(new int[]{code(low), code(high), low.bytes().length});
+                            }
+                        }
+                        codespaces.sort((a, b) -> Integer.compare(a[2], b[2]));
+                    }
+                    case "beginbfchar" -> {
+                        for (List<Object> entry = entry(lexer, 2, "endbfchar"); entry != null; entry = entry(lexer, 2, "endbfchar")) {
+                            if (entry.get(0) instanceof PdfDocument.PdfString source) {
+                                toUnicode.put(code(source), destination(entry.get(1)));
+                            }
+                        }
+                    }
+                    case "beginbfrange" -> {
+                        for (List<Object> entry = entry(lexer, 3, "endbfrange"); entry != null; entry = entry(lexer, 3, "endbfrange")) {
+                            if (entry.get(0) instanceof PdfDocument.PdfString low && entry.get(1) instanceof PdfDocument.PdfString high) {
+                                mapRange(code(low), Math.min(code(high), code(low) + MAX_CMAP_RANGE), entry.get(2));
+                            }
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        private void mapRange(int low, int high, Object destination) {
+            if (destination instanceof List<?> values) {
+                for (int code = low; code <= high && code - low < values.size(); code++) {
+                    toUnicode.put(code, destination(values.get(code - low)));
+                }
+            } else if (destination instanceof PdfDocument.PdfString start) {
+                // Consecutive codes map to consecutive values of the destination's last character
+                String first = destination(start);
+                if (first.isEmpty()) {
+                    return;
+                }
+                String prefix = first.substring(0, first.length() - 1);
+                char last = first.charAt(first.length() - 1);
+                for (int code = low; code <= high; code++) {
+                    toUnicode.put(code, prefix + (char) (last + code - low));
+                }
+            }
+        }
+
+        /**
+         * Reads the next entry of a CMap section, or returns null at the section's end keyword.
+         */
+        private static List<Object> entry(PdfDocument.Lexer lexer, int size, String end) {
+            List<Object> entry = new ArrayList<>(size);
+            while (entry.size() < size) {
+                Object token = lexer.readObject();
+                if (token == null || token instanceof PdfDocument.Keyword keyword && keyword.value().equals(end)) {
+                    return null;
+                }
+                entry.add(token);
+            }
+            return entry;
+        }
+
+        private static int code(PdfDocument.PdfString string) {
+            int code = 0;
+            for (byte b : string.bytes()) {
+                code = code << 8 | b & 0xFF;
+            }
+            return code;
+        }
+
+        private static String destination(Object value) {
+            if (value instanceof PdfDocument.PdfString string) {
+                return new String(string.bytes(), StandardCharsets.UTF_16BE);
+            }
+            if (value instanceof PdfDocument.Name name) {
+                String glyph = glyphUnicode(name.value());
+                return glyph == null ? "" : glyph;
+            }
+            return "";
+        }
+
+        private void readEncoding(PdfDocument document, Map<PdfDocument.Name, Object> dictionary) {
+            // The standard Latin encodings agree on ASCII; WinAnsi covers the rest well enough
+            for (int code = 0; code < 256; code++) {
+                encoding[code] = new String(new byte[]{(byte) code}, WIN_ANSI);
+            }
+            Map<PdfDocument.Name, Object> custom = document.dictionary(dictionary.get(ENCODING));
+            if (custom == null) {
+                return;
+            }
+            int code = 0;
+            for (Object difference : document.array(custom.get(DIFFERENCES))) {
+                Object resolved = document.resolve(difference);
+                if (resolved instanceof Number start) {
+                    code = start.intValue();
+                } else if (resolved instanceof PdfDocument.Name glyph) {
+                    if (code >= 0 && code < 256) {
+                        String unicode = glyphUnicode(glyph.value());
+                        if (unicode != null) {
+                            encoding[code] = unicode;
+                        }
+                    }
+                    code++;
+                }
+            }
+        }
+
+        private void readSimpleWidths(PdfDocument document, Map<PdfDocument.Name, Object> dictionary, Object subtype) {
+            // Type 3 glyph widths are in glyph space; the others are in thousandths of text space
+            double scale = 0.001;
+            if (subtype instanceof PdfDocument.Name name && name.value().equals("Type3")) {
+                List<Object> fontMatrix = document.array(dictionary.get(FONT_MATRIX));
+                scale = fontMatrix.isEmpty() ? 0.001 : number(document.resolve(fontMatrix.getFirst()));
+            }
+            Map<PdfDocument.Name, Object> descriptor = document.dictionary(dictionary.get(FONT_DESCRIPTOR));
+            long missing = descriptor == null ? 0 : document.number(descriptor.get(MISSING_WIDTH), 0);
+            List<Object> widthList = document.array(dictionary.get(WIDTHS));
+            // Fonts without widths, such as the standard 14, average about half an em per glyph
+            defaultWidth = widthList.isEmpty() ? 0.5 : missing * scale;
+            int firstChar = (int) document.number(dictionary.get(FIRST_CHAR), 0);
+            for (int i = 0; i < widthList.size(); i++) {
+                widths.put(firstChar + i, number(document.resolve(widthList.get(i))) * scale);
+            }
+        }
+
+        private void readCompositeWidths(PdfDocument document, Map<PdfDocument.Name, Object> descendant) {
+            defaultWidth = 1.0;
+            if (descendant == null) {
+                return;
+            }
+            // Codes are taken to be CIDs, as with the Identity encodings nearly all writers use
+            defaultWidth = document.number(descendant.get(DW), 1000) / 1000.0;
+            List<Object> w = document.array(descendant.get(W));
+            for (int i = 0; i + 1 < w.size(); ) {
+                long first = document.number(w.get(i), 0);
+                Object next = document.resolve(w.get(i + 1));
+                if (next instanceof List<?> list) {
+                    for (int j = 0; j < list.size(); j++) {
+                        widths.put((int) first + j, number(document.resolve(list.get(j))) / 1000);
+                    }
+                    i += 2;
+                } else if (i + 2 < w.size()) {
+                    long last = Math.min((long) number(next), first + MAX_CMAP_RANGE);
+                    double width = number(document.resolve(w.get(i + 2))) / 1000;
+                    for (long cid = first; cid <= last; cid++) {
+                        widths.put((int) cid, width);
+                    }
+                    i += 3;
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the Unicode text of a glyph name, or null if the name is not recognized.
+     */
+    static String glyphUnicode(String name) {
+        String base = name.contains(".") ? name.substring(0, name.indexOf('.')) : name;
+        String known = GLYPH_NAMES.get(base);
+        if (known != null) {
+            return known;
+        }
+        if (base.length() == 1 && Character.isLetter(base.charAt(0))) {
+            return base;
+        }
+        try {
+            if (base.startsWith("uni") && base.length() == 7) {
+                return String.valueOf((char) Integer.parseInt(base.substring(3), 16));
+            }
+            if (base.startsWith("u") && base.length() >= 5 && base.length() <= 7) {
+                return Character.toString(Integer.parseInt(base.substring(1), 16));
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // Accented letters, such as eacute, compose from the letter and the accent's combining mark
+        if (base.length() > 1 && Character.isLetter(base.charAt(0))) {
+            String mark = GLYPH_ACCENTS.get(base.substring(1));
+            if (mark != null) {
+                return Normalizer.normalize(base.charAt(0) + mark, Normalizer.Form.NFC);
+            }
+        }
+        return null;
+    }
+
+    private static double[] multiply(double[] m, double[] n) {
+        return new double[]{
+                m[0] * n[0] + m[1] * n[2],
+                m[0] * n[1] + m[1] * n[3],
+                m[2] * n[0] + m[3] * n[2],
+                m[2] * n[1] + m[3] * n[3],
+                m[4] * n[0] + m[5] * n[2] + n[4],
+                m[4] * n[1] + m[5] * n[3] + n[5]};
+    }
+
+    private static double[] matrix(List<Object> values, int from) {
+        double[] matrix = new double[6];
+        for (int i = 0; i < 6; i++) {
+            matrix[i] = number(values.get(from + i));
+        }
+        return matrix;
+    }
+
+    /**
+     * Returns the area a matrix maps the unit square to.
+     */
+    private static double area(double[] matrix) {
+        return Math.abs(matrix[0] * matrix[3] - matrix[1] * matrix[2]);
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number number ? number.doubleValue() : 0;
+    }
+
+    private static double lastNumber(List<Object> operands, double fallback) {
+        return !operands.isEmpty() && operands.getLast() instanceof Number number ? number.doubleValue() : fallback;
+    }
+}
@@ -0,0 +1,108 @@
+package com.pergamon.llm.conversation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Traces outgoing vendor requests to the "com.pergamon.llm.trace" logger.
+ *
+ * Tracing is off unless a conversation opts in with {@link Conversation#setTraceDetail(Detail)}
+ * or the process-wide sample rate selects the request. Nothing is rendered for requests that
+ * are not traced. SUMMARY traces list message hashes and sizes only; FULL traces dump every
+ * message body, including base64 attachments, and are meant for on-demand debugging.
+ */
+public final class RequestTracer {
+
+    /**
+     * How much of a request to render.
+     */
+    public enum Detail {
+        /** Do not trace. */
+        OFF,
+        /** Model, parameters, and per-message role, size and hash. */
+        SUMMARY,
+        /** Everything in SUMMARY plus the full body of every message. */
+        FULL
+    }
+
+    private static final Logger TRACE_LOGGER = LoggerFactory.getLogger("com.pergamon.llm.trace");
+
+    private static volatile double sampleRate = 0.0;
+    private static volatile Detail sampledDetail = Detail.SUMMARY;
+
+    private RequestTracer() {
+    }
+
+    /**
+     * Sets the fraction of requests, from 0.0 to 1.0, traced for conversations without an
+     * explicit trace detail.
+     *
+     * @param rate the sample rate
+     */
+    public static void setSampleRate(double rate) {
+        if (rate < 0.0 || rate > 1.0) {
+            throw new IllegalArgumentException("Sample rate must be between 0.0 and 1.0: " + rate);
+        }
+        sampleRate = rate;
+    }
+
+    public static double sampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Sets the detail rendered for sampled requests. Defaults to SUMMARY.
+     *
+     * @param detail the detail level
+     */
+    public static void setSampledDetail(Detail detail) {
+        if (detail == null) {
+            throw new IllegalArgumentException("detail cannot be null");
+        }
+        sampledDetail = detail;
+    }
+
+    public static Detail sampledDetail() {
+        return sampledDetail;
+    }
+
+    /**
+     * Returns the detail to trace the current request at.
+     *
+     * @param conversationDetail the conversation's explicit detail, or null to use sampling
+     * @return the detail to render, OFF if the request should not be traced
+     */
+    static Detail resolve(Detail conversationDetail) {
+        if (!TRACE_LOGGER.isInfoEnabled()) {
+            return Detail.OFF;
+        }
+        if (conversationDetail != null) {
+            return conversationDetail;
+        }
+        double rate = sampleRate;
+        if (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            return sampledDetail;
+        }
+        return Detail.OFF;
+    }
+
+    /**
+     * Traces a request if the conversation's detail or the sample rate selects it.
+     * The renderers are only invoked for traced requests.
+     *
+     * @param conversation the conversation sending the request
+     * @param summary renders the summary form of the request
+     * @param full renders the full form of the request
+     */
+    static void trace(Conversation<?, ?> conversation, Supplier<String> summary, Supplier<String> full) {
+        Detail detail = resolve(conversation.traceDetail().orElse(null));
+        switch (detail) {
+            case OFF -> { }
+            case SUMMARY -> TRACE_LOGGER.info("[{}] {}", conversation.name(), summary.get());
+            case FULL -> TRACE_LOGGER.info("[{}] {}", conversation.name(), full.get());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.pergamon.llm.conversation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches vendor responses by a canonical hash of the request that produced them, so that a
+ * byte-identical request is answered without a round trip.
+ *
+ * Responses are kept in an in-memory LRU tier bounded by their total size in bytes, and
+ * optionally in a directory on disk, one file per key, which survives restarts and is not
+ * bounded. A disk hit is promoted to the memory tier.
+ *
+ * A conversation consults its cache only when one is set with
+ * {@link Conversation#setResponseCache(ResponseCache)}; a hit is replayed as if the vendor had
+ * returned it, so the conversation's state is updated exactly as for a real call. Only use it
+ * for requests whose response is not expected to vary.
+ *
+ * A cache may be shared by any number of conversations.
+ */
+public final class ResponseCache {
+
+    private final long maxMemoryBytes;
+    private final Path directory;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0L;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private ResponseCache(long maxMemoryBytes, Path directory) {
+        if (maxMemoryBytes <= 0) {
+            throw new IllegalArgumentException("maxMemoryBytes must be positive: " + maxMemoryBytes);
+        }
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a cache held in memory only.
+     *
+     * @param maxMemoryBytes the total size of responses kept in memory
+     * @return the cache
+     */
+    public static ResponseCache inMemory(long maxMemoryBytes) {
+        return new ResponseCache(maxMemoryBytes, null);
+    }
+
+    /**
+     * Creates a cache with an in-memory tier backed by files in a directory.
+     *
+     * @param maxMemoryBytes the total size of responses kept in memory
+     * @param directory the directory for the disk tier; created if missing
+     * @return the cache
+     */
+    public static ResponseCache withDiskTier(long maxMemoryBytes, Path directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null");
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create response cache directory: " + directory, e);
+        }
+        return new ResponseCache(maxMemoryBytes, directory);
+    }
+
+    /**
+     * Returns the cached response for a key, looking in memory first and then on disk.
+     *
+     * @param key the request hash
+     * @return the encoded response, or empty on a miss
+     */
+    public Optional<byte[]> get(String key) {
+        synchronized (this) {
+            byte[] cached = memory.get(key);
+            if (cached != null) {
+                hits.increment();
+                return Optional.of(cached);
+            }
+        }
+        if (directory != null) {
+            try {
+                byte[] stored = Files.readAllBytes(fileFor(key));
+                hits.increment();
+                putInMemory(key, stored);
+                return Optional.of(stored);
+            } catch (NoSuchFileException e) {
+                // Fall through to a miss
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read cached response: " + key, e);
+            }
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    /**
+     * Stores a response in memory and, if configured, on disk.
+     *
+     * @param key the request hash
+     * @param response the encoded response
+     */
+    public void put(String key, byte[] response) {
+        putInMemory(key, response);
+        if (directory != null) {
+            // Write to a temporary file first so readers never see a partial response
+            try {
+                Path target = fileFor(key);
+                Path temp = Files.createTempFile(directory, key, ".tmp");
+                Files.write(temp, response);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write cached response: " + key, e);
+            }
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of responses evicted from the memory tier.
+     */
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the total size of the responses in the memory tier.
+     */
+    public synchronized long memoryBytes() {
+        return memoryBytes;
+    }
+
+    private synchronized void putInMemory(String key, byte[] response) {
+        // A response larger than the whole tier is only kept on disk
+        if (response.length > maxMemoryBytes) {
+            return;
+        }
+        byte[] replaced = memory.put(key, response);
+        memoryBytes += response.length - (replaced == null ? 0 : replaced.length);
+
+        Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes) {
+            memoryBytes -= eldest.next().getValue().length;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private Path fileFor(String key) {
+        if (!key.matches("[0-9a-zA-Z_-]+")) {
+            throw new IllegalArgumentException("Invalid response cache key: " + key);
+        }
+        return directory.resolve(key + ".json");
+    }
+}
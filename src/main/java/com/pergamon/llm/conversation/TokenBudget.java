@@ -0,0 +1,36 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * The token budget of a single request: the estimated input, the output the request may
+ * generate, and the model's context window that both must fit in.
+ *
+ * @param estimatedInputTokens the estimated input tokens for the request
+ * @param maxOutputTokens the max_tokens requested for the response
+ * @param contextWindowTokens the model's context window
+ */
+public record TokenBudget(long estimatedInputTokens, long maxOutputTokens, long contextWindowTokens) {
+
+    public TokenBudget {
+        if (estimatedInputTokens < 0 || maxOutputTokens < 0) {
+            throw new IllegalArgumentException("Token counts cannot be negative");
+        }
+        if (contextWindowTokens <= 0) {
+            throw new IllegalArgumentException("contextWindowTokens must be positive");
+        }
+    }
+
+    /** Returns the tokens the request needs: estimated input plus max output. */
+    public long requiredTokens() {
+        return estimatedInputTokens + maxOutputTokens;
+    }
+
+    /** Returns true if the request may not fit in the context window. */
+    public boolean exceeded() {
+        return requiredTokens() > contextWindowTokens;
+    }
+
+    /** Returns how many tokens over the context window the request is, or 0 if it fits. */
+    public long overflowTokens() {
+        return Math.max(0L, requiredTokens() - contextWindowTokens);
+    }
+}
@@ -0,0 +1,35 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * Decides what happens when a request is estimated to exceed its model's context window.
+ *
+ * The policy runs before the request is sent. It may throw to reject the turn, in which case
+ * the message is removed from the conversation again, or return normally to send it anyway.
+ */
+@FunctionalInterface
+public interface TokenBudgetPolicy {
+
+    /**
+     * Rejects the turn with an IllegalStateException. This is the default policy.
+     */
+    TokenBudgetPolicy FAIL_FAST = (conversation, budget) -> {
+        throw new IllegalStateException("Request for conversation '" + conversation.name()
+                + "' needs an estimated " + budget.requiredTokens() + " tokens ("
+                + budget.estimatedInputTokens() + " input + " + budget.maxOutputTokens()
+                + " output), exceeding the " + budget.contextWindowTokens()
+                + "-token context window of " + conversation.modelId());
+    };
+
+    /**
+     * Sends the request regardless, leaving the vendor to reject it if the estimate was right.
+     */
+    TokenBudgetPolicy ALLOW = (conversation, budget) -> { };
+
+    /**
+     * Called when the estimated budget of the next request exceeds the context window.
+     *
+     * @param conversation the conversation about to send
+     * @param budget the estimated budget
+     */
+    void onBudgetExceeded(Conversation<?, ?> conversation, TokenBudget budget);
+}
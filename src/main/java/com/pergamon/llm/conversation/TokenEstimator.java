@@ -0,0 +1,33 @@
+package com.pergamon.llm.conversation;
+
+import java.util.List;
+
+/**
+ * Estimates how many input tokens a vendor will count for a conversation history,
+ * without a round trip to the vendor.
+ *
+ * Estimates are approximate. Implementations may refine them using the input token counts
+ * reported by the vendor for earlier requests.
+ *
+ * @param <V> The vendor-specific message type
+ */
+public interface TokenEstimator<V> {
+
+    /**
+     * Estimates the input tokens for a request carrying the given history.
+     *
+     * @param vendorMessages the vendor-specific messages that would be sent
+     * @return the estimated input token count
+     */
+    long estimateInputTokens(List<V> vendorMessages);
+
+    /**
+     * Refines future estimates with the count the vendor reported for a request.
+     * The default implementation ignores calibration.
+     *
+     * @param estimatedTokens the estimate made before the request was sent
+     * @param actualTokens the input tokens the vendor reported for that request
+     */
+    default void calibrate(long estimatedTokens, long actualTokens) {
+    }
+}
@@ -0,0 +1,31 @@
+package com.pergamon.llm.conversation;
+
+import java.util.regex.Pattern;
+
+/**
+ * A client-side tool the model may ask to run.
+ *
+ * @param name the tool name the model refers to; letters, digits, underscores and hyphens, at most 64
+ * @param description what the tool does and when to use it
+ * @param inputSchema the JSON Schema of the tool input, as a JSON object
+ * @param handler runs the tool
+ */
+public record Tool(String name, String description, String inputSchema, ToolHandler handler) {
+
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z0-9_-]{1,64}");
+
+    public Tool {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid tool name: " + name);
+        }
+        if (description == null || description.isBlank()) {
+            throw new IllegalArgumentException("description cannot be null or blank");
+        }
+        if (inputSchema == null || inputSchema.isBlank()) {
+            throw new IllegalArgumentException("inputSchema cannot be null or blank");
+        }
+        if (handler == null) {
+            throw new IllegalArgumentException("handler cannot be null");
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * Runs a client-side tool on behalf of the model.
+ *
+ * Handlers of the tools used in one step run concurrently, each on its own virtual thread,
+ * so they must be safe to call from several threads.
+ */
+@FunctionalInterface
+public interface ToolHandler {
+
+    /**
+     * Runs the tool.
+     *
+     * @param inputJson the tool input chosen by the model, as a JSON object
+     * @return the tool's output, sent back to the model
+     * @throws Exception if the tool fails; the failure is reported to the model as an error result
+     */
+    String call(String inputJson) throws Exception;
+}
@@ -0,0 +1,123 @@
+package com.pergamon.llm.conversation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An immutable set of client-side tools, offered to the model in registration order.
+ *
+ * Registries never change once built, so the tool definitions sent with each request stay
+ * byte-identical and can be read from the prompt cache; adding a tool yields a new registry.
+ * A registry may be shared by any number of conversations.
+ */
+public final class ToolRegistry {
+
+    private static final ToolRegistry EMPTY = new ToolRegistry(List.of());
+
+    private final List<Tool> tools;
+    private final Map<String, Tool> byName;
+
+    private ToolRegistry(List<Tool> tools) {
+        Map<String, Tool> index = new LinkedHashMap<>();
+        for (Tool tool : tools) {
+            if (index.putIfAbsent(tool.name(), tool) != null) {
+                throw new IllegalArgumentException("Duplicate tool name: " + tool.name());
+            }
+        }
+        this.tools = List.copyOf(tools);
+        this.byName = Map.copyOf(index);
+    }
+
+    /**
+     * Returns a registry with no tools.
+     */
+    public static ToolRegistry empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates a registry of the given tools.
+     *
+     * @param tools the tools, in the order they are offered to the model
+     * @return the registry
+     * @throws IllegalArgumentException if two tools share a name
+     */
+    public static ToolRegistry of(List<Tool> tools) {
+        if (tools == null || tools.stream().anyMatch(tool -> tool == null)) {
+            throw new IllegalArgumentException("tools cannot be null");
+        }
+        return new ToolRegistry(tools);
+    }
+
+    /**
+     * Returns a registry with the given tool added after this registry's tools.
+     *
+     * @param tool the tool to add
+     * @return the new registry
+     * @throws IllegalArgumentException if a tool with the same name is already registered
+     */
+    public ToolRegistry with(Tool tool) {
+        if (tool == null) {
+            throw new IllegalArgumentException("tool cannot be null");
+        }
+        List<Tool> extended = new ArrayList<>(tools);
+        extended.add(tool);
+        return new ToolRegistry(extended);
+    }
+
+    /**
+     * Returns the tools in registration order.
+     */
+    public List<Tool> tools() {
+        return tools;
+    }
+
+    public Optional<Tool> get(String name) {
+        return Optional.ofNullable(byName.get(name));
+    }
+
+    public boolean isEmpty() {
+        return tools.isEmpty();
+    }
+
+    /**
+     * Runs the requested tools concurrently, one virtual thread each, so the step takes as long
+     * as its slowest tool rather than the sum of all of them. A tool that is not registered or
+     * that throws produces an error result instead of failing the step.
+     *
+     * @param toolUses the tool uses of one model response
+     * @return one result per tool use, in the same order
+     */
+    public List<ToolResultBlock> execute(List<ToolUseBlock> toolUses) {
+        if (toolUses == null) {
+            throw new IllegalArgumentException("toolUses cannot be null");
+        }
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<CompletableFuture<ToolResultBlock>> pending = new ArrayList<>(toolUses.size());
+            for (ToolUseBlock toolUse : toolUses) {
+                pending.add(CompletableFuture.supplyAsync(() -> execute(toolUse), executor));
+            }
+            return pending.stream().map(CompletableFuture::join).toList();
+        }
+    }
+
+    private ToolResultBlock execute(ToolUseBlock toolUse) {
+        Tool tool = byName.get(toolUse.name());
+        if (tool == null) {
+            return new ToolResultBlock(toolUse.id(), "Unknown tool: " + toolUse.name(), true);
+        }
+        try {
+            String output = tool.handler().call(toolUse.inputJson());
+            return new ToolResultBlock(toolUse.id(), output == null ? "" : output, false);
+        } catch (Exception e) {
+            String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            return new ToolResultBlock(toolUse.id(), "Tool " + tool.name() + " failed: " + reason, true);
+        }
+    }
+}
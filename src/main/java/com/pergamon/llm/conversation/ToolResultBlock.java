@@ -0,0 +1,20 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * The result of running a client-side tool, sent back to the model in a {@link MessageRole#TOOL} message.
+ *
+ * @param toolUseId the id of the {@link ToolUseBlock} this result answers
+ * @param content the tool's output, or a description of the failure
+ * @param isError whether the tool failed
+ */
+public record ToolResultBlock(String toolUseId, String content, boolean isError) implements MessageBlock {
+
+    public ToolResultBlock {
+        if (toolUseId == null || toolUseId.isBlank()) {
+            throw new IllegalArgumentException("toolUseId cannot be null or blank");
+        }
+        if (content == null) {
+            throw new IllegalArgumentException("content cannot be null");
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.pergamon.llm.conversation;
+
+/**
+ * A request from the model to run a client-side tool.
+ *
+ * @param id the vendor's id for this tool use, echoed by its result
+ * @param name the name of the tool to run
+ * @param inputJson the tool input chosen by the model, as a JSON object
+ */
+public record ToolUseBlock(String id, String name, String inputJson) implements MessageBlock {
+
+    public ToolUseBlock {
+        if (id == null || id.isBlank()) {
+            throw new IllegalArgumentException("id cannot be null or blank");
+        }
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("name cannot be null or blank");
+        }
+        if (inputJson == null || inputJson.isBlank()) {
+            throw new IllegalArgumentException("inputJson cannot be null or blank");
+        }
+    }
+}
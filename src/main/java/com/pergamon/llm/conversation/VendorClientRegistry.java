@@ -0,0 +1,157 @@
+package com.pergamon.llm.conversation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Process-wide registry of vendor SDK clients, shared across conversations.
+ *
+ * Vendor clients own connection pools, dispatcher threads and TLS sessions, so creating one
+ * per conversation wastes resources and prevents connection reuse. This registry creates a
+ * single client per (vendor, API key) pair on first use and hands out reference-counted
+ * {@link Lease}s to it. The client is closed when the last lease is released.
+ */
+public final class VendorClientRegistry {
+
+    private static final VendorClientRegistry SHARED = new VendorClientRegistry();
+
+    private final Map<ClientKey, Entry<?>> clients = new HashMap<>();
+
+    /**
+     * Creates an empty registry. Most callers should use {@link #shared()} instead.
+     */
+    public VendorClientRegistry() {
+    }
+
+    /**
+     * Returns the process-wide registry used by {@link Conversation#forModel}.
+     */
+    public static VendorClientRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * Acquires a lease on the client for the given vendor and API key, creating the client
+     * if no live lease exists.
+     *
+     * @param vendor the vendor the client talks to
+     * @param apiKey the API key the client authenticates with
+     * @param factory creates the client from the API key when none is cached
+     * @param closer shuts the client down once the last lease is released
+     * @param <C> the vendor client type
+     * @return a lease that must be closed when the caller no longer needs the client
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <C> Lease<C> acquire(Vendor vendor, String apiKey,
+                                             Function<String, C> factory, Consumer<C> closer) {
+        if (vendor == null) {
+            throw new IllegalArgumentException("vendor cannot be null");
+        }
+        if (apiKey == null || apiKey.isBlank()) {
+            throw new IllegalArgumentException("API key cannot be null or blank");
+        }
+
+        ClientKey key = new ClientKey(vendor, apiKey);
+        Entry<C> entry = (Entry<C>) clients.get(key);
+        if (entry == null) {
+            entry = new Entry<>(factory.apply(apiKey), closer);
+            clients.put(key, entry);
+        }
+        entry.references++;
+        return new Lease<>(this, key, entry.client);
+    }
+
+    /**
+     * Returns the number of live leases on the client for the given vendor and API key.
+     */
+    public synchronized int referenceCount(Vendor vendor, String apiKey) {
+        Entry<?> entry = clients.get(new ClientKey(vendor, apiKey));
+        return entry == null ? 0 : entry.references;
+    }
+
+    /**
+     * Returns the number of clients currently held open by this registry.
+     */
+    public synchronized int clientCount() {
+        return clients.size();
+    }
+
+    private synchronized void release(ClientKey key) {
+        Entry<?> entry = clients.get(key);
+        if (entry == null) {
+            return;
+        }
+        if (--entry.references == 0) {
+            clients.remove(key);
+            entry.close();
+        }
+    }
+
+    /**
+     * A reference-counted handle on a shared vendor client.
+     * Closing the lease is idempotent; the client itself is closed only when every lease
+     * on it has been closed.
+     *
+     * @param <C> the vendor client type
+     */
+    public static final class Lease<C> implements AutoCloseable {
+        private final VendorClientRegistry registry;
+        private final ClientKey key;
+        private final C client;
+        private boolean released = false;
+
+        private Lease(VendorClientRegistry registry, ClientKey key, C client) {
+            this.registry = registry;
+            this.key = key;
+            this.client = client;
+        }
+
+        public C client() {
+            return client;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            registry.release(key);
+        }
+    }
+
+    private static final class Entry<C> {
+        private final C client;
+        private final Consumer<C> closer;
+        private int references = 0;
+
+        private Entry(C client, Consumer<C> closer) {
+            this.client = client;
+            this.closer = closer;
+        }
+
+        private void close() {
+            closer.accept(client);
+        }
+    }
+
+    /**
+     * Registry key. The API key is deliberately left out of toString().
+     */
+    private record ClientKey(Vendor vendor, String apiKey) {
+        private ClientKey {
+            Objects.requireNonNull(vendor);
+            Objects.requireNonNull(apiKey);
+        }
+
+        @Override
+        public String toString() {
+            return "ClientKey(" + vendor.slug() + ")";
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.TextBlockParam;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.ToLongFunction;
+
+import static com.pergamon.llm.conversation.AnthropicCachePlanner.Kind.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicCacheAnalyzerTest {
+
+    private static final String MODEL = "claude-test";
+
+    // Every block weighs 1,000 tokens, so prefix totals are easy to read off
+    private static long blockTokens(ContentBlockParam block) {
+        return 1_000L;
+    }
+
+    private static MessageParam message(String... texts) {
+        List<ContentBlockParam> blocks = new ArrayList<>();
+        for (String text : texts) {
+            blocks.add(ContentBlockParam.ofText(TextBlockParam.builder().text(text).build()));
+        }
+        return MessageParam.builder()
+                .role(MessageParam.Role.USER)
+                .content(MessageParam.Content.ofBlockParams(blocks))
+                .build();
+    }
+
+    private static List<AnthropicCachePlanner.Breakpoint> tailOf(List<MessageParam> history) {
+        int last = history.size() - 1;
+        int block = history.get(last).content().blockParams().orElseThrow().size() - 1;
+        return List.of(new AnthropicCachePlanner.Breakpoint(last, block, TAIL));
+    }
+
+    private static void request(AnthropicPrefixFingerprints fingerprints, List<MessageParam> history,
+                                List<AnthropicCachePlanner.Breakpoint> plan, ToLongFunction<ContentBlockParam> blockTokens) {
+        fingerprints.onRequest(List.of(), List.of(), 0L, false, history, plan, blockTokens);
+    }
+
+    @Test
+    void testAppendingTurnsIsNotABreak() {
+        AnthropicPrefixFingerprints fingerprints = new AnthropicPrefixFingerprints();
+        List<MessageParam> history = new ArrayList<>(List.of(message("a", "b")));
+        request(fingerprints, history, tailOf(history), AnthropicCacheAnalyzerTest::blockTokens);
+        assertTrue(fingerprints.onResponse(MODEL, 0L, 2_000L).isEmpty());
+
+        history.add(message("c"));
+        request(fingerprints, history, tailOf(history), AnthropicCacheAnalyzerTest::blockTokens);
+
+        assertTrue(fingerprints.onResponse(MODEL, 2_000L, 1_000L).isEmpty());
+    }
+
+    @Test
+    void testChangedBlockIsLocatedWithTokensLost() {
+        AnthropicPrefixFingerprints fingerprints = new AnthropicPrefixFingerprints();
+        List<MessageParam> history = new ArrayList<>(List.of(message("a", "b"), message("c", "d")));
+        request(fingerprints, history, List.of(
+                new AnthropicCachePlanner.Breakpoint(0, 0, ANCHOR),
+                new AnthropicCachePlanner.Breakpoint(1, 1, TAIL)), AnthropicCacheAnalyzerTest::blockTokens);
+        fingerprints.onResponse(MODEL, 0L, 4_000L);
+
+        // The second block of the first message is edited; the anchor before it is still readable
+        history.set(0, message("a", "B"));
+        history.add(message("e"));
+        request(fingerprints, history, tailOf(history), AnthropicCacheAnalyzerTest::blockTokens);
+        Optional<AnthropicCacheBreak> cacheBreak = fingerprints.onResponse(MODEL, 1_000L, 4_000L);
+
+        assertTrue(cacheBreak.isPresent());
+        assertEquals(AnthropicCacheBreak.Cause.PREFIX_CHANGED, cacheBreak.get().cause());
+        assertEquals(0, cacheBreak.get().messageIndex());
+        assertEquals(1, cacheBreak.get().blockIndex());
+        assertEquals(3_000L, cacheBreak.get().tokensLost());
+    }
+
+    @Test
+    void testUnchangedPrefixWithoutReadsIsReportedAsNotRead() {
+        AnthropicPrefixFingerprints fingerprints = new AnthropicPrefixFingerprints();
+        List<MessageParam> history = new ArrayList<>(List.of(message("a", "b")));
+        request(fingerprints, history, tailOf(history), AnthropicCacheAnalyzerTest::blockTokens);
+        fingerprints.onResponse(MODEL, 0L, 2_000L);
+
+        history.add(message("c"));
+        request(fingerprints, history, tailOf(history), AnthropicCacheAnalyzerTest::blockTokens);
+        Optional<AnthropicCacheBreak> cacheBreak = fingerprints.onResponse(MODEL, 0L, 3_000L);
+
+        assertEquals(AnthropicCacheBreak.Cause.NOT_READ, cacheBreak.orElseThrow().cause());
+        assertEquals(2_000L, cacheBreak.get().tokensLost());
+    }
+
+    @Test
+    void testBreakpointsOutsideTheHistoryAreSkipped() {
+        AnthropicPrefixFingerprints fingerprints = new AnthropicPrefixFingerprints();
+        List<MessageParam> history = new ArrayList<>(List.of(message("a", "b")));
+        request(fingerprints, history, List.of(new AnthropicCachePlanner.Breakpoint(3, 0, TAIL)),
+                AnthropicCacheAnalyzerTest::blockTokens);
+        assertTrue(fingerprints.onResponse(MODEL, 0L, 2_000L).isEmpty(), "Nothing is recorded for an unmatched plan");
+
+        request(fingerprints, history, List.of(
+                new AnthropicCachePlanner.Breakpoint(0, 1, TAIL),
+                new AnthropicCachePlanner.Breakpoint(0, 5, TAIL)), AnthropicCacheAnalyzerTest::blockTokens);
+        fingerprints.onResponse(MODEL, 0L, 2_000L);
+        history.add(message("c"));
+        request(fingerprints, history, tailOf(history), AnthropicCacheAnalyzerTest::blockTokens);
+
+        assertEquals(2_000L, fingerprints.onResponse(MODEL, 0L, 3_000L).orElseThrow().tokensLost());
+    }
+
+    @Test
+    void testChangedSystemPromptIsAPrefixChange() {
+        AnthropicPrefixFingerprints fingerprints = new AnthropicPrefixFingerprints();
+        List<MessageParam> history = new ArrayList<>(List.of(message("a", "b")));
+        List<TextBlockParam> system = List.of(TextBlockParam.builder().text("Be brief.").build());
+        fingerprints.onRequest(List.of(), system, 3_000L, true, history, tailOf(history),
+                AnthropicCacheAnalyzerTest::blockTokens);
+        fingerprints.onResponse(MODEL, 0L, 5_000L);
+
+        history.add(message("c"));
+        List<TextBlockParam> changed = List.of(TextBlockParam.builder().text("Be thorough.").build());
+        fingerprints.onRequest(List.of(), changed, 3_000L, true, history, tailOf(history),
+                AnthropicCacheAnalyzerTest::blockTokens);
+        AnthropicCacheBreak cacheBreak = fingerprints.onResponse(MODEL, 0L, 6_000L).orElseThrow();
+
+        assertEquals(AnthropicCacheBreak.Cause.PREFIX_CHANGED, cacheBreak.cause());
+        assertEquals(-1, cacheBreak.messageIndex());
+        assertEquals(5_000L, cacheBreak.tokensLost());
+        assertTrue(cacheBreak.toString().contains("the tools and system prompt"));
+    }
+
+    @Test
+    void testAnalyzerAggregatesHitRatiosPerModel() {
+        AnthropicCacheAnalyzer analyzer = new AnthropicCacheAnalyzer();
+        analyzer.record(MODEL, 100L, 900L, 0L, Optional.empty());
+        analyzer.record(MODEL, 100L, 0L, 900L, Optional.empty());
+        analyzer.record("other-model", 50L, 0L, 0L, Optional.of(
+                new AnthropicCacheBreak("other-model", AnthropicCacheBreak.Cause.NOT_READ, -1, -1, 1_500L, 0L, 0L)));
+
+        AnthropicModelCacheStats stats = analyzer.modelStats(MODEL);
+        assertEquals(2, stats.requests());
+        assertEquals(0.5, stats.requestHitRatio());
+        assertEquals(0.45, stats.tokenHitRatio(), 1e-9);
+        assertEquals(1L, analyzer.modelStats("other-model").breaks());
+        assertEquals(1_500L, analyzer.modelStats("other-model").tokensLost());
+        assertEquals(List.of("claude-test", "other-model"), List.copyOf(analyzer.modelStats().keySet()));
+        assertEquals(0L, analyzer.modelStats("unused").requests());
+    }
+}
@@ -0,0 +1,72 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.CacheControlEphemeral;
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.TextBlockParam;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.pergamon.llm.conversation.AnthropicCachePlanner.Kind.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicCacheOverlayTest {
+
+    private static final CacheControlEphemeral CACHE_CONTROL = CacheControlEphemeral.builder()
+            .ttl(CacheControlEphemeral.Ttl.TTL_5M)
+            .build();
+
+    private static MessageParam message(String... texts) {
+        List<ContentBlockParam> blocks = new ArrayList<>();
+        for (String text : texts) {
+            blocks.add(ContentBlockParam.ofText(TextBlockParam.builder().text(text).build()));
+        }
+        return MessageParam.builder()
+                .role(MessageParam.Role.USER)
+                .content(MessageParam.Content.ofBlockParams(blocks))
+                .build();
+    }
+
+    private static boolean marked(MessageParam message, int block) {
+        return message.content().blockParams().orElseThrow().get(block).text().orElseThrow().cacheControl().isPresent();
+    }
+
+    @Test
+    void testOverlayMarksOnlyPlannedBlocksAndLeavesHistoryUntouched() {
+        List<MessageParam> history = List.of(message("a", "b"), message("c"), message("d"));
+
+        List<MessageParam> sent = new AnthropicCacheOverlay().apply(history, List.of(
+                new AnthropicCachePlanner.Breakpoint(0, 1, ANCHOR),
+                new AnthropicCachePlanner.Breakpoint(2, 0, TAIL)), CACHE_CONTROL);
+
+        assertEquals(3, sent.size());
+        assertFalse(marked(sent.get(0), 0));
+        assertTrue(marked(sent.get(0), 1));
+        assertSame(history.get(1), sent.get(1), "Unmarked messages should be sent as stored");
+        assertTrue(marked(sent.get(2), 0));
+        for (MessageParam stored : history) {
+            assertFalse(marked(stored, stored.content().blockParams().orElseThrow().size() - 1),
+                    "The stored history should never be marked");
+        }
+    }
+
+    @Test
+    void testMarkedCopiesAreReusedWhileTheBreakpointStays() {
+        AnthropicCacheOverlay overlay = new AnthropicCacheOverlay();
+        List<MessageParam> history = new ArrayList<>(List.of(message("a"), message("b")));
+        List<MessageParam> first = overlay.apply(history, List.of(
+                new AnthropicCachePlanner.Breakpoint(0, 0, ANCHOR),
+                new AnthropicCachePlanner.Breakpoint(1, 0, TAIL)), CACHE_CONTROL);
+
+        history.add(message("c"));
+        List<MessageParam> second = overlay.apply(history, List.of(
+                new AnthropicCachePlanner.Breakpoint(0, 0, ANCHOR),
+                new AnthropicCachePlanner.Breakpoint(2, 0, TAIL)), CACHE_CONTROL);
+
+        assertSame(first.get(0), second.get(0), "An unchanged anchor should reuse its marked copy");
+        assertSame(history.get(1), second.get(1), "The previous tail should go back to the stored message");
+        assertTrue(marked(second.get(2), 0));
+    }
+}
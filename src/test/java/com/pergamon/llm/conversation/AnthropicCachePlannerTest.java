@@ -0,0 +1,133 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.TextBlockParam;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.pergamon.llm.conversation.AnthropicCachePlanner.Kind.*;
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicCachePlannerTest {
+
+    private final AnthropicTokenEstimator estimator = new AnthropicTokenEstimator();
+
+    /**
+     * Builds a user message with one text block per entry, each of roughly the given token weight.
+     */
+    private static MessageParam message(long... blockTokens) {
+        List<ContentBlockParam> blocks = new ArrayList<>();
+        for (long tokens : blockTokens) {
+            blocks.add(ContentBlockParam.ofText(TextBlockParam.builder().text("a".repeat((int) tokens * 4)).build()));
+        }
+        return MessageParam.builder()
+                .role(MessageParam.Role.USER)
+                .content(MessageParam.Content.ofBlockParams(blocks))
+                .build();
+    }
+
+    private List<AnthropicCachePlanner.Breakpoint> plan(AnthropicCachePlanner planner, List<MessageParam> history) {
+        return planner.plan(history, estimator::estimateBlockTokens, block -> block.text().isPresent());
+    }
+
+    private static AnthropicCachePlanner.Breakpoint at(int message, int block, AnthropicCachePlanner.Kind kind) {
+        return new AnthropicCachePlanner.Breakpoint(message, block, kind);
+    }
+
+    @Test
+    void testShortHistoryGetsOnlyTailBreakpoint() {
+        List<AnthropicCachePlanner.Breakpoint> plan = plan(new AnthropicCachePlanner(), List.of(message(10, 20)));
+
+        assertEquals(List.of(at(0, 1, TAIL)), plan);
+    }
+
+    @Test
+    void testHeaviestBlocksAreAnchoredWithinBreakpointLimit() {
+        List<MessageParam> history = List.of(message(2000, 10, 5000, 10, 3000, 10, 1500), message(10));
+
+        List<AnthropicCachePlanner.Breakpoint> plan = plan(new AnthropicCachePlanner(), history);
+
+        assertEquals(List.of(at(0, 0, ANCHOR), at(0, 2, ANCHOR), at(0, 4, ANCHOR), at(1, 0, TAIL)), plan,
+                "The three heaviest blocks should be anchored alongside the tail");
+    }
+
+    @Test
+    void testPinnedBlockIsAnchoredAheadOfHeavierBlocks() {
+        AnthropicCachePlanner planner = new AnthropicCachePlanner();
+        List<MessageParam> history = List.of(message(2000, 10, 5000, 10, 3000, 10, 1500), message(10));
+
+        planner.pin(0, 1);
+        List<AnthropicCachePlanner.Breakpoint> plan = plan(planner, history);
+
+        assertTrue(plan.contains(at(0, 1, ANCHOR)), "The pinned block should be anchored");
+        assertEquals(4, plan.size());
+        assertEquals(plan, plan(planner, history), "The pinned anchor should be kept on the next turn");
+    }
+
+    @Test
+    void testAnchorsStayStableAcrossTurns() {
+        AnthropicCachePlanner planner = new AnthropicCachePlanner();
+        List<MessageParam> history = new ArrayList<>(List.of(message(2000, 10, 3000), message(10)));
+        plan(planner, history);
+
+        // A heavier block arrives later; the earlier anchors keep their places
+        history.add(message(9000, 10));
+        history.add(message(10));
+        List<AnthropicCachePlanner.Breakpoint> plan = plan(planner, history);
+
+        assertEquals(List.of(at(0, 0, ANCHOR), at(0, 2, ANCHOR), at(2, 0, ANCHOR), at(3, 0, TAIL)), plan);
+    }
+
+    @Test
+    void testPreviousTailIsBridgedBeyondLookbackWindow() {
+        AnthropicCachePlanner planner = new AnthropicCachePlanner();
+        List<MessageParam> history = new ArrayList<>(List.of(message(10)));
+        plan(planner, history);
+
+        long[] manyBlocks = new long[AnthropicCachePlanner.LOOKBACK_BLOCKS + 1];
+        java.util.Arrays.fill(manyBlocks, 10L);
+        history.add(message(manyBlocks));
+        List<AnthropicCachePlanner.Breakpoint> plan = plan(planner, history);
+
+        assertEquals(List.of(at(0, 0, BRIDGE), at(1, AnthropicCachePlanner.LOOKBACK_BLOCKS, TAIL)), plan,
+                "The previous tail is out of lookback range and must stay marked to be read");
+    }
+
+    @Test
+    void testCompactedHistoryDropsEarlierBreakpoints() {
+        AnthropicCachePlanner planner = new AnthropicCachePlanner();
+        plan(planner, List.of(message(3000), message(10), message(10)));
+
+        List<AnthropicCachePlanner.Breakpoint> plan = plan(planner, List.of(message(10), message(10)));
+
+        assertEquals(List.of(at(1, 0, TAIL)), plan);
+    }
+
+    @Test
+    void testConversationNeverExceedsFourMarkers() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        conversation.setTokenBudgetPolicy(TokenBudgetPolicy.ALLOW);
+
+        for (int i = 0; i < 8; i++) {
+            conversation.beginDeferredTurn(createUserMessage("b".repeat(6000) + i), true);
+        }
+        List<MessageParam> sent = conversation.buildBatchRequestParams().messages();
+
+        assertEquals(AnthropicCachePlanner.MAX_BREAKPOINTS, countMarkers(sent));
+        assertTrue(sent.getLast().content().blockParams().orElseThrow()
+                .getLast().text().orElseThrow().cacheControl().isPresent(), "The tail should always be marked");
+        assertEquals(0, countMarkers(conversation.vendorMessages()), "Markers should never be stored in the history");
+        conversation.close();
+    }
+
+    private static long countMarkers(List<MessageParam> messages) {
+        return messages.stream()
+                .flatMap(message -> message.content().blockParams().orElseThrow().stream())
+                .filter(block -> block.text().orElseThrow().cacheControl().isPresent())
+                .count();
+    }
+}
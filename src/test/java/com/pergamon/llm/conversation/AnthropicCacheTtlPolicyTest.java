@@ -0,0 +1,97 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.CacheControlEphemeral;
+import com.anthropic.models.messages.CacheCreation;
+import com.anthropic.models.messages.Usage;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicCacheTtlPolicyTest {
+
+    private static AnthropicCacheStats statsWithGaps(Duration gap, int count, long cachedTokens) {
+        return new AnthropicCacheStats(count + 1, 0, count, 0L, 0L, 0L, cachedTokens, 500L,
+                Collections.nCopies(count, gap));
+    }
+
+    private static Usage usage(long read, long written5m, long written1h) {
+        return Usage.builder()
+                .inputTokens(10L)
+                .outputTokens(10L)
+                .cacheReadInputTokens(read)
+                .cacheCreationInputTokens(written5m + written1h)
+                .cacheCreation(CacheCreation.builder()
+                        .ephemeral5mInputTokens(written5m)
+                        .ephemeral1hInputTokens(written1h)
+                        .build())
+                .serverToolUse(Optional.empty())
+                .serviceTier(Optional.empty())
+                .build();
+    }
+
+    @Test
+    void testAdaptiveUsesFiveMinutesUntilEnoughGapsAreSeen() {
+        AnthropicCacheStats stats = statsWithGaps(Duration.ofMinutes(20), 2, 50_000L);
+
+        assertEquals(CacheControlEphemeral.Ttl.TTL_5M, AnthropicCacheTtlPolicy.adaptive().selectTtl(stats));
+    }
+
+    @Test
+    void testAdaptiveKeepsFiveMinutesForQuickTurns() {
+        AnthropicCacheStats stats = statsWithGaps(Duration.ofSeconds(40), 8, 50_000L);
+
+        assertEquals(CacheControlEphemeral.Ttl.TTL_5M, AnthropicCacheTtlPolicy.adaptive().selectTtl(stats));
+    }
+
+    @Test
+    void testAdaptiveChoosesOneHourForHumanPacedTurns() {
+        AnthropicCacheStats stats = statsWithGaps(Duration.ofMinutes(12), 8, 50_000L);
+
+        assertEquals(CacheControlEphemeral.Ttl.TTL_1H, AnthropicCacheTtlPolicy.adaptive().selectTtl(stats));
+    }
+
+    @Test
+    void testAdaptiveKeepsFiveMinutesWhenTurnsOutliveAnHour() {
+        AnthropicCacheStats stats = statsWithGaps(Duration.ofHours(3), 8, 50_000L);
+
+        assertEquals(CacheControlEphemeral.Ttl.TTL_5M, AnthropicCacheTtlPolicy.adaptive().selectTtl(stats),
+                "Neither TTL survives, so the cheaper write wins");
+    }
+
+    @Test
+    void testTrackerRecordsGapsHitsAndWritesPerTtl() {
+        AtomicLong clock = new AtomicLong();
+        AnthropicCacheTracker tracker = new AnthropicCacheTracker(clock::get);
+
+        tracker.onRequest(CacheControlEphemeral.Ttl.TTL_5M);
+        tracker.onResponse(usage(0L, 2_000L, 0L));
+        clock.addAndGet(Duration.ofMinutes(7).toNanos());
+        tracker.onRequest(CacheControlEphemeral.Ttl.TTL_1H);
+        tracker.onResponse(usage(2_000L, 0L, 300L));
+
+        AnthropicCacheStats stats = tracker.snapshot();
+        assertEquals(List.of(Duration.ofMinutes(7)), stats.recentGaps());
+        assertEquals(2, stats.cachedRequests());
+        assertEquals(1, stats.oneHourRequests());
+        assertEquals(0.5, stats.hitRatio());
+        assertEquals(2_000L, stats.cacheReadTokens());
+        assertEquals(2_000L, stats.cacheWrite5mTokens());
+        assertEquals(300L, stats.cacheWrite1hTokens());
+        assertEquals(2_300L, stats.lastCachedTokens());
+    }
+
+    @Test
+    void testConversationRejectsNullPolicy() {
+        try (AnthropicConversation conversation = new AnthropicConversation(
+                TestFixtures.CLAUDE_SONNET_45, TestFixtures.SAMPLE_CONVERSATION_NAME, "sk-test-key")) {
+            assertSame(AnthropicCacheTtlPolicy.adaptive(), conversation.cacheTtlPolicy());
+            assertThrows(IllegalArgumentException.class, () -> conversation.setCacheTtlPolicy(null));
+        }
+    }
+}
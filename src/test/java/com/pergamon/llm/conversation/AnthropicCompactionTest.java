@@ -0,0 +1,94 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.TextBlockParam;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicCompactionTest {
+
+    /**
+     * Encodes a blank PNG; images are estimated from their dimensions, so it must be large enough to matter.
+     */
+    private static String base64Png(int width, int height) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    @Test
+    void testDropAttachmentsReplacesOldImagesAndKeepsRecentTurns() throws Exception {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        Message withImage = createUserMessage("Look at this")
+                .withBlock(new Base64ImageBlock(base64Png(1500, 1000), "image/png"));
+        List<MessageParam> history = List.of(
+                conversation.toVendorMessage(withImage),
+                conversation.toVendorMessage(createAssistantMessage("A red pixel")),
+                conversation.toVendorMessage(withImage));
+        CompactionContext<MessageParam> context = new CompactionContext<>(
+                2_000L, new AnthropicTokenEstimator(), conversation::startsTurn, conversation::toVendorMessage);
+
+        List<MessageParam> compacted = AnthropicCompaction.dropAttachments().compact(history, context);
+
+        assertEquals(3, compacted.size());
+        String transcript = AnthropicCompaction.renderTranscript(compacted);
+        assertTrue(transcript.startsWith("USER: Look at this [image omitted]"), transcript);
+        assertTrue(compacted.get(2).content().blockParams().orElseThrow().get(1).image().isPresent(),
+                "The latest turn should keep its image");
+        assertSame(history.get(1), compacted.get(1), "Unchanged messages should keep their identity");
+        assertTrue(context.estimate(compacted) < context.estimate(history));
+        conversation.close();
+    }
+
+    @Test
+    void testDocumentCitationsAreRemovedWhicheverStrategyDropsTheDocument() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        Message withDocument = createUserMessage("What are the terms?")
+                .withBlock(new PlainTextDocumentBlock("Payment is due in thirty days. ".repeat(500), "text/plain", List.of()));
+        CharLocationCitation citation = new CharLocationCitation("Payment is due in thirty days.", "Terms",
+                "char_location", Optional.of(0L), Optional.empty(), Optional.empty(),
+                Optional.of(0L), Optional.of(30L), Optional.empty(), Optional.empty());
+        MessageParam cited = MessageParam.builder()
+                .role(MessageParam.Role.ASSISTANT)
+                .contentOfBlockParams(List.of(ContentBlockParam.ofText(TextBlockParam.builder()
+                        .text("Thirty days.")
+                        .citations(List.of(conversation.toVendorCitation(citation)))
+                        .build())))
+                .build();
+        List<MessageParam> history = List.of(
+                conversation.toVendorMessage(withDocument),
+                conversation.toVendorMessage(createAssistantMessage("Let me check.")),
+                conversation.toVendorMessage(createUserMessage("Well?")),
+                cited,
+                conversation.toVendorMessage(createUserMessage("And the penalty?")));
+        CompactionContext<MessageParam> context = new CompactionContext<>(
+                500L, new AnthropicTokenEstimator(), conversation::startsTurn, conversation::toVendorMessage);
+
+        List<MessageParam> windowed = CompactionStrategy.<MessageParam>slidingWindow().compact(history, context);
+        List<MessageParam> summarized = CompactionStrategy.<MessageParam>summarizing(messages -> "Thirty days.")
+                .compact(history, context);
+
+        for (List<MessageParam> compacted : List.of(windowed, summarized)) {
+            assertTrue(compacted.contains(cited), "The cited answer should be kept");
+            List<MessageParam> repaired = conversation.compactionApplied(history, compacted);
+            assertTrue(repaired.stream()
+                    .flatMap(message -> message.content().blockParams().orElseThrow().stream())
+                    .allMatch(block -> block.text().map(text -> text.citations().isEmpty()).orElse(true)),
+                    AnthropicCompaction.renderTranscript(repaired));
+            assertSame(history.getLast(), repaired.getLast(), "The message being sent should keep its identity");
+        }
+        assertSame(history, conversation.compactionApplied(history, history),
+                "A history that keeps every document should be left as it is");
+        conversation.close();
+    }
+}
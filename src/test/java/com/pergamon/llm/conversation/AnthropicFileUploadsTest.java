@@ -0,0 +1,119 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.client.AnthropicClient;
+import com.anthropic.client.okhttp.AnthropicOkHttpClient;
+import com.anthropic.core.ObjectMappers;
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.DocumentBlockParam;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests AnthropicFileUploads against a local stub of the Files API.
+ */
+class AnthropicFileUploadsTest {
+
+    private HttpServer server;
+    private AnthropicClient client;
+
+    private final AtomicInteger uploadCount = new AtomicInteger();
+    private final AtomicReference<String> betaHeader = new AtomicReference<>();
+    private final AtomicReference<String> uploadBody = new AtomicReference<>();
+
+    @BeforeEach
+    void startStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/files", this::handle);
+        server.start();
+        client = AnthropicOkHttpClient.builder()
+                .apiKey("sk-test-key")
+                .baseUrl("http://127.0.0.1:" + server.getAddress().getPort())
+                .maxRetries(0)
+                .build();
+    }
+
+    @AfterEach
+    void stopStubServer() {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    void testSameContentIsUploadedOnce(@TempDir Path directory) throws IOException {
+        AnthropicFileUploads uploads = new AnthropicFileUploads();
+        Path pdf = Files.write(directory.resolve("report.pdf"), "%PDF-1.4 test".getBytes(StandardCharsets.UTF_8));
+
+        String fromPath = uploads.upload(client, "sk-test-key", pdf, "application/pdf");
+        String again = uploads.upload(client, "sk-test-key", pdf, "application/pdf");
+        String fromBytes = uploads.upload(client, "sk-test-key", Files.readAllBytes(pdf),
+                "attachment.pdf", "application/pdf");
+
+        assertEquals("file_1", fromPath);
+        assertEquals(fromPath, again);
+        assertEquals(fromPath, fromBytes, "Identical content should reuse the upload");
+        assertEquals(1, uploadCount.get());
+        assertEquals(AnthropicFileUploads.FILES_API_BETA, betaHeader.get());
+        assertTrue(uploadBody.get().contains("filename=\"report.pdf\""));
+        assertTrue(uploadBody.get().contains("%PDF-1.4 test"));
+
+        uploads.upload(client, "sk-other-key", pdf, "application/pdf");
+        assertEquals(2, uploadCount.get(), "File ids are scoped to the API key");
+    }
+
+    @Test
+    void testFileSourcesSerializeAsFileReferences() throws IOException {
+        DocumentBlockParam document = DocumentBlockParam.builder()
+                .source(AnthropicFileUploads.documentSource("file_abc"))
+                .build();
+
+        String json = ObjectMappers.jsonMapper().writeValueAsString(ContentBlockParam.ofDocument(document));
+
+        assertTrue(json.contains("\"source\":{\"type\":\"file\",\"file_id\":\"file_abc\"}"), json);
+        assertTrue(document.source().base64().isEmpty(), "Other source accessors should still work");
+    }
+
+    @Test
+    void testSmallAttachmentsStayInline(@TempDir Path directory) throws IOException {
+        Path image = Files.write(directory.resolve("small.png"), new byte[]{1, 2, 3});
+        Message message = new Message(MessageRole.USER, List.of(new FilePathImageBlock(image.toString(), "image/png")));
+
+        try (AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, "inline", "sk-test-key")) {
+            conversation.setFilesApiEnabled(true);
+            ContentBlockParam block = conversation.toVendorMessage(message).content().blockParams().orElseThrow().getFirst();
+
+            assertEquals("AQID", block.image().orElseThrow().source().base64().orElseThrow().data());
+            assertFalse(conversation.referencesUploadedFiles());
+            assertThrows(IllegalArgumentException.class, () -> conversation.setFileUploadMinBytes(-1));
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        uploadCount.incrementAndGet();
+        betaHeader.set(exchange.getRequestHeaders().getFirst("anthropic-beta"));
+        uploadBody.set(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.ISO_8859_1));
+        byte[] body = ("{\"id\":\"file_" + uploadCount.get() + "\",\"type\":\"file\","
+                + "\"created_at\":\"2025-01-01T00:00:00Z\",\"filename\":\"report.pdf\","
+                + "\"mime_type\":\"application/pdf\",\"size_bytes\":13,\"downloadable\":false}")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+}
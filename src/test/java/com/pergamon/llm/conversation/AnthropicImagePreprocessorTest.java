@@ -0,0 +1,111 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.ImageBlockParam;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicImagePreprocessorTest {
+
+    private static AnthropicImagePreprocessor newPreprocessor() {
+        return new AnthropicImagePreprocessor(AnthropicImagePreprocessor.DEFAULT_MAX_LONG_EDGE,
+                AnthropicImagePreprocessor.DEFAULT_MAX_PIXELS, AnthropicImagePreprocessor.DEFAULT_TARGET_BYTES,
+                AnthropicImagePreprocessor.DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    /**
+     * Encodes a smooth gradient, which compresses well, as a PNG of the given size.
+     */
+    private static byte[] png(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void testLargeScreenshotIsShrunkToUsefulResolution() throws Exception {
+        AnthropicImagePreprocessor preprocessor = newPreprocessor();
+
+        AnthropicImagePreprocessor.ProcessedImage processed = preprocessor.process(png(4000, 2500), "image/png").orElseThrow();
+
+        AnthropicImagePreprocessor.Dimensions dimensions = processed.dimensions();
+        assertTrue(dimensions.width() <= AnthropicImagePreprocessor.DEFAULT_MAX_LONG_EDGE);
+        assertTrue((long) dimensions.width() * dimensions.height() <= AnthropicImagePreprocessor.DEFAULT_MAX_PIXELS);
+        assertEquals(1.6, (double) dimensions.width() / dimensions.height(), 0.01, "The aspect ratio should be kept");
+        assertEquals("image/png", processed.mimeType(), "A PNG that fits the target size should stay PNG");
+        assertEquals(dimensions, AnthropicImagePreprocessor.readDimensions(processed.data()));
+        assertEquals((long) Math.ceil(dimensions.width() * dimensions.height() / 750.0), processed.estimatedTokens());
+    }
+
+    @Test
+    void testResultsAreCachedByContent() throws Exception {
+        AnthropicImagePreprocessor preprocessor = newPreprocessor();
+        byte[] content = png(3000, 2000);
+
+        AnthropicImagePreprocessor.ProcessedImage first = preprocessor.process(content, "image/png").orElseThrow();
+        AnthropicImagePreprocessor.ProcessedImage second = preprocessor.process(content.clone(), "image/png").orElseThrow();
+
+        assertSame(first, second);
+        assertEquals(1, preprocessor.cacheSize());
+    }
+
+    @Test
+    void testSmallAndUnreadableImagesAreSentAsTheyAre() throws Exception {
+        AnthropicImagePreprocessor preprocessor = newPreprocessor();
+
+        assertEquals(Optional.empty(), preprocessor.process(png(800, 600), "image/png"));
+        assertEquals(Optional.empty(), preprocessor.process("not an image".getBytes(), "image/png"));
+        assertEquals(Optional.empty(), preprocessor.process(png(4000, 2500), "image/gif"));
+        assertEquals(0, preprocessor.cacheSize());
+    }
+
+    @Test
+    void testConversationSendsDownscaledImageAndEstimatesItsTokens() throws Exception {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        String original = Base64.getEncoder().encodeToString(png(4000, 2500));
+        ContentBlockParam unprocessed = conversation.toVendorMessageBlock(new Base64ImageBlock(original, "image/png"));
+        assertEquals(original, unprocessed.image().orElseThrow().source().base64().orElseThrow().data(),
+                "Images are sent as they are unless preprocessing is enabled");
+
+        conversation.setImagePreprocessingEnabled(true);
+
+        ContentBlockParam block = conversation.toVendorMessageBlock(new Base64ImageBlock(original, "image/png"));
+        ImageBlockParam image = block.image().orElseThrow();
+        byte[] sent = Base64.getDecoder().decode(image.source().base64().orElseThrow().data());
+        AnthropicImagePreprocessor.Dimensions dimensions = AnthropicImagePreprocessor.readDimensions(sent);
+
+        assertTrue(dimensions.width() <= AnthropicImagePreprocessor.DEFAULT_MAX_LONG_EDGE);
+        assertEquals(dimensions.estimatedTokens(), new AnthropicTokenEstimator().estimateBlockTokens(block));
+
+        conversation.setImagePreprocessingEnabled(false);
+        ContentBlockParam untouched = conversation.toVendorMessageBlock(new Base64ImageBlock(original, "image/png"));
+        assertEquals(original, untouched.image().orElseThrow().source().base64().orElseThrow().data());
+        conversation.close();
+    }
+
+    @Test
+    void testSmallImageEstimateUsesItsOwnSize() throws Exception {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+
+        ContentBlockParam block = conversation.toVendorMessageBlock(
+                new Base64ImageBlock(Base64.getEncoder().encodeToString(png(300, 200)), "image/png"));
+
+        assertEquals(80, new AnthropicTokenEstimator().estimateBlockTokens(block));
+        conversation.close();
+    }
+}
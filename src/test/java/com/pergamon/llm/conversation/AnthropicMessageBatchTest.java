@@ -0,0 +1,247 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.client.AnthropicClient;
+import com.anthropic.client.okhttp.AnthropicOkHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests AnthropicMessageBatch against a local stub of the Message Batches API.
+ */
+class AnthropicMessageBatchTest {
+
+    private static final String BATCH_ID = "msgbatch_test";
+
+    private HttpServer server;
+    private AnthropicClient client;
+
+    private final AtomicReference<String> createdBody = new AtomicReference<>();
+    private final AtomicInteger retrieveCount = new AtomicInteger();
+    private volatile int createStatus = 200;
+    private volatile int pollsUntilEnded = 1;
+    private volatile String resultsJsonl = "";
+
+    @BeforeEach
+    void startStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/messages/batches", this::handle);
+        server.start();
+        client = AnthropicOkHttpClient.builder()
+                .apiKey("sk-test-key")
+                .baseUrl("http://127.0.0.1:" + server.getAddress().getPort())
+                .jsonMapper(AnthropicMessageEncodingCache.shared().jsonMapper())
+                .maxRetries(0)
+                .build();
+    }
+
+    @AfterEach
+    void stopStubServer() {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    void testResultsAreAppliedToTheirConversations() {
+        AnthropicConversation first = new AnthropicConversation(CLAUDE_SONNET_45, "first", "sk-test-key");
+        AnthropicConversation second = new AnthropicConversation(CLAUDE_SONNET_45, "second", "sk-test-key");
+        pollsUntilEnded = 2;
+        resultsJsonl = succeededLine("turn-1", "Second reply", 30, 7) + "\n"
+                + erroredLine("turn-0") + "\n";
+
+        AnthropicMessageBatch batch = new AnthropicMessageBatch(client)
+                .add(first, createUserMessage("Hello first"))
+                .add(second, createUserMessage("Hello second"));
+        assertEquals(BATCH_ID, batch.submit());
+        assertTrue(createdBody.get().contains("\"custom_id\":\"turn-0\""));
+        assertTrue(createdBody.get().contains("Hello second"));
+
+        List<AnthropicMessageBatch.Result> results = batch.awaitResults(Duration.ZERO, Duration.ofSeconds(10));
+
+        assertEquals(3, retrieveCount.get(), "Should poll until the batch has ended");
+        assertEquals(2, results.size());
+        assertSame(first, results.get(0).conversation(), "Results should be in the order turns were added");
+        assertFalse(results.get(0).succeeded());
+        assertTrue(results.get(0).error().orElseThrow().startsWith("errored"));
+        assertTrue(results.get(1).succeeded());
+
+        // The failed turn is rolled back so the conversation can be retried
+        assertTrue(first.messages().isEmpty());
+        assertTrue(first.vendorMessages().isEmpty());
+
+        // The successful turn is recorded exactly as sendMessage would
+        assertEquals(2, second.messages().size());
+        assertEquals(2, second.vendorMessages().size());
+        Message reply = second.messages().get(1);
+        assertEquals(MessageRole.ASSISTANT, reply.role());
+        assertEquals("Second reply", ((TextBlock) reply.blocks().get(0)).text());
+        assertEquals(30, second.getTotalInputTokens());
+        assertEquals(7, second.getTotalOutputTokens());
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    void testTurnsMissingFromResultsAreRolledBack() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        resultsJsonl = "";
+
+        AnthropicMessageBatch batch = new AnthropicMessageBatch(client)
+                .add(conversation, createUserMessage("Hello"));
+        batch.submit();
+        List<AnthropicMessageBatch.Result> results = batch.awaitResults(Duration.ZERO, Duration.ofSeconds(10));
+
+        assertFalse(results.get(0).succeeded());
+        assertTrue(conversation.messages().isEmpty());
+        assertThrows(IllegalStateException.class,
+                () -> batch.awaitResults(Duration.ZERO, Duration.ofSeconds(10)));
+        conversation.close();
+    }
+
+    @Test
+    void testFailedSubmitRollsBackEveryConversation() {
+        AnthropicConversation first = new AnthropicConversation(CLAUDE_SONNET_45, "first", "sk-test-key");
+        AnthropicConversation second = new AnthropicConversation(CLAUDE_SONNET_45, "second", "sk-test-key");
+        createStatus = 500;
+
+        AnthropicMessageBatch batch = new AnthropicMessageBatch(client)
+                .add(first, createUserMessage("Hello first"))
+                .add(second, createUserMessage("Hello second"));
+
+        assertThrows(RuntimeException.class, batch::submit);
+        assertTrue(first.messages().isEmpty());
+        assertTrue(second.vendorMessages().isEmpty());
+        assertTrue(batch.batchId().isEmpty());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    void testTimeoutLeavesTurnsPending() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        pollsUntilEnded = Integer.MAX_VALUE;
+
+        AnthropicMessageBatch batch = new AnthropicMessageBatch(client)
+                .add(conversation, createUserMessage("Hello"));
+        batch.submit();
+
+        assertThrows(RuntimeException.class, () -> batch.awaitResults(Duration.ZERO, Duration.ZERO));
+        assertEquals(1, conversation.messages().size(), "Turn should stay pending after a timeout");
+        conversation.close();
+    }
+
+    @Test
+    void testConversationCanOnlyAppearOncePerBatch() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        AnthropicMessageBatch batch = new AnthropicMessageBatch(client)
+                .add(conversation, createUserMessage("One"));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> batch.add(conversation, createUserMessage("Two")));
+        assertThrows(IllegalStateException.class, () -> new AnthropicMessageBatch(client).submit());
+        conversation.close();
+    }
+
+    @Test
+    void testMappedAttachmentsAreEncodedWhateverTheClientsMapper() throws Exception {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        Path pdf = Files.createTempFile("large", ".pdf");
+        byte[] content = new byte[300_000];
+        new Random(1).nextBytes(content);
+        Files.write(pdf, content);
+        AnthropicClient stockClient = AnthropicOkHttpClient.builder()
+                .apiKey("sk-test-key")
+                .baseUrl("http://127.0.0.1:" + server.getAddress().getPort())
+                .maxRetries(0)
+                .build();
+        try {
+            new AnthropicMessageBatch(stockClient)
+                    .add(conversation, new Message(MessageRole.USER, List.of(
+                            new FilePathPDFDocumentBlock(pdf.toString(), "application/pdf", List.of()))))
+                    .submit();
+
+            assertFalse(createdBody.get().contains(MappedAttachments.TOKEN_PREFIX));
+            assertTrue(createdBody.get().contains(Base64.getEncoder().encodeToString(content)));
+        } finally {
+            stockClient.close();
+            conversation.close();
+            Files.deleteIfExists(pdf);
+        }
+    }
+
+    // --------- Stub server ---------
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        if (method.equals("POST") && path.equals("/v1/messages/batches")) {
+            createdBody.set(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            if (createStatus != 200) {
+                respond(exchange, createStatus,
+                        "{\"type\":\"error\",\"error\":{\"type\":\"api_error\",\"message\":\"boom\"}}");
+            } else {
+                respond(exchange, 200, batchJson("in_progress"));
+            }
+        } else if (method.equals("GET") && path.equals("/v1/messages/batches/" + BATCH_ID)) {
+            boolean ended = retrieveCount.incrementAndGet() > pollsUntilEnded;
+            respond(exchange, 200, batchJson(ended ? "ended" : "in_progress"));
+        } else if (method.equals("GET") && path.equals("/v1/messages/batches/" + BATCH_ID + "/results")) {
+            respond(exchange, 200, resultsJsonl);
+        } else {
+            respond(exchange, 404, "{\"type\":\"error\",\"error\":{\"type\":\"not_found_error\",\"message\":\"" + path + "\"}}");
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            exchange.getResponseBody().write(bytes);
+        }
+        exchange.close();
+    }
+
+    private static String batchJson(String status) {
+        return """
+                {"id":"%s","type":"message_batch","processing_status":"%s",
+                 "request_counts":{"processing":0,"succeeded":0,"errored":0,"canceled":0,"expired":0},
+                 "created_at":"2025-01-01T00:00:00Z","expires_at":"2025-01-02T00:00:00Z",
+                 "ended_at":null,"archived_at":null,"cancel_initiated_at":null,"results_url":null}
+                """.formatted(BATCH_ID, status).replace("\n", "");
+    }
+
+    private static String succeededLine(String customId, String text, long inputTokens, long outputTokens) {
+        return ("{\"custom_id\":\"%s\",\"result\":{\"type\":\"succeeded\",\"message\":{"
+                + "\"id\":\"msg_1\",\"type\":\"message\",\"role\":\"assistant\",\"model\":\"claude-sonnet-4-5\","
+                + "\"content\":[{\"type\":\"text\",\"text\":\"%s\",\"citations\":null}],"
+                + "\"stop_reason\":\"end_turn\",\"stop_sequence\":null,"
+                + "\"usage\":{\"input_tokens\":%d,\"output_tokens\":%d,"
+                + "\"cache_creation_input_tokens\":0,\"cache_read_input_tokens\":0}}}}")
+                .formatted(customId, text, inputTokens, outputTokens);
+    }
+
+    private static String erroredLine(String customId) {
+        return ("{\"custom_id\":\"%s\",\"result\":{\"type\":\"errored\",\"error\":{\"type\":\"error\","
+                + "\"error\":{\"type\":\"invalid_request_error\",\"message\":\"bad request\"}}}}")
+                .formatted(customId);
+    }
+}
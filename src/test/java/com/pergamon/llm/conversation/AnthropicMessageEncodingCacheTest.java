@@ -0,0 +1,66 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.core.ObjectMappers;
+import com.anthropic.models.messages.MessageCreateParams;
+import com.anthropic.models.messages.MessageParam;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicMessageEncodingCacheTest {
+
+    private static MessageParam userMessage(String text) {
+        return MessageParam.builder()
+                .role(MessageParam.Role.USER)
+                .content(text)
+                .build();
+    }
+
+    private static MessageCreateParams params(List<MessageParam> messages) {
+        return MessageCreateParams.builder()
+                .model("claude-sonnet-4-5")
+                .maxTokens(1024)
+                .messages(messages)
+                .build();
+    }
+
+    @Test
+    void testEncodedRequestMatchesSdkSerialization() throws Exception {
+        AnthropicMessageEncodingCache cache = new AnthropicMessageEncodingCache();
+        MessageCreateParams params = params(List.of(userMessage("Hello"), userMessage("World")));
+
+        String expected = ObjectMappers.jsonMapper().writeValueAsString(params._body());
+        String actual = new String(cache.jsonMapper().writeValueAsBytes(params._body()));
+
+        assertEquals(expected, actual, "Cached encoding should produce the same request body as the SDK");
+    }
+
+    @Test
+    void testHistoryPrefixIsEncodedOnce() throws Exception {
+        AnthropicMessageEncodingCache cache = new AnthropicMessageEncodingCache();
+        MessageParam first = userMessage("First");
+        MessageParam second = userMessage("Second");
+        MessageParam third = userMessage("Third");
+
+        cache.jsonMapper().writeValueAsBytes(params(List.of(first, second))._body());
+        assertEquals(2, cache.encodedCount());
+        assertEquals(0, cache.reusedCount());
+
+        cache.jsonMapper().writeValueAsBytes(params(List.of(first, second, third))._body());
+        assertEquals(3, cache.encodedCount(), "Only the newly appended message should be encoded");
+        assertEquals(2, cache.reusedCount(), "The history prefix should be reused");
+    }
+
+    @Test
+    void testEqualButDistinctMessagesAreEncodedSeparately() {
+        AnthropicMessageEncodingCache cache = new AnthropicMessageEncodingCache();
+
+        byte[] first = cache.encode(userMessage("Same"));
+        byte[] second = cache.encode(userMessage("Same"));
+
+        assertArrayEquals(first, second);
+        assertEquals(2, cache.encodedCount(), "Entries are keyed by identity, not equality");
+    }
+}
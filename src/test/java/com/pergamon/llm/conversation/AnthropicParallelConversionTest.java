@@ -0,0 +1,112 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicParallelConversionTest {
+
+    /**
+     * Records which threads convert blocks and how many conversions overlap. Blocks whose PDF
+     * data decodes to "fail-<delay>" throw after the given delay in milliseconds.
+     */
+    private static class ObservedConversation extends AnthropicConversation {
+        private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxActive = new AtomicInteger();
+
+        ObservedConversation() {
+            super(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+            setTokenBudgetPolicy(TokenBudgetPolicy.ALLOW);
+        }
+
+        @Override
+        protected ContentBlockParam toVendorMessageBlock(MessageBlock block) {
+            threads.add(Thread.currentThread());
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                String content = block instanceof Base64PDFDocumentBlock pdf
+                        ? new String(Base64.getDecoder().decode(pdf.base64Data()))
+                        : "";
+                long delay = content.startsWith("fail-") ? Long.parseLong(content.substring(5)) : 50L;
+                Thread.sleep(delay);
+                if (content.startsWith("fail-")) {
+                    throw new IllegalStateException(content);
+                }
+                return super.toVendorMessageBlock(block);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    private static Base64PDFDocumentBlock pdf(String content) {
+        return new Base64PDFDocumentBlock(Base64.getEncoder().encodeToString(content.getBytes()), "application/pdf", List.of());
+    }
+
+    private static Message message(String... contents) {
+        List<MessageBlock> blocks = new ArrayList<>();
+        for (String content : contents) {
+            blocks.add(pdf(content));
+        }
+        blocks.add(createPlainTextBlock("Compare these."));
+        return new Message(MessageRole.USER, blocks);
+    }
+
+    @Test
+    void testLargeMessagesConvertConcurrentlyInOrderWithinBound() {
+        ObservedConversation conversation = new ObservedConversation();
+        conversation.setParallelConversionThresholds(3, Long.MAX_VALUE);
+        conversation.setMaxConversionConcurrency(2);
+
+        MessageParam converted = conversation.toVendorMessage(message("a", "b", "c", "d", "e", "f"));
+
+        List<ContentBlockParam> blocks = converted.content().blockParams().orElseThrow();
+        assertEquals(7, blocks.size());
+        for (int i = 0; i < 6; i++) {
+            String data = blocks.get(i).document().orElseThrow().source().base64().orElseThrow().data();
+            assertEquals(String.valueOf((char) ('a' + i)), new String(Base64.getDecoder().decode(data)));
+        }
+        assertEquals("Compare these.", blocks.getLast().text().orElseThrow().text());
+        assertTrue(conversation.maxActive.get() <= 2, "Conversions should respect the concurrency bound");
+        assertFalse(conversation.threads.contains(Thread.currentThread()));
+        conversation.close();
+    }
+
+    @Test
+    void testEarliestFailingBlockIsReported() {
+        ObservedConversation conversation = new ObservedConversation();
+        conversation.setParallelConversionThresholds(2, Long.MAX_VALUE);
+
+        // The later block fails first; the earlier block's failure is still the one reported
+        IllegalStateException failure = assertThrows(IllegalStateException.class,
+                () -> conversation.toVendorMessage(message("ok", "fail-200", "ok", "fail-0")));
+
+        assertEquals("fail-200", failure.getMessage());
+        conversation.close();
+    }
+
+    @Test
+    void testSmallMessagesConvertOnTheCallingThread() {
+        ObservedConversation conversation = new ObservedConversation();
+
+        conversation.toVendorMessage(message("a", "b"));
+
+        assertEquals(Set.of(Thread.currentThread()), conversation.threads);
+        assertThrows(IllegalArgumentException.class, () -> conversation.setParallelConversionThresholds(1, 0));
+        assertThrows(IllegalArgumentException.class, () -> conversation.setMaxConversionConcurrency(0));
+        conversation.close();
+    }
+}
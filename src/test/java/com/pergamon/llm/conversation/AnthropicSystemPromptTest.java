@@ -0,0 +1,119 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.MessageCreateParams;
+import com.anthropic.models.messages.TextBlockParam;
+import com.anthropic.models.messages.batches.BatchCreateParams;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicSystemPromptTest {
+
+    private static final String INSTRUCTIONS = "Follow the house style. ".repeat(400);
+
+    private static AnthropicConversation newConversation() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        conversation.setTokenBudgetPolicy(TokenBudgetPolicy.ALLOW);
+        return conversation;
+    }
+
+    private static List<TextBlockParam> system(MessageCreateParams params) {
+        return params.system().flatMap(MessageCreateParams.System::textBlockParams).orElseThrow();
+    }
+
+    @Test
+    void testSystemPromptIsSentWithABreakpointOnItsLastBlock() {
+        AnthropicConversation conversation = newConversation();
+        conversation.setSystemPrompt(List.of(createPlainTextBlock(INSTRUCTIONS), createPlainTextBlock("Today is Monday.")));
+
+        conversation.beginDeferredTurn(createUserMessage("Hello"), true);
+        List<TextBlockParam> system = system(conversation.buildRequestParams());
+
+        assertEquals(2, system.size());
+        assertEquals(INSTRUCTIONS, system.getFirst().text());
+        assertTrue(system.getFirst().cacheControl().isEmpty());
+        assertTrue(system.getLast().cacheControl().isPresent(), "The system prompt should carry its own breakpoint");
+        assertEquals(1, conversation.vendorMessages().size(), "The system prompt should not be stored in the history");
+        conversation.close();
+    }
+
+    @Test
+    void testSystemBreakpointLeavesThreeForTheHistory() {
+        AnthropicConversation conversation = newConversation();
+        conversation.setSystemPrompt(INSTRUCTIONS);
+
+        for (int i = 0; i < 8; i++) {
+            conversation.beginDeferredTurn(createUserMessage("b".repeat(6000) + i), true);
+        }
+        BatchCreateParams.Request.Params params = conversation.buildBatchRequestParams();
+
+        long historyMarkers = params.messages().stream()
+                .flatMap(message -> message.content().blockParams().orElseThrow().stream())
+                .filter(block -> block.text().orElseThrow().cacheControl().isPresent())
+                .count();
+        assertEquals(AnthropicCachePlanner.MAX_BREAKPOINTS - 1, historyMarkers);
+        List<TextBlockParam> system = params.system().flatMap(BatchCreateParams.Request.Params.System::textBlockParams)
+                .orElseThrow();
+        assertTrue(system.getLast().cacheControl().isPresent(), "Batch requests should carry the system prompt");
+        conversation.close();
+    }
+
+    @Test
+    void testShortSystemPromptIsSentWithoutBreakpoint() {
+        AnthropicConversation conversation = newConversation();
+        conversation.setSystemPrompt("Be brief.");
+
+        conversation.beginDeferredTurn(createUserMessage("Hello"), true);
+        List<TextBlockParam> system = system(conversation.buildRequestParams());
+
+        assertEquals(1, system.size());
+        assertTrue(system.getFirst().cacheControl().isEmpty());
+        conversation.close();
+    }
+
+    @Test
+    void testSystemPromptCountsTowardEstimatesAndResponseCacheKey() {
+        AnthropicConversation conversation = newConversation();
+        conversation.beginDeferredTurn(createUserMessage("Hello"), false);
+        MessageCreateParams params = conversation.buildRequestParams();
+        long withoutSystem = conversation.estimateInputTokens().orElseThrow();
+        String keyWithoutSystem = conversation.responseCacheKey(params);
+
+        conversation.setSystemPrompt(INSTRUCTIONS);
+
+        assertTrue(conversation.estimateInputTokens().orElseThrow() > withoutSystem + 1000);
+        assertNotEquals(keyWithoutSystem, conversation.responseCacheKey(conversation.buildRequestParams()));
+        conversation.close();
+    }
+
+    @Test
+    void testRolledBackTurnLeavesNoBreakpointsForTheNextRequest() {
+        AnthropicConversation conversation = newConversation();
+        conversation.setSystemPrompt(INSTRUCTIONS);
+        Message abandoned = createUserMessage("b".repeat(6000));
+
+        conversation.beginDeferredTurn(abandoned, true);
+        conversation.abandonDeferredTurn(abandoned);
+        conversation.beginDeferredTurn(createUserMessage("b".repeat(6000)), false);
+        MessageCreateParams params = conversation.buildRequestParams();
+
+        assertTrue(system(params).getLast().cacheControl().isEmpty());
+        assertTrue(params.messages().getLast().content().blockParams().orElseThrow()
+                .getLast().text().orElseThrow().cacheControl().isEmpty());
+        conversation.close();
+    }
+
+    @Test
+    void testSystemMessagesAndBlankBlocksAreRejected() {
+        AnthropicConversation conversation = newConversation();
+
+        assertThrows(IllegalArgumentException.class, () -> conversation.setSystemPrompt(List.of(createPlainTextBlock(" "))));
+        assertTrue(conversation.systemPrompt().isEmpty());
+        assertThrows(UnsupportedOperationException.class,
+                () -> conversation.beginDeferredTurn(new Message(MessageRole.SYSTEM, List.of(createPlainTextBlock("x"))), true));
+        conversation.close();
+    }
+}
@@ -0,0 +1,120 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.core.ObjectMappers;
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.DocumentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.SearchResultBlockParam;
+import com.anthropic.models.messages.TextBlockParam;
+import com.anthropic.models.messages.Tool;
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+import java.util.List;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicTokenEstimatorTest {
+
+    private static MessageParam userText(String text) {
+        return MessageParam.builder()
+                .role(MessageParam.Role.USER)
+                .content(text)
+                .build();
+    }
+
+    @Test
+    void testTextEstimatedAtAboutFourCharsPerToken() {
+        AnthropicTokenEstimator estimator = new AnthropicTokenEstimator();
+
+        long estimate = estimator.estimateInputTokens(List.of(userText("a".repeat(400))));
+
+        assertEquals(104L, estimate, "100 text tokens plus per-message overhead");
+    }
+
+    @Test
+    void testSearchResultsAndToolsEstimatedFromTheirJson() throws Exception {
+        AnthropicTokenEstimator estimator = new AnthropicTokenEstimator();
+        ContentBlockParam searchResult = ContentBlockParam.ofSearchResult(SearchResultBlockParam.builder()
+                .source("document-1#passage-1")
+                .title("Handbook")
+                .addContent(TextBlockParam.builder().text("a".repeat(4_000)).build())
+                .build());
+        String json = ObjectMappers.jsonMapper().writeValueAsString(searchResult);
+
+        assertEquals((long) Math.ceil(json.length() / 4.0), estimator.estimateBlockTokens(searchResult));
+
+        Tool tool = Tool.builder()
+                .name("lookup")
+                .description("b".repeat(400))
+                .inputSchema(Tool.InputSchema.builder().build())
+                .build();
+        estimator.setTools(List.of(tool));
+        assertEquals((long) Math.ceil(ObjectMappers.jsonMapper().writeValueAsString(tool).length() / 4.0),
+                estimator.estimatePreambleTokens());
+    }
+
+    @Test
+    void testPdfEstimatedFromItsPageCount() {
+        AnthropicTokenEstimator estimator = new AnthropicTokenEstimator();
+        // Three pages, one of them holding 4 MB of drawing operators, as a scanned page might
+        byte[] pdf = createPdfWithContents("q Q ".repeat(1_000_000), "BT ET", "BT ET");
+        ContentBlockParam document = ContentBlockParam.ofDocument(DocumentBlockParam.builder()
+                .base64Source(Base64.getEncoder().encodeToString(pdf))
+                .build());
+        ContentBlockParam unreadable = ContentBlockParam.ofDocument(DocumentBlockParam.builder()
+                .base64Source(Base64.getEncoder().encodeToString(new byte[1_000_000]))
+                .build());
+
+        assertEquals(6_000L, estimator.estimateBlockTokens(document));
+        assertEquals(2_000L, estimator.estimateBlockTokens(unreadable), "A document that cannot be read counts as one page");
+    }
+
+    @Test
+    void testEstimateGrowsWithHistory() {
+        AnthropicTokenEstimator estimator = new AnthropicTokenEstimator();
+        MessageParam message = userText("a".repeat(400));
+
+        assertEquals(2 * estimator.estimateInputTokens(List.of(message)),
+                estimator.estimateInputTokens(List.of(message, message)));
+    }
+
+    @Test
+    void testCalibrationMovesEstimateTowardReportedUsage() {
+        AnthropicTokenEstimator estimator = new AnthropicTokenEstimator();
+        List<MessageParam> history = List.of(userText("a".repeat(400)));
+
+        long before = estimator.estimateInputTokens(history);
+        for (int i = 0; i < 20; i++) {
+            estimator.calibrate(estimator.estimateInputTokens(history), 2 * before);
+        }
+
+        long after = estimator.estimateInputTokens(history);
+        assertTrue(Math.abs(after - 2 * before) <= 2, "Estimate should converge on reported usage: " + after);
+        assertEquals(2.0, estimator.correction(), 0.01);
+    }
+
+    @Test
+    void testAnthropicConversationRejectsOversizedRequestBeforeSending() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        conversation.setCapabilities(new ModelCapabilities(true, true, true, true, true, 5000, 4096));
+
+        assertThrows(IllegalStateException.class,
+                () -> conversation.sendMessage(createUserMessage("a".repeat(8000))),
+                "2,000 input tokens plus 4,096 max_tokens exceed a 5,000-token window");
+        assertTrue(conversation.messages().isEmpty());
+        conversation.close();
+    }
+
+    @Test
+    void testLargeDocumentFitsTheRegisteredContextWindow() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+
+        conversation.beginDeferredTurn(new Message(MessageRole.USER, List.of(
+                new PlainTextDocumentBlock("a".repeat(300_000), "text/plain", List.of()))), false);
+
+        assertEquals(1, conversation.messages().size(), "About 79K tokens fit in Claude Sonnet 4.5's 200K window");
+        conversation.close();
+    }
+}
@@ -0,0 +1,96 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageCreateParams;
+import com.anthropic.models.messages.MessageParam;
+import com.anthropic.models.messages.ToolUnion;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnthropicToolsTest {
+
+    private static final String SCHEMA = "{\"type\":\"object\",\"properties\":{\"city\":{\"type\":\"string\"}},\"required\":[\"city\"]}";
+
+    private static AnthropicConversation newConversation() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        conversation.setTokenBudgetPolicy(TokenBudgetPolicy.ALLOW);
+        return conversation;
+    }
+
+    private static Tool weatherTool(String description) {
+        return new Tool("get_weather", description, SCHEMA, input -> "sunny");
+    }
+
+    @Test
+    void testClientToolsFollowWebSearchWithABreakpointWhenLarge() {
+        AnthropicConversation conversation = newConversation();
+        conversation.setToolRegistry(ToolRegistry.of(List.of(weatherTool("Returns the weather. ".repeat(300)))));
+
+        conversation.beginDeferredTurn(createUserMessage("Weather in Paris?"), true);
+        List<ToolUnion> tools = conversation.buildRequestParams().tools().orElseThrow();
+
+        assertEquals(2, tools.size());
+        assertTrue(tools.getFirst().isWebSearchTool20250305());
+        assertEquals("get_weather", tools.getLast().asTool().name());
+        assertTrue(tools.getLast().asTool().cacheControl().isPresent(), "Large tool definitions should be cached");
+        conversation.close();
+    }
+
+    @Test
+    void testSmallToolsCarryNoBreakpointAndSystemPromptTakesIt() {
+        AnthropicConversation conversation = newConversation();
+        conversation.setToolRegistry(ToolRegistry.of(List.of(weatherTool("Returns the weather."))));
+
+        conversation.beginDeferredTurn(createUserMessage("Weather in Paris?"), true);
+        assertTrue(conversation.buildRequestParams().tools().orElseThrow().getLast().asTool().cacheControl().isEmpty());
+
+        conversation.setSystemPrompt("Answer like a forecaster. ".repeat(300));
+        conversation.beginDeferredTurn(createUserMessage("And in Rome?"), true);
+        MessageCreateParams params = conversation.buildRequestParams();
+        assertTrue(params.tools().orElseThrow().getLast().asTool().cacheControl().isEmpty());
+        assertTrue(params.system().flatMap(MessageCreateParams.System::textBlockParams).orElseThrow()
+                .getLast().cacheControl().isPresent(), "The system breakpoint should cover the tools too");
+        conversation.close();
+    }
+
+    @Test
+    void testToolBlocksConvertBothWays() {
+        AnthropicConversation conversation = newConversation();
+
+        MessageParam toolUse = conversation.toVendorMessage(new Message(MessageRole.ASSISTANT,
+                List.of(new ToolUseBlock("toolu_1", "get_weather", "{\"city\":\"Paris\"}"))));
+        MessageParam toolResult = conversation.toVendorMessage(new Message(MessageRole.TOOL,
+                List.of(new ToolResultBlock("toolu_1", "sunny", false))));
+
+        ContentBlockParam useBlock = toolUse.content().blockParams().orElseThrow().getFirst();
+        assertEquals("get_weather", useBlock.toolUse().orElseThrow().name());
+        assertEquals(MessageParam.Role.USER, toolResult.role(), "Tool results are sent in a user message");
+        assertEquals("toolu_1", toolResult.content().blockParams().orElseThrow().getFirst()
+                .toolResult().orElseThrow().toolUseId());
+        assertFalse(conversation.startsTurn(toolResult));
+
+        var vendorToolUse = com.anthropic.models.messages.ToolUseBlock.builder()
+                .id("toolu_1")
+                .name("get_weather")
+                .input(com.anthropic.core.JsonValue.from(java.util.Map.of("city", "Paris")))
+                .build();
+        MessageBlock converted = conversation.fromVendorContentBlock(
+                com.anthropic.models.messages.ContentBlock.ofToolUse(vendorToolUse));
+        assertEquals(new ToolUseBlock("toolu_1", "get_weather", "{\"city\":\"Paris\"}"), converted);
+        conversation.close();
+    }
+
+    @Test
+    void testInvalidSchemaIsRejected() {
+        AnthropicConversation conversation = newConversation();
+
+        assertThrows(IllegalArgumentException.class, () -> conversation.setToolRegistry(
+                ToolRegistry.of(List.of(new Tool("broken", "Broken schema", "{not json", input -> "")))));
+        assertTrue(conversation.toolRegistry().isEmpty());
+        conversation.close();
+    }
+}
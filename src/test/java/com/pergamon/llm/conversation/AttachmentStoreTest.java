@@ -0,0 +1,89 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.MessageParam;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AttachmentStoreTest {
+
+    @Test
+    void testSameContentSharesOnePayload(@TempDir Path directory) throws IOException {
+        AttachmentStore store = new AttachmentStore(1024);
+        Path first = Files.write(directory.resolve("first.pdf"), new byte[]{1, 2, 3});
+        Path copy = Files.write(directory.resolve("copy.pdf"), new byte[]{1, 2, 3});
+
+        AttachmentStore.Lease a = store.acquire(first);
+        AttachmentStore.Lease b = store.acquire(first);
+        AttachmentStore.Lease c = store.acquire(copy);
+
+        assertSame(a.base64(), b.base64());
+        assertSame(a.base64(), c.base64(), "Identical content at another path should share the payload");
+        assertEquals("AQID", a.base64());
+        assertEquals(1, store.size());
+        assertEquals(3, store.referenceCount(a.contentHash()));
+        assertEquals(1, store.missCount());
+
+        a.close();
+        a.close();
+        assertEquals(2, store.referenceCount(a.contentHash()), "Closing a lease twice should release it once");
+    }
+
+    @Test
+    void testModifiedFileIsReadAgain(@TempDir Path directory) throws IOException {
+        AttachmentStore store = new AttachmentStore(1024);
+        Path file = Files.write(directory.resolve("image.png"), new byte[]{1, 2, 3});
+        String before = store.acquire(file).base64();
+
+        Files.write(file, new byte[]{4, 5, 6, 7});
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(60)));
+
+        assertNotEquals(before, store.acquire(file).base64());
+        assertEquals(2, store.missCount());
+    }
+
+    @Test
+    void testOnlyUnreferencedPayloadsAreEvicted() {
+        AttachmentStore store = new AttachmentStore(8);
+        AttachmentStore.Lease held = store.acquire(new byte[]{1, 2, 3});
+        AttachmentStore.Lease released = store.acquire(new byte[]{4, 5, 6});
+        released.close();
+
+        // Each payload is 4 base64 characters; the third pushes the total over the limit
+        AttachmentStore.Lease third = store.acquire(new byte[]{7, 8, 9});
+
+        assertEquals(2, store.size());
+        assertEquals(1, store.referenceCount(held.contentHash()), "Leased payloads must never be evicted");
+        assertEquals(0, store.referenceCount(released.contentHash()));
+        assertEquals(1, store.referenceCount(third.contentHash()));
+        assertEquals(8, store.totalBytes());
+    }
+
+    @Test
+    void testConversationsShareAttachedFile(@TempDir Path directory) throws IOException {
+        Path image = Files.write(directory.resolve("shared.png"), new byte[]{9, 8, 7, 6});
+        Message message = new Message(MessageRole.USER, List.of(new FilePathImageBlock(image.toString(), "image/png")));
+
+        try (AnthropicConversation first = new AnthropicConversation(CLAUDE_SONNET_45, "first", "sk-test-key");
+             AnthropicConversation second = new AnthropicConversation(CLAUDE_SONNET_45, "second", "sk-test-key")) {
+            MessageParam a = first.toVendorMessage(message);
+            MessageParam b = second.toVendorMessage(message);
+
+            assertSame(imageData(a), imageData(b), "Both conversations should hold the same encoded payload");
+        }
+    }
+
+    private static String imageData(MessageParam message) {
+        return message.content().blockParams().orElseThrow().getFirst()
+                .image().orElseThrow().source().base64().orElseThrow().data();
+    }
+}
@@ -0,0 +1,114 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.SearchResultBlockParam;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class Bm25IndexTest {
+
+    private static final String HANDBOOK = """
+            Holidays are booked through the staff portal at least two weeks in advance.
+
+            Expense claims need a receipt for every item over twenty pounds and are paid monthly.
+
+            The office opens at eight and the building closes at seven; badges are needed after six.
+
+            Parking permits are issued by reception and must be displayed on the dashboard.
+            """;
+
+    @Test
+    void testSearchRanksMatchingPassagesFirst() {
+        Bm25Index index = new Bm25Index(20);
+        assertEquals(1, index.addDocument("Handbook", HANDBOOK));
+
+        List<Bm25Index.Hit> hits = index.search("How are expense claims paid?", 3);
+
+        assertEquals(4, index.passageCount(), "Paragraphs are packed together only while they fit in one passage");
+        assertEquals(1, hits.size(), "Only passages sharing a term with the query are returned");
+        assertEquals("document-1#passage-2", hits.getFirst().passage().source());
+        assertTrue(hits.getFirst().passage().text().startsWith("Expense claims"));
+        assertEquals(List.of(), index.search("who is where?", 3), "Function words alone match nothing");
+
+        index.addDocument(null, "Badges open the car park barrier. Parking is free for visitors.");
+        List<Bm25Index.Hit> parking = index.search("parking badges", 5);
+        assertEquals(3, parking.size());
+        assertEquals("Document 2", parking.getFirst().passage().title(), "The passage with both terms ranks first");
+        assertTrue(parking.get(0).score() >= parking.get(1).score() && parking.get(1).score() >= parking.get(2).score());
+    }
+
+    @Test
+    void testSavedIndexSearchesTheSame() throws Exception {
+        Bm25Index index = new Bm25Index(20);
+        index.addDocument("Handbook", HANDBOOK);
+        Path file = Files.createTempFile("handbook", ".bm25");
+        try {
+            index.save(file);
+            Bm25Index loaded = Bm25Index.load(file);
+
+            assertEquals(index.search("office building badges", 4), loaded.search("office building badges", 4));
+            assertEquals(20, loaded.passageWords());
+            assertEquals(2, loaded.addDocument("Rota", "Cleaning rota"), "Document numbering continues");
+
+            Files.writeString(file, "not an index");
+            assertThrows(RuntimeException.class, () -> Bm25Index.load(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void testConversationSendsRetrievedPassagesInsteadOfLargeDocument() throws Exception {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        conversation.setRetrievalEnabled(true);
+        conversation.setRetrievalTopK(3);
+        String novel = Files.readString(Path.of("src/test/resources/pp.txt"));
+
+        List<ContentBlockParam> first = conversation.toVendorMessage(new Message(MessageRole.USER, List.of(
+                new PlainTextDocumentBlock(novel, "text/plain", List.of()),
+                createPlainTextBlock("What does Mr. Wickham tell Elizabeth about Mr. Darcy?")))).content().blockParams().orElseThrow();
+
+        assertEquals(5, first.size());
+        for (ContentBlockParam block : first.subList(0, 3)) {
+            SearchResultBlockParam result = block.searchResult().orElseThrow();
+            assertTrue(result.source().startsWith("document-1#passage-"));
+            assertTrue(result.content().getFirst().text().contains("Wickham"));
+        }
+        assertTrue(first.get(3).text().orElseThrow().text().contains("Document 1"));
+        long sentChars = first.stream().mapToLong(block -> block.toString().length()).sum();
+        assertTrue(sentChars < novel.length() / 20, "Only a small part of the novel should be sent");
+
+        // Later questions are answered from the same index; small documents are still sent whole
+        List<ContentBlockParam> second = conversation.toVendorMessage(new Message(MessageRole.USER, List.of(
+                new PlainTextDocumentBlock("A short note about Pemberley.", "text/plain", List.of()),
+                createPlainTextBlock("Describe Pemberley.")))).content().blockParams().orElseThrow();
+        assertEquals(3, second.stream().filter(block -> block.searchResult().isPresent()).count());
+        assertTrue(second.get(3).document().isPresent());
+        assertEquals(1, conversation.retrievalIndex().documentCount());
+
+        // A document sent again, as when a rolled-back turn is retried, keeps its number
+        List<ContentBlockParam> resent = conversation.toVendorMessage(new Message(MessageRole.USER, List.of(
+                new PlainTextDocumentBlock(novel, "text/plain", List.of()),
+                createPlainTextBlock("Who is Mr. Collins?")))).content().blockParams().orElseThrow();
+        assertTrue(resent.get(resent.size() - 2).text().orElseThrow().text().contains("Document 1"));
+        assertEquals(1, conversation.retrievalIndex().documentCount());
+
+        // Compaction summaries are sent as they are, without passages
+        List<ContentBlockParam> summary = conversation.toCompactionVendorMessage(new Message(MessageRole.USER, List.of(
+                createPlainTextBlock("Summary: Elizabeth met Mr. Wickham and Mr. Darcy.")))).content().blockParams().orElseThrow();
+        assertEquals(1, summary.size());
+
+        conversation.setRetrievalEnabled(false);
+        assertTrue(conversation.toVendorMessage(new Message(MessageRole.USER, List.of(
+                new PlainTextDocumentBlock(novel, "text/plain", List.of()))))
+                .content().blockParams().orElseThrow().getFirst().document().isPresent());
+        assertThrows(IllegalArgumentException.class, () -> conversation.setRetrievalTopK(0));
+        conversation.close();
+    }
+}
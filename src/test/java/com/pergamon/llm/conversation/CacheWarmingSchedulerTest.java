@@ -0,0 +1,163 @@
+package com.pergamon.llm.conversation;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheWarmingSchedulerTest {
+
+    private static final String SHARED_CONTEXT = "context ".repeat(1_000);
+
+    /**
+     * Records pinned prefixes and sent messages; each send blocks until its gate is completed.
+     */
+    private static class RecordingConversation extends Conversation<String, String> {
+        private final List<String> sent;
+        private final CompletableFuture<Void> gate;
+        private int pinnedBlocks = 0;
+
+        RecordingConversation(List<String> sent, CompletableFuture<Void> gate) {
+            super(CLAUDE_SONNET_45);
+            this.sent = sent;
+            this.gate = gate;
+        }
+
+        @Override
+        protected void pinCachePrefix(int prefixBlocks) {
+            pinnedBlocks = prefixBlocks;
+        }
+
+        @Override
+        protected String toVendorMessage(Message message) {
+            return ((TextBlock) message.blocks().getLast()).text();
+        }
+
+        @Override
+        protected String sendConversationToVendor() {
+            gate.join();
+            sent.add(vendorMessages.getLast());
+            return "reply";
+        }
+
+        @Override
+        protected String vendorResponseToVendorMessage(String vendorResponse) {
+            return vendorResponse;
+        }
+
+        @Override
+        protected Message fromVendorResponse(String vendorResponse) {
+            return createAssistantMessage(vendorResponse);
+        }
+
+        @Override
+        protected boolean isCacheable() {
+            return true;
+        }
+
+        @Override
+        protected void configureCaching() {
+        }
+    }
+
+    private static Message opening(String question) {
+        return new Message(MessageRole.USER, List.of(createPlainTextBlock(SHARED_CONTEXT), createPlainTextBlock(question)));
+    }
+
+    @Test
+    void testWarmsSharedPrefixBeforeReleasingTheRest() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        List<RecordingConversation> created = new ArrayList<>();
+        CompletableFuture<Void> warmingGate = new CompletableFuture<>();
+        CacheWarmingScheduler scheduler = new CacheWarmingScheduler(modelId -> {
+            RecordingConversation conversation = new RecordingConversation(sent,
+                    created.isEmpty() ? warmingGate : CompletableFuture.completedFuture(null));
+            created.add(conversation);
+            return conversation;
+        }, CacheWarmingScheduler.DEFAULT_WARM_TTL, Clock.systemUTC());
+
+        List<CacheWarmingScheduler.Start> starts = scheduler.startAll(CLAUDE_SONNET_45,
+                List.of(opening("q1"), opening("q2"), opening("q3"), createUserMessage("unrelated")));
+
+        // The unrelated message goes straight out; the others wait for the warming request
+        starts.get(3).reply().get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("unrelated"), sent);
+        assertFalse(starts.get(1).reply().isDone());
+
+        warmingGate.complete(null);
+        for (CacheWarmingScheduler.Start start : starts) {
+            start.reply().get(5, TimeUnit.SECONDS);
+        }
+        assertEquals("q1", sent.get(1));
+        assertEquals(4, sent.size());
+        assertTrue(scheduler.isWarm(CLAUDE_SONNET_45, opening("q1").blocks().subList(0, 1)));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, ((RecordingConversation) starts.get(i).conversation()).pinnedBlocks);
+        }
+        assertEquals(0, ((RecordingConversation) starts.get(3).conversation()).pinnedBlocks);
+    }
+
+    @Test
+    void testWarmPrefixIsReleasedAtOnceUntilTtlExpires() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        Instant[] now = {Instant.parse("2026-01-01T00:00:00Z")};
+        Clock clock = new Clock() {
+            @Override
+            public ZoneOffset getZone() {
+                return ZoneOffset.UTC;
+            }
+
+            @Override
+            public Clock withZone(java.time.ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return now[0];
+            }
+        };
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        CacheWarmingScheduler scheduler = new CacheWarmingScheduler(
+                modelId -> new RecordingConversation(sent, gate), Duration.ofMinutes(5), clock);
+
+        gate.complete(null);
+        for (CacheWarmingScheduler.Start start : scheduler.startAll(CLAUDE_SONNET_45, List.of(opening("a"), opening("b")))) {
+            start.reply().get(5, TimeUnit.SECONDS);
+        }
+        List<MessageBlock> prefix = opening("a").blocks().subList(0, 1);
+        assertTrue(scheduler.isWarm(CLAUDE_SONNET_45, prefix));
+
+        now[0] = now[0].plus(Duration.ofMinutes(4));
+        assertTrue(scheduler.isWarm(CLAUDE_SONNET_45, prefix));
+        now[0] = now[0].plus(Duration.ofMinutes(2));
+        assertFalse(scheduler.isWarm(CLAUDE_SONNET_45, prefix));
+    }
+
+    @Test
+    void testShortSharedPrefixIsNotHeldBack() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> gate = CompletableFuture.completedFuture(null);
+        CacheWarmingScheduler scheduler = new CacheWarmingScheduler(
+                modelId -> new RecordingConversation(sent, gate), CacheWarmingScheduler.DEFAULT_WARM_TTL, Clock.systemUTC());
+
+        List<CacheWarmingScheduler.Start> starts = scheduler.startAll(CLAUDE_SONNET_45,
+                List.of(createUserMessage("same"), createUserMessage("same")));
+        for (CacheWarmingScheduler.Start start : starts) {
+            start.reply().get(5, TimeUnit.SECONDS);
+            assertEquals(0, ((RecordingConversation) start.conversation()).pinnedBlocks);
+        }
+        assertFalse(scheduler.isWarm(CLAUDE_SONNET_45, List.of(createPlainTextBlock("same"))));
+    }
+}
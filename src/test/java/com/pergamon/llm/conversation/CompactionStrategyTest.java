@@ -0,0 +1,72 @@
+package com.pergamon.llm.conversation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactionStrategyTest {
+
+    /**
+     * Vendor messages are "role:text" strings costing 100 tokens each; user messages start turns.
+     */
+    private static CompactionContext<String> context(long targetTokens) {
+        return new CompactionContext<>(
+                targetTokens,
+                history -> 100L * history.size(),
+                message -> message.startsWith("user:"),
+                message -> message.role().name().toLowerCase() + ":" + ((TextBlock) message.blocks().get(0)).text());
+    }
+
+    private static List<String> history(int turns) {
+        List<String> history = new ArrayList<>();
+        for (int i = 0; i < turns; i++) {
+            history.add("user:q" + i);
+            history.add("assistant:a" + i);
+        }
+        history.add("user:latest");
+        return history;
+    }
+
+    @Test
+    void testSlidingWindowKeepsRecentTurnsWithinTarget() {
+        List<String> compacted = CompactionStrategy.<String>slidingWindow().compact(history(4), context(350));
+
+        assertEquals(List.of("user:q3", "assistant:a3", "user:latest"), compacted);
+    }
+
+    @Test
+    void testSlidingWindowAlwaysKeepsLatestTurn() {
+        List<String> compacted = CompactionStrategy.<String>slidingWindow().compact(history(4), context(0));
+
+        assertEquals(List.of("user:latest"), compacted);
+    }
+
+    @Test
+    void testSummarizingReplacesOldestTurnsWithSummary() {
+        List<List<String>> summarized = new ArrayList<>();
+        CompactionStrategy<String> strategy = CompactionStrategy.summarizing(old -> {
+            summarized.add(old);
+            return "earlier questions";
+        });
+
+        List<String> compacted = strategy.compact(history(4), context(350));
+
+        assertEquals(List.of("user:q0", "assistant:a0", "user:q1", "assistant:a1", "user:q2", "assistant:a2"),
+                summarized.get(0), "Summarizer should receive exactly the dropped messages");
+        assertEquals(List.of(
+                "user:" + CompactionStrategy.SUMMARY_PREFIX + "earlier questions",
+                "assistant:" + CompactionStrategy.SUMMARY_ACKNOWLEDGEMENT,
+                "user:q3", "assistant:a3", "user:latest"), compacted);
+    }
+
+    @Test
+    void testSummarizingLeavesSmallHistoryUnchanged() {
+        CompactionStrategy<String> strategy = CompactionStrategy.summarizing(old -> fail("Nothing to summarize"));
+        List<String> history = history(1);
+
+        assertEquals(history, strategy.compact(history, context(10_000)));
+    }
+}
@@ -17,6 +17,7 @@ class ConversationTest {
     private static class TestConversation extends Conversation<String, String> {
         private long nextInputTokens = 100L;
         private long nextOutputTokens = 20L;
+        private TokenEstimator<String> tokenEstimator;
 
         TestConversation(ModelId modelId) {
             super(modelId);
@@ -34,6 +35,20 @@ class ConversationTest {
             this.nextOutputTokens = outputTokens;
         }
 
+        void setTokenEstimator(TokenEstimator<String> tokenEstimator) {
+            this.tokenEstimator = tokenEstimator;
+        }
+
+        @Override
+        protected java.util.Optional<TokenEstimator<String>> tokenEstimator() {
+            return java.util.Optional.ofNullable(tokenEstimator);
+        }
+
+        @Override
+        protected java.util.OptionalLong reportedInputTokens(String vendorResponse) {
+            return java.util.OptionalLong.of(nextInputTokens);
+        }
+
         @Override
         protected String toVendorMessage(Message message) {
             return "vendor-message";
@@ -59,6 +74,23 @@ class ConversationTest {
             );
         }
 
+        @Override
+        protected String streamConversationToVendor(MessageStreamListener listener) {
+            listener.onText("test ");
+            listener.onText("response");
+            return "vendor-response";
+        }
+
+        @Override
+        protected boolean isStreamable() {
+            return true;
+        }
+
+        @Override
+        protected boolean startsTurn(String vendorMessage) {
+            return vendorMessage.equals("vendor-message");
+        }
+
         @Override
         protected boolean isCacheable() {
             return false; // Test conversation doesn't support caching
@@ -409,4 +441,190 @@ class ConversationTest {
         assertEquals(150L, response.inputTokens(), "Assistant response should have input tokens from API");
         assertEquals(25L, response.outputTokens(), "Assistant response should have output tokens from API");
     }
+
+    @Test
+    void testSendMessageStreamingForwardsDeltasAndAppendsHistory() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        conversation.setNextTokenCounts(150L, 25L);
+
+        StringBuilder streamed = new StringBuilder();
+        List<Message> completed = new java.util.ArrayList<>();
+        Message response = conversation.sendMessageStreaming(createUserMessage("Hello"), new MessageStreamListener() {
+            @Override
+            public void onText(String text) {
+                streamed.append(text);
+            }
+
+            @Override
+            public void onComplete(Message message) {
+                completed.add(message);
+            }
+        });
+
+        assertEquals("test response", streamed.toString());
+        assertEquals(List.of(response), completed, "onComplete should receive the assembled response");
+        assertEquals(2, conversation.messages().size());
+        assertEquals(List.of("vendor-message", "vendor-response-message"), conversation.vendorMessages());
+        assertEquals(150L, conversation.getTotalInputTokens());
+        assertEquals(25L, conversation.getTotalOutputTokens());
+    }
+
+    @Test
+    void testSendMessageStreamingRejectedWhenModelDoesNotSupportStreaming() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        conversation.setCapabilities(new ModelCapabilities(true, true, true, true, false, 200000, 64000));
+
+        assertFalse(conversation.supportsStreaming());
+        assertThrows(UnsupportedOperationException.class, () -> {
+            conversation.sendMessageStreaming(createUserMessage("Hello"), text -> { });
+        }, "Should throw when the model does not support streaming");
+        assertTrue(conversation.messages().isEmpty(), "Rejected message should not be appended");
+    }
+
+    @Test
+    void testCapabilitiesResolvedFromDefaultRegistry() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+
+        assertTrue(conversation.capabilities().isPresent(), "Known model should resolve capabilities");
+        assertTrue(conversation.supportsStreaming());
+    }
+
+    @Test
+    void testSendMessageAsyncReturnsResponse() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        conversation.setNextTokenCounts(150L, 25L);
+
+        Message response = conversation.sendMessageAsync(createUserMessage("Hello")).join();
+
+        assertEquals(MessageRole.ASSISTANT, response.role());
+        assertEquals(2, conversation.messages().size());
+        assertEquals(150L, conversation.getTotalInputTokens());
+    }
+
+    @Test
+    void testSendMessageAsyncPreservesTurnOrder() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+
+        List<java.util.concurrent.CompletableFuture<Message>> turns = new java.util.ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            turns.add(conversation.sendMessageAsync(createUserMessage("Message " + i)));
+        }
+        turns.forEach(java.util.concurrent.CompletableFuture::join);
+
+        assertEquals(40, conversation.messages().size());
+        assertEquals(40, conversation.vendorMessages().size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(createUserMessage("Message " + i), conversation.messages().get(2 * i),
+                    "User messages should appear in submission order");
+            assertEquals(MessageRole.ASSISTANT, conversation.messages().get(2 * i + 1).role());
+        }
+    }
+
+    @Test
+    void testSendMessageAsyncUsesConfiguredExecutor() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        java.util.concurrent.atomic.AtomicInteger executed = new java.util.concurrent.atomic.AtomicInteger();
+        conversation.setAsyncExecutor(task -> {
+            executed.incrementAndGet();
+            task.run();
+        });
+
+        conversation.sendMessageAsync(createUserMessage("Hello")).join();
+
+        assertEquals(1, executed.get(), "Turn should run on the configured executor");
+    }
+
+    @Test
+    void testTokenBudgetExceededFailsFastAndRollsBack() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        conversation.setCapabilities(new ModelCapabilities(true, true, true, true, true, 1000, 200));
+        conversation.setTokenEstimator(history -> 1100L);
+
+        assertThrows(IllegalStateException.class, () -> conversation.sendMessage(createUserMessage("Hello")),
+                "1100 input tokens should not fit in a 1000-token window");
+        assertTrue(conversation.messages().isEmpty(), "Rejected message should be rolled back");
+        assertTrue(conversation.vendorMessages().isEmpty(), "Rejected vendor message should be rolled back");
+    }
+
+    @Test
+    void testTokenBudgetPolicyReceivesBudgetAndMayAllowSend() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        conversation.setCapabilities(new ModelCapabilities(true, true, true, true, true, 1000, 200));
+        conversation.setTokenEstimator(history -> 1100L);
+        List<TokenBudget> budgets = new java.util.ArrayList<>();
+        conversation.setTokenBudgetPolicy((c, budget) -> budgets.add(budget));
+
+        conversation.sendMessage(createUserMessage("Hello"));
+
+        assertEquals(List.of(new TokenBudget(1100L, 0L, 1000L)), budgets);
+        assertEquals(100L, budgets.get(0).overflowTokens());
+        assertEquals(2, conversation.messages().size(), "Turn should proceed when the policy allows it");
+    }
+
+    @Test
+    void testTokenBudgetWithinWindowDoesNotInvokePolicy() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        conversation.setCapabilities(new ModelCapabilities(true, true, true, true, true, 1000, 200));
+        conversation.setTokenEstimator(history -> 10L * history.size());
+        conversation.setTokenBudgetPolicy((c, budget) -> fail("Policy should not run within budget"));
+
+        conversation.sendMessage(createUserMessage("Hello"));
+
+        assertEquals(20L, conversation.estimateInputTokens().orElseThrow(), "Two history entries at 10 each");
+    }
+
+    @Test
+    void testTokenEstimatorCalibratedWithReportedUsage() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        conversation.setNextTokenCounts(130L, 20L);
+        List<long[]> calibrations = new java.util.ArrayList<>();
+        conversation.setTokenEstimator(new TokenEstimator<>() {
+            @Override
+            public long estimateInputTokens(List<String> vendorMessages) {
+                return 100L;
+            }
+
+            @Override
+            public void calibrate(long estimatedTokens, long actualTokens) {
+                calibrations.add(new long[] {estimatedTokens, actualTokens});
+            }
+        });
+
+        conversation.sendMessage(createUserMessage("Hello"));
+
+        assertEquals(1, calibrations.size());
+        assertArrayEquals(new long[] {100L, 130L}, calibrations.get(0));
+    }
+
+    @Test
+    void testCompactionTriggersAtFractionOfContextWindow() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        conversation.setCapabilities(new ModelCapabilities(true, true, true, true, true, 1000, 200));
+        conversation.setTokenEstimator(history -> 100L * history.size());
+        conversation.setCompactionStrategy(CompactionStrategy.slidingWindow(), 0.5);
+
+        conversation.sendMessage(createUserMessage("One"));
+        conversation.sendMessage(createUserMessage("Two"));
+        assertTrue(conversation.lastCompaction().isEmpty(), "400 tokens is below the 500-token trigger");
+
+        conversation.sendMessage(createUserMessage("Three"));
+
+        CompactionReport report = conversation.lastCompaction().orElseThrow();
+        assertEquals(new CompactionReport(5, 1, 500L, 100L), report);
+        assertEquals(400L, report.tokensSaved());
+        assertEquals(400L, conversation.getTotalCompactionTokensSaved());
+        assertEquals(List.of("vendor-message", "vendor-response-message"), conversation.vendorMessages(),
+                "Only the latest turn should remain in the vendor history");
+        assertEquals(6, conversation.messages().size(), "Generic history should never be compacted");
+    }
+
+    @Test
+    void testCompactNowRequiresStrategy() {
+        TestConversation conversation = new TestConversation(CLAUDE_SONNET_45);
+        conversation.setTokenEstimator(history -> 100L * history.size());
+
+        assertThrows(IllegalStateException.class, conversation::compact);
+        assertThrows(IllegalArgumentException.class,
+                () -> conversation.setCompactionStrategy(CompactionStrategy.slidingWindow(), 0.0));
+    }
 }
@@ -0,0 +1,148 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.MessageParam;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedAttachmentsTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static AnthropicConversation newConversation() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        conversation.setTokenBudgetPolicy(TokenBudgetPolicy.ALLOW);
+        return conversation;
+    }
+
+    private Path writePdf(String name, int size) throws Exception {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return Files.write(tempDir.resolve(name), content);
+    }
+
+    private static Message pdfMessage(Path path) {
+        return new Message(MessageRole.USER, List.of(
+                new FilePathPDFDocumentBlock(path.toString(), "application/pdf", List.of()),
+                createPlainTextBlock("Summarize this.")));
+    }
+
+    private static String documentData(MessageParam message) {
+        return message.content().blockParams().orElseThrow().getFirst()
+                .document().orElseThrow().source().base64().orElseThrow().data();
+    }
+
+    @Test
+    void testRequestBodyEncodesMappedFileInPlaceOfToken() throws Exception {
+        // Not a multiple of the chunk size or of 3, so the final partial chunk and padding are exercised
+        Path pdf = writePdf("large.pdf", 300_001);
+        AnthropicConversation conversation = newConversation();
+
+        conversation.beginDeferredTurn(pdfMessage(pdf), true);
+        MessageParam stored = conversation.vendorMessages().getFirst();
+        String token = documentData(stored);
+        String body = new String(AnthropicMessageEncodingCache.shared().jsonMapper()
+                .writeValueAsBytes(conversation.buildRequestParams()._body()), StandardCharsets.UTF_8);
+
+        assertTrue(MappedAttachments.isToken(token), "The history should hold a placeholder, not the data");
+        assertTrue(body.contains("\"data\":\"" + Base64.getEncoder().encodeToString(Files.readAllBytes(pdf)) + "\""));
+        assertFalse(body.contains(MappedAttachments.TOKEN_PREFIX));
+        assertTrue(AnthropicMessageEncodingCache.shared().encode(stored).length < 1_000,
+                "The cached encoding should hold the token rather than the base64 data");
+        conversation.close();
+    }
+
+    @Test
+    void testOnlyAttachmentSourcesAreSubstituted() throws Exception {
+        Path pdf = writePdf("quoted.pdf", 300_000);
+        AnthropicConversation conversation = newConversation();
+        conversation.beginDeferredTurn(pdfMessage(pdf), true);
+        MessageParam stored = conversation.vendorMessages().getFirst();
+        String token = documentData(stored);
+        String base64 = Base64.getEncoder().encodeToString(Files.readAllBytes(pdf));
+
+        // A token typed into text is sent as it is, and cannot stand in for image or document data
+        Message quoting = new Message(MessageRole.USER, List.of(createPlainTextBlock("The token is " + token)));
+        String body = new String(AnthropicMessageEncodingCache.shared().jsonMapper()
+                .writeValueAsBytes(conversation.toVendorMessage(quoting)), StandardCharsets.UTF_8);
+        assertTrue(body.contains("The token is " + token));
+        assertFalse(body.contains(base64));
+        assertThrows(IllegalArgumentException.class, () -> conversation.toVendorMessage(new Message(MessageRole.USER,
+                List.of(new Base64PDFDocumentBlock(token, "application/pdf", List.of())))));
+
+        // Once the mapping is released the message can no longer be written
+        conversation.close();
+        Exception e = assertThrows(Exception.class,
+                () -> AnthropicMessageEncodingCache.shared().jsonMapper().writeValueAsBytes(stored));
+        assertTrue(e instanceof IllegalStateException || e.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    void testFileModifiedAfterAttachingFailsTheRequest() throws Exception {
+        Path pdf = writePdf("rewritten.pdf", 300_000);
+        AnthropicConversation conversation = newConversation();
+        conversation.beginDeferredTurn(pdfMessage(pdf), true);
+        MessageParam stored = conversation.vendorMessages().getFirst();
+        String token = documentData(stored);
+
+        // Truncated in place: reading the dropped pages through the mapping would fault
+        try (FileChannel channel = FileChannel.open(pdf, StandardOpenOption.WRITE)) {
+            channel.truncate(1_000);
+        }
+        Files.setLastModifiedTime(pdf, FileTime.fromMillis(0));
+
+        assertThrows(IOException.class, () -> MappedAttachments.shared().content(token));
+        Exception e = assertThrows(Exception.class,
+                () -> AnthropicMessageEncodingCache.shared().jsonMapper().writeValueAsBytes(stored));
+        assertTrue(e instanceof IOException || e.getCause() instanceof IOException);
+        conversation.close();
+    }
+
+    @Test
+    void testConversationsShareOneMappingUntilBothRelease() throws Exception {
+        Path pdf = writePdf("shared.pdf", 400_000);
+        AnthropicConversation first = newConversation();
+        AnthropicConversation second = newConversation();
+
+        first.beginDeferredTurn(pdfMessage(pdf), true);
+        second.beginDeferredTurn(pdfMessage(pdf), true);
+        String token = documentData(first.vendorMessages().getFirst());
+
+        assertEquals(token, documentData(second.vendorMessages().getFirst()));
+        assertEquals(2, MappedAttachments.shared().referenceCount(token));
+        assertEquals(400_000, MappedAttachments.shared().size(token));
+
+        first.clearMessages();
+        assertEquals(1, MappedAttachments.shared().referenceCount(token));
+        second.close();
+        assertEquals(0, MappedAttachments.shared().referenceCount(token));
+        assertThrows(IllegalStateException.class, () -> MappedAttachments.shared().content(token));
+        first.close();
+    }
+
+    @Test
+    void testSmallFilesAreEncodedInline() throws Exception {
+        Path pdf = writePdf("small.pdf", 1_000);
+        AnthropicConversation conversation = newConversation();
+
+        conversation.beginDeferredTurn(pdfMessage(pdf), true);
+
+        assertEquals(Base64.getEncoder().encodeToString(Files.readAllBytes(pdf)),
+                documentData(conversation.vendorMessages().getFirst()));
+        conversation.close();
+    }
+}
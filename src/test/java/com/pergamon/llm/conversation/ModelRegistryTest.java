@@ -123,7 +123,7 @@ class ModelRegistryTest {
         assertEquals("Claude Sonnet 4.5", model.friendlyName());
         assertEquals("claude-sonnet-4-5", model.apiModelName());
         assertEquals(Vendor.ANTHROPIC, model.id().vendor());
-        assertEquals(64000, model.capabilitie().contextWindowTokens());
+        assertEquals(200000, model.capabilitie().contextWindowTokens());
         assertEquals(64000, model.capabilitie().maxOutputTokens());
         assertTrue(model.capabilitie().supportsImages());
         assertTrue(model.capabilitie().supportsFiles());
@@ -0,0 +1,150 @@
+package com.pergamon.llm.conversation;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PdfDocumentTest {
+
+    private static final String[] TOKENS = {
+            "obj", "endobj", "stream", "endstream", "xref", "trailer", "startxref", "R", "<<", ">>", "[", "]",
+            "/Type", "/Pages", "/Kids", "/Count", "/Parent", "/Contents", "/Length", "/Filter", "/FlateDecode",
+            "/Resources", "/Font", "/ToUnicode", "/Encoding", "/Differences", "/Widths", "/Root", "/Size",
+            "BT", "ET", "Tj", "TJ", "Tf", "Td", "cm", "BI", "ID", "EI", "-1", "0", "99999999999", "(", ")", "<", ">"
+    };
+
+    /**
+     * Returns a corrupted copy of a PDF: bytes overwritten, spans cut or repeated, keywords and
+     * numbers inserted, or the file truncated.
+     */
+    private static byte[] mutate(byte[] pdf, Random random) {
+        byte[] mutated = pdf.clone();
+        int edits = 1 + random.nextInt(4);
+        for (int i = 0; i < edits && mutated.length > 1; i++) {
+            int at = random.nextInt(mutated.length);
+            switch (random.nextInt(5)) {
+                case 0 -> mutated[at] = (byte) random.nextInt(256);
+                case 1 -> mutated = Arrays.copyOf(mutated, Math.max(1, at));
+                case 2 -> {
+                    int end = Math.min(mutated.length, at + 1 + random.nextInt(64));
+                    byte[] cut = new byte[mutated.length - (end - at)];
+                    System.arraycopy(mutated, 0, cut, 0, at);
+                    System.arraycopy(mutated, end, cut, at, mutated.length - end);
+                    mutated = cut.length == 0 ? mutated : cut;
+                }
+                case 3 -> mutated = splice(mutated, at, (" " + TOKENS[random.nextInt(TOKENS.length)] + " ")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                default -> {
+                    int end = Math.min(mutated.length, at + 1 + random.nextInt(256));
+                    mutated = splice(mutated, random.nextInt(mutated.length), Arrays.copyOfRange(mutated, at, end));
+                }
+            }
+        }
+        return mutated;
+    }
+
+    private static byte[] splice(byte[] bytes, int at, byte[] insert) {
+        byte[] spliced = new byte[bytes.length + insert.length];
+        System.arraycopy(bytes, 0, spliced, 0, at);
+        System.arraycopy(insert, 0, spliced, at, insert.length);
+        System.arraycopy(bytes, at, spliced, at + insert.length, bytes.length - at);
+        return spliced;
+    }
+
+    /**
+     * Reads every page of a document the way the extractors do, decoding its content streams.
+     */
+    private static void readAll(byte[] pdf) {
+        PdfDocument document = PdfDocument.parse(pdf);
+        for (PdfDocument.Page page : document.pages()) {
+            if (document.resolve(page.dictionary().get(PdfDocument.CONTENTS)) instanceof PdfDocument.Stream stream) {
+                document.decode(stream);
+            }
+        }
+    }
+
+    private static void assertRejectedCleanly(byte[] pdf, Runnable parse, List<String> failures) {
+        try {
+            parse.run();
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            // Malformed or unsupported input is expected to fail this way
+        } catch (RuntimeException | StackOverflowError e) {
+            failures.add(e + " at " + Arrays.toString(Arrays.copyOf(e.getStackTrace(), 4)));
+        }
+    }
+
+    @Test
+    void testMalformedDocumentsFailWithIllegalArgumentException() {
+        String page = "BT /F1 12 Tf 72 720 Td (Terms of sale) Tj 0 -14 Td [(Pay)-20(ment)] TJ ET";
+        byte[] compressed = PdfPageExtractor.extract(createPdfWithContents(page, page, page),
+                List.of(new PdfPageRange(1, 2))).pdf();
+        List<byte[]> seeds = List.of(createPdf("One", "Two", "Three"), createPdfWithContents(page, page), compressed);
+
+        Random random = new Random(20240617L);
+        List<String> failures = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            byte[] pdf = mutate(seeds.get(i % seeds.size()), random);
+            assertRejectedCleanly(pdf, () -> readAll(pdf), failures);
+            assertRejectedCleanly(pdf, () -> PdfPageExtractor.extract(pdf, List.of(PdfPageRange.of(1))), failures);
+            assertRejectedCleanly(pdf, () -> PdfTextExtractor.extract(pdf, List.of()), failures);
+        }
+
+        assertEquals(List.of(), failures.stream().distinct().toList());
+    }
+
+    /**
+     * Builds a one-page PDF whose content stream is a few hundred kilobytes of Flate data that
+     * inflates to more than {@link PdfDocument#MAX_INFLATED_BYTES}.
+     */
+    private static byte[] createFlateBomb() {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] zeros = new byte[1024 * 1024];
+        byte[] buffer = new byte[8192];
+        for (int written = 0; written <= PdfDocument.MAX_INFLATED_BYTES; written += zeros.length) {
+            deflater.setInput(zeros);
+            while (!deflater.needsInput()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+
+        String stream = new String(compressed.toByteArray(), StandardCharsets.ISO_8859_1);
+        List<String> objects = List.of(
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R] /Count 1 /MediaBox [0 0 612 792] >>",
+                "<< /Type /Page /Parent 2 0 R /Contents 4 0 R >>",
+                "<< /Length " + stream.length() + " /Filter /FlateDecode >>\nstream\n" + stream + "\nendstream");
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        StringBuilder xref = new StringBuilder("xref\n0 5\n0000000000 65535 f \n");
+        for (int i = 0; i < objects.size(); i++) {
+            xref.append(String.format("%010d 00000 n \n", pdf.length()));
+            pdf.append(i + 1).append(" 0 obj\n").append(objects.get(i)).append("\nendobj\n");
+        }
+        int xrefOffset = pdf.length();
+        pdf.append(xref).append("trailer\n<< /Size 5 /Root 1 0 R >>\nstartxref\n").append(xrefOffset).append("\n%%EOF\n");
+        return pdf.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void testFlateBombIsRejectedWithIllegalArgumentException() {
+        byte[] pdf = createFlateBomb();
+        assertTrue(pdf.length < 1024 * 1024, "The bomb should be small; it was " + pdf.length + " bytes");
+
+        assertThrows(IllegalArgumentException.class, () -> readAll(pdf));
+        assertThrows(IllegalArgumentException.class, () -> PdfTextExtractor.extract(pdf, List.of()));
+    }
+}
@@ -0,0 +1,118 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.CitationPageLocation;
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PdfPageExtractorTest {
+
+    private static byte[] tenPages() {
+        String[] texts = new String[10];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = "Page " + (i + 1);
+        }
+        return createPdf(texts);
+    }
+
+    private static List<String> pageTexts(byte[] pdf) {
+        PdfDocument document = PdfDocument.parse(pdf);
+        return document.pages().stream()
+                .map(page -> document.resolve(page.dictionary().get(PdfDocument.CONTENTS)))
+                .map(contents -> new String(document.decode((PdfDocument.Stream) contents), StandardCharsets.ISO_8859_1))
+                .toList();
+    }
+
+    @Test
+    void testSelectedPagesAreCopiedInOrderWithoutDuplicates() {
+        byte[] original = tenPages();
+
+        PdfPageExtractor.Extraction extraction = PdfPageExtractor.extract(original,
+                List.of(new PdfPageRange(7, 8), PdfPageRange.of(2), new PdfPageRange(8, 8)));
+
+        List<String> texts = pageTexts(extraction.pdf());
+        assertEquals(3, texts.size());
+        assertTrue(texts.get(0).contains("(Page 2)"));
+        assertTrue(texts.get(1).contains("(Page 7)"));
+        assertTrue(texts.get(2).contains("(Page 8)"));
+        assertEquals(List.of(2, 7, 8), extraction.pageMap().originalPages());
+        assertEquals(7L, extraction.pageMap().originalPage(2));
+        assertEquals(9L, extraction.pageMap().originalEndExclusive(4));
+        assertEquals(5L, extraction.pageMap().originalPage(5), "Pages beyond the extraction are not attributed to its last page");
+        assertEquals(0L, extraction.pageMap().originalPage(0));
+        assertTrue(extraction.pdf().length < original.length);
+
+        // Inherited resources are carried onto the copied pages
+        PdfDocument extracted = PdfDocument.parse(extraction.pdf());
+        assertNotNull(extracted.pages().getFirst().dictionary().get(PdfDocument.RESOURCES));
+    }
+
+    @Test
+    void testInvalidRangesAreRejected() {
+        byte[] original = tenPages();
+
+        assertThrows(IllegalArgumentException.class, () -> PdfPageExtractor.extract(original, List.of(PdfPageRange.of(11))));
+        assertThrows(IllegalArgumentException.class, () -> PdfPageExtractor.extract(original, List.of()));
+        assertThrows(IllegalArgumentException.class, () -> new PdfPageRange(0, 3));
+        assertThrows(IllegalArgumentException.class, () -> new PdfPageRange(5, 4));
+        assertThrows(IllegalArgumentException.class, () -> PdfPageExtractor.extract("not a pdf".getBytes(), List.of(PdfPageRange.of(1))));
+    }
+
+    @Test
+    void testConversationSendsSelectedPagesAndReportsOriginalPageNumbers() throws Exception {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        Path file = Files.createTempFile("manual", ".pdf");
+        Files.write(file, tenPages());
+        try {
+            Message message = new Message(MessageRole.USER, List.of(
+                    new FilePathPDFDocumentBlock(file.toString(), "application/pdf", List.of(), List.of()),
+                    new Base64PDFDocumentBlock(Base64.getEncoder().encodeToString(tenPages()), "application/pdf",
+                            List.of(), List.of(new PdfPageRange(4, 5), PdfPageRange.of(9))),
+                    createPlainTextBlock("Summarize the selected pages.")));
+            MessageParam converted = conversation.toVendorMessage(message);
+            conversation.vendorMessages.add(converted);
+
+            List<ContentBlockParam> blocks = converted.content().blockParams().orElseThrow();
+            byte[] sent = Base64.getDecoder().decode(blocks.get(1).document().orElseThrow().source().base64().orElseThrow().data());
+            assertEquals(3, PdfDocument.parse(sent).pages().size());
+
+            // Extracted pages 2-3 (exclusive end 4) are original pages 5 and 9
+            TextCitation citation = conversation.fromVendorCitation(com.anthropic.models.messages.TextCitation.ofPageLocation(
+                    CitationPageLocation.builder()
+                            .citedText("Page 5")
+                            .documentIndex(1)
+                            .documentTitle((String) null)
+                            .fileId((String) null)
+                            .startPageNumber(2)
+                            .endPageNumber(4)
+                            .build()));
+            PageLocationCitation pageCitation = (PageLocationCitation) citation;
+            assertEquals(5L, pageCitation.startPageNumber().orElseThrow());
+            assertEquals(10L, pageCitation.endPageNumber().orElseThrow());
+
+            // The whole document is sent as it is, so its citations keep their page numbers
+            TextCitation untouched = conversation.fromVendorCitation(com.anthropic.models.messages.TextCitation.ofPageLocation(
+                    CitationPageLocation.builder()
+                            .citedText("Page 2")
+                            .documentIndex(0)
+                            .documentTitle((String) null)
+                            .fileId((String) null)
+                            .startPageNumber(2)
+                            .endPageNumber(3)
+                            .build()));
+            assertEquals(2L, ((PageLocationCitation) untouched).startPageNumber().orElseThrow());
+        } finally {
+            conversation.close();
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.pergamon.llm.conversation;
+
+import com.anthropic.models.messages.CitationCharLocation;
+import com.anthropic.models.messages.ContentBlockParam;
+import com.anthropic.models.messages.MessageParam;
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+import java.util.List;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PdfTextExtractorTest {
+
+    private static final String CLAUSE = "The supplier shall deliver the goods within thirty days of the order date"
+            + " and shall bear the cost of carriage, insurance and any duties payable on import.";
+
+    /**
+     * A page covered by a one-pixel inline image scaled to most of the page, as in a scan.
+     */
+    private static final String SCANNED_PAGE = "q 600 0 0 780 6 6 cm BI /W 1 /H 1 /CS /G /BPC 8 ID \u0080 EI Q";
+
+    private static Base64PDFDocumentBlock pdfBlock(byte[] pdf) {
+        return new Base64PDFDocumentBlock(Base64.getEncoder().encodeToString(pdf), "application/pdf", List.of());
+    }
+
+    @Test
+    void testTextIsExtractedPageByPageWithOffsets() {
+        byte[] pdf = createPdfWithContents(
+                "BT /F1 12 Tf 72 720 Td (Terms) Tj 0 -14 Td (of sale) Tj ET",
+                "BT /F1 12 Tf 72 720 Td [(Pay)-20(ment) -600 (due)] TJ 40 0 Td (now) Tj ET",
+                SCANNED_PAGE,
+                "BT /F1 12 Tf 72 720 Td <53 69 67 6E 65 64> Tj ET");
+
+        PdfTextExtractor.ExtractedText extracted = PdfTextExtractor.extract(pdf, List.of());
+
+        assertEquals("Terms\nof sale\n\nPayment due now\n\nSigned", extracted.text());
+        assertEquals(List.of(0, 15, 30, 32), extracted.pageStarts());
+        assertEquals(1, extracted.pageAt(3));
+        assertEquals(2, extracted.pageAt(20));
+        assertEquals(4, extracted.pageAt(35), "The empty third page holds no characters");
+        assertEquals(3, extracted.pageEndExclusive(25));
+        assertEquals(0.25 * 600 * 780 / (612 * 792), extracted.imageCoverage(), 1e-9);
+
+        PdfTextExtractor.ExtractedText selected = PdfTextExtractor.extract(pdf, List.of(new PdfPageRange(2, 2), PdfPageRange.of(4)));
+        assertEquals("Payment due now\n\nSigned", selected.text());
+        assertEquals(List.of(2, 4), selected.pageNumbers());
+        assertThrows(IllegalArgumentException.class, () -> PdfTextExtractor.extract(pdf, List.of(PdfPageRange.of(5))));
+    }
+
+    @Test
+    void testGlyphNamesMapToUnicode() {
+        assertEquals("a", PdfTextExtractor.glyphUnicode("a"));
+        assertEquals("\u2019", PdfTextExtractor.glyphUnicode("quoteright"));
+        assertEquals("\u00E9", PdfTextExtractor.glyphUnicode("eacute"));
+        assertEquals("\u20AC", PdfTextExtractor.glyphUnicode("uni20AC"));
+        assertEquals("fi", PdfTextExtractor.glyphUnicode("fi.alt"));
+        assertNull(PdfTextExtractor.glyphUnicode("g123"));
+    }
+
+    @Test
+    void testAutoModeSendsTextHeavyPdfAsTextAndMapsCitationsToPages() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        conversation.setPdfConversionMode(PdfConversionMode.AUTO);
+        String page = CLAUSE + " " + CLAUSE;
+        byte[] contract = createPdf(page + " Page one.", page + " Page two.", page + " Page three.");
+
+        MessageParam converted = conversation.toVendorMessage(new Message(MessageRole.USER, List.of(
+                pdfBlock(createPdf("Cover")), pdfBlock(contract), createPlainTextBlock("When is delivery due?"))));
+        conversation.vendorMessages.add(converted);
+
+        List<ContentBlockParam> blocks = converted.content().blockParams().orElseThrow();
+        assertTrue(blocks.get(0).document().orElseThrow().source().base64().isPresent(),
+                "A document with little text is sent as a PDF");
+        String text = blocks.get(1).document().orElseThrow().source().text().orElseThrow().data();
+        assertTrue(text.startsWith(page + " Page one."));
+
+        int start = text.indexOf("Page two.");
+        TextCitation citation = conversation.fromVendorCitation(com.anthropic.models.messages.TextCitation.ofCharLocation(
+                CitationCharLocation.builder()
+                        .citedText("Page two.")
+                        .documentIndex(1)
+                        .documentTitle((String) null)
+                        .fileId((String) null)
+                        .startCharIndex(start)
+                        .endCharIndex(start + "Page two.".length())
+                        .build()));
+        CharLocationCitation charCitation = (CharLocationCitation) citation;
+        assertEquals(2L, charCitation.startPageNumber().orElseThrow());
+        assertEquals(3L, charCitation.endPageNumber().orElseThrow());
+        assertEquals((long) start, charCitation.startCharIndex().orElseThrow());
+        conversation.close();
+    }
+
+    @Test
+    void testImageHeavyPdfsStayPdfs() {
+        AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+        byte[] scanned = createPdfWithContents(
+                SCANNED_PAGE + " BT /F1 12 Tf 72 720 Td (" + CLAUSE + CLAUSE + ") Tj ET", SCANNED_PAGE);
+
+        conversation.setPdfConversionMode(PdfConversionMode.AUTO);
+        assertTrue(conversation.toVendorMessageBlock(pdfBlock(scanned)).document().orElseThrow().source().base64().isPresent());
+
+        // TEXT mode sends whatever text there is, and the PDF only when there is none
+        conversation.setPdfConversionMode(PdfConversionMode.TEXT);
+        assertTrue(conversation.toVendorMessageBlock(pdfBlock(scanned)).document().orElseThrow().source().text().isPresent());
+        assertTrue(conversation.toVendorMessageBlock(pdfBlock(createPdfWithContents(SCANNED_PAGE)))
+                .document().orElseThrow().source().base64().isPresent());
+        assertTrue(conversation.toVendorMessageBlock(pdfBlock("not a pdf".getBytes()))
+                .document().orElseThrow().source().base64().isPresent());
+        assertThrows(IllegalArgumentException.class, () -> conversation.setPdfConversionMode(null));
+        conversation.close();
+    }
+}
@@ -0,0 +1,101 @@
+package com.pergamon.llm.conversation;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestTracerTest {
+
+    private ListAppender<ILoggingEvent> traceAppender;
+    private Logger traceLogger;
+    private AnthropicConversation conversation;
+
+    @BeforeEach
+    void setUp() {
+        traceLogger = (Logger) LoggerFactory.getLogger("com.pergamon.llm.trace");
+        traceAppender = new ListAppender<>();
+        traceAppender.start();
+        traceLogger.addAppender(traceAppender);
+
+        conversation = new AnthropicConversation(CLAUDE_SONNET_45, SAMPLE_CONVERSATION_NAME, "sk-test-key");
+    }
+
+    @AfterEach
+    void tearDown() {
+        traceLogger.detachAppender(traceAppender);
+        RequestTracer.setSampleRate(0.0);
+        RequestTracer.setSampledDetail(RequestTracer.Detail.SUMMARY);
+        conversation.close();
+    }
+
+    private static Supplier<String> counting(AtomicInteger counter, String rendered) {
+        return () -> {
+            counter.incrementAndGet();
+            return rendered;
+        };
+    }
+
+    @Test
+    void testNothingRenderedWhenTracingDisabled() {
+        AtomicInteger renders = new AtomicInteger();
+
+        RequestTracer.trace(conversation, counting(renders, "summary"), counting(renders, "full"));
+
+        assertEquals(0, renders.get(), "Renderers should not run for untraced requests");
+        assertTrue(traceAppender.list.isEmpty());
+    }
+
+    @Test
+    void testConversationDetailSelectsRenderer() {
+        AtomicInteger summaries = new AtomicInteger();
+        AtomicInteger fulls = new AtomicInteger();
+
+        conversation.setTraceDetail(RequestTracer.Detail.SUMMARY);
+        RequestTracer.trace(conversation, counting(summaries, "summary"), counting(fulls, "full"));
+        conversation.setTraceDetail(RequestTracer.Detail.FULL);
+        RequestTracer.trace(conversation, counting(summaries, "summary"), counting(fulls, "full"));
+
+        assertEquals(1, summaries.get());
+        assertEquals(1, fulls.get());
+        assertEquals(2, traceAppender.list.size());
+        assertTrue(traceAppender.list.get(0).getFormattedMessage().endsWith("summary"));
+        assertTrue(traceAppender.list.get(1).getFormattedMessage().endsWith("full"));
+    }
+
+    @Test
+    void testConversationOffOverridesSampling() {
+        AtomicInteger renders = new AtomicInteger();
+        RequestTracer.setSampleRate(1.0);
+        conversation.setTraceDetail(RequestTracer.Detail.OFF);
+
+        RequestTracer.trace(conversation, counting(renders, "summary"), counting(renders, "full"));
+
+        assertEquals(0, renders.get());
+    }
+
+    @Test
+    void testSampledRequestsUseSampledDetail() {
+        AtomicInteger fulls = new AtomicInteger();
+        RequestTracer.setSampleRate(1.0);
+        RequestTracer.setSampledDetail(RequestTracer.Detail.FULL);
+
+        RequestTracer.trace(conversation, () -> "summary", counting(fulls, "full"));
+
+        assertEquals(1, fulls.get());
+    }
+
+    @Test
+    void testInvalidSampleRateThrows() {
+        assertThrows(IllegalArgumentException.class, () -> RequestTracer.setSampleRate(1.5));
+    }
+}
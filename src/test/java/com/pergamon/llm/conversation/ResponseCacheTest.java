@@ -0,0 +1,101 @@
+package com.pergamon.llm.conversation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+
+    @Test
+    void testMemoryTierEvictsLeastRecentlyUsedBySize() {
+        ResponseCache cache = ResponseCache.inMemory(10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        cache.get("a");
+        cache.put("c", new byte[4]);
+
+        assertTrue(cache.get("a").isPresent(), "Recently used entry should be kept");
+        assertTrue(cache.get("b").isEmpty(), "Least recently used entry should be evicted");
+        assertTrue(cache.get("c").isPresent());
+        assertEquals(8, cache.memoryBytes());
+        assertEquals(1, cache.evictionCount());
+        assertEquals(3, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    void testDiskTierOutlivesTheCacheInstance(@TempDir Path directory) {
+        ResponseCache.withDiskTier(1024, directory).put("abc123", "cached".getBytes(StandardCharsets.UTF_8));
+
+        ResponseCache reopened = ResponseCache.withDiskTier(1024, directory);
+        Optional<byte[]> cached = reopened.get("abc123");
+
+        assertEquals("cached", new String(cached.orElseThrow(), StandardCharsets.UTF_8));
+        assertEquals(6, reopened.memoryBytes(), "A disk hit should be promoted to memory");
+    }
+
+    /**
+     * Records a response under the key of a conversation holding just the question.
+     */
+    private static void recordResponse(ResponseCache cache, Message question, long cacheReadTokens) {
+        try (AnthropicConversation recorder = new AnthropicConversation(CLAUDE_SONNET_45, "recorder", "sk-test-key")) {
+            recorder.beginDeferredTurn(question, false);
+            cache.put(recorder.responseCacheKey(recorder.buildRequestParams()), ("""
+                    {"id":"msg_1","type":"message","role":"assistant","model":"claude-sonnet-4-5",
+                     "content":[{"type":"text","text":"fruit","citations":null}],
+                     "stop_reason":"end_turn","stop_sequence":null,
+                     "usage":{"input_tokens":12,"output_tokens":3,
+                              "cache_creation_input_tokens":0,"cache_read_input_tokens":%d}}
+                    """.formatted(cacheReadTokens)).getBytes(StandardCharsets.UTF_8));
+            recorder.abandonDeferredTurn(question);
+        }
+    }
+
+    @Test
+    void testIdenticalRequestIsReplayedFromCache() {
+        ResponseCache cache = ResponseCache.inMemory(1 << 20);
+        Message question = createUserMessage("Classify: apples");
+        recordResponse(cache, question, 0L);
+
+        // The API key is fake, so anything but a cache hit would fail
+        try (AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, "replay", "sk-test-key")) {
+            conversation.setResponseCache(cache);
+            Message reply = conversation.sendMessage(question, false);
+
+            assertEquals("fruit", ((TextBlock) reply.blocks().getFirst()).text());
+            assertEquals(2, conversation.messages().size());
+            assertEquals(2, conversation.vendorMessages().size());
+            assertEquals(12L, conversation.getTotalInputTokens());
+            assertEquals(3L, conversation.getTotalOutputTokens());
+            assertEquals(1, cache.hitCount());
+        }
+    }
+
+    @Test
+    void testReplayedResponseIsNotRecordedAsPromptCacheUsage() {
+        ResponseCache cache = ResponseCache.inMemory(1 << 20);
+        Message question = createUserMessage("Classify: pears");
+        recordResponse(cache, question, 2_000L);
+
+        try (AnthropicConversation conversation = new AnthropicConversation(CLAUDE_SONNET_45, "replay", "sk-test-key")) {
+            conversation.setResponseCache(cache);
+            String model = conversation.modelId().apiModelName();
+            long recordedRequests = AnthropicCacheAnalyzer.shared().modelStats(model).requests();
+
+            conversation.sendMessage(question, false);
+
+            assertEquals(2_000L, conversation.getTotalCacheReadInputTokens(), "Token totals include the replayed usage");
+            AnthropicCacheStats stats = conversation.getCacheStats();
+            assertEquals(0L, stats.cacheReadTokens());
+            assertEquals(List.of(), stats.recentGaps());
+            assertEquals(recordedRequests, AnthropicCacheAnalyzer.shared().modelStats(model).requests());
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.pergamon.llm.conversation;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -33,4 +36,52 @@ public class TestFixtures {
     public static Message createAssistantMessage(String text) {
         return new Message(MessageRole.ASSISTANT, List.of(createPlainTextBlock(text)));
     }
+
+    /**
+     * Builds a PDF with one page per text, each showing its text in Helvetica through an
+     * uncompressed content stream.
+     */
+    public static byte[] createPdf(String... pageTexts) {
+        String[] contents = new String[pageTexts.length];
+        for (int i = 0; i < pageTexts.length; i++) {
+            contents[i] = "BT /F1 12 Tf 72 720 Td (" + pageTexts[i] + ") Tj ET";
+        }
+        return createPdfWithContents(contents);
+    }
+
+    /**
+     * Builds a PDF with one US Letter page per content stream. The pages share a resource
+     * dictionary with Helvetica as /F1.
+     */
+    public static byte[] createPdfWithContents(String... pageContents) {
+        List<String> objects = new ArrayList<>();
+        StringBuilder kids = new StringBuilder();
+        for (int i = 0; i < pageContents.length; i++) {
+            kids.append(4 + i * 2).append(" 0 R ");
+        }
+        objects.add("<< /Type /Catalog /Pages 2 0 R >>");
+        objects.add("<< /Type /Pages /Kids [" + kids + "] /Count " + pageContents.length
+                + " /MediaBox [0 0 612 792] /Resources << /Font << /F1 3 0 R >> >> >>");
+        objects.add("<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>");
+        for (int i = 0; i < pageContents.length; i++) {
+            String content = pageContents[i];
+            objects.add("<< /Type /Page /Parent 2 0 R /Contents " + (5 + i * 2) + " 0 R >>");
+            objects.add("<< /Length " + content.length() + " >>\nstream\n" + content + "\nendstream");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes("%PDF-1.4\n".getBytes(StandardCharsets.ISO_8859_1));
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < objects.size(); i++) {
+            offsets.add(out.size());
+            out.writeBytes(((i + 1) + " 0 obj\n" + objects.get(i) + "\nendobj\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+        int xrefOffset = out.size();
+        StringBuilder xref = new StringBuilder("xref\n0 " + (objects.size() + 1) + "\n0000000000 65535 f \n");
+        offsets.forEach(offset -> xref.append(String.format("%010d 00000 n \n", offset)));
+        xref.append("trailer\n<< /Size ").append(objects.size() + 1).append(" /Root 1 0 R >>\nstartxref\n")
+                .append(xrefOffset).append("\n%%EOF\n");
+        out.writeBytes(xref.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,158 @@
+package com.pergamon.llm.conversation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.pergamon.llm.conversation.TestFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ToolRegistryTest {
+
+    private static final String EMPTY_SCHEMA = "{\"type\":\"object\",\"properties\":{}}";
+
+    private static Tool tool(String name, ToolHandler handler) {
+        return new Tool(name, "Test tool " + name, EMPTY_SCHEMA, handler);
+    }
+
+    /**
+     * Answers the first turn with two tool uses and every later turn with plain text,
+     * recording the messages it was sent.
+     */
+    private static class ToolCallingConversation extends Conversation<Message, Message> {
+        private final List<Message> sent = new ArrayList<>();
+        private final boolean supportsTools;
+
+        ToolCallingConversation(boolean supportsTools) {
+            super(CLAUDE_SONNET_45);
+            this.supportsTools = supportsTools;
+        }
+
+        @Override
+        protected void toolRegistryChanged(ToolRegistry toolRegistry) {
+            if (!supportsTools) {
+                super.toolRegistryChanged(toolRegistry);
+            }
+        }
+
+        @Override
+        protected Message toVendorMessage(Message message) {
+            return message;
+        }
+
+        @Override
+        protected Message sendConversationToVendor() {
+            sent.add(vendorMessages.getLast());
+            if (sent.size() == 1) {
+                return new Message(MessageRole.ASSISTANT, List.of(
+                        new ToolUseBlock("toolu_1", "first", "{}"),
+                        new ToolUseBlock("toolu_2", "second", "{}")));
+            }
+            return createAssistantMessage("done");
+        }
+
+        @Override
+        protected Message vendorResponseToVendorMessage(Message vendorResponse) {
+            return vendorResponse;
+        }
+
+        @Override
+        protected Message fromVendorResponse(Message vendorResponse) {
+            return vendorResponse;
+        }
+
+        @Override
+        protected boolean isCacheable() {
+            return false;
+        }
+
+        @Override
+        protected void configureCaching() {
+        }
+    }
+
+    @Test
+    void testToolsRunConcurrently() {
+        // Each tool waits for the other, so the step only finishes if they run at the same time
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        ToolHandler waitForOther = input -> {
+            bothStarted.countDown();
+            if (!bothStarted.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Tools ran one after another");
+            }
+            return "ok " + input;
+        };
+        ToolRegistry registry = ToolRegistry.of(List.of(tool("first", waitForOther), tool("second", waitForOther)));
+
+        List<ToolResultBlock> results = registry.execute(List.of(
+                new ToolUseBlock("toolu_1", "first", "{\"a\":1}"),
+                new ToolUseBlock("toolu_2", "second", "{\"b\":2}")));
+
+        assertEquals(List.of(
+                new ToolResultBlock("toolu_1", "ok {\"a\":1}", false),
+                new ToolResultBlock("toolu_2", "ok {\"b\":2}", false)), results);
+    }
+
+    @Test
+    void testFailuresAndUnknownToolsBecomeErrorResults() {
+        ToolRegistry registry = ToolRegistry.empty().with(tool("broken", input -> {
+            throw new IllegalStateException("disk full");
+        }));
+
+        List<ToolResultBlock> results = registry.execute(List.of(
+                new ToolUseBlock("toolu_1", "broken", "{}"),
+                new ToolUseBlock("toolu_2", "missing", "{}")));
+
+        assertTrue(results.get(0).isError());
+        assertTrue(results.get(0).content().contains("disk full"));
+        assertTrue(results.get(1).isError());
+        assertEquals("Unknown tool: missing", results.get(1).content());
+    }
+
+    @Test
+    void testDuplicateNamesAreRejected() {
+        ToolRegistry registry = ToolRegistry.of(List.of(tool("lookup", input -> "")));
+
+        assertThrows(IllegalArgumentException.class, () -> registry.with(tool("lookup", input -> "")));
+        assertThrows(IllegalArgumentException.class, () -> tool("bad name", input -> ""));
+    }
+
+    @Test
+    void testAgentLoopSendsAllResultsInOneTurn() {
+        ToolCallingConversation conversation = new ToolCallingConversation(true);
+        conversation.setToolRegistry(ToolRegistry.of(List.of(
+                tool("first", input -> "one"), tool("second", input -> "two"))));
+
+        Message response = conversation.sendMessageWithTools(createUserMessage("Go"));
+
+        assertEquals(createAssistantMessage("done"), response);
+        assertEquals(2, conversation.sent.size());
+        Message toolTurn = conversation.sent.get(1);
+        assertEquals(MessageRole.TOOL, toolTurn.role());
+        assertEquals(List.of(
+                new ToolResultBlock("toolu_1", "one", false),
+                new ToolResultBlock("toolu_2", "two", false)), toolTurn.blocks());
+        assertEquals(4, conversation.messages().size());
+    }
+
+    @Test
+    void testAgentLoopStopsAfterMaxSteps() {
+        ToolCallingConversation conversation = new ToolCallingConversation(true);
+        conversation.setToolRegistry(ToolRegistry.of(List.of(
+                tool("first", input -> "one"), tool("second", input -> "two"))));
+
+        assertThrows(IllegalStateException.class, () -> conversation.sendMessageWithTools(createUserMessage("Go"), 0));
+    }
+
+    @Test
+    void testVendorsWithoutToolsRejectRegistries() {
+        ToolCallingConversation conversation = new ToolCallingConversation(false);
+
+        assertThrows(UnsupportedOperationException.class,
+                () -> conversation.setToolRegistry(ToolRegistry.of(List.of(tool("first", input -> "")))));
+        assertTrue(conversation.toolRegistry().isEmpty());
+    }
+}
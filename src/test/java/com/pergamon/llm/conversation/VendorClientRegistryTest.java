@@ -0,0 +1,71 @@
+package com.pergamon.llm.conversation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VendorClientRegistryTest {
+
+    private static final String API_KEY = "sk-test-key";
+
+    @Test
+    void testSameVendorAndKeyShareOneClient() {
+        VendorClientRegistry registry = new VendorClientRegistry();
+        AtomicInteger created = new AtomicInteger();
+
+        VendorClientRegistry.Lease<Object> first = registry.acquire(
+                Vendor.ANTHROPIC, API_KEY, key -> { created.incrementAndGet(); return new Object(); }, client -> { });
+        VendorClientRegistry.Lease<Object> second = registry.acquire(
+                Vendor.ANTHROPIC, API_KEY, key -> { created.incrementAndGet(); return new Object(); }, client -> { });
+
+        assertSame(first.client(), second.client(), "Leases for the same vendor and key should share a client");
+        assertEquals(1, created.get(), "Client should be created lazily, once");
+        assertEquals(2, registry.referenceCount(Vendor.ANTHROPIC, API_KEY));
+    }
+
+    @Test
+    void testDifferentKeysGetDifferentClients() {
+        VendorClientRegistry registry = new VendorClientRegistry();
+
+        VendorClientRegistry.Lease<Object> first = registry.acquire(
+                Vendor.ANTHROPIC, API_KEY, key -> new Object(), client -> { });
+        VendorClientRegistry.Lease<Object> second = registry.acquire(
+                Vendor.ANTHROPIC, "sk-other-key", key -> new Object(), client -> { });
+
+        assertNotSame(first.client(), second.client());
+        assertEquals(2, registry.clientCount());
+    }
+
+    @Test
+    void testClientClosedWhenLastLeaseReleased() {
+        VendorClientRegistry registry = new VendorClientRegistry();
+        List<Object> closed = new ArrayList<>();
+
+        VendorClientRegistry.Lease<Object> first = registry.acquire(
+                Vendor.ANTHROPIC, API_KEY, key -> new Object(), closed::add);
+        VendorClientRegistry.Lease<Object> second = registry.acquire(
+                Vendor.ANTHROPIC, API_KEY, key -> new Object(), closed::add);
+
+        first.close();
+        first.close(); // releasing twice must not drop the other lease's reference
+        assertTrue(closed.isEmpty(), "Client should stay open while a lease is live");
+        assertEquals(1, registry.referenceCount(Vendor.ANTHROPIC, API_KEY));
+
+        second.close();
+        assertEquals(List.of(second.client()), closed, "Client should be closed exactly once");
+        assertEquals(0, registry.clientCount());
+    }
+
+    @Test
+    void testBlankApiKeyThrows() {
+        VendorClientRegistry registry = new VendorClientRegistry();
+
+        assertThrows(IllegalArgumentException.class, () -> {
+            registry.acquire(Vendor.ANTHROPIC, " ", key -> new Object(), client -> { });
+        }, "Should throw when API key is blank");
+    }
+}
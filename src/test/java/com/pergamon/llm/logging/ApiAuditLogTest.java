@@ -0,0 +1,85 @@
+package com.pergamon.llm.logging;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pergamon.llm.aspect.ApiAuditLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the background API audit log writer.
+ */
+public class ApiAuditLogTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private ListAppender<ILoggingEvent> apiListAppender;
+    private Logger apiLogger;
+
+    @BeforeEach
+    public void setup() {
+        apiLogger = (Logger) LoggerFactory.getLogger("com.pergamon.llm.api");
+        apiListAppender = new ListAppender<>();
+        apiListAppender.start();
+        apiLogger.addAppender(apiListAppender);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        apiLogger.detachAppender(apiListAppender);
+    }
+
+    @Test
+    public void testEventsAreWrittenAsSingleLineJson() throws Exception {
+        ApiAuditLog auditLog = new ApiAuditLog(16, 64);
+
+        assertTrue(auditLog.submit("ANTHROPIC", "Audit Test", "request", Map.of("role", "user")));
+        assertTrue(auditLog.flush(Duration.ofSeconds(5)));
+
+        List<ILoggingEvent> events = apiListAppender.list;
+        assertEquals(1, events.size());
+        String line = events.get(0).getFormattedMessage();
+        assertFalse(line.contains("\n"), "Audit events should be compact JSONL");
+
+        JsonNode node = OBJECT_MAPPER.readTree(line);
+        assertEquals("ANTHROPIC", node.get("vendor").asText());
+        assertEquals("Audit Test", node.get("conversation").asText());
+        assertEquals("request", node.get("type").asText());
+        assertEquals("user", node.get("payload").get("role").asText());
+    }
+
+    @Test
+    public void testLargePayloadsAreHashedOrTruncated() throws Exception {
+        ApiAuditLog auditLog = new ApiAuditLog(16, 64);
+        String base64 = "A".repeat(10_000);
+        String text = "B".repeat(1_000);
+
+        auditLog.submit("ANTHROPIC", "Audit Test", "request",
+                Map.of("source", Map.of("type", "base64", "data", base64), "text", text));
+        assertTrue(auditLog.flush(Duration.ofSeconds(5)));
+
+        JsonNode payload = OBJECT_MAPPER.readTree(apiListAppender.list.get(0).getFormattedMessage()).get("payload");
+        String data = payload.get("source").get("data").asText();
+        assertTrue(data.startsWith("<10000 chars sha256="), "Base64 data should be replaced by its hash: " + data);
+
+        String truncated = payload.get("text").asText();
+        assertTrue(truncated.startsWith("B".repeat(64) + "...<truncated 936 chars>"),
+                "Long text should be truncated: " + truncated);
+    }
+
+    @Test
+    public void testInvalidCapacityThrows() {
+        assertThrows(IllegalArgumentException.class, () -> new ApiAuditLog(0, 64));
+    }
+}
@@ -45,8 +45,8 @@ public class LogTestHelper {
      * @return true if a request from this vendor was logged
      */
     public static boolean apiLogContainsRequest(String vendorName) throws IOException {
-        String fullLog = String.join("\n", readApiLog());
-        return fullLog.contains("[" + vendorName + "] Request:");
+        return readApiLog().stream()
+            .anyMatch(line -> isApiLogEvent(line, vendorName, "request"));
     }
 
     /**
@@ -55,8 +55,20 @@ public class LogTestHelper {
      * @return true if a response from this vendor was logged
      */
     public static boolean apiLogContainsResponse(String vendorName) throws IOException {
-        String fullLog = String.join("\n", readApiLog());
-        return fullLog.contains("[" + vendorName + "] Response:");
+        return readApiLog().stream()
+            .anyMatch(line -> isApiLogEvent(line, vendorName, "response"));
+    }
+
+    /**
+     * Checks if an API log line (one JSON object) is an event of the given vendor and type.
+     * @param line the log line
+     * @param vendorName the vendor name (e.g., "ANTHROPIC")
+     * @param type the event type ("request" or "response")
+     * @return true if the line matches
+     */
+    public static boolean isApiLogEvent(String line, String vendorName, String type) {
+        return line.contains("\"vendor\":\"" + vendorName + "\"")
+            && line.contains("\"type\":\"" + type + "\"");
     }
 
     /**
@@ -95,11 +107,11 @@ public class LogTestHelper {
 
     /**
      * Gets the number of log entries in the API log.
-     * Counts lines that start with a timestamp pattern.
+     * Counts lines that are JSON objects (the API log is JSONL).
      */
     public static long getApiLogEntryCount() throws IOException {
         return readApiLog().stream()
-            .filter(line -> line.matches("^\\d{4}-\\d{2}-\\d{2}.*"))
+            .filter(line -> line.startsWith("{"))
             .count();
     }
 
@@ -118,14 +130,14 @@ public class LogTestHelper {
      */
     public static List<String> getRecentApiLogEntries(int count) throws IOException {
         List<String> allLines = readApiLog();
-        List<String> timestampLines = allLines.stream()
-            .filter(line -> line.matches("^\\d{4}-\\d{2}-\\d{2}.*"))
+        List<String> entryLines = allLines.stream()
+            .filter(line -> line.startsWith("{"))
             .collect(Collectors.toList());
 
-        int size = timestampLines.size();
+        int size = entryLines.size();
         if (size <= count) {
-            return timestampLines;
+            return entryLines;
         }
-        return timestampLines.subList(size - count, size);
+        return entryLines.subList(size - count, size);
     }
 }